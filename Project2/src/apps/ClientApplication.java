@@ -33,6 +33,10 @@ import java.util.*;
  */
 abstract class ClientApplication extends Application
 {
+    /** Time after which a lock held through a long transfer is renewed, in
+        milliseconds. This is well within the lease time of the naming server,
+        after which a lock which has not been renewed is released. */
+    protected static final long             RENEWAL_INTERVAL = 30000;
     /** Fatal error message, if a fatal error has occurred. */
     private String                          fatal_error_message = null;
     /** Aggregated list of application error messages. */
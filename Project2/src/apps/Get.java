@@ -69,9 +69,11 @@ public class Get extends ClientApplication
         // Get a stub for the naming server and lock the source file.
         Service         naming_server = NamingStubs.service(source.hostname);
 
+        long            lease;
+
         try
         {
-            naming_server.lock(source.path, false);
+            lease = naming_server.lease(source.path, false);
         }
         catch(Throwable t)
         {
@@ -86,6 +88,8 @@ public class Get extends ClientApplication
         byte[]              read_buffer;
         DFSInputStream      input_stream = null;
         OutputStream        output_stream = null;
+        long                renewed = System.currentTimeMillis();
+        boolean             leased = true;
 
         try
         {
@@ -112,6 +116,18 @@ public class Get extends ClientApplication
 
                 // Write only as many bytes as were actually read.
                 output_stream.write(read_buffer, 0, bytes_read);
+
+                // Renew the lease of the lock from time to time. If it has
+                // run out, the lock is no longer held, and must not be
+                // released.
+                if(System.currentTimeMillis() - renewed > RENEWAL_INTERVAL)
+                {
+                    leased = naming_server.renew(lease);
+                    if(!leased)
+                        throw new IOException("lock lease ran out");
+
+                    renewed = System.currentTimeMillis();
+                }
             }
         }
         catch(Throwable t)
@@ -143,7 +159,8 @@ public class Get extends ClientApplication
 
             try
             {
-                naming_server.unlock(source.path, false);
+                if(leased)
+                    naming_server.release(lease);
             }
             catch(Throwable t)
             {
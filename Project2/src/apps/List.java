@@ -1,8 +1,10 @@
 package apps;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import naming.*;
+import rmi.*;
 
 /** Lists files and directories.
 
@@ -99,8 +101,20 @@ public class List extends ClientApplication
 
         try
         {
-            if(naming_server.isDirectory(object.path))
-                components = naming_server.list(object.path);
+            // Ask whether the path is a directory and for its listing in one
+            // round trip. If the path is a file, the listing fails on its own
+            // and is not used.
+            Batch<Service>              batch =
+                Stub.batch(Service.class, naming_server);
+            CompletableFuture<Boolean>  directory =
+                batch.add(s -> s.isDirectory(object.path));
+            CompletableFuture<String[]> listing =
+                batch.add(s -> s.list(object.path));
+
+            batch.send();
+
+            if(unwrap(directory))
+                components = unwrap(listing);
             else
                 components = new String[] {object.path.last()};
         }
@@ -136,4 +150,22 @@ public class List extends ClientApplication
             System.out.println(components[index]);
         }
     }
+
+    /** Returns the result of a batched call.
+
+        @param result Future for the result of the call.
+        @return The result.
+        @throws Throwable The exception thrown by the call, if any.
+     */
+    private static <R> R unwrap(CompletableFuture<R> result) throws Throwable
+    {
+        try
+        {
+            return result.get();
+        }
+        catch(ExecutionException e)
+        {
+            throw e.getCause();
+        }
+    }
 }
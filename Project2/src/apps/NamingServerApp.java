@@ -46,11 +46,11 @@ public class NamingServerApp extends ServerApplication
         server.start();
     }
 
-    /** Stops the naming server. */
+    /** Stops the naming server, letting calls in flight finish first. */
     @Override
     protected void stopServer()
     {
-        server.stop();
+        server.drain(DRAIN_TIMEOUT);
     }
 
     /** Application naming server. */
@@ -65,6 +65,14 @@ public class NamingServerApp extends ServerApplication
             super.stop();
         }
 
+        /** Schedules a timeout before draining the server. */
+        @Override
+        public DrainReport drain(long timeout)
+        {
+            startTerminationTimer();
+            return super.drain(timeout);
+        }
+
         /** Calls <code>serverStopped</code>. */
         @Override
         protected void stopped(Throwable cause)
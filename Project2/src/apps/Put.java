@@ -79,10 +79,12 @@ public class Put extends ClientApplication
         Service         naming_server =
             NamingStubs.service(destination.hostname);
 
+        long            lease;
+
         // Lock the parent of the destination path on the remote server.
         try
         {
-            naming_server.lock(path_to_lock, true);
+            lease = naming_server.lease(path_to_lock, true);
         }
         catch(Throwable t)
         {
@@ -93,6 +95,7 @@ public class Put extends ClientApplication
         byte[]              read_buffer;
         InputStream         input_stream = null;
         DFSOutputStream     output_stream = null;
+        boolean             leased = true;
 
         try
         {
@@ -133,6 +136,7 @@ public class Put extends ClientApplication
 
             // Obtain the size of the source file.
             long            bytes_remaining = source.length();
+            long            renewed = System.currentTimeMillis();
 
             // Allocate the temporary read buffer and open streams.
             read_buffer = new byte[BLOCK_SIZE];
@@ -172,6 +176,18 @@ public class Put extends ClientApplication
 
                 output_stream.write(read_buffer, 0, bytes_to_transfer);
                 bytes_remaining -= bytes_to_transfer;
+
+                // Renew the lease of the lock from time to time. If it has
+                // run out, the lock is no longer held, and must not be
+                // released.
+                if(System.currentTimeMillis() - renewed > RENEWAL_INTERVAL)
+                {
+                    leased = naming_server.renew(lease);
+                    if(!leased)
+                        throw new IOException("lock lease ran out");
+
+                    renewed = System.currentTimeMillis();
+                }
             }
         }
         catch(ApplicationFailure e) { throw e; }
@@ -204,7 +220,8 @@ public class Put extends ClientApplication
 
             try
             {
-                naming_server.unlock(path_to_lock, true);
+                if(leased)
+                    naming_server.release(lease);
             }
             catch(Throwable t)
             {
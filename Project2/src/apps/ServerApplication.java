@@ -35,6 +35,10 @@ abstract class ServerApplication extends Application
 {
     /** Time the server is allotted to stop gracefully, in milliseconds. */
     private static final long   TERMINATION_TIMEOUT = 5000;
+    /** Time calls in flight are given to finish when the server stops, in
+        milliseconds. This is within the termination timeout, so that the
+        server still stops on its own. */
+    protected static final long DRAIN_TIMEOUT = 4000;
 
     /** Indicates that the server has stopped. */
     private boolean             stopped = false;
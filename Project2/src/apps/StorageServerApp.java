@@ -87,11 +87,11 @@ public class StorageServerApp extends ServerApplication
         server.start(arguments[0], NamingStubs.registration(arguments[1]));
     }
 
-    /** Stops the storage server. */
+    /** Stops the storage server, letting calls in flight finish first. */
     @Override
     protected void stopServer()
     {
-        server.stop();
+        server.drain(DRAIN_TIMEOUT);
     }
 
     /** Application storage server. */
@@ -112,6 +112,14 @@ public class StorageServerApp extends ServerApplication
             super.stop();
         }
 
+        /** Schedules a timeout before draining the server. */
+        @Override
+        public DrainReport drain(long timeout)
+        {
+            startTerminationTimer();
+            return super.drain(timeout);
+        }
+
         /** Calls <code>serverStopped</code>. */
         @Override
         protected synchronized void stopped(Throwable cause)
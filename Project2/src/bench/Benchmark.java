@@ -0,0 +1,116 @@
+package bench;
+
+/** Base class of benchmarks.
+
+    <p>
+    Benchmarks are created by subclassing <code>Benchmark</code> and overriding
+    the <code>operation</code> method, which performs the operation being
+    measured once. The benchmark author may optionally also override
+    <code>initialize</code> and <code>clean</code>, which are called before the
+    first and after the last operation, outside of the time measured.
+
+    <p>
+    A benchmark is run by a <code>Runner</code>, which calls
+    <code>operation</code> repeatedly from the given number of threads at
+    once: first for a while to warm the JVM up, then for a number of timed
+    iterations. Operations which take less than a few microseconds should be
+    run in batches, so that reading the clock does not cost more than the
+    operation itself.
+ */
+public abstract class Benchmark
+{
+    /** Name of the benchmark, as printed in reports. */
+    private final String    name;
+    /** Number of threads performing operations at once. */
+    private final int       threads;
+    /** Number of operations timed together. */
+    private final int       batch;
+    /** Payload bytes moved by each operation, or zero. */
+    private final long      bytes;
+    /** Receives the results of operations, so that they are not optimized
+        away. */
+    private long            sink = 0;
+
+    /** Creates a benchmark.
+
+        @param name Name of the benchmark.
+        @param threads Number of threads performing operations at once.
+        @param batch Number of operations timed together.
+        @param bytes Payload bytes moved by each operation. If not zero,
+                     reports include the rate at which bytes were moved.
+     */
+    protected Benchmark(String name, int threads, int batch, long bytes)
+    {
+        if(threads < 1 || batch < 1 || bytes < 0)
+            throw new IllegalArgumentException("bad benchmark parameters");
+
+        this.name = name;
+        this.threads = threads;
+        this.batch = batch;
+        this.bytes = bytes;
+    }
+
+    /** Performs the operation being measured once.
+
+        @param thread Index of the calling thread, from zero to the number of
+                      threads less one.
+        @throws Throwable If the operation fails. The benchmark is then
+                          abandoned.
+     */
+    protected abstract void operation(int thread) throws Throwable;
+
+    /** Prepares the benchmark. Called before any operation is performed. The
+        default implementation does nothing. */
+    protected void initialize() throws Throwable
+    {
+    }
+
+    /** Releases the resources of the benchmark. Called after the last
+        operation, even if the benchmark failed. The default implementation
+        does nothing. */
+    protected void clean() throws Throwable
+    {
+    }
+
+    /** Keeps the result of an operation from being optimized away.
+
+        @param result The result.
+     */
+    protected void consume(Object result)
+    {
+        sink += System.identityHashCode(result);
+    }
+
+    /** Keeps the result of an operation from being optimized away.
+
+        @param result The result.
+     */
+    protected void consume(long result)
+    {
+        sink += result;
+    }
+
+    /** Returns the name of the benchmark. */
+    public String name()
+    {
+        return name;
+    }
+
+    /** Returns the number of threads performing operations at once. */
+    public int threads()
+    {
+        return threads;
+    }
+
+    /** Returns the number of operations timed together. */
+    public int batch()
+    {
+        return batch;
+    }
+
+    /** Returns the payload bytes moved by each operation. */
+    public long bytes()
+    {
+        return bytes;
+    }
+}
@@ -0,0 +1,173 @@
+package bench;
+
+import java.util.ArrayList;
+
+import bench.naming.LockBenchmark;
+import bench.naming.LookupBenchmark;
+import bench.naming.NamespaceBenchmark;
+import bench.rmi.NullCallBenchmark;
+import bench.rmi.ReadBenchmark;
+import bench.rmi.StubBenchmark;
+import rmi.LocalCalls;
+import rmi.UnixSockets;
+
+/** Runs the benchmarks.
+
+    <p>
+    Benchmarks run are:
+    <ul>
+    <li>{@link bench.rmi.NullCallBenchmark} with 1, 8 and 64 threads</li>
+    <li>{@link bench.rmi.ReadBenchmark} with payloads from 16 bytes to 16 MiB
+        </li>
+    <li>{@link bench.rmi.StubBenchmark} for stub creation,
+        <code>equals</code> and <code>hashCode</code></li>
+    <li>{@link bench.naming.NamespaceBenchmark} with 1, 2, 4, 8 and 64
+        threads</li>
+    <li>{@link bench.naming.LookupBenchmark} for <code>isDirectory</code> and
+        locking, on paths 1, 4 and 16 directories deep</li>
+    <li>{@link bench.naming.LockBenchmark} for the lock of the naming server
+        and the one it replaced, with 1, 8 and 64 threads, taking shared
+        locks only and with 10% exclusive locks</li>
+    </ul>
+
+    <p>
+    The command line accepts the following options, followed by any number of
+    words. If words are given, only benchmarks whose names contain one of them
+    are run.
+    <ul>
+    <li><code>-w seconds</code>: warmup time of each benchmark (default 2)</li>
+    <li><code>-i count</code>: number of timed iterations (default 5)</li>
+    <li><code>-t seconds</code>: time of each iteration (default 1)</li>
+    <li><code>-local</code>: let stubs call skeletons in the same JVM
+        directly</li>
+    <li><code>-unix</code>: let stubs connect over Unix domain sockets</li>
+    </ul>
+ */
+public class Benchmarks
+{
+    /** Thread counts of the null call benchmark. */
+    private static final int[]  THREADS = {1, 8, 64};
+    /** Thread counts of the naming server benchmark. */
+    private static final int[]  NAMING_THREADS = {1, 2, 4, 8, 64};
+    /** Percentages of exclusive locks of the lock benchmark. */
+    private static final int[]  EXCLUSIVE = {0, 10};
+    /** Path depths of the lookup benchmark. */
+    private static final int[]  DEPTHS = {1, 4, 16};
+    /** Payload sizes of the read benchmark. */
+    private static final int[]  SIZES =
+        {16, 1024, 64 * 1024, 1024 * 1024, 16 * 1024 * 1024};
+
+    /** Runs the benchmarks.
+
+        @param arguments Command line, as described above.
+     */
+    public static void main(String[] arguments)
+    {
+        double              warmup = 2;
+        int                 iterations = 5;
+        double              time = 1;
+        boolean             local = false;
+        boolean             unix = false;
+        ArrayList<String>   words = new ArrayList<String>();
+
+        try
+        {
+            for(int index = 0; index < arguments.length; ++index)
+            {
+                String  argument = arguments[index];
+
+                if(argument.equals("-w"))
+                    warmup = Double.parseDouble(arguments[++index]);
+                else if(argument.equals("-i"))
+                    iterations = Integer.parseInt(arguments[++index]);
+                else if(argument.equals("-t"))
+                    time = Double.parseDouble(arguments[++index]);
+                else if(argument.equals("-local"))
+                    local = true;
+                else if(argument.equals("-unix"))
+                    unix = true;
+                else if(argument.startsWith("-"))
+                    throw new IllegalArgumentException(argument);
+                else
+                    words.add(argument);
+            }
+        }
+        catch(RuntimeException e)
+        {
+            System.err.println("usage: java bench.Benchmarks [-w seconds] " +
+                               "[-i count] [-t seconds] [-local] [-unix] " +
+                               "[word ...]");
+            System.exit(1);
+            return;
+        }
+
+        // Measure the transport unless told otherwise.
+        LocalCalls.setEnabled(local);
+        UnixSockets.setEnabled(unix);
+
+        ArrayList<Benchmark>    benchmarks = new ArrayList<Benchmark>();
+
+        for(int threads : THREADS)
+            benchmarks.add(new NullCallBenchmark(threads));
+
+        for(int size : SIZES)
+            benchmarks.add(new ReadBenchmark(size));
+
+        for(StubBenchmark.Operation operation :
+                StubBenchmark.Operation.values())
+        {
+            benchmarks.add(new StubBenchmark(operation));
+        }
+
+        for(int threads : NAMING_THREADS)
+            benchmarks.add(new NamespaceBenchmark(threads));
+
+        for(LookupBenchmark.Operation operation :
+                LookupBenchmark.Operation.values())
+        {
+            for(int depth : DEPTHS)
+                benchmarks.add(new LookupBenchmark(operation, depth));
+        }
+
+        for(int exclusive : EXCLUSIVE)
+        {
+            for(LockBenchmark.Kind kind : LockBenchmark.Kind.values())
+            {
+                for(int threads : THREADS)
+                    benchmarks.add(new LockBenchmark(kind, threads, exclusive));
+            }
+        }
+
+        Runner              runner = new Runner(warmup, iterations, time,
+                                                System.out);
+        boolean             successful = true;
+
+        runner.header();
+
+        for(Benchmark benchmark : benchmarks)
+        {
+            if(!selected(benchmark, words))
+                continue;
+
+            successful &= runner.run(benchmark);
+        }
+
+        System.exit(successful ? 0 : 2);
+    }
+
+    /** Returns <code>true</code> if a benchmark is to be run. */
+    private static boolean selected(Benchmark benchmark,
+                                    ArrayList<String> words)
+    {
+        if(words.isEmpty())
+            return true;
+
+        for(String word : words)
+        {
+            if(benchmark.name().contains(word))
+                return true;
+        }
+
+        return false;
+    }
+}
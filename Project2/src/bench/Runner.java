@@ -0,0 +1,349 @@
+package bench;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/** Runs benchmarks and reports their results.
+
+    <p>
+    Each benchmark is first run for the warmup time, which is not measured,
+    so that the JVM has compiled the code involved by the time measurement
+    starts. It is then run for the given number of iterations of the given
+    time each. For each benchmark, one line is printed, giving the mean number
+    of operations per second over the iterations with its standard deviation,
+    the median and 99th percentile time of one operation, and for benchmarks
+    which move a payload, the rate at which payload bytes were moved.
+
+    <p>
+    Times of single operations are sampled: each thread keeps a random sample
+    of at most <code>SAMPLES</code> times, and the percentiles are taken over
+    the samples of all threads. For benchmarks which time operations in
+    batches, the time of an operation is the mean time of the operations in its
+    batch.
+ */
+public class Runner
+{
+    /** Most operation times kept by each thread. */
+    private static final int        SAMPLES = 1 << 14;
+    /** Time given to worker threads to finish their last operation, in
+        milliseconds. */
+    private static final long       STOP_TIMEOUT = 60000;
+
+    /** Warmup time, in milliseconds. */
+    private final long              warmup;
+    /** Number of timed iterations. */
+    private final int               iterations;
+    /** Time of each iteration, in milliseconds. */
+    private final long              time;
+    /** Stream to which results are printed. */
+    private final PrintStream       out;
+
+    /** Phase of the benchmark being run: zero during warmup, the number of the
+        iteration during measurement, and -1 when the workers are to stop. */
+    private volatile int            phase;
+
+    /** Creates a runner.
+
+        @param warmup Warmup time, in seconds.
+        @param iterations Number of timed iterations.
+        @param time Time of each iteration, in seconds.
+        @param out Stream to which results are printed.
+     */
+    public Runner(double warmup, int iterations, double time, PrintStream out)
+    {
+        if(warmup < 0 || iterations < 1 || time <= 0)
+            throw new IllegalArgumentException("bad run parameters");
+
+        this.warmup = (long)(warmup * 1000);
+        this.iterations = iterations;
+        this.time = (long)(time * 1000);
+        this.out = out;
+    }
+
+    /** Prints the header of the table of results. */
+    public void header()
+    {
+        out.println(String.format("%-34s %7s %23s %10s %10s %10s",
+                                  "benchmark", "threads", "ops/s", "p50", "p99",
+                                  "MiB/s"));
+    }
+
+    /** Runs a benchmark and prints its results.
+
+        @param benchmark The benchmark.
+        @return <code>true</code> if the benchmark ran to completion,
+                <code>false</code> if it failed.
+     */
+    public boolean run(Benchmark benchmark)
+    {
+        Worker[]        workers = new Worker[benchmark.threads()];
+        long[]          elapsed = new long[iterations + 1];
+        Throwable       failure = null;
+
+        try
+        {
+            benchmark.initialize();
+
+            phase = 0;
+            for(int index = 0; index < workers.length; ++index)
+            {
+                workers[index] = new Worker(benchmark, index);
+                workers[index].start();
+            }
+
+            for(int iteration = 0; iteration <= iterations; ++iteration)
+            {
+                long    start = System.nanoTime();
+
+                phase = iteration;
+                Thread.sleep(iteration == 0 ? warmup : time);
+                elapsed[iteration] = System.nanoTime() - start;
+
+                failure = failure(workers);
+                if(failure != null)
+                    break;
+            }
+        }
+        catch(Throwable t)
+        {
+            failure = t;
+        }
+        finally
+        {
+            phase = -1;
+            failure = stop(workers, failure);
+
+            try
+            {
+                benchmark.clean();
+            }
+            catch(Throwable t)
+            {
+                if(failure == null)
+                    failure = t;
+            }
+        }
+
+        if(failure != null)
+        {
+            out.println(String.format("%-34s %7d   failed: %s",
+                                      benchmark.name(), benchmark.threads(),
+                                      failure));
+            return false;
+        }
+
+        report(benchmark, workers, elapsed);
+        return true;
+    }
+
+    /** Returns the first failure of any worker, or <code>null</code>. */
+    private Throwable failure(Worker[] workers)
+    {
+        for(Worker worker : workers)
+        {
+            if(worker != null && worker.failure != null)
+                return worker.failure;
+        }
+
+        return null;
+    }
+
+    /** Waits for the workers to finish their last operations.
+
+        @return The given failure, or the first failure of a worker if there
+                was none.
+     */
+    private Throwable stop(Worker[] workers, Throwable failure)
+    {
+        long    deadline = System.currentTimeMillis() + STOP_TIMEOUT;
+
+        for(Worker worker : workers)
+        {
+            if(worker == null)
+                continue;
+
+            try
+            {
+                worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            if(worker.isAlive() && failure == null)
+                failure = new IllegalStateException("operation did not finish");
+        }
+
+        return failure != null ? failure : failure(workers);
+    }
+
+    /** Prints the results of a benchmark which ran to completion. */
+    private void report(Benchmark benchmark, Worker[] workers, long[] elapsed)
+    {
+        double[]    rates = new double[iterations];
+        long[]      all = new long[0];
+        long        operations = 0;
+        long        nanoseconds = 0;
+
+        for(int iteration = 1; iteration <= iterations; ++iteration)
+        {
+            long    count = 0;
+
+            for(Worker worker : workers)
+                count += worker.operations[iteration];
+
+            rates[iteration - 1] = count * 1e9 / elapsed[iteration];
+            operations += count;
+            nanoseconds += elapsed[iteration];
+        }
+
+        for(Worker worker : workers)
+        {
+            int     kept = (int)Math.min(worker.seen, SAMPLES);
+            int     length = all.length;
+
+            all = Arrays.copyOf(all, length + kept);
+            System.arraycopy(worker.samples, 0, all, length, kept);
+        }
+
+        Arrays.sort(all);
+
+        double      mean = 0;
+        double      deviation = 0;
+
+        for(double rate : rates)
+            mean += rate / rates.length;
+
+        for(double rate : rates)
+            deviation += (rate - mean) * (rate - mean) / rates.length;
+
+        deviation = Math.sqrt(deviation);
+
+        String      bandwidth = "";
+        if(benchmark.bytes() > 0)
+        {
+            bandwidth = String.format("%.1f", benchmark.bytes() * operations *
+                                      1e9 / nanoseconds / (1 << 20));
+        }
+
+        out.println(String.format("%-34s %7d %12s +- %-7s %10s %10s %10s",
+                                  benchmark.name(), benchmark.threads(),
+                                  rate(mean), rate(deviation),
+                                  duration(percentile(all, 0.5)),
+                                  duration(percentile(all, 0.99)), bandwidth));
+    }
+
+    /** Returns a percentile of sorted operation times, or -1 if there are no
+        times. */
+    private static long percentile(long[] sorted, double fraction)
+    {
+        if(sorted.length == 0)
+            return -1;
+
+        return sorted[(int)Math.min(sorted.length - 1,
+                                    Math.floor(fraction * sorted.length))];
+    }
+
+    /** Formats a rate with three significant digits. */
+    private static String rate(double rate)
+    {
+        if(rate >= 1e6)
+            return String.format("%.3gM", rate / 1e6);
+        if(rate >= 1e3)
+            return String.format("%.3gk", rate / 1e3);
+
+        return String.format("%.3g", rate);
+    }
+
+    /** Formats a duration given in nanoseconds in a suitable unit. */
+    private static String duration(long nanoseconds)
+    {
+        if(nanoseconds < 0)
+            return "-";
+        if(nanoseconds < 1000)
+            return nanoseconds + " ns";
+        if(nanoseconds < 1000000)
+            return String.format("%.1f us", nanoseconds / 1e3);
+        if(nanoseconds < 1000000000)
+            return String.format("%.1f ms", nanoseconds / 1e6);
+
+        return String.format("%.1f s", nanoseconds / 1e9);
+    }
+
+    /** Thread performing operations until the benchmark is over. */
+    private class Worker extends Thread
+    {
+        /** The benchmark. */
+        private final Benchmark     benchmark;
+        /** Index of this thread among the workers. */
+        private final int           index;
+        /** Operations performed in each phase. */
+        final long[]                operations = new long[iterations + 1];
+        /** Sampled operation times, in nanoseconds. */
+        final long[]                samples = new long[SAMPLES];
+        /** Number of operation times measured. */
+        long                        seen = 0;
+        /** Exception thrown by an operation, or <code>null</code>. */
+        volatile Throwable          failure = null;
+
+        /** Creates a worker with the given index. */
+        Worker(Benchmark benchmark, int index)
+        {
+            super("benchmark worker " + index);
+            this.benchmark = benchmark;
+            this.index = index;
+            setDaemon(true);
+        }
+
+        /** Performs batches of operations, and times them, until told to
+            stop. */
+        @Override
+        public void run()
+        {
+            int     batch = benchmark.batch();
+
+            try
+            {
+                int     current;
+
+                while((current = phase) >= 0)
+                {
+                    long    start = System.nanoTime();
+
+                    for(int count = 0; count < batch; ++count)
+                        benchmark.operation(index);
+
+                    long    taken = (System.nanoTime() - start) / batch;
+
+                    operations[current] += batch;
+                    if(current > 0)
+                        sample(taken);
+                }
+            }
+            catch(Throwable t)
+            {
+                failure = t;
+            }
+        }
+
+        /** Keeps an operation time, replacing a random earlier one once the
+            samples are full, so that every time has the same chance of
+            being kept. */
+        private void sample(long taken)
+        {
+            if(seen < SAMPLES)
+                samples[(int)seen] = taken;
+            else
+            {
+                long    slot = ThreadLocalRandom.current().nextLong(seen + 1);
+
+                if(slot < SAMPLES)
+                    samples[(int)slot] = taken;
+            }
+
+            ++seen;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package bench.naming;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import naming.FairLock;
+
+import bench.Benchmark;
+
+/** Measures the lock of the naming server's directory tree.
+
+    <p>
+    All threads take and release one lock, as every call to the naming server
+    does with the root's. Each operation takes a shared lock and releases it,
+    except for the given percentage of operations, which take an exclusive
+    lock instead. The same benchmark can be run on <code>FairLock</code> and
+    on <code>MyLock</code>, which the naming server used before, so that the
+    two can be compared.
+ */
+public class LockBenchmark extends Benchmark
+{
+    /** Operations timed together. */
+    private static final int    BATCH = 100;
+
+    /** Locks which can be measured. */
+    public enum Kind
+    {
+        /** <code>naming.FairLock</code>. */
+        FAIR_LOCK,
+        /** <code>MyLock</code>, the former lock of the naming server. */
+        MY_LOCK
+    }
+
+    /** Lock measured. */
+    private final Kind          kind;
+    /** Percentage of operations which take an exclusive lock. */
+    private final int           exclusive;
+    /** The lock, if <code>FairLock</code> is measured. */
+    private FairLock            fair;
+    /** The lock, if <code>MyLock</code> is measured. */
+    private MyLock              old;
+
+    /** Creates the benchmark.
+
+        @param kind Lock measured.
+        @param threads Number of threads taking the lock at once.
+        @param exclusive Percentage of operations which take an exclusive
+                         lock.
+     */
+    public LockBenchmark(Kind kind, int threads, int exclusive)
+    {
+        super("naming." + (kind == Kind.FAIR_LOCK ? "fairLock" : "myLock") +
+              ".exclusive" + exclusive, threads, BATCH, 0);
+
+        if(exclusive < 0 || exclusive > 100)
+            throw new IllegalArgumentException("bad percentage");
+
+        this.kind = kind;
+        this.exclusive = exclusive;
+    }
+
+    /** Creates the lock. */
+    @Override
+    protected void initialize()
+    {
+        fair = new FairLock();
+        old = new MyLock();
+    }
+
+    @Override
+    protected void operation(int thread) throws Throwable
+    {
+        boolean     write = exclusive > 0 &&
+                            ThreadLocalRandom.current().nextInt(100) < exclusive;
+
+        if(kind == Kind.FAIR_LOCK)
+        {
+            if(write)
+            {
+                fair.getExclusive();
+                fair.releaseExclusive();
+            }
+            else
+            {
+                fair.getShared();
+                fair.releaseShared();
+            }
+        }
+        else
+        {
+            if(write)
+            {
+                old.getExclusive();
+                old.releaseExcluive();
+            }
+            else
+            {
+                old.getShared();
+                old.releaseShared();
+            }
+        }
+    }
+}
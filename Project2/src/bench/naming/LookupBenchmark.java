@@ -0,0 +1,86 @@
+package bench.naming;
+
+import common.Path;
+import naming.NamingServer;
+
+import bench.Benchmark;
+
+/** Measures finding a path in the directory tree of a naming server.
+
+    <p>
+    The path is the deepest of a chain of directories of the given depth, so
+    that the cost of finding a path can be compared across depths. Locking
+    also takes a shared lock on every directory above the path, so its cost
+    grows with the depth however the path is found.
+ */
+public class LookupBenchmark extends Benchmark
+{
+    /** Operations timed together. */
+    private static final int    BATCH = 100;
+
+    /** Operations which can be measured. */
+    public enum Operation
+    {
+        /** Checks whether the path is a directory. */
+        IS_DIRECTORY,
+        /** Locks the path for shared access and unlocks it again, as a
+            client does around every read. */
+        LOCK
+    }
+
+    /** Operation measured. */
+    private final Operation     operation;
+    /** Depth of the path looked up. */
+    private final int           depth;
+    /** The path looked up. */
+    private Path                path;
+    /** The naming server, which is not started. */
+    private NamingServer        server;
+
+    /** Creates the benchmark.
+
+        @param operation Operation measured.
+        @param depth Number of components of the path looked up.
+     */
+    public LookupBenchmark(Operation operation, int depth)
+    {
+        super("naming." + (operation == Operation.LOCK ? "lock" : "isDirectory")
+              + ".depth" + depth, 1, BATCH, 0);
+
+        this.operation = operation;
+        this.depth = depth;
+    }
+
+    /** Creates the naming server and the chain of directories. */
+    @Override
+    protected void initialize() throws Throwable
+    {
+        server = new NamingServer();
+        path = new Path();
+
+        for(int level = 0; level < depth; ++level)
+        {
+            path = new Path(path, "directory" + level);
+            server.createDirectory(path);
+        }
+    }
+
+    @Override
+    protected void operation(int thread) throws Throwable
+    {
+        if(operation == Operation.IS_DIRECTORY)
+            consume(server.isDirectory(path) ? 1 : 0);
+        else
+        {
+            server.lock(path, false);
+            server.unlock(path, false);
+        }
+    }
+
+    /** Drops the naming server. */
+    @Override
+    protected void clean()
+    {
+        server = null;
+    }
+}
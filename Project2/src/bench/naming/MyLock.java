@@ -1,4 +1,4 @@
-package naming;
+package bench.naming;
 
 import java.util.LinkedList;
 
@@ -8,6 +8,9 @@ import java.util.LinkedList;
  *         This class is used to describe the different types of Lock we can
  *         have. And the functionalities we can do with the locks.
  *
+ *         This was the lock of the naming server's Nodes before FairLock. It
+ *         is kept here as the baseline of LockBenchmark.
+ *
  */
 public class MyLock {
 
@@ -1,4 +1,4 @@
-package naming;
+package bench.naming;
 
 /**
  * @author hira.yasin
@@ -0,0 +1,108 @@
+package bench.naming;
+
+import java.io.FileNotFoundException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import bench.Benchmark;
+import common.Path;
+import naming.NamingServer;
+
+/** Measures mixed metadata traffic on the directory tree of a naming server.
+
+    <p>
+    Each operation is chosen at random: most are reads, which check whether
+    a path is a directory or list a directory, and the rest create or delete
+    directories. All threads work on the same few directories, so that
+    readers and writers constantly meet in the same branches of the tree.
+    Operations on paths which another thread has just deleted fail with
+    <code>FileNotFoundException</code>, which is expected; any other exception
+    fails the benchmark.
+
+    <p>
+    Files are not created, since that needs a storage server, and so a round
+    trip that would dwarf the cost of the tree itself.
+ */
+public class NamespaceBenchmark extends Benchmark
+{
+    /** Number of directories under the root. */
+    private static final int    DIRECTORIES = 16;
+    /** Number of names used in each of those directories. */
+    private static final int    ENTRIES = 64;
+    /** Percentage of operations which read. */
+    private static final int    READS = 80;
+    /** Operations timed together. */
+    private static final int    BATCH = 100;
+
+    /** Directories under the root, which are never deleted. */
+    private final Path[]        parents = new Path[DIRECTORIES];
+    /** Paths created and deleted by the operations, by parent. */
+    private final Path[][]      children = new Path[DIRECTORIES][ENTRIES];
+    /** The naming server, which is not started. */
+    private NamingServer        server;
+
+    /** Creates the benchmark.
+
+        @param threads Number of threads working on the tree at once.
+     */
+    public NamespaceBenchmark(int threads)
+    {
+        super("naming.mixed", threads, BATCH, 0);
+
+        for(int parent = 0; parent < DIRECTORIES; ++parent)
+        {
+            parents[parent] = new Path("/d" + parent);
+
+            for(int child = 0; child < ENTRIES; ++child)
+                children[parent][child] = new Path(parents[parent], "e" + child);
+        }
+    }
+
+    /** Creates the naming server and the directories under its root. */
+    @Override
+    protected void initialize() throws Throwable
+    {
+        server = new NamingServer();
+
+        for(Path parent : parents)
+            server.createDirectory(parent);
+
+        // Start half full, so that creations and deletions both succeed.
+        for(Path[] names : children)
+        {
+            for(int child = 0; child < ENTRIES; child += 2)
+                server.createDirectory(names[child]);
+        }
+    }
+
+    @Override
+    protected void operation(int thread) throws Throwable
+    {
+        ThreadLocalRandom   random = ThreadLocalRandom.current();
+        int                 parent = random.nextInt(DIRECTORIES);
+        Path                path = children[parent][random.nextInt(ENTRIES)];
+        int                 choice = random.nextInt(100);
+
+        try
+        {
+            if(choice < READS / 2)
+                consume(server.isDirectory(path) ? 1 : 0);
+            else if(choice < READS)
+                consume(server.list(parents[parent]).length);
+            else if(choice < READS + (100 - READS) / 2)
+                consume(server.createDirectory(path) ? 1 : 0);
+            else
+                consume(server.delete(path) ? 1 : 0);
+        }
+        catch(FileNotFoundException e)
+        {
+            consume(e);
+        }
+    }
+
+    /** Drops the naming server. */
+    @Override
+    protected void clean()
+    {
+        server = null;
+    }
+}
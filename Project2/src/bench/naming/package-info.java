@@ -0,0 +1,8 @@
+/** Benchmarks of the naming server.
+
+    <p>
+    The naming server measured here is called directly, without starting its
+    skeletons, so that what is measured is its directory tree and the
+    concurrency of its metadata operations.
+ */
+package bench.naming;
@@ -0,0 +1,16 @@
+/** Benchmark harness.
+
+    <p>
+    The <code>bench.*</code> series of packages measure the cost of the
+    principal operations of the filesystem's components, so that changes which
+    make them slower are caught before they are shipped. Benchmarks are grouped
+    by the packages they measure, as conformance tests are: benchmarks of the
+    RMI library are in <code>bench.rmi</code>.
+
+    <p>
+    To run the benchmarks, execute <code>make bench</code>, or the command
+    <code>java bench.Benchmarks</code> from the project base directory after
+    compiling all <code>.java</code> files. Run with <code>-help</code> to see
+    the options.
+ */
+package bench;
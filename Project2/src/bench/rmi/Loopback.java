@@ -0,0 +1,22 @@
+package bench.rmi;
+
+import java.io.IOException;
+
+import rmi.RMIException;
+
+/** Remote interface of the server measured by the RMI benchmarks. */
+public interface Loopback
+{
+    /** Does nothing. Measures the cost of a call and its response alone. */
+    public void nothing() throws RMIException;
+
+    /** Reads bytes, in the manner of <code>Storage.read</code>.
+
+        @param offset Ignored.
+        @param length Number of bytes to return.
+        @return An array of <code>length</code> bytes.
+        @throws IOException Never.
+     */
+    public byte[] read(long offset, int length)
+        throws RMIException, IOException;
+}
@@ -0,0 +1,26 @@
+package bench.rmi;
+
+/** Measures calls to a method which takes no arguments and does nothing.
+
+    <p>
+    With one thread, the time of an operation is the round trip time of the
+    smallest possible call. With more, the operations per second show how the
+    connection and the skeleton's dispatcher scale with concurrent callers.
+ */
+public class NullCallBenchmark extends RemoteBenchmark
+{
+    /** Creates the benchmark.
+
+        @param threads Number of threads calling at once.
+     */
+    public NullCallBenchmark(int threads)
+    {
+        super("rmi.nullCall", threads, 0);
+    }
+
+    @Override
+    protected void operation(int thread) throws Throwable
+    {
+        stub.nothing();
+    }
+}
@@ -0,0 +1,41 @@
+package bench.rmi;
+
+/** Measures calls returning byte arrays of a given size, as
+    <code>Storage.read</code> does.
+
+    <p>
+    Small arrays travel in the body of the response frame, and large ones as
+    segments of it, so the sizes measured cover both paths.
+ */
+public class ReadBenchmark extends RemoteBenchmark
+{
+    /** Number of bytes read by each call. */
+    private final int   size;
+
+    /** Creates the benchmark.
+
+        @param size Number of bytes read by each call.
+     */
+    public ReadBenchmark(int size)
+    {
+        super("rmi.read " + size(size), 1, size);
+        this.size = size;
+    }
+
+    @Override
+    protected void operation(int thread) throws Throwable
+    {
+        consume(stub.read(0, size));
+    }
+
+    /** Formats a size in bytes in a suitable unit. */
+    private static String size(int bytes)
+    {
+        if(bytes >= (1 << 20) && bytes % (1 << 20) == 0)
+            return (bytes >> 20) + " MiB";
+        if(bytes >= 1024 && bytes % 1024 == 0)
+            return (bytes >> 10) + " KiB";
+
+        return bytes + " B";
+    }
+}
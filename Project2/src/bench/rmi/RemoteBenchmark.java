@@ -0,0 +1,73 @@
+package bench.rmi;
+
+import java.net.InetSocketAddress;
+
+import bench.Benchmark;
+import rmi.Skeleton;
+import rmi.Stub;
+
+/** Base class of benchmarks of calls through a stub.
+
+    <p>
+    Each benchmark starts its own skeleton on a system-chosen loopback port,
+    and stops it when it is done. All threads share one stub, and therefore
+    one connection pool.
+ */
+abstract class RemoteBenchmark extends Benchmark
+{
+    /** Bytes returned by <code>read</code> without being allocated anew. */
+    private final byte[]        payload;
+    /** Skeleton of the server. */
+    private Skeleton<Loopback>  skeleton = null;
+    /** Stub through which calls are made. */
+    protected Loopback          stub = null;
+
+    /** Creates a benchmark of calls through a stub.
+
+        @param name Name of the benchmark.
+        @param threads Number of threads calling at once.
+        @param payload Size of the arrays the server returns from
+                       <code>read</code>, or zero.
+     */
+    RemoteBenchmark(String name, int threads, int payload)
+    {
+        super(name, threads, 1, payload);
+        this.payload = new byte[payload];
+    }
+
+    /** Starts the skeleton and creates the stub. */
+    @Override
+    protected void initialize() throws Throwable
+    {
+        skeleton = new Skeleton<Loopback>(Loopback.class, new Server(),
+                                          new InetSocketAddress("127.0.0.1",
+                                                                0));
+        skeleton.start();
+
+        stub = Stub.create(Loopback.class, skeleton);
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+            skeleton.stop();
+    }
+
+    /** Server object. The array returned from <code>read</code> is made
+        once, so that what is measured is the call and not the allocation. */
+    private class Server implements Loopback
+    {
+        @Override
+        public void nothing()
+        {
+        }
+
+        @Override
+        public byte[] read(long offset, int length)
+        {
+            return length == payload.length ? payload : new byte[length];
+        }
+    }
+}
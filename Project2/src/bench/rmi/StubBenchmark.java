@@ -0,0 +1,70 @@
+package bench.rmi;
+
+import java.net.InetSocketAddress;
+
+import bench.Benchmark;
+import rmi.Stub;
+
+/** Measures the local operations of stubs: creating them, and the
+    <code>equals</code> and <code>hashCode</code> methods which collections of
+    stubs depend on.
+
+    <p>
+    None of these operations touch the network, so no skeleton is started.
+    They take well under a microsecond, and are timed in batches.
+ */
+public class StubBenchmark extends Benchmark
+{
+    /** The operations which may be measured. */
+    public enum Operation { CREATE, EQUALS, HASH_CODE }
+
+    /** Operations timed together. */
+    private static final int            BATCH = 1000;
+
+    /** Address given to the stubs. Nothing need be listening on it. */
+    private static final InetSocketAddress  ADDRESS =
+        new InetSocketAddress("127.0.0.1", 7000);
+
+    /** The operation measured. */
+    private final Operation     operation;
+    /** Stubs compared to each other. */
+    private Loopback            first;
+    private Loopback            second;
+
+    /** Creates the benchmark.
+
+        @param operation The operation to measure.
+     */
+    public StubBenchmark(Operation operation)
+    {
+        super("rmi.stub " + operation.name().toLowerCase(), 1, BATCH, 0);
+        this.operation = operation;
+    }
+
+    /** Creates two equal stubs. */
+    @Override
+    protected void initialize()
+    {
+        first = Stub.create(Loopback.class, ADDRESS);
+        second = Stub.create(Loopback.class, ADDRESS);
+    }
+
+    @Override
+    protected void operation(int thread)
+    {
+        switch(operation)
+        {
+        case CREATE:
+            consume(Stub.create(Loopback.class, ADDRESS));
+            break;
+
+        case EQUALS:
+            consume(first.equals(second) ? 1 : 0);
+            break;
+
+        case HASH_CODE:
+            consume(first.hashCode());
+            break;
+        }
+    }
+}
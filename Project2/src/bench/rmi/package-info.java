@@ -0,0 +1,9 @@
+/** Benchmarks of the RMI library.
+
+    <p>
+    The stubs and skeletons measured here talk over loopback TCP, so that what
+    is measured is the cost of the library and its transport, without the
+    network. Calls between stubs and skeletons of the same JVM, and over Unix
+    domain sockets, are turned off unless asked for on the command line.
+ */
+package bench.rmi;
@@ -99,16 +99,16 @@ public class Path implements Iterable<String>, Serializable, Comparable {
 
 		this.setName(path);
 
-		for (int i = 0; i < path.length(); i++) {
+		// collapse repeated separators. Most paths have none, so check before
+		// doing any work.
+		while (this.getName().contains("//")) {
 
-			this.setName(getName().replaceAll("//", "/"));
+			this.setName(getName().replace("//", "/"));
 		}
 
-		for (int i = this.getName().length() - 1; i >= 0; i--) {
-			if (!(this.getName().equals("/")) && this.getName().endsWith("/")) {
-				this.setName(this.getName().substring(0,
-						this.getName().length() - 1));
-			}
+		while (!(this.getName().equals("/")) && this.getName().endsWith("/")) {
+			this.setName(this.getName().substring(0,
+					this.getName().length() - 1));
 		}
 
 		String[] comp = this.getName().split("/");
@@ -357,56 +357,40 @@ public class Path implements Iterable<String>, Serializable, Comparable {
 		return this.getName();
 	}
 
-	// TODO: check this. Might be wrong
+	/**
+	 * Compares this path to another.
+	 * 
+	 * <p>
+	 * Paths are compared component by component, and a path comes before
+	 * every path under it. Users who need to lock several objects at once
+	 * lock them in this order. Since locking a path locks the directories
+	 * along it from the root down, which is also in this order, two users
+	 * following it cannot deadlock.
+	 * 
+	 * @param arg0
+	 *            The other path.
+	 * @return A negative number, zero or a positive number as this path comes
+	 *         before, is equal to, or comes after the other path.
+	 */
 	@Override
 	public int compareTo(Object arg0) {
 		if (arg0 == null) {
 			throw new NullPointerException();
 		}
 
-		Path p = null;
-		try {
-			p = (Path) arg0;
-		} catch (Exception e) {
-			throw e;
-		}
-
-		if (p.equals(this)) {
-			return 0;
-		}
-
 		ArrayList<String> thisList = this.component;
-		ArrayList<String> inputList = p.component;
-
-		if (thisList.size() == 0 && inputList.size() == 0) {
-			return 0;
-		}
+		ArrayList<String> inputList = ((Path) arg0).component;
 
-		if (thisList.size() == 0 && inputList.size() != 0) {
-			return -1;
-		}
-
-		if (thisList.size() != 0 && inputList.size() == 0) {
-			return 1;
-		}
-
-		else {
-			int i = 0;
-			for (String s : inputList) {
-				if (s != thisList.get(i)) {
-					if (inputList.size() > thisList.size()) {
-						return -1;
-					}
-					return 1;
-				}
-				i++;
+		int common = Math.min(thisList.size(), inputList.size());
+		for (int i = 0; i < common; i++) {
+			int order = thisList.get(i).compareTo(inputList.get(i));
+			if (order != 0) {
+				return order;
 			}
-
-			if (thisList.size() == 0 && inputList.size() == 0) {
-				return 0;
-			}
-			return 1;
 		}
+
+		// one is a prefix of the other, and the shorter comes first
+		return Integer.compare(thisList.size(), inputList.size());
 	}
 
 	/**
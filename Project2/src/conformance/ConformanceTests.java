@@ -20,6 +20,7 @@ import test.*;
     <li>{@link conformance.naming.RegistrationTest}</li>
     <li>{@link conformance.naming.ListingTest}</li>
     <li>{@link conformance.naming.CreationTest}</li>
+    <li>{@link conformance.naming.ConcurrentCreationTest}</li>
     <li>{@link conformance.naming.StubRetrievalTest}</li>
     <li>{@link conformance.naming.LockTest}</li>
     <li>{@link conformance.naming.QueueTest}</li>
@@ -51,6 +52,7 @@ public class ConformanceTests
                            conformance.naming.RegistrationTest.class,
                            conformance.naming.ListingTest.class,
                            conformance.naming.CreationTest.class,
+                           conformance.naming.ConcurrentCreationTest.class,
                            conformance.naming.StubRetrievalTest.class,
                            conformance.naming.LockTest.class,
                            conformance.naming.QueueTest.class,
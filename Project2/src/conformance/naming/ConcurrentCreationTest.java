@@ -0,0 +1,321 @@
+package conformance.naming;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import test.*;
+import rmi.*;
+import common.*;
+
+/** Tests file creation by several clients at once.
+
+    <p>
+    This test starts a naming server and a test storage server whose
+    <code>create</code> method can be held up and made to fail. Items checked
+    are:
+    <ul>
+    <li>Of several clients creating the same file at once, exactly one
+        succeeds, and the storage server is asked to create the file exactly
+        once.</li>
+    <li>While a file is being created on a slow storage server, other files
+        and directories can be created in, and listed from, the same
+        directory.</li>
+    <li>A creation which fails on the storage server is reported to the
+        client, leaves nothing in the tree, and does not stop the same file
+        being created later.</li>
+    </ul>
+ */
+public class ConcurrentCreationTest extends NamingTest
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking concurrent file creation on the naming server";
+    /** Prerequisites. */
+    public static final Class[] prerequisites =
+        new Class[] {CreationTest.class};
+
+    /** Number of clients creating the same file at once. */
+    private static final int    CLIENTS = 8;
+
+    /** Storage server used in the test. */
+    private SlowStorageServer   storage_server;
+
+    /** Number of calls to <code>create</code> for each path. */
+    private final ConcurrentHashMap<Path, AtomicInteger>    created =
+        new ConcurrentHashMap<Path, AtomicInteger>();
+    /** Path whose creation is held up until <code>release</code> is
+        counted down. */
+    private volatile Path       held = null;
+    /** Counted down when the held creation has reached the storage
+        server. */
+    private volatile CountDownLatch arrived = new CountDownLatch(1);
+    /** Counted down to let the held creation finish. */
+    private volatile CountDownLatch release = new CountDownLatch(1);
+    /** Path whose creation fails on the storage server. */
+    private volatile Path       failing = null;
+
+    /** Creates the <code>ConcurrentCreationTest</code>. */
+    public ConcurrentCreationTest()
+    {
+        storage_server = new SlowStorageServer();
+    }
+
+    /** Runs all the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            service_stub.createDirectory(new Path("/shared"));
+
+            testSameFile();
+            testOtherNames();
+            testFailure();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks that one of several clients creating a file succeeds. */
+    private void testSameFile() throws Throwable
+    {
+        final Path              file = new Path("/shared/same");
+        final AtomicInteger     succeeded = new AtomicInteger();
+        final CountDownLatch    start = new CountDownLatch(1);
+        ExecutorService         clients = Executors.newFixedThreadPool(CLIENTS);
+        List<Future<?>>         results = new ArrayList<Future<?>>();
+
+        held = file;
+
+        try
+        {
+            for(int i = 0; i < CLIENTS; ++i)
+            {
+                results.add(clients.submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call() throws Exception
+                    {
+                        start.await();
+                        if(service_stub.createFile(file))
+                            succeeded.incrementAndGet();
+                        return null;
+                    }
+                }));
+            }
+
+            start.countDown();
+
+            // Let the others pile up behind the first creation.
+            if(!arrived.await(2, TimeUnit.SECONDS))
+                throw new TestFailed("creation did not reach storage server");
+            Thread.sleep(50);
+            release.countDown();
+
+            for(Future<?> result : results)
+                result.get();
+        }
+        finally
+        {
+            release.countDown();
+            clients.shutdownNow();
+            held = null;
+        }
+
+        if(succeeded.get() != 1)
+        {
+            throw new TestFailed(succeeded.get() + " of " + CLIENTS +
+                                 " clients created the same file");
+        }
+
+        if(count(file) != 1)
+        {
+            throw new TestFailed("storage server asked to create the same " +
+                                 "file " + count(file) + " times");
+        }
+    }
+
+    /** Checks that a slow creation does not hold up the rest of its
+        directory. */
+    private void testOtherNames() throws Throwable
+    {
+        final Path          slow = new Path("/shared/slow");
+        ExecutorService     creator = Executors.newSingleThreadExecutor();
+
+        arrived = new CountDownLatch(1);
+        release = new CountDownLatch(1);
+        held = slow;
+
+        try
+        {
+            Future<Boolean>     result = creator.submit(new Callable<Boolean>()
+            {
+                @Override
+                public Boolean call() throws Exception
+                {
+                    return service_stub.createFile(slow);
+                }
+            });
+
+            if(!arrived.await(2, TimeUnit.SECONDS))
+                throw new TestFailed("creation did not reach storage server");
+
+            // The held creation is still running while these are made.
+            if(!service_stub.createFile(new Path("/shared/quick")))
+                throw new TestFailed("unable to create file next to a slow " +
+                                     "creation");
+
+            if(!service_stub.createDirectory(new Path("/shared/sub")))
+                throw new TestFailed("unable to create directory next to a " +
+                                     "slow creation");
+
+            Set<String>         names = new HashSet<String>(Arrays.asList(
+                service_stub.list(new Path("/shared"))));
+
+            if(names.contains("slow"))
+                throw new TestFailed("file listed before it was created");
+
+            if(!names.contains("quick") || !names.contains("sub"))
+                throw new TestFailed("new entries missing from listing");
+
+            if(result.isDone())
+                throw new TestFailed("held creation finished early");
+
+            release.countDown();
+
+            if(!result.get())
+                throw new TestFailed("slow creation failed");
+        }
+        finally
+        {
+            release.countDown();
+            creator.shutdownNow();
+            held = null;
+        }
+    }
+
+    /** Checks that a failed creation is rolled back. */
+    private void testFailure() throws Throwable
+    {
+        Path        file = new Path("/shared/failing");
+
+        failing = file;
+
+        try
+        {
+            service_stub.createFile(file);
+            throw new TestFailed("failed creation reported as successful");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(RMIException e) { }
+
+        if(Arrays.asList(service_stub.list(new Path("/shared")))
+                .contains("failing"))
+        {
+            throw new TestFailed("failed creation left file in tree");
+        }
+
+        failing = null;
+
+        if(!service_stub.createFile(file))
+            throw new TestFailed("unable to create file after a failed " +
+                                 "creation of it");
+    }
+
+    /** Returns the number of calls to <code>create</code> for a path. */
+    private int count(Path file)
+    {
+        AtomicInteger   n = created.get(file);
+
+        return n == null ? 0 : n.get();
+    }
+
+    /** Starts servers used in the test.
+
+        @throws TestFailed If the servers cannot be started.
+     */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        super.initialize();
+
+        try
+        {
+            storage_server.start(registration_stub, new Path[0], null);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start storage server", t);
+        }
+    }
+
+    /** Stops all servers used in the test and releases held creations. */
+    @Override
+    protected void clean()
+    {
+        release.countDown();
+
+        super.clean();
+
+        if(storage_server != null)
+        {
+            storage_server.stop();
+            storage_server = null;
+        }
+    }
+
+    /** Storage server which counts creations, holds up the creation of
+        <code>held</code>, and fails the creation of <code>failing</code>. */
+    private class SlowStorageServer extends TestStorageServer
+    {
+        /** Creates the storage server. */
+        SlowStorageServer()
+        {
+            super(ConcurrentCreationTest.this);
+        }
+
+        /** Counts the creation, and holds it up or fails it if asked to. */
+        @Override
+        public boolean create(Path file)
+        {
+            AtomicInteger   n = created.get(file);
+
+            if(n == null)
+            {
+                created.putIfAbsent(file, new AtomicInteger());
+                n = created.get(file);
+            }
+            n.incrementAndGet();
+
+            if(file.equals(failing))
+                throw new IllegalStateException("creation failed");
+
+            if(file.equals(held))
+            {
+                arrived.countDown();
+
+                try
+                {
+                    release.await();
+                }
+                catch(InterruptedException e) { }
+            }
+
+            return true;
+        }
+
+        /** Accepts deletions of files whose creation failed. */
+        @Override
+        public boolean delete(Path file)
+        {
+            return true;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package naming;
 
-import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author hira.yasin This is part of the tree. Branch represents a Directory in
@@ -9,13 +10,22 @@ import java.util.HashMap;
 public class Branch extends Node {
 
 	// these are the children of the current Branch. String is the name of the
-	// File and Node is either a Leaf if its a File or Branch it its a directory
+	// File and Node is either a Leaf if its a File or Branch it its a directory.
+	// The map is concurrent so that the tree is read without any locks while
+	// it changes. Children are added and removed with single atomic updates of
+	// the map, such as putIfAbsent, which check and change it in one step.
 
-	HashMap<String, Node> children;
+	final ConcurrentHashMap<String, Node> children;
+
+	// names of files being created on a storage server, and the creations
+	// which will be done with them. A second creation of the same name waits
+	// for the first, and not for the rest of the directory.
+	final ConcurrentHashMap<String, CompletableFuture<Void>> creating;
 
 	public Branch(Branch b, String name) {
 		super(b, name);
-		this.children = new HashMap<>();
+		this.children = new ConcurrentHashMap<>();
+		this.creating = new ConcurrentHashMap<>();
 	}
 
 	/*
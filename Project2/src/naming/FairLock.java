@@ -0,0 +1,216 @@
+package naming;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The lock of a Node: a fair reader/writer lock.
+ *
+ * <p>
+ * Requests are served first come, first served. A shared request joins the
+ * group of shared requests at the end of the queue, if there is one, and the
+ * whole group is let in together; an exclusive request waits for everything
+ * before it to be released, and holds up everything after it. This is the
+ * order the naming server has always kept, so that neither readers nor
+ * writers can be starved.
+ *
+ * <p>
+ * Most locks taken are shared locks of directories above the path being
+ * locked, and the root's is taken by every call. While no exclusive request
+ * is holding or waiting, a shared request is therefore let in without taking
+ * the lock of this object at all: holders of shared locks are only counted.
+ * Requests which have to wait are queued under the lock
+ * of this object, and each group waits on its own monitor, so that a release
+ * wakes only the requests whose turn has come.
+ *
+ * <p>
+ * Locks are not owned by threads: a lock may be released by a different
+ * thread from the one that took it, as each RMI call is served by a thread of
+ * its own.
+ */
+public class FairLock {
+
+	/** Requests waiting, in the order they came. */
+	private final ArrayDeque<Request> queue = new ArrayDeque<Request>();
+	/** Holders of shared locks. */
+	private final AtomicLong readers = new AtomicLong();
+	/** Whether an exclusive lock is held. Guarded by this object. */
+	private boolean writer = false;
+	/**
+	 * Whether shared requests may come in without queueing: no exclusive
+	 * lock is held and nothing is waiting. Only changed holding the lock of
+	 * this object.
+	 */
+	private volatile boolean open = true;
+
+	/**
+	 * takes a shared lock, waiting until every exclusive request before it
+	 * has been released.
+	 */
+	public void getShared() {
+		if (open) {
+			readers.incrementAndGet();
+
+			// an exclusive request which came meanwhile either sees this
+			// reader counted, or is seen here
+			if (open) {
+				return;
+			}
+
+			readers.decrementAndGet();
+			synchronized (this) {
+				advance();
+			}
+		}
+
+		Request r;
+		synchronized (this) {
+			if (open) {
+				readers.incrementAndGet();
+				return;
+			}
+
+			// join the group of readers at the end of the queue, if any
+			r = queue.peekLast();
+			if (r != null && !r.exclusive) {
+				r.count++;
+			} else {
+				r = new Request(false);
+				queue.addLast(r);
+			}
+		}
+		r.await();
+	}
+
+	/**
+	 * takes an exclusive lock, waiting until every request before it has
+	 * been released.
+	 */
+	public void getExclusive() {
+		Request r = new Request(true);
+		synchronized (this) {
+			// shared requests stop coming in from here on, and the ones in
+			// already are waited for
+			open = false;
+			queue.addLast(r);
+			advance();
+		}
+		r.await();
+	}
+
+	/**
+	 * releases a shared lock.
+	 *
+	 * @throws IllegalStateException
+	 *             If no shared lock is held.
+	 */
+	public void releaseShared() {
+		long n;
+		do {
+			n = readers.get();
+			if (n <= 0) {
+				throw new IllegalStateException("no shared lock is held");
+			}
+		} while (!readers.compareAndSet(n, n - 1));
+
+		// while nothing waits there is no one to hand over to
+		if (!open) {
+			synchronized (this) {
+				advance();
+			}
+		}
+	}
+
+	/**
+	 * releases an exclusive lock.
+	 *
+	 * @throws IllegalStateException
+	 *             If no exclusive lock is held.
+	 */
+	public synchronized void releaseExclusive() {
+		if (!writer) {
+			throw new IllegalStateException("no exclusive lock is held");
+		}
+		writer = false;
+		advance();
+	}
+
+	/**
+	 * @return the number of requests waiting for their turn
+	 */
+	synchronized int waiting() {
+		int n = 0;
+		for (Request r : queue) {
+			n += r.count;
+		}
+		return n;
+	}
+
+	/**
+	 * lets in the requests at the head of the queue whose turn has come,
+	 * and opens the lock to readers again once nothing is held exclusively
+	 * and nothing waits. Called holding the lock of this object.
+	 */
+	private void advance() {
+		while (!writer) {
+			Request r = queue.peekFirst();
+			if (r == null) {
+				open = true;
+				return;
+			}
+
+			if (r.exclusive) {
+				if (readers.get() != 0) {
+					return;
+				}
+				writer = true;
+			} else {
+				readers.addAndGet(r.count);
+			}
+
+			queue.removeFirst();
+			r.grant();
+		}
+	}
+
+	/**
+	 * A request waiting in the queue: one exclusive request, or a group of
+	 * shared requests let in together.
+	 */
+	private static class Request {
+		final boolean exclusive;
+		/** The number of requests in the group. */
+		int count = 1;
+		private boolean granted = false;
+
+		Request(boolean exclusive) {
+			this.exclusive = exclusive;
+		}
+
+		/**
+		 * wakes the requests of the group.
+		 */
+		synchronized void grant() {
+			granted = true;
+			notifyAll();
+		}
+
+		/**
+		 * waits for the turn of the group. The wait is not cut short by
+		 * interrupts, as a lock request cannot be taken back once queued.
+		 */
+		synchronized void await() {
+			boolean interrupted = false;
+			while (!granted) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
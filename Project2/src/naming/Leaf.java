@@ -1,7 +1,8 @@
 package naming;
 
-import java.util.ArrayList;
-import java.util.Random;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import storage.Command;
 import storage.Storage;
@@ -9,13 +10,15 @@ import storage.Storage;
 /**
  * @author hira.yasin
  * 
- *         This is part of the tree. Leaf represents a File in my tree.
+ *         This is part of the tree. Leaf represents a File in my tree. The
+ *         lists of servers are copied when they change, which is rare, so
+ *         that they are read without locks.
  */
 public class Leaf extends Node {
 
-	private ArrayList<Storage> storage = new ArrayList<Storage>();
-	private ArrayList<Command> command = new ArrayList<Command>();
-	private int num_of_readers = 0;
+	private final CopyOnWriteArrayList<Storage> storage = new CopyOnWriteArrayList<Storage>();
+	private final CopyOnWriteArrayList<Command> command = new CopyOnWriteArrayList<Command>();
+	private final AtomicInteger num_of_readers = new AtomicInteger();
 	private int cons = 0;
 
 	public Leaf(Branch b, String name) {
@@ -41,14 +44,14 @@ public class Leaf extends Node {
 	/**
 	 * @return the list of all the commands the File is stored in
 	 */
-	public ArrayList<Command> getallCommands() {
+	public List<Command> getallCommands() {
 		return this.command;
 	}
 
 	/**
 	 * @return the list of all the storages the File is stored in
 	 */
-	public ArrayList<Storage> getallStorages() {
+	public List<Storage> getallStorages() {
 		return this.storage;
 	}
 
@@ -113,7 +116,16 @@ public class Leaf extends Node {
 	 * @return the num_of_readers
 	 */
 	public int getNum_of_readers() {
-		return this.num_of_readers;
+		return this.num_of_readers.get();
+	}
+
+	/**
+	 * counts one more reader.
+	 * 
+	 * @return the num_of_readers, counting the new one
+	 */
+	public int addReader() {
+		return this.num_of_readers.incrementAndGet();
 	}
 
 	/**
@@ -121,7 +133,7 @@ public class Leaf extends Node {
 	 *            sets the num_of_readers to num_of_readers
 	 */
 	public void setNum_of_readers(int num_of_readers) {
-		this.num_of_readers = num_of_readers;
+		this.num_of_readers.set(num_of_readers);
 	}
 
 }
@@ -4,9 +4,21 @@ import java.io.*;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
-import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import rmi.*;
 import common.*;
@@ -42,8 +54,48 @@ public class NamingServer implements Service, Registration {
 	private Skeleton<Service> serviceS;
 	private Branch root;
 	private boolean start = false;
-	private ArrayList<Storage> allStorage;
-	private ArrayList<Command> allCommand;
+
+	// every Node of the tree by its path, so that a path is found with one
+	// lookup rather than one per component. The tree stays the authority: a
+	// Node is in the index from just after it is added to the tree until it
+	// is marked as taken out, and a miss falls back to walking the tree.
+	private final ConcurrentHashMap<Path, Node> index = new ConcurrentHashMap<Path, Node>();
+
+	// the servers registered, read without locks by every create and shared
+	// lock. Each server's storage stub is added before its command stub, so
+	// that a command stub's index is always valid in the list of storage
+	// stubs as well.
+	private final CopyOnWriteArrayList<Storage> allStorage = new CopyOnWriteArrayList<Storage>();
+	private final CopyOnWriteArrayList<Command> allCommand = new CopyOnWriteArrayList<Command>();
+
+	// replicating a file holds up the lock call that started it, so a storage
+	// server that stops answering gives up the replica after this many seconds
+	private static final int REPLICATION_TIMEOUT = 60;
+
+	// a storage server that stops answering while a file is created on it
+	// fails the creation after this many seconds, and frees the name
+	private static final int CREATE_TIMEOUT = 30;
+
+	// workers for the short calls of the service interface, which never wait
+	// on a lock, and for registrations
+	private static final int HIGH_WORKERS = 4;
+	private static final int HIGH_QUEUE = 256;
+	private static final int REGISTRATION_QUEUE = 64;
+
+	// locks taken by lease and leaseAll are leases: a lease not renewed for
+	// the lease time is taken to belong to a client which died, and its locks
+	// are released by the reaper, which looks for such leases every
+	// REAP_INTERVAL milliseconds. Every grant has a lease of its own, named by
+	// a number taken from a counter which starts at random, so that a client
+	// with a stale number is not mistaken for the holder of a later lease.
+	private static final long LEASE_TIME = 120000;
+	private static final long REAP_INTERVAL = 1000;
+	private volatile long leaseTime = TimeUnit.MILLISECONDS
+			.toNanos(LEASE_TIME);
+	private final ConcurrentHashMap<Long, Lease> leases = new ConcurrentHashMap<Long, Lease>();
+	private final AtomicLong nextLease = new AtomicLong(new Random().nextLong());
+	private final AtomicLong reclaimed = new AtomicLong();
+	private ScheduledExecutorService reaper = null;
 
 	/**
 	 * Creates the naming server object.
@@ -56,9 +108,26 @@ public class NamingServer implements Service, Registration {
 				this, new InetSocketAddress(NamingStubs.REGISTRATION_PORT));
 		this.serviceS = new Skeleton<Service>(Service.class, this,
 				new InetSocketAddress(NamingStubs.SERVICE_PORT));
+
+		// calls to lock can wait for a long time, and the calls that would
+		// release them come in on the same skeleton. A bounded pool could fill
+		// up with waiting lockers, so each call gets its own (virtual, if
+		// possible) thread.
+		this.serviceS.setDispatcher(Dispatcher.virtualThreads());
+
+		// unlocks and metadata reads have workers of their own, so they are
+		// not held up behind lockers that are copying replicas. Should these
+		// workers all be busy and the queue full, the call is refused rather
+		// than run or held by the thread reading the connection.
+		this.serviceS.setDispatcher(Priority.Level.HIGH, Dispatcher.bounded(
+				HIGH_WORKERS, HIGH_QUEUE, Dispatcher.Rejection.REJECT));
+
+		// registrations change the tree and the lists of servers, and run one
+		// at a time. A storage server whose registration is refused may try
+		// again.
+		this.registrationS.setDispatcher(Priority.Level.LOW, Dispatcher
+				.bounded(1, REGISTRATION_QUEUE, Dispatcher.Rejection.REJECT));
 		this.root = new Branch(null, "/");
-		allStorage = new ArrayList<Storage>();
-		allCommand = new ArrayList<Command>();
 
 	}
 
@@ -89,6 +158,13 @@ public class NamingServer implements Service, Registration {
 					"Could not start registration or service skeleton");
 		}
 
+		this.reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "lease reaper");
+			t.setDaemon(true);
+			return t;
+		});
+		this.reaper.scheduleWithFixedDelay(this::reap, REAP_INTERVAL,
+				REAP_INTERVAL, TimeUnit.MILLISECONDS);
 		this.start = true;
 	}
 
@@ -107,6 +183,7 @@ public class NamingServer implements Service, Registration {
 			return;
 		}
 
+		this.reaper.shutdownNow();
 		try {
 			this.registrationS.stop();
 			this.serviceS.stop();
@@ -121,6 +198,37 @@ public class NamingServer implements Service, Registration {
 
 	}
 
+	/**
+	 * Stops the naming server gracefully.
+	 * 
+	 * <p>
+	 * Both skeletons stop taking new calls at once, and the calls already
+	 * taken on are given until the timeout to finish before the skeletons are
+	 * stopped as by <code>stop</code>. Calls refused meanwhile fail with an
+	 * <code>RMIOverloadException</code>. A client waiting for a lock cannot be
+	 * granted it once the holder's <code>unlock</code> is refused, so such
+	 * calls are abandoned at the deadline.
+	 * 
+	 * @param timeout
+	 *            The most milliseconds to wait for calls to finish
+	 * @return what became of the calls of both skeletons
+	 */
+	public DrainReport drain(long timeout) {
+		if (!start) {
+			return new DrainReport(0, 0, 0, 0);
+		}
+
+		long deadline = System.currentTimeMillis() + timeout;
+		this.registrationS.quiesce();
+		this.serviceS.quiesce();
+		DrainReport report = this.serviceS.drain(timeout).plus(
+				this.registrationS.drain(deadline - System.currentTimeMillis()));
+		this.reaper.shutdownNow();
+		this.start = false;
+		stopped(null);
+		return report;
+	}
+
 	/**
 	 * Indicates that the server has completely shut down.
 	 * 
@@ -135,243 +243,296 @@ public class NamingServer implements Service, Registration {
 	protected void stopped(Throwable cause) {
 	}
 
+	/**
+	 * Called when the locks of a lease which has run out cannot be released.
+	 * 
+	 * <p>
+	 * The lease has ended, and is not tried again. This method should be
+	 * overridden for error reporting purposes. The default implementation
+	 * does nothing.
+	 * 
+	 * @param lease
+	 *            The lease.
+	 * @param exception
+	 *            The exception that occurred.
+	 */
+	protected void leaseError(long lease, RuntimeException exception) {
+	}
+
+	/**
+	 * Sets the lease time of locks.
+	 * 
+	 * <p>
+	 * The locks of a lease which has not been renewed for this long are
+	 * released, within about a second of the lease running out. Leases granted before the
+	 * call run for the new time from their last renewal.
+	 * 
+	 * @param time
+	 *            The lease time, or zero for leases which never run out
+	 * @param unit
+	 *            The unit of <code>time</code>
+	 * @throws IllegalArgumentException
+	 *             If the time is negative.
+	 */
+	public void setLeaseTime(long time, TimeUnit unit) {
+		if (time < 0) {
+			throw new IllegalArgumentException("negative lease time");
+		}
+		this.leaseTime = unit.toNanos(time);
+	}
+
+	/**
+	 * @return the number of leases whose locks were released because they
+	 *         ran out
+	 */
+	public long reclaimedLeases() {
+		return reclaimed.get();
+	}
+
+	/**
+	 * @return the number of leases granted and not yet ended
+	 */
+	public int activeLeases() {
+		return leases.size();
+	}
+
 	// The following methods are documented in Service.java.
 	@Override
 	public boolean isDirectory(Path path) throws FileNotFoundException {
-		if (path.isRoot()) {
-			return true;
+		Node node = find(path);
+
+		if (node == null) {
+			throw new FileNotFoundException("File does not exist");
 		}
 
-		return isDirectoryHelp(path);
+		return node.isDirectory();
 	}
 
 	/**
+	 * finds the Node of a path. The path is first looked up whole in the
+	 * index; only if it is not there, or was taken out of the tree, is the
+	 * tree walked from the root, which is always right.
+	 * 
 	 * @param path
-	 *            The object to be checked.
-	 * @return true if the object is a directory, false if it is a file.
-	 * @throws FileNotFoundException
-	 *             true if the object is a directory, false if it is a file.
+	 *            The path to be found.
+	 * @return the Node of the path, or null if there is none.
 	 */
-	private boolean isDirectoryHelp(Path path) throws FileNotFoundException {
-
-		Branch f = root;
-		Iterator<String> i = path.iterator();
-
+	private Node find(Path path) {
 		if (path.isRoot()) {
-			return true;
+			return root;
 		}
 
-		// checks until the path has a next element
-
-		while (i.hasNext()) {
-			String name = i.next();
-			Node child = f.children.get(name);
+		Node node = index.get(path);
+		if (node != null && !node.isDetached()) {
+			return node;
+		}
 
-			// if f does not contain a File of name 'name' then return
-			// FileNotFoundException
-			if (child == null) {
-				throw new FileNotFoundException("File does not exist");
+		node = root;
+		for (String name : path) {
+			if (!(node instanceof Branch)) {
+				return null;
 			}
+			node = ((Branch) node).children.get(name);
+			if (node == null) {
+				return null;
+			}
+		}
+		return node;
+	}
 
-			// if path still has something then check if the Node the current
-			// Node is a branch. if not then return FileNotFoundException
-			if (i.hasNext()) {
-
-				if (child instanceof Leaf) {
-					throw new FileNotFoundException("File does not exist");
-				}
+	/**
+	 * @param node
+	 *            A Node of the tree.
+	 * @return the directories above the Node, from the root down. They are
+	 *         found by following the parent of each, not looked up.
+	 */
+	private ArrayList<Branch> ancestors(Node node) {
+		ArrayList<Branch> chain = new ArrayList<Branch>();
+		for (Branch b = node.getParent(); b != null; b = b.getParent()) {
+			chain.add(b);
+		}
+		Collections.reverse(chain);
+		return chain;
+	}
 
-				f = (Branch) child;
-			}
-			// If this is the end of the path, then call the isDirectory
-			// function in the Leaf or the Branch
-			else {
+	/**
+	 * adds a Node that has just been put into its parent's children to the
+	 * index. If the parent is being deleted at the same time, the Node is
+	 * taken out again; the delete either sees it among the children or has
+	 * marked the parent before this checks it.
+	 * 
+	 * @param node
+	 *            The new Node.
+	 */
+	private void indexed(Node node) {
+		index.put(node.getPath(), node);
+		if (node.getParent().isDetached()) {
+			detach(node);
+		}
+	}
 
-				return child.isDirectory();
+	/**
+	 * marks a Node and everything under it as taken out of the tree, and
+	 * removes them from the index.
+	 * 
+	 * @param node
+	 *            The Node being deleted.
+	 */
+	private void detach(Node node) {
+		node.detach();
+		index.remove(node.getPath(), node);
+		if (node instanceof Branch) {
+			for (Node child : ((Branch) node).children.values()) {
+				detach(child);
 			}
 		}
-		return false;
 	}
 
 	@Override
 	public String[] list(Path directory) throws FileNotFoundException {
+		Node node = find(directory);
 
-		Branch f = root;
-		Iterator<String> i = directory.iterator();
-		String[] result = null;
-
-		// if the given file is the root then simply lists its children.
-		if (directory.isRoot()) {
-			Set<String> directory_listing = root.children.keySet();
-			result = new String[directory_listing.size()];
-			int j = 0;
-			for (String a : directory_listing) {
-				result[j] = a;
-				j++;
-			}
+		if (!(node instanceof Branch)) {
+			throw new FileNotFoundException("Directory does not exist");
 		}
 
-		// go through every element of the path
-		else {
-			while (i.hasNext()) {
-
-				String name = i.next();
-				Node child = f.children.get(name);
-
-				if (child == null) {
-					throw new FileNotFoundException("Directory does not exist");
-				}
+		// the names are taken in one go, as the directory may change meanwhile
+		return ((Branch) node).children.keySet().toArray(new String[0]);
+	}
 
-				// meaning it should be a directory
-				if (i.hasNext()) {
-					if (child instanceof Leaf) {
-						throw new FileNotFoundException(
-								"Directory does not exist");
-					}
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see naming.Service#iterate(common.Path)
+	 */
+	@Override
+	public Iterator<String> iterate(Path directory)
+			throws FileNotFoundException {
+		Node node = find(directory);
 
-					else {
-						f = (Branch) child;
-					}
-				}
-				// End of the path
-				else {
-					// if its a leaf then wrong path, because we need a
-					// directory
-					if (child instanceof Leaf) {
-						throw new FileNotFoundException(
-								"Directory does not exist");
-					}
-					// go through all the names of the File inside directory and
-					// add to a list
-					else {
-
-						Branch childa = (Branch) child;
-						Set<String> directory_listing = childa.children
-								.keySet();
-						result = new String[directory_listing.size()];
-						int j = 0;
-						for (String a : directory_listing) {
-							result[j] = a;
-							j++;
-						}
-					}
-				}
-			}
+		if (!(node instanceof Branch)) {
+			throw new FileNotFoundException("Directory does not exist");
 		}
-		return result;
 
+		// the names are not copied, and reach the client a chunk at a time.
+		// The iterator reads the live directory, and sees each name that is
+		// there the whole time exactly once
+		return ((Branch) node).children.keySet().iterator();
 	}
 
 	@Override
 	public boolean createFile(Path file) throws RMIException,
 			FileNotFoundException {
 
-		Branch f = root;
-		Iterator<String> i = file.iterator();
-
-		// go through every element in the path
-		while (i.hasNext()) {
-
-			String name = i.next();
-			Node child = f.children.get(name);
-
-			if (child == null) {
-				// if child is null and path doesnot have anything else. then
-				// this is where i need to create the file
-				if (!i.hasNext()) {
-
-					if (f.children.containsKey(name)) {
-						return false;
-					}
-
-					Random rn = new Random();
-					int index = rn.nextInt(this.allCommand.size());
-
-					// create the Leaf
-
-					Leaf newLeaf = new Leaf(f, name, allStorage.get(index),
-							allCommand.get(index));
+		if (file.isRoot()) {
+			return false;
+		}
 
-					// call a random storage server to create a file
+		// the parent must be a directory
+		Node parent = find(file.parent());
+		if (!(parent instanceof Branch)) {
+			throw new FileNotFoundException("File does not exist");
+		}
 
-					try {
-						Command c = this.allCommand.get(index);
-						Storage s = this.allStorage.get(index);
-						c.create(file);
-						f.children.put(name, newLeaf);
-						newLeaf.putCommad(c);
-						newLeaf.putStorage(s);
+		Branch f = (Branch) parent;
+		String name = file.last();
 
-						return true;
-					} catch (Exception e) {
-						throw new RMIException("network error");
-					}
-				} else {
-					throw new FileNotFoundException("File does not exist");
-				}
+		// creations of one name take turns, so that two of the same file do
+		// not both reach a storage server. The name is reserved while the
+		// storage server is called, but nothing is locked, so that readers and
+		// other changes to the directory do not wait for the call.
+		while (true) {
+			if (f.children.containsKey(name)) {
+				return false;
 			}
 
-			// path still has something else
-			if (i.hasNext()) {
-				if (child instanceof Leaf) {
-					throw new FileNotFoundException("File does not exist");
+			CompletableFuture<Void> mine = new CompletableFuture<Void>();
+			CompletableFuture<Void> other = f.creating.putIfAbsent(name, mine);
+			if (other == null) {
+				try {
+					return create(f, name, file);
+				} finally {
+					f.creating.remove(name, mine);
+					mine.complete(null);
 				}
-				// change the parent
-				f = (Branch) child;
 			}
+			// the other creation decides whether this one is still needed
+			other.join();
 		}
+	}
 
-		return false;
+	/**
+	 * creates a file on a storage server, and then adds it to the tree. The
+	 * caller holds the reservation of the name.
+	 * 
+	 * @return false if the name was taken meanwhile
+	 * @throws RMIException
+	 *             If the storage server could not create the file
+	 */
+	private boolean create(Branch f, String name, Path file)
+			throws RMIException {
+		if (f.children.containsKey(name)) {
+			return false;
+		}
+
+		Random rn = new Random();
+		int index = rn.nextInt(this.allCommand.size());
+		Command c = this.allCommand.get(index);
+		Storage s = this.allStorage.get(index);
+
+		// call a random storage server to create a file, and only then show
+		// the Leaf in the tree
+		try (Deadline d = Deadline.after(CREATE_TIMEOUT, TimeUnit.SECONDS)) {
+			c.create(file);
+		} catch (Exception e) {
+			// the server may have made the file before the call failed
+			discard(c, file);
+			throw new RMIException("network error", e);
+		}
+
+		// a directory or a file registered meanwhile took the name, and the
+		// new copy is not needed
+		Leaf newLeaf = new Leaf(f, name, s, c);
+		if (f.children.putIfAbsent(name, newLeaf) != null) {
+			discard(c, file);
+			return false;
+		}
+		indexed(newLeaf);
+		return true;
+	}
+
+	/**
+	 * deletes a file which was created on a storage server but is not in the
+	 * tree. Failures are ignored.
+	 */
+	private void discard(Command c, Path file) {
+		try (Deadline d = Deadline.after(CREATE_TIMEOUT, TimeUnit.SECONDS)) {
+			c.delete(file);
+		} catch (Exception e) {
+		}
 	}
 
 	@Override
 	public boolean createDirectory(Path directory)
 			throws FileNotFoundException, RMIException {
 
-		Branch f = root;
-		Iterator<String> i = directory.iterator();
-
 		if (directory.isRoot()) {
 			return false;
 		}
 
-		// go through every element in the path
-
-		while (i.hasNext()) {
-
-			String name = i.next();
-			Node child = f.children.get(name);
-
-			if (child == null) {
-				if (!i.hasNext()) {
-					// if the child is null and path has ended then this where i
-					// need to create the directory.
-
-					Branch newBranch = new Branch(f, name);
-
-					if (f.children.containsKey(name)) {
-						return false;
-					}
-
-					f.children.put(name, newBranch);
-					return true;
-				} else {
-					throw new FileNotFoundException("Directory does not exist");
-				}
-
-			}
-			// path still has something else
-			if (i.hasNext()) {
-
-				if (child instanceof Leaf) {
-					throw new FileNotFoundException("Directory does not exist");
-				}
-				// change the parent
-				f = (Branch) child;
-			}
+		// the parent must be a directory
+		Node parent = find(directory.parent());
+		if (!(parent instanceof Branch)) {
+			throw new FileNotFoundException("Directory does not exist");
 		}
 
-		return false;
+		Branch f = (Branch) parent;
+		Branch newBranch = new Branch(f, directory.last());
+		if (f.children.putIfAbsent(directory.last(), newBranch) != null) {
+			return false;
+		}
+		indexed(newBranch);
+		return true;
 	}
 
 	/*
@@ -386,72 +547,83 @@ public class NamingServer implements Service, Registration {
 			return false;
 		}
 
-		Branch f = root;
-		Iterator<String> i = path.iterator();
-
-		// go through every element in the path
-
-		while (i.hasNext()) {
-			String name = i.next();
-			Node child = f.children.get(name);
+		Node child = find(path);
+		if (child == null) {
+			throw new FileNotFoundException("File does not exist");
+		}
+		Branch f = child.getParent();
 
-			if (child == null) {
-				throw new FileNotFoundException("File does not exist");
-			}
+		// if its a Leaf then i get all the command stubs that the file is
+		// stored in. and ask all the command stubs to delete this file
 
-			if (i.hasNext()) {
-				if (child instanceof Leaf) {
-					throw new FileNotFoundException("Parent is a file");
+		if (child instanceof Leaf) {
+			Leaf child2 = (Leaf) child;
+			List<Command> leafCommands = child2.getallCommands();
+			try {
 
+				if (!deleteAll(leafCommands, path)) {
+					return false;
 				}
-				f = (Branch) child;
-			}
 
-			// path ended here. So i need to delete this File
-			else {
-
-				// if its a Leaf then i get all the command stubs that the file
-				// is stored in. and ask all the command stubs to delete this
-				// file
-
-				if (child instanceof Leaf) {
-					Leaf child2 = (Leaf) child;
-					ArrayList<Command> leafCommands = child2.getallCommands();
-					try {
+			} catch (RMIException e) {
+				throw new RMIException("Command Stub creating problem");
+			}
+		} else {
 
-						for (Command c : leafCommands) {
-							if (!c.delete(path)) {
-								return false;
-							}
-						}
+			// if its a directory. then recursively delete all the files that
+			// are in the directory. Collect the command stubs of every file
+			// that is in the list and delete the files from the command stubs
 
-						f.children.remove(name);
+			ArrayList<Command> allCommandDir = new ArrayList<Command>();
 
-					} catch (RMIException e) {
-						throw new RMIException("Command Stub creating problem");
-					}
-				} else {
+			deleteHelp(allCommandDir, child);
 
-					// if its a directory. then recursively delete all the files
-					// that are in the directory. Collect the command stubs of
-					// every file that is in the list and delete the files from
-					// the command stubs
-
-					ArrayList<Command> allCommandDir = new ArrayList<Command>();
+			deleteAll(allCommandDir, path);
+		}
 
-					deleteHelp(allCommandDir, child);
+		// marked first, so that lookups stop finding it before it leaves the
+		// tree
+		detach(child);
+		f.children.remove(path.last(), child);
+		return true;
+	}
 
-					for (Command c : allCommandDir) {
-						c.delete(path);
-					}
+	/**
+	 * asks every given storage server to delete a path. The requests are all
+	 * sent before waiting for any answer, so the storage servers delete at the
+	 * same time.
+	 * 
+	 * @param commands
+	 *            command stubs of the storage servers
+	 * @param path
+	 *            the path to delete
+	 * @return true if every storage server deleted the path
+	 * @throws RMIException
+	 *             if any of the calls could not be completed
+	 */
+	private boolean deleteAll(Collection<Command> commands, Path path)
+			throws RMIException {
 
-					f.children.remove(name);
-					return true;
+		ArrayList<CompletableFuture<Boolean>> answers = new ArrayList<CompletableFuture<Boolean>>();
+		for (Command c : commands) {
+			answers.add(Stub.createAsync(CommandAsync.class, Command.class, c)
+					.delete(path));
+		}
 
+		boolean deleted = true;
+		for (CompletableFuture<Boolean> a : answers) {
+			try {
+				deleted &= a.get();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RMIException) {
+					throw (RMIException) e.getCause();
 				}
+				throw new RMIException(e.getCause());
+			} catch (InterruptedException e) {
+				throw new RMIException(e);
 			}
 		}
-		return true;
+		return deleted;
 	}
 
 	/**
@@ -464,7 +636,7 @@ public class NamingServer implements Service, Registration {
 
 		// if a Leaf. then we get all the command stubs leaf is stored in.
 		if (child instanceof Leaf) {
-			ArrayList<Command> allLeafC = ((Leaf) child).getallCommands();
+			List<Command> allLeafC = ((Leaf) child).getallCommands();
 			for (Command c : allLeafC) {
 				if (!allCommandDir.contains(c)) {
 					allCommandDir.add(c);
@@ -486,43 +658,19 @@ public class NamingServer implements Service, Registration {
 
 	@Override
 	public Storage getStorage(Path file) throws FileNotFoundException {
+		Node node = find(file);
 
-		Branch f = root;
-		Iterator<String> i = file.iterator();
-		Storage sStub = null;
-
-		// go through every element in the path
-		while (i.hasNext()) {
-
-			String name = i.next();
-			Node child = f.children.get(name);
-
-			if (child == null) {
-				throw new FileNotFoundException("File does not exist");
-			}
-			// path still has something else
-			if (i.hasNext()) {
-
-				if (child instanceof Leaf) {
-					throw new FileNotFoundException("File does not exist");
-				}
-				f = (Branch) child;
-			}
-			// path is finished. if its a a Directory then this is an error. If
-			// its a leaf then get the storage stub of it and return
-
-			else {
-
-				if (child instanceof Branch) {
-					throw new FileNotFoundException("Path points to a Branch");
-				}
+		if (node == null) {
+			throw new FileNotFoundException("File does not exist");
+		}
 
-				Leaf thisFile = (Leaf) child;
-				sStub = thisFile.getStorage();
-			}
+		// if its a a Directory then this is an error. If its a leaf then get
+		// the storage stub of it and return
+		if (node instanceof Branch) {
+			throw new FileNotFoundException("Path points to a Branch");
 		}
 
-		return sStub;
+		return ((Leaf) node).getStorage();
 	}
 
 	// The method register is documented in Registration.java.
@@ -537,66 +685,37 @@ public class NamingServer implements Service, Registration {
 			throw new NullPointerException("the arguments are null");
 		}
 
-		if (this.allCommand.contains(command_stub)
-				|| this.allStorage.contains(client_stub)) {
-			throw new IllegalStateException("already registered");
-		}
-
 		// add the storage and command stub to the respective lists
-		allCommand.add(command_stub);
-		allStorage.add(client_stub);
-
-		Node child = null;
-		for (Path file : files) {
-
-			if (!file.isRoot()) {
-
-				Branch f = root;
-				Iterator<String> i = file.iterator();
-
-				// go through every element in the path
-
-				while (i.hasNext()) {
-					String name = i.next();
-					child = f.children.get(name);
-
-					if (child == null) {
-
-						// not the end of the path. The element I am at should
-						// be a directory. create a new Branch and add to the
-						// tree
-
-						if (i.hasNext()) {
-							Branch newB = new Branch(f, name);
-							f.children.put(name, newB);
-							f = newB;
-						}
-
-						// end of the path. this is a file. Create a new Leaf.
-						// add to the tree.
+		synchronized (allCommand) {
+			if (this.allCommand.contains(command_stub)
+					|| this.allStorage.contains(client_stub)) {
+				throw new IllegalStateException("already registered");
+			}
 
-						else {
+			allStorage.add(client_stub);
+			allCommand.add(command_stub);
+		}
 
-							Leaf newF = new Leaf(f, name);
-							newF.putStorage(client_stub);
-							newF.putCommad(command_stub);
-							f.children.put(name, newF);
-						}
+		for (Path file : files) {
 
-					} else {
-						// end of the path and I still found something of the
-						// File name. Duplicate occurrence. need to delete it
-						if (!i.hasNext()) {
-							fileNotNeed.add(file);
-						}
+			if (file.isRoot()) {
+				continue;
+			}
 
-						// change the parent and go to the while loop again
+			// make the directories above the file, then a new Leaf for it.
+			// If something of the File name is already there, or a file is in
+			// the way, this is a duplicate occurrence. need to delete it
+			Branch f = directory(file.parent());
+			if (f == null) {
+				fileNotNeed.add(file);
+				continue;
+			}
 
-						else {
-							f = (Branch) child;
-						}
-					}
-				}
+			Leaf newF = new Leaf(f, file.last(), client_stub, command_stub);
+			if (f.children.putIfAbsent(file.last(), newF) != null) {
+				fileNotNeed.add(file);
+			} else {
+				indexed(newF);
 			}
 		}
 
@@ -610,6 +729,34 @@ public class NamingServer implements Service, Registration {
 		return deletepath;
 	}
 
+	/**
+	 * finds the directory of a path, making it and any directories above it
+	 * that are missing.
+	 * 
+	 * @param path
+	 *            The path of the directory.
+	 * @return the directory, or null if a file is in the way.
+	 */
+	private Branch directory(Path path) {
+		Node node = find(path);
+
+		if (node == null) {
+			Branch parent = directory(path.parent());
+			if (parent == null) {
+				return null;
+			}
+
+			Branch newB = new Branch(parent, path.last());
+			node = parent.children.putIfAbsent(path.last(), newB);
+			if (node == null) {
+				indexed(newB);
+				return newB;
+			}
+		}
+
+		return node instanceof Branch ? (Branch) node : null;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -623,113 +770,259 @@ public class NamingServer implements Service, Registration {
 			throw new NullPointerException("null pointers");
 		}
 
-		Branch f = root;
+		// the Node is found in one step, and the directories above it by
+		// following their parents. Nothing is locked if it does not exist
+		Node end = find(path);
+		if (end == null) {
+			throw new FileNotFoundException("File does not exist");
+		}
 
-		if (path.getName().equals("/")) {
-			if (exclusive) {
-				f.getLock().getExclusive();
-			} else {
-				f.getLock().getShared();
+		// every directory above gets a shared lock, from the root down
+		ArrayList<Branch> above = ancestors(end);
+		for (Branch b : above) {
+			b.getLock().getShared();
+		}
+
+		if (end instanceof Leaf) {
+			try {
+				prepare((Leaf) end, path, exclusive);
+			} catch (RMIException | RuntimeException e) {
+				for (Branch b : above) {
+					b.getLock().releaseShared();
+				}
+				throw e;
 			}
-			return;
 		}
+		if (exclusive) {
+			end.getLock().getExclusive();
+		} else {
+			end.getLock().getShared();
+		}
+
+		// the Node was deleted by whoever held a lock this call waited for
+		if (end.isDetached()) {
+			release(above, end, exclusive);
+			throw new FileNotFoundException("File does not exist");
+		}
+	}
 
-		f.getLock().getShared();
-		Iterator<String> i = path.iterator();
+	/**
+	 * treats a lock request on a file as a read or a write, before the lock
+	 * is taken.
+	 * 
+	 * @param end2
+	 *            The file being locked.
+	 * @param path
+	 *            The path of the file.
+	 * @param exclusive
+	 *            Whether the file is being locked for exclusive access.
+	 * @throws RMIException
+	 *             If a stale copy cannot be deleted.
+	 */
+	private void prepare(Leaf end2, Path path, boolean exclusive)
+			throws RMIException {
 
-		// go through every element in the path
-		while (i.hasNext()) {
+		// Exclusive request
 
-			String name = i.next();
-			Node child = f.children.get(name);
+		if (exclusive) {
 
-			if (child == null) {
-				throw new FileNotFoundException("File does not exist");
-			}
+			// Exclusive for File: Get all the command stubs File is stored in.
+			// Delete the file in every storage server except for one. Then
+			// reset the number_of_resedrs of the file to zero.
 
-			// if path still has something then check if the current
-			// Node is a branch. if not then return FileNotFoundException.
-			// IF yes then give a shared lock to the directory
+			List<Command> leafCommands = end2.getallCommands();
+			if (leafCommands.size() > 1) {
+				deleteAll(leafCommands.subList(1, leafCommands.size()), path);
+			}
+			end2.setNum_of_readers(0);
+		}
 
-			if (i.hasNext()) {
+		// Shared Request
 
-				if (child instanceof Leaf) {
-					throw new FileNotFoundException("File does not exist");
-				}
+		else {
 
-				f = (Branch) child;
-				f.getLock().getShared();
-			}
+			// Shared for File: Check if the File has been requested for
+			// reading more than 20 times. If it is then replicate it to any of
+			// the Storage servers that it is not present in before.
 
-			// the path ends
-			else {
-				Node end = (Node) child;
+			if (end2.addReader() > 20
+					&& (end2.getallCommands().size() < this.allCommand.size())) {
 
-				// Exclusive request
+				List<Command> leafCommands = end2.getallCommands();
+				List<Storage> leafStorages = end2.getallStorages();
 
-				if (exclusive) {
+				int index = 0;
+				for (Command c : this.allCommand) {
+					if (!leafCommands.contains(c)) {
+						try (Deadline d = Deadline.after(REPLICATION_TIMEOUT,
+								TimeUnit.SECONDS)) {
 
-					// Exclusive for File: Get all the command stubs File is
-					// stored in. Delete the file in every storage server except
-					// for one. Then reset the number_of_resedrs of the file to
-					// zero. Give the exclusive lock
+							Storage s = this.allStorage.get(index);
+							c.copy(path, leafStorages.get(0));
+							end2.setNum_of_readers(0);
+							end2.putCommad(c);
+							end2.putStorage(s);
 
-					if (end instanceof Leaf) {
-						Leaf end2 = (Leaf) end;
-						ArrayList<Command> leafCommands = end2.getallCommands();
-						for (int j = 1; j < leafCommands.size(); j++) {
-							leafCommands.get(j).delete(path);
+						} catch (IOException | RMITimeoutException e) {
+							e.printStackTrace();
 						}
-						end2.setNum_of_readers(0);
+						break;
 					}
-					end.getLock().getExclusive();
+					index++;
 				}
+			}
+		}
+	}
 
-				// Shared Request
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see naming.Service#lockAll(common.Path[], boolean[])
+	 */
+	@Override
+	public void lockAll(Path[] paths, boolean[] exclusive)
+			throws RMIException, FileNotFoundException {
+		take(paths, exclusive);
+	}
 
-				else {
+	/**
+	 * takes the locks of <code>lockAll</code>.
+	 * 
+	 * @param paths
+	 *            The paths to be locked.
+	 * @param exclusive
+	 *            The mode of each path.
+	 * @return the locks taken.
+	 * @throws FileNotFoundException
+	 *             If a path cannot be found, or is deleted while the call
+	 *             waits for a lock.
+	 * @throws RMIException
+	 *             If a stale copy cannot be deleted.
+	 */
+	private LockSet take(Path[] paths, boolean[] exclusive)
+			throws RMIException, FileNotFoundException {
 
-					// Shared for File: Check if the File has been requested for
-					// reading more than 20 times. If it is then replicate it to
-					// any of the Storage servers that it is not present in
-					// before. Give the shared lock
+		// every path is found before anything is locked
+		LockSet set = lockSet(paths, exclusive);
+		if (set == null) {
+			throw new FileNotFoundException("File does not exist");
+		}
 
-					if (end instanceof Leaf) {
+		// the locks are taken in the order of their paths, which takes the
+		// directories above each path before it
+		ArrayList<Node> taken = new ArrayList<Node>();
+		try {
+			for (Node n : set.nodes.values()) {
+				boolean x = set.exclusive.contains(n);
+				if (n instanceof Leaf && set.targets.contains(n)) {
+					prepare((Leaf) n, n.getPath(), x);
+				}
+				if (x) {
+					n.getLock().getExclusive();
+				} else {
+					n.getLock().getShared();
+				}
+				taken.add(n);
+			}
+		} catch (RMIException | RuntimeException e) {
+			release(set, taken);
+			throw e;
+		}
 
-						Leaf end2 = (Leaf) end;
-						end2.setNum_of_readers(end2.getNum_of_readers() + 1);
+		// an object deleted by whoever held a lock this call waited for
+		for (Node n : set.targets) {
+			if (n.isDetached()) {
+				release(set, taken);
+				throw new FileNotFoundException("File does not exist");
+			}
+		}
 
-						if (end2.getNum_of_readers() > 20 && (end2.getallCommands().size() < this.allCommand.size())) {
+		return set;
+	}
 
-							ArrayList<Command> leafCommands = end2
-									.getallCommands();
-							ArrayList<Storage> leafStorages = end2
-									.getallStorages();
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see naming.Service#unlockAll(common.Path[], boolean[])
+	 */
+	@Override
+	public void unlockAll(Path[] paths, boolean[] exclusive)
+			throws RMIException {
 
-							int index = 0;
-							for (Command c : this.allCommand) {
-								if (!leafCommands.contains(c)) {
-									try {
+		LockSet set = lockSet(paths, exclusive);
+		if (set == null) {
+			throw new IllegalArgumentException("child is null");
+		}
 
-										Storage s = this.allStorage.get(index);
-										c.copy(path, leafStorages.get(0));
-										end2.setNum_of_readers(0);
-										end2.putCommad(c);
-										end2.putStorage(s);
+		release(set, set.nodes.values());
+	}
 
-									} catch (IOException e) {
-										e.printStackTrace();
-									}
-									break;
-								}
-								index++;
-							}
-						}
-					}
-					end.getLock().getShared();
-				}
+	/**
+	 * finds the locks to take for <code>lockAll</code>: the Node of each path
+	 * in the mode asked for, and the directories above them for shared access,
+	 * each Node once in the stronger of its modes.
+	 * 
+	 * @param paths
+	 *            The paths to be locked.
+	 * @param exclusive
+	 *            The mode of each path.
+	 * @return the locks, or null if a path cannot be found.
+	 */
+	private LockSet lockSet(Path[] paths, boolean[] exclusive) {
+		if (paths == null || exclusive == null) {
+			throw new NullPointerException("null pointers");
+		}
+		if (paths.length != exclusive.length) {
+			throw new IllegalArgumentException(
+					"a mode is needed for every path");
+		}
+
+		LockSet set = new LockSet();
+		for (int i = 0; i < paths.length; i++) {
+			Node end = find(paths[i]);
+			if (end == null) {
+				return null;
+			}
+
+			set.targets.add(end);
+			set.nodes.put(end.getPath(), end);
+			if (exclusive[i]) {
+				set.exclusive.add(end);
+			}
+			for (Branch b : ancestors(end)) {
+				set.nodes.put(b.getPath(), b);
 			}
 		}
+		return set;
+	}
+
+	/**
+	 * releases locks taken by <code>lockAll</code>.
+	 * 
+	 * @param set
+	 *            The locks of the call.
+	 * @param taken
+	 *            The Nodes which were locked.
+	 */
+	private void release(LockSet set, Collection<Node> taken) {
+		for (Node n : taken) {
+			if (set.exclusive.contains(n)) {
+				n.getLock().releaseExclusive();
+			} else {
+				n.getLock().releaseShared();
+			}
+		}
+	}
+
+	/**
+	 * The locks of a call to <code>lockAll</code>: every Node to be locked,
+	 * ordered by path, which of them are locked for exclusive access, and
+	 * which were asked for rather than being directories above those.
+	 */
+	private static class LockSet {
+		final TreeMap<Path, Node> nodes = new TreeMap<Path, Node>();
+		final HashSet<Node> exclusive = new HashSet<Node>();
+		final HashSet<Node> targets = new HashSet<Node>();
 	}
 
 	/*
@@ -744,60 +1037,169 @@ public class NamingServer implements Service, Registration {
 			throw new NullPointerException("null pointers");
 		}
 
-		Branch f = root;
-		Iterator<String> i = path.iterator();
+		// lock takes no locks for a path that does not exist, so there is
+		// nothing to release
+		Node end = find(path);
+		if (end == null) {
+			throw new IllegalArgumentException("child is null");
+		}
 
-		// Unlocking to the root
+		release(ancestors(end), end, exclusive);
+	}
 
-		if (path.getName().equals("/")) {
+	/**
+	 * releases the locks taken by <code>lock</code>: the shared locks of the
+	 * directories above a Node, from the root down, and the lock of the Node.
+	 * 
+	 * @param above
+	 *            The directories above the Node.
+	 * @param end
+	 *            The Node.
+	 * @param exclusive
+	 *            Whether the lock of the Node is exclusive.
+	 */
+	private void release(ArrayList<Branch> above, Node end, boolean exclusive) {
+		for (Branch b : above) {
+			b.getLock().releaseShared();
+		}
 
-			if (exclusive) {
-				f.getLock().releaseExcluive();
-			} else {
+		if (exclusive) {
+			end.getLock().releaseExclusive();
+		} else {
+			end.getLock().releaseShared();
+		}
+	}
 
-				f.getLock().releaseShared();
-			}
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see naming.Service#lease(common.Path, boolean)
+	 */
+	@Override
+	public long lease(Path path, boolean exclusive) throws RMIException,
+			FileNotFoundException {
 
-			return;
+		if (path == null) {
+			throw new NullPointerException("null pointers");
 		}
-		f.getLock().releaseShared();
 
-		// go through every element in the path
-		while (i.hasNext()) {
+		// the locks are those of lock: the directories above the path for
+		// shared access, and the path in the mode asked for
+		return granted(take(new Path[] { path }, new boolean[] { exclusive }));
+	}
 
-			String name = i.next();
-			Node child = f.children.get(name); // this is a Node of the String
-												// name
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see naming.Service#leaseAll(common.Path[], boolean[])
+	 */
+	@Override
+	public long leaseAll(Path[] paths, boolean[] exclusive)
+			throws RMIException, FileNotFoundException {
+		return granted(take(paths, exclusive));
+	}
 
-			if (child == null) {
-				throw new IllegalArgumentException("child is null");
-			}
+	/**
+	 * starts a lease for locks just taken.
+	 * 
+	 * @param set
+	 *            The locks.
+	 * @return the number of the lease.
+	 */
+	private long granted(LockSet set) {
+		long id = nextLease.getAndIncrement();
+		leases.put(id, new Lease(set, System.nanoTime()));
+		return id;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see naming.Service#renew(long)
+	 */
+	@Override
+	public boolean renew(long lease) throws RMIException {
+		long now = System.nanoTime();
+		return leases.computeIfPresent(lease, (k, l) -> {
+			l.renewed = now;
+			return l;
+		}) != null;
+	}
 
-			// if there is still something in the path. then the current Node is
-			// a Branch and we can release the share lock on it
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see naming.Service#release(long)
+	 */
+	@Override
+	public void release(long lease) throws RMIException {
 
-			if (i.hasNext()) {
+		// whichever of the client and the reaper takes the lease out of the
+		// map releases its locks
+		Lease l = leases.remove(lease);
+		if (l == null) {
+			throw new IllegalArgumentException("no such lease");
+		}
+		release(l.set, l.set.nodes.values());
+	}
 
-				f = (Branch) child;
-				f.getLock().releaseShared();
-			}
+	/**
+	 * releases the locks of the leases which have run out. Run by the reaper;
+	 * each release lets in the requests waiting for the lock, as an unlock
+	 * would.
+	 */
+	void reap() {
+		if (leaseTime == 0) {
+			return;
+		}
 
-			// Given path ends. If the lock was exclusive we release the
-			// exclusive lock on it. If it was shared then we release the shared
-			// lock.
+		long now = System.nanoTime();
+		long time = leaseTime;
+		for (Map.Entry<Long, Lease> e : leases.entrySet()) {
+			Lease lease = e.getValue();
+			if (now - lease.renewed < time) {
+				continue;
+			}
 
-			else {
-				Node end = (Node) child;
-				if (exclusive) {
-					end.getLock().releaseExcluive();
+			// taken out only if it was not renewed or released meanwhile
+			boolean[] expired = { false };
+			leases.computeIfPresent(e.getKey(), (k, l) -> {
+				if (now - l.renewed < time) {
+					return l;
 				}
+				expired[0] = true;
+				return null;
+			});
+			if (!expired[0]) {
+				continue;
+			}
 
-				else {
-					end.getLock().releaseShared();
-				}
+			// the lease is out of the map, so it ends even if its release
+			// fails; the failure must not stop the reaper, whose later runs
+			// would be cancelled
+			reclaimed.incrementAndGet();
+			try {
+				release(lease.set, lease.set.nodes.values());
+			} catch (RuntimeException x) {
+				leaseError(e.getKey(), x);
 			}
 		}
+	}
 
+	/**
+	 * The lease of the locks taken by one call to <code>lease</code> or
+	 * <code>leaseAll</code>. Its renewal time is changed only within the
+	 * compute methods of the map of leases.
+	 */
+	private static class Lease {
+		final LockSet set;
+		/** When the lease was granted or last renewed, in nanoseconds. */
+		volatile long renewed;
+
+		Lease(LockSet set, long renewed) {
+			this.set = set;
+			this.renewed = renewed;
+		}
 	}
 
 }
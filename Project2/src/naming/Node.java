@@ -1,5 +1,6 @@
 package naming;
 
+import common.Path;
 
 /**
  * @author hira.yasin This is an abstract class which is extended by the Leaf
@@ -8,9 +9,14 @@ package naming;
 public abstract class Node {
 
 	
-	private MyLock m = new MyLock();
+	private FairLock m = new FairLock();
 	private Branch parent;
 	private String name;
+	// the full path of the Node, under which the naming server indexes it
+	private final Path path;
+	// set once the Node is taken out of the tree, so that a stale index
+	// entry or a lock taken on it just before is not mistaken for a live one
+	private volatile boolean detached = false;
 
 	public Node(Branch b, String name) {
 		
@@ -20,13 +26,42 @@ public abstract class Node {
 
 		this.name = name;
 		this.parent = b;
+		this.path = b == null ? new Path() : new Path(b.getPath(), name);
 
 	}
 	
-	public MyLock getLock(){
+	public FairLock getLock(){
 		return this.m;
 	}
 
+	/**
+	 * @return the Branch this Node is in, or null for the root
+	 */
+	public Branch getParent() {
+		return this.parent;
+	}
+
+	/**
+	 * @return the full path of this Node
+	 */
+	public Path getPath() {
+		return this.path;
+	}
+
+	/**
+	 * @return true once this Node has been taken out of the tree
+	 */
+	public boolean isDetached() {
+		return this.detached;
+	}
+
+	/**
+	 * marks this Node as taken out of the tree.
+	 */
+	void detach() {
+		this.detached = true;
+	}
+
 	/**
 	 * @return true if this is Directory. False otherwise
 	 */
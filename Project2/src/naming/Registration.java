@@ -2,6 +2,7 @@ package naming;
 
 import common.*;
 import storage.*;
+import rmi.Priority;
 import rmi.RMIException;
 
 /** Naming server registration interface.
@@ -45,6 +46,7 @@ public interface Registration
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Priority(Priority.Level.LOW)
     public Path[] register(Storage client_stub, Command command_stub,
                            Path[] files) throws RMIException;
 }
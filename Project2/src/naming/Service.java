@@ -1,7 +1,12 @@
 package naming;
 
 import java.io.*;
+import java.util.Arrays;
+import java.util.Iterator;
+
 import common.*;
+import rmi.Idempotent;
+import rmi.Priority;
 import rmi.RMIException;
 import storage.Storage;
 
@@ -89,6 +94,12 @@ public interface Service
         <code>A</code> and <code>B</code> for shared access. User <code>D</code>
         must wait until <code>C</code> is done with the lock.
 
+        <p>
+        A lock taken by this method is held until it is released with
+        <code>unlock</code>, however long that takes. A user which may die
+        while holding a lock should take it with <code>lease</code>
+        instead.
+
         @param path The file or directory to be locked.
         @param exclusive If <code>true</code>, the object is to be locked for
                          exclusive access. Otherwise, it is to be locked for
@@ -123,8 +134,148 @@ public interface Service
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Priority(Priority.Level.HIGH)
     public void unlock(Path path, boolean exclusive) throws RMIException;
 
+    /** Locks several files or directories in one call.
+
+        <p>
+        The objects are locked as by <code>lock</code>, one after another, in
+        the order given by <code>Path.compareTo</code>, which is the order in
+        which locks must be taken by every user locking more than one object
+        to avoid deadlocks. Each directory along the paths is locked for shared
+        access once, however many of the paths lie under it, unless it is one
+        of the objects itself; a directory requested for both kinds of access,
+        or an object given twice, is locked for the stronger of the two. This
+        saves the round trips of locking each object, and the repeated locking
+        of the directories they share.
+
+        <p>
+        Every path is checked before anything is locked: if any cannot be
+        found, nothing is locked. The locks must be released with
+        <code>unlockAll</code>, given the same paths and modes, rather than
+        one by one with <code>unlock</code>.
+
+        @param paths The files and directories to be locked.
+        @param exclusive For each path, <code>true</code> if the object is to
+                         be locked for exclusive access, and <code>false</code>
+                         if it is to be locked for shared access.
+        @throws FileNotFoundException If any of the objects cannot be found,
+                                      or one is deleted while the call waits
+                                      for a lock. No locks are then held.
+        @throws IllegalArgumentException If the two arrays are not of the same
+                                         length.
+        @throws RMIException If the call cannot be completed due to a network
+                             error, or a stale copy of a file being locked for
+                             write access cannot be deleted.
+     */
+    public void lockAll(Path[] paths, boolean[] exclusive)
+        throws RMIException, FileNotFoundException;
+
+    /** Unlocks several files or directories locked together by
+        <code>lockAll</code>.
+
+        @param paths The paths given to <code>lockAll</code>.
+        @param exclusive The modes given to <code>lockAll</code>.
+        @throws IllegalArgumentException If any of the objects cannot be
+                                         found, in which case nothing is
+                                         unlocked, or if the two arrays are not
+                                         of the same length.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    @Priority(Priority.Level.HIGH)
+    public void unlockAll(Path[] paths, boolean[] exclusive)
+        throws RMIException;
+
+    /** Locks a file or directory under a lease.
+
+        <p>
+        The object is locked as by <code>lock</code>, and the lock is held
+        under a new lease, named by the number returned. A lease which has not
+        been renewed with <code>renew</code> for the naming server's lease
+        time is taken to belong to a user which has died: its lock is released
+        by the naming server, so that the users waiting for it are let in.
+        The lock is released by the user with <code>release</code>, given the
+        lease, rather than with <code>unlock</code>.
+
+        <p>
+        Every call is granted a lease of its own, even when other users hold
+        the same lock, and the number of a lease is not given to another
+        lease once it has ended. A user whose lease has run out therefore
+        cannot renew or release the lock of another user.
+
+        @param path The file or directory to be locked.
+        @param exclusive If <code>true</code>, the object is to be locked for
+                         exclusive access. Otherwise, it is to be locked for
+                         shared access.
+        @return the lease of the lock.
+        @throws FileNotFoundException If the object specified by
+                                      <code>path</code> cannot be found, or is
+                                      deleted while the call waits for the
+                                      lock.
+        @throws RMIException If the call cannot be completed due to a network
+                             error, or a stale copy of a file being locked for
+                             write access cannot be deleted.
+     */
+    public long lease(Path path, boolean exclusive)
+        throws RMIException, FileNotFoundException;
+
+    /** Locks several files or directories in one call, under one lease.
+
+        <p>
+        The objects are locked as by <code>lockAll</code>, and the locks are
+        held under one new lease, as the lock taken by <code>lease</code> is.
+        They are released together with <code>release</code>.
+
+        @param paths The files and directories to be locked.
+        @param exclusive For each path, <code>true</code> if the object is to
+                         be locked for exclusive access, and <code>false</code>
+                         if it is to be locked for shared access.
+        @return the lease of the locks.
+        @throws FileNotFoundException If any of the objects cannot be found,
+                                      or one is deleted while the call waits
+                                      for a lock. No locks are then held.
+        @throws IllegalArgumentException If the two arrays are not of the same
+                                         length.
+        @throws RMIException If the call cannot be completed due to a network
+                             error, or a stale copy of a file being locked for
+                             write access cannot be deleted.
+     */
+    public long leaseAll(Path[] paths, boolean[] exclusive)
+        throws RMIException, FileNotFoundException;
+
+    /** Renews a lease granted by <code>lease</code> or
+        <code>leaseAll</code>.
+
+        <p>
+        The lease then runs for the naming server's lease time from this call.
+        A user holding locks for a long time should renew their lease well
+        within the lease time.
+
+        @param lease The lease.
+        @return <code>true</code> if the lease was renewed, <code>false</code>
+                if there is no such lease: it has run out, and its locks have
+                been released, or it was released by the user.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    @Priority(Priority.Level.HIGH)
+    public boolean renew(long lease) throws RMIException;
+
+    /** Releases the locks held under a lease, and ends the lease.
+
+        @param lease The lease.
+        @throws IllegalArgumentException If there is no such lease: it has run
+                                         out, and its locks have been released
+                                         already, or it was released before.
+                                         Nothing is then unlocked.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    @Priority(Priority.Level.HIGH)
+    public void release(long lease) throws RMIException;
+
     /** Determines whether a path refers to a directory.
 
         <p>
@@ -140,6 +291,8 @@ public interface Service
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Idempotent
+    @Priority(Priority.Level.HIGH)
     public boolean isDirectory(Path path)
         throws RMIException, FileNotFoundException;
 
@@ -160,6 +313,35 @@ public interface Service
     public String[] list(Path directory)
         throws RMIException, FileNotFoundException;
 
+    /** Lists the contents of a directory, one entry at a time.
+
+        <p>
+        Unlike <code>list</code>, the entries are not sent in one piece.
+        Through a stub, they are fetched in chunks as the iterator is read, so
+        a directory with any number of entries can be listed without holding
+        the whole listing in memory. If fetching fails, the iterator throws
+        <code>UncheckedRMIException</code>. An iterator which is not read to
+        the end should be closed, if it implements
+        <code>AutoCloseable</code>.
+
+        <p>
+        The directory should be locked for shared access while the iterator
+        is read.
+
+        @param directory The directory to be listed.
+        @return An iterator over the directory entries. The entries are not
+                guaranteed to be in any particular order.
+        @throws FileNotFoundException If the given path does not refer to a
+                                      directory.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default Iterator<String> iterate(Path directory)
+        throws RMIException, FileNotFoundException
+    {
+        return Arrays.asList(list(directory)).iterator();
+    }
+
     /** Creates the given file, if it does not exist.
 
         <p>
@@ -228,6 +410,8 @@ public interface Service
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Idempotent
+    @Priority(Priority.Level.HIGH)
     public Storage getStorage(Path file)
         throws RMIException, FileNotFoundException;
 }
@@ -0,0 +1,307 @@
+package rmi;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which calls a skeleton takes on when it is busy.
+ *
+ * <p>
+ * Every call a skeleton receives is offered to its admission policy before
+ * it is handed to the dispatcher. A call the policy refuses is not run: the
+ * stub gets an <code>RMIOverloadException</code> at once, and may try again
+ * later. This keeps an overloaded server answering, if only with refusals,
+ * instead of taking on threads and memory for calls it cannot serve in time.
+ *
+ * <p>
+ * The policy keeps count of the calls waiting for the dispatcher, the calls
+ * running, and the bytes of all their requests. A policy is written by
+ * overriding <code>accept</code>, which sees these counts, and optionally
+ * <code>completed</code>, which is told how long each call took. The counts
+ * are read without a lock, so a burst arriving on several connections at once
+ * may overshoot a limit by a few calls. A call is first offered when its
+ * header arrives, with the length the header declares, so that a call which
+ * would be refused is not read into memory, and again once it has been read. One policy may be shared by several
+ * skeletons, in which case the counts and limits are for all of them
+ * together.
+ *
+ * <p>
+ * A skeleton admits every call unless it is given a policy with
+ * <code>Skeleton.setAdmission</code>.
+ */
+public abstract class Admission {
+
+	private final AtomicInteger running = new AtomicInteger();
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * @return a policy which admits every call
+	 */
+	public static Admission unlimited() {
+		return new Admission() {
+			@Override
+			protected boolean accept(int running, int queued, long bytes,
+					long size) {
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Creates a policy with fixed limits.
+	 *
+	 * <p>
+	 * A call is refused if <code>maxQueued</code> calls are already waiting,
+	 * if <code>maxRunning + maxQueued</code> calls are already waiting or
+	 * running, or if its request would take the bytes of all calls taken on
+	 * above <code>maxBytes</code>. Under a dispatcher which starts a thread
+	 * for every call, the first two limits together cap the number of
+	 * threads; under a bounded dispatcher, <code>maxRunning</code> is best set
+	 * to its number of workers.
+	 *
+	 * @param maxRunning
+	 *            The most calls expected to run at once
+	 * @param maxQueued
+	 *            The most calls which may wait for a worker
+	 * @param maxBytes
+	 *            The most request bytes of calls waiting or running
+	 * @return the policy
+	 * @throws IllegalArgumentException
+	 *             If any limit is less than one.
+	 */
+	public static Admission limits(int maxRunning, int maxQueued,
+			long maxBytes) {
+		if (maxRunning < 1 || maxQueued < 1 || maxBytes < 1) {
+			throw new IllegalArgumentException("limits must be at least one");
+		}
+
+		final long calls = (long) maxRunning + maxQueued;
+		return new Admission() {
+			@Override
+			protected boolean accept(int running, int queued, long bytes,
+					long size) {
+				return queued < maxQueued && running + queued < calls
+						&& bytes + size <= maxBytes;
+			}
+		};
+	}
+
+	/**
+	 * Creates a policy which finds its own limit on the calls taken on at
+	 * once, from how long they take.
+	 *
+	 * <p>
+	 * The policy remembers the shortest time, from arrival to response, of
+	 * recent calls. While calls take less than twice that, the server is
+	 * keeping up, and the limit grows. Once they take longer, calls are
+	 * piling up somewhere, and the limit shrinks in proportion, so that
+	 * calls beyond what the server can serve without delay are refused rather
+	 * than left to wait. The shortest time is measured afresh now and then,
+	 * so that a server which has become slower for good is not held to its
+	 * old speed.
+	 *
+	 * <p>
+	 * This suits servers whose calls take about the same time when they are
+	 * not held up. Calls which wait for other clients on purpose, such as
+	 * calls taking locks, would read as overload.
+	 *
+	 * @param min
+	 *            The lowest the limit may fall to
+	 * @param max
+	 *            The highest the limit may rise to
+	 * @return the policy, which starts at <code>min</code>
+	 * @throws IllegalArgumentException
+	 *             If <code>min</code> is less than one or above
+	 *             <code>max</code>.
+	 */
+	public static Admission adaptive(int min, int max) {
+		if (min < 1 || min > max) {
+			throw new IllegalArgumentException("bad limits " + min + " to "
+					+ max);
+		}
+		return new Adaptive(min, max);
+	}
+
+	/**
+	 * decides whether to take on a call.
+	 *
+	 * @param running
+	 *            The calls taken on which are running
+	 * @param queued
+	 *            The calls taken on which are waiting for the dispatcher
+	 * @param bytes
+	 *            The request bytes of all the calls taken on
+	 * @param size
+	 *            The request bytes of the new call
+	 * @return true to take the call on, false to refuse it
+	 */
+	protected abstract boolean accept(int running, int queued, long bytes,
+			long size);
+
+	/**
+	 * is told that a call taken on is done. The default implementation does
+	 * nothing.
+	 *
+	 * @param latency
+	 *            Nanoseconds from the arrival of the call until its response
+	 *            was ready
+	 */
+	protected void completed(long latency) {
+	}
+
+	/**
+	 * @return the number of calls taken on which are running
+	 */
+	public int running() {
+		return running.get();
+	}
+
+	/**
+	 * @return the number of calls taken on which are waiting for the
+	 *         dispatcher
+	 */
+	public int queued() {
+		return queued.get();
+	}
+
+	/**
+	 * @return the request bytes of all the calls taken on
+	 */
+	public long bytesInFlight() {
+		return bytes.get();
+	}
+
+	/**
+	 * @return the number of calls refused
+	 */
+	public long rejectedCalls() {
+		return rejected.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "running " + running() + ", queued " + queued() + ", bytes "
+				+ bytesInFlight() + ", rejected " + rejectedCalls();
+	}
+
+	/**
+	 * offers a call to the policy, and counts it as queued if it is taken.
+	 *
+	 * @return true if the call was taken on
+	 */
+	final boolean admit(long size) {
+		if (!accept(running.get(), queued.get(), bytes.get(), size)) {
+			rejected.incrementAndGet();
+			return false;
+		}
+		queued.incrementAndGet();
+		bytes.addAndGet(size);
+		return true;
+	}
+
+	/**
+	 * asks the policy whether it would take on a call of the given size, from
+	 * the header of the call alone. A call refused here is counted as
+	 * rejected; one that is not is offered again with <code>admit</code> once
+	 * it has been read.
+	 *
+	 * @return true if the call is worth reading
+	 */
+	final boolean fits(long size) {
+		if (!accept(running.get(), queued.get(), bytes.get(), size)) {
+			rejected.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * counts a call taken on as running.
+	 */
+	final void started() {
+		queued.decrementAndGet();
+		running.incrementAndGet();
+	}
+
+	/**
+	 * counts a call taken on as done.
+	 *
+	 * @param size
+	 *            The request bytes of the call
+	 * @param started
+	 *            Whether it was counted as running
+	 * @param latency
+	 *            Nanoseconds from its arrival until its response was ready,
+	 *            or -1 if it never ran
+	 */
+	final void finished(long size, boolean started, long latency) {
+		(started ? running : queued).decrementAndGet();
+		bytes.addAndGet(-size);
+		if (latency >= 0) {
+			completed(latency);
+		}
+	}
+
+	/**
+	 * The policy of <code>adaptive</code>.
+	 */
+	private static class Adaptive extends Admission {
+
+		/** Times above this many times the shortest shrink the limit. */
+		private static final double TOLERANCE = 2;
+		/** Weight of each new estimate of the limit. */
+		private static final double SMOOTHING = 0.2;
+		/** Calls after which the shortest time is measured afresh. */
+		private static final int RESET = 1000;
+
+		private final int min;
+		private final int max;
+		private volatile double limit;
+		private long shortest = 0;
+		private int samples = 0;
+
+		Adaptive(int min, int max) {
+			this.min = min;
+			this.max = max;
+			this.limit = min;
+		}
+
+		@Override
+		protected boolean accept(int running, int queued, long bytes,
+				long size) {
+			return running + queued < (int) limit;
+		}
+
+		@Override
+		protected synchronized void completed(long latency) {
+			if (latency <= 0) {
+				return;
+			}
+			if (shortest == 0 || latency < shortest || ++samples >= RESET) {
+				shortest = latency;
+				samples = 0;
+			}
+
+			// the limit is scaled down by how much longer than usual calls
+			// take, by half at most, and may grow by its square root so that
+			// it keeps probing for more room
+			double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * shortest
+					/ latency));
+			double estimate = limit * gradient + Math.sqrt(limit);
+			limit = Math.max(min, Math.min(max, limit * (1 - SMOOTHING)
+					+ estimate * SMOOTHING));
+		}
+
+		@Override
+		public String toString() {
+			return super.toString() + ", limit " + (int) limit;
+		}
+	}
+}
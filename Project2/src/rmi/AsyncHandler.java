@@ -0,0 +1,269 @@
+package rmi;
+
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Invocation handler for asynchronous stubs.
+ *
+ * <p>
+ * An asynchronous stub implements a companion interface of a remote interface.
+ * For each remote method the companion has a method with the same name and
+ * parameters which returns a <code>CompletableFuture</code> of the result
+ * instead of the result itself. A call sends its frame on the shared
+ * connection to the skeleton and returns at once; the future is completed when
+ * the response arrives. Any number of calls may be outstanding, to one
+ * skeleton or to many.
+ *
+ * <p>
+ * Futures are completed on a pool of daemon threads rather than on the thread
+ * reading the connection, so actions attached to them may themselves make
+ * remote calls, even blocking ones.
+ */
+class AsyncHandler implements InvocationHandler, Serializable {
+
+	private static final AtomicInteger threads = new AtomicInteger();
+
+	/** Threads which decode responses and complete the futures. */
+	private static final ExecutorService completions = Executors
+			.newCachedThreadPool(r -> {
+				Thread t = new Thread(r, "rmi async " + threads.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			});
+
+	/** The remote interface. */
+	private final Class<?> remote;
+	/** The address of the skeleton, or <code>null</code> if local. */
+	private final InetSocketAddress address;
+	/** The object called directly when the stub is local. Never sent. */
+	private transient final Object local;
+	/** The timeout of each call in nanoseconds, or zero for none. */
+	private final long timeout;
+	/** The remote method for each companion method, made on first use. */
+	private transient volatile HashMap<Method, Method> methods;
+
+	/**
+	 * @param remote
+	 *            The remote interface
+	 * @param address
+	 *            The address of the skeleton, or <code>null</code> if calls go
+	 *            to <code>local</code>
+	 * @param local
+	 *            The object to call when there is no skeleton address
+	 * @param timeout
+	 *            The timeout of each call in nanoseconds, or zero for none
+	 */
+	AsyncHandler(Class<?> remote, InetSocketAddress address, Object local,
+			long timeout) {
+		this.remote = remote;
+		this.address = address;
+		this.local = local;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * checks that every method of a companion interface has a remote method
+	 * of the same name and parameters, and returns a future.
+	 *
+	 * @param async
+	 *            The companion interface
+	 * @param remote
+	 *            The remote interface
+	 * @throws Error
+	 *             If the companion does not match the remote interface
+	 */
+	static void check(Class<?> async, Class<?> remote) {
+		if (!async.isInterface()) {
+			throw new Error(async + " is not an interface");
+		}
+
+		for (Method m : async.getMethods()) {
+			if (!m.getReturnType().isAssignableFrom(CompletableFuture.class)
+					|| !Future.class.isAssignableFrom(m.getReturnType())) {
+				throw new Error(m + " does not return a CompletableFuture");
+			}
+
+			try {
+				remote.getMethod(m.getName(), m.getParameterTypes());
+			} catch (NoSuchMethodException e) {
+				throw new Error(m + " has no matching method in " + remote);
+			}
+		}
+	}
+
+	/**
+	 * @param m
+	 *            A method of the companion interface
+	 * @return the matching method of the remote interface
+	 */
+	private Method remoteMethod(Method m) throws NoSuchMethodException {
+		HashMap<Method, Method> table = methods;
+
+		if (table == null) {
+			table = new HashMap<Method, Method>();
+			for (Method a : m.getDeclaringClass().getMethods()) {
+				table.put(a, remote.getMethod(a.getName(),
+						a.getParameterTypes()));
+			}
+			methods = table;
+		}
+
+		Method r = table.get(m);
+		if (r == null) {
+			r = remote.getMethod(m.getName(), m.getParameterTypes());
+		}
+		return r;
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args)
+			throws Throwable {
+
+		// equals, hashCode and toString are answered locally, as they are by
+		// synchronous stubs
+		if (method.getDeclaringClass() == Object.class) {
+			if (method.getName().equals("equals")) {
+				Object other = args[0];
+				return other != null
+						&& Proxy.isProxyClass(other.getClass())
+						&& proxy.getClass().equals(other.getClass())
+						&& Proxy.getInvocationHandler(other) instanceof AsyncHandler
+						&& same((AsyncHandler) Proxy
+								.getInvocationHandler(other));
+			} else if (method.getName().equals("hashCode")) {
+				return hashCode();
+			} else {
+				return toString();
+			}
+		}
+
+		CompletableFuture<Object> result = new CompletableFuture<Object>();
+		Method target;
+
+		try {
+			target = remoteMethod(method);
+		} catch (NoSuchMethodException e) {
+			result.completeExceptionally(new RMIException(e));
+			return result;
+		}
+
+		if (address == null) {
+			call(target, args, result);
+			return result;
+		}
+
+		MethodMetrics counted = Metrics.stub(target);
+		long began = System.nanoTime();
+		long wait = Deadline.remaining(timeout);
+		long sent;
+		Connection connection;
+		CompletableFuture<Frame> response;
+		try {
+			if (wait <= 0) {
+				throw new RMITimeoutException("deadline passed before call to "
+						+ address + " was sent");
+			}
+
+			connection = ConnectionPool.get(address, wait);
+
+			Frame request = connection.encode(target, args, true)
+					.withTimeout(wait);
+			sent = request.size();
+			response = connection.send(request);
+			if (wait != Deadline.NONE) {
+				// failing the response also drops the call from the
+				// connection
+				response.orTimeout(wait, TimeUnit.NANOSECONDS);
+			}
+		} catch (Exception e) {
+			counted.record(true, 0, 0, -1, System.nanoTime() - began);
+			result.completeExceptionally(e instanceof RMIException ? e
+					: new RMIException(e));
+			return result;
+		}
+
+		response.whenCompleteAsync((frame, failure) -> {
+			if (failure instanceof TimeoutException) {
+				counted.record(true, 0, sent, -1, System.nanoTime() - began);
+				result.completeExceptionally(new RMITimeoutException(
+						"no response from " + address + " in "
+								+ TimeUnit.NANOSECONDS.toMillis(wait) + " ms"));
+				return;
+			}
+			if (failure != null) {
+				counted.record(true, 0, sent, -1, System.nanoTime() - began);
+				result.completeExceptionally(failure instanceof RMIException ? failure
+						: new RMIException(failure));
+				return;
+			}
+
+			counted.record(frame.type == Frame.EXCEPTION, frame.size(), sent,
+					-1, System.nanoTime() - began);
+
+			try {
+				Object value = frame.type == Frame.STREAM ? new RemoteIterator<Object>(
+						connection, frame, timeout) : Codec.read(Codec
+						.reader(Compression.inflate(frame)));
+				if (frame.type == Frame.EXCEPTION) {
+					result.completeExceptionally((Throwable) value);
+				} else {
+					result.complete(value);
+				}
+			} catch (Exception e) {
+				result.completeExceptionally(e instanceof RMIException ? e
+						: new RMIException(e));
+			}
+		}, completions);
+
+		return result;
+	}
+
+	/**
+	 * calls a local object directly and completes the future with the
+	 * outcome.
+	 */
+	private void call(Method target, Object[] args,
+			CompletableFuture<Object> result) {
+		try {
+			result.complete(target.invoke(local, args));
+		} catch (InvocationTargetException e) {
+			result.completeExceptionally(e.getCause());
+		} catch (Exception e) {
+			result.completeExceptionally(new RMIException(e));
+		}
+	}
+
+	/**
+	 * @return true if the other handler calls the same remote object
+	 */
+	private boolean same(AsyncHandler other) {
+		if (address == null || other.address == null) {
+			return address == other.address && local == other.local;
+		}
+		return address.equals(other.address);
+	}
+
+	@Override
+	public int hashCode() {
+		return address == null ? System.identityHashCode(local) : address
+				.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return address == null ? "local " + local : address.toString();
+	}
+}
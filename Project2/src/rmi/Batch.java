@@ -0,0 +1,278 @@
+package rmi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A batch of calls to one remote object, sent together.
+ *
+ * <p>
+ * Calls are queued on the batch with <code>add</code>, each of which returns
+ * a future for the result of its call. <code>send</code> then sends every
+ * queued call to the skeleton in a single frame. The skeleton runs the calls
+ * one after the other, in the order they were added, and answers them all in
+ * a single frame. A string of small calls therefore costs one round trip
+ * instead of one each.
+ *
+ * <p>
+ * Each call keeps its own outcome: if one call throws, its future completes
+ * with the exception and the calls after it still run. Only if the batch as a
+ * whole cannot be sent or answered do all the futures fail, with an
+ * <code>RMIException</code>.
+ *
+ * <p>
+ * The calls in a batch cannot depend on each other's results, since none is
+ * known until the whole batch is answered. A batch is sent once; it cannot be
+ * reused afterwards.
+ *
+ * <p>
+ * Batches are made by <code>Stub.batch</code>.
+ *
+ * @param <T>
+ *            The remote interface
+ */
+public class Batch<T> {
+
+	/**
+	 * A call to queue on a batch. It is run once, against a stand-in for the
+	 * remote object which only records what is called on it, and must call
+	 * exactly one remote method. What it returns is ignored.
+	 *
+	 * @param <T>
+	 *            The remote interface
+	 * @param <R>
+	 *            The result type of the remote method
+	 */
+	public interface Call<T, R> {
+		R call(T stub) throws Exception;
+	}
+
+	/** Most calls a batch may hold. */
+	public static final int MAX_CALLS = 0xffff;
+
+	private final InetSocketAddress address;
+	private final T local;
+	private final long timeout;
+	private final T recorder;
+
+	private final ArrayList<Method> methods = new ArrayList<Method>();
+	private final ArrayList<Object[]> arguments = new ArrayList<Object[]>();
+	private final ArrayList<CompletableFuture<Object>> results = new ArrayList<CompletableFuture<Object>>();
+	private boolean sent = false;
+
+	// the call being recorded by add
+	private int recorded;
+	private Method recordedMethod;
+	private Object[] recordedArguments;
+
+	/**
+	 * @param c
+	 *            The remote interface
+	 * @param address
+	 *            The address of the skeleton, or <code>null</code> if calls go
+	 *            to <code>local</code>
+	 * @param local
+	 *            The object to call when there is no skeleton address
+	 * @param timeout
+	 *            The timeout of the whole batch in nanoseconds, or zero for
+	 *            none
+	 */
+	@SuppressWarnings("unchecked")
+	Batch(Class<T> c, InetSocketAddress address, T local, long timeout) {
+		this.address = address;
+		this.local = local;
+		this.timeout = timeout;
+		this.recorder = (T) Proxy.newProxyInstance(c.getClassLoader(),
+				new Class[] { c }, new Recorder());
+	}
+
+	/**
+	 * queues a call.
+	 *
+	 * @param call
+	 *            Calls one method of the remote interface on the stub it is
+	 *            given, for example <code>s -> s.list(path)</code>
+	 * @return a future for the result of the call. It completes when the
+	 *         batch has been answered.
+	 * @throws IllegalStateException
+	 *             If the batch has been sent or is full.
+	 * @throws IllegalArgumentException
+	 *             If <code>call</code> does not call exactly one remote method,
+	 *             or throws.
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized <R> CompletableFuture<R> add(Call<T, R> call) {
+		if (sent) {
+			throw new IllegalStateException("batch already sent");
+		}
+		if (methods.size() == MAX_CALLS) {
+			throw new IllegalStateException("batch is full");
+		}
+
+		recorded = 0;
+		try {
+			call.call(recorder);
+		} catch (Exception e) {
+			throw new IllegalArgumentException("call could not be recorded",
+					e);
+		}
+
+		if (recorded != 1) {
+			throw new IllegalArgumentException(
+					"a call must call exactly one remote method, not "
+							+ recorded);
+		}
+
+		CompletableFuture<Object> result = new CompletableFuture<Object>();
+		methods.add(recordedMethod);
+		arguments.add(recordedArguments);
+		results.add(result);
+
+		return (CompletableFuture<R>) result;
+	}
+
+	/**
+	 * @return the number of calls queued
+	 */
+	public synchronized int size() {
+		return methods.size();
+	}
+
+	/**
+	 * sends every queued call and waits for the answer. When this method
+	 * returns normally, the future of every call is complete.
+	 *
+	 * @throws RMIException
+	 *             If the batch could not be sent or answered. The future of
+	 *             every call then fails with the same exception. If the
+	 *             answer did not come before the deadline of the batch, it is
+	 *             an <code>RMITimeoutException</code>.
+	 * @throws IllegalStateException
+	 *             If the batch has already been sent.
+	 */
+	public synchronized void send() throws RMIException {
+		if (sent) {
+			throw new IllegalStateException("batch already sent");
+		}
+		sent = true;
+
+		if (methods.isEmpty()) {
+			return;
+		}
+
+		if (address == null) {
+			for (int i = 0; i < methods.size(); i++) {
+				callLocal(i);
+			}
+			return;
+		}
+
+		try {
+			long wait = Deadline.remaining(timeout);
+			Connection connection = ConnectionPool.get(address, wait);
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeShort(methods.size());
+			for (int i = 0; i < methods.size(); i++) {
+				connection.encode(methods.get(i), arguments.get(i), false)
+						.writeEntry(out);
+			}
+			out.flush();
+
+			Frame response = connection.call(new Frame(Frame.BATCH, 0,
+					bytes.toByteArray()), wait);
+			DataInputStream in = Codec.reader(response.body);
+
+			// the skeleton could not run the batch at all
+			if (response.type == Frame.EXCEPTION) {
+				Object failure = Codec.read(in);
+				throw failure instanceof RMIException ? (RMIException) failure
+						: new RMIException("batch failed",
+								(Throwable) failure);
+			}
+
+			int count = in.readUnsignedShort();
+			if (count != methods.size()) {
+				throw new RMIException("batch of " + methods.size()
+						+ " calls answered with " + count + " results");
+			}
+
+			for (int i = 0; i < count; i++) {
+				complete(results.get(i), Frame.readEntry(in, response.id));
+			}
+
+		} catch (Exception e) {
+			RMIException error = e instanceof RMIException ? (RMIException) e
+					: new RMIException(e);
+			for (CompletableFuture<Object> r : results) {
+				r.completeExceptionally(error);
+			}
+			throw error;
+		}
+	}
+
+	/**
+	 * completes a future with the outcome of its call.
+	 */
+	private static void complete(CompletableFuture<Object> result,
+			Frame response) {
+		try {
+			Object value = Codec.read(Codec.reader(response.body));
+			if (response.type == Frame.EXCEPTION) {
+				result.completeExceptionally((Throwable) value);
+			} else {
+				result.complete(value);
+			}
+		} catch (Exception e) {
+			result.completeExceptionally(new RMIException(e));
+		}
+	}
+
+	/**
+	 * runs a queued call on the local object.
+	 */
+	private void callLocal(int i) {
+		try {
+			results.get(i).complete(
+					methods.get(i).invoke(local, arguments.get(i)));
+		} catch (InvocationTargetException e) {
+			results.get(i).completeExceptionally(e.getCause());
+		} catch (Exception e) {
+			results.get(i).completeExceptionally(new RMIException(e));
+		}
+	}
+
+	/**
+	 * Records the calls made on the stand-in given to <code>add</code>.
+	 */
+	private class Recorder implements InvocationHandler {
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			if (method.getDeclaringClass() == Object.class) {
+				throw new IllegalArgumentException(method.getName()
+						+ " cannot be batched");
+			}
+
+			recorded++;
+			recordedMethod = method;
+			recordedArguments = args == null ? new Object[0] : args.clone();
+
+			// the value is ignored, but must fit the return type
+			Class<?> type = method.getReturnType();
+			if (type.isPrimitive() && type != void.class) {
+				return Array.get(Array.newInstance(type, 1), 0);
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package rmi;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event for one remote call, emitted alongside the metrics
+ * when a recording has it enabled. Checking whether it is enabled costs a
+ * field read, so calls pay nothing for it otherwise.
+ */
+@Name("rmi.Call")
+@Label("Remote Call")
+@Category("RMI")
+@Description("A remote call served by a skeleton or made through a stub")
+class CallEvent extends jdk.jfr.Event {
+
+	private static final EventType type = EventType
+			.getEventType(CallEvent.class);
+
+	@Label("Side")
+	String side;
+
+	@Label("Method")
+	String method;
+
+	@Label("Error")
+	boolean error;
+
+	@Label("Bytes In")
+	long bytesIn;
+
+	@Label("Bytes Out")
+	long bytesOut;
+
+	@Label("Queue Wait")
+	@Timespan(Timespan.NANOSECONDS)
+	long queueWait;
+
+	@Label("Service Time")
+	@Timespan(Timespan.NANOSECONDS)
+	long service;
+
+	/**
+	 * @return true if a recording is taking these events
+	 */
+	static boolean enabled() {
+		return type.isEnabled();
+	}
+}
@@ -0,0 +1,100 @@
+package rmi;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Identical calls to idempotent methods of a skeleton, in flight or recently
+ * answered.
+ *
+ * <p>
+ * The first of a group of identical calls leads: it runs, and its response is
+ * handed to every call which joined it while it ran. The response is dropped
+ * when the leader finishes, unless it is a normal result of a method with a
+ * <code>ttl</code>, in which case it is kept until the <code>ttl</code> is
+ * up.
+ */
+class Coalescer {
+
+	/** Calls which lead a group between sweeps for expired results. */
+	private static final int SWEEP_EVERY = 1024;
+
+	private final ConcurrentHashMap<ByteBuffer, Entry> calls = new ConcurrentHashMap<ByteBuffer, Entry>();
+	private final AtomicInteger leads = new AtomicInteger();
+
+	/**
+	 * The response of a group of identical calls.
+	 */
+	private static class Entry {
+		final CompletableFuture<Frame> response = new CompletableFuture<Frame>();
+		/** When a kept response expires, as a value of System.nanoTime. */
+		volatile long expires;
+
+		boolean expired(long now) {
+			return response.isDone() && expires - now <= 0;
+		}
+	}
+
+	/**
+	 * joins the group of calls identical to this one.
+	 *
+	 * @param key
+	 *            The encoded method and arguments of the call
+	 * @return a future for the response of the group, or <code>null</code>
+	 *         if the call leads a new group. A leader must run the call and
+	 *         then call <code>finish</code>.
+	 */
+	CompletableFuture<Frame> join(ByteBuffer key) {
+		while (true) {
+			Entry mine = new Entry();
+			Entry current = calls.putIfAbsent(key, mine);
+
+			if (current == null) {
+				if (leads.incrementAndGet() % SWEEP_EVERY == 0) {
+					sweep();
+				}
+				return null;
+			}
+			if (!current.expired(System.nanoTime())) {
+				return current.response;
+			}
+			calls.remove(key, current);
+		}
+	}
+
+	/**
+	 * hands the response of a leading call to its group.
+	 *
+	 * @param key
+	 *            The key the call joined with
+	 * @param response
+	 *            The response of the call
+	 * @param ttl
+	 *            Nanoseconds to keep a normal result for
+	 */
+	void finish(ByteBuffer key, Frame response, long ttl) {
+		Entry entry = calls.get(key);
+		if (entry == null) {
+			return;
+		}
+
+		// calls which arrive after this point start a group of their own,
+		// unless the result is kept
+		if (ttl > 0 && response.type == Frame.RESULT) {
+			entry.expires = System.nanoTime() + ttl;
+		} else {
+			calls.remove(key, entry);
+		}
+		entry.response.complete(response);
+	}
+
+	/**
+	 * drops kept responses which have expired.
+	 */
+	private void sweep() {
+		long now = System.nanoTime();
+		calls.values().removeIf(e -> e.expired(now));
+	}
+}
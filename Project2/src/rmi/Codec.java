@@ -0,0 +1,498 @@
+package rmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import common.Path;
+
+/**
+ * Binary encoding of arguments and results.
+ *
+ * <p>
+ * Every value is written as a one-byte tag followed by its contents. The types
+ * that remote calls in this project pass around most - primitives, strings,
+ * byte arrays, string arrays, paths and stubs - have hand-written encodings
+ * which cost a few bytes beyond the data itself. Anything else, including
+ * exceptions, is written with Java serialization, which is always available as
+ * a fallback.
+ *
+ * <p>
+ * Byte arrays and buffers of <code>SEGMENT_THRESHOLD</code> bytes or more,
+ * given at the top level of a call or result, are not copied into the body at
+ * all. They are sent as segments of the frame, and the body only records that
+ * the next segment goes here.
+ */
+class Codec {
+
+	private static final byte NULL = 0;
+	private static final byte SERIAL = 1;
+	private static final byte BOOLEAN = 2;
+	private static final byte BYTE = 3;
+	private static final byte SHORT = 4;
+	private static final byte CHAR = 5;
+	private static final byte INT = 6;
+	private static final byte LONG = 7;
+	private static final byte FLOAT = 8;
+	private static final byte DOUBLE = 9;
+	private static final byte STRING = 10;
+	private static final byte BYTES = 11;
+	private static final byte STRINGS = 12;
+	private static final byte PATH = 13;
+	private static final byte PATHS = 14;
+	private static final byte STUB = 15;
+	private static final byte BUFFER = 16;
+	private static final byte SEGMENT_BYTES = 17;
+	private static final byte SEGMENT_BUFFER = 18;
+
+	/*
+	 * Values are always read from the body of a frame held in memory, so the
+	 * bytes left to read are known exactly. A count read from a peer is
+	 * checked against them before anything is allocated for it: every element
+	 * takes at least one byte.
+	 */
+
+	/** Size from which byte arrays and buffers are sent as segments. */
+	static final int SEGMENT_THRESHOLD = 8 * 1024;
+
+	/**
+	 * encodes a list of values into a frame body.
+	 *
+	 * @param head
+	 *            Written before the values; used for the method number of a
+	 *            call. Ignored if negative.
+	 * @param values
+	 *            The values, or <code>null</code> for none
+	 * @return the encoded values
+	 * @throws IOException
+	 *             If a value cannot be encoded
+	 */
+	static byte[] encode(int head, Object... values) throws IOException {
+		return encode(null, head, values);
+	}
+
+	/**
+	 * encodes a list of values into a frame body, leaving large byte arrays
+	 * and buffers out of it.
+	 *
+	 * @param segments
+	 *            Receives the large arrays and buffers, in order, to be sent
+	 *            as the frame's segments. If <code>null</code>, everything is
+	 *            put in the body.
+	 * @param head
+	 *            Written before the values; used for the method number of a
+	 *            call. Ignored if negative.
+	 * @param values
+	 *            The values, or <code>null</code> for none
+	 * @return the encoded values
+	 * @throws IOException
+	 *             If a value cannot be encoded
+	 */
+	static byte[] encode(List<ByteBuffer> segments, int head,
+			Object... values) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		if (head >= 0) {
+			out.writeShort(head);
+		}
+
+		if (values != null) {
+			for (Object v : values) {
+				if (segments != null && segment(out, v, segments)) {
+					continue;
+				}
+				write(out, v);
+			}
+		}
+
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @return true if the value was large enough to be sent as a segment, and
+	 *         has been added to the segments
+	 */
+	private static boolean segment(DataOutputStream out, Object v,
+			List<ByteBuffer> segments) throws IOException {
+		if (v instanceof byte[]
+				&& ((byte[]) v).length >= SEGMENT_THRESHOLD) {
+			out.writeByte(SEGMENT_BYTES);
+			segments.add(ByteBuffer.wrap((byte[]) v));
+			return true;
+		}
+		if (v instanceof ByteBuffer
+				&& ((ByteBuffer) v).remaining() >= SEGMENT_THRESHOLD) {
+			out.writeByte(SEGMENT_BUFFER);
+			segments.add(((ByteBuffer) v).duplicate());
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * writes one value.
+	 *
+	 * @param out
+	 *            The stream to write to
+	 * @param v
+	 *            The value, which may be <code>null</code>
+	 * @throws IOException
+	 *             If the value cannot be written
+	 */
+	static void write(DataOutputStream out, Object v) throws IOException {
+		if (v == null) {
+			out.writeByte(NULL);
+		} else if (v instanceof Boolean) {
+			out.writeByte(BOOLEAN);
+			out.writeBoolean((Boolean) v);
+		} else if (v instanceof Byte) {
+			out.writeByte(BYTE);
+			out.writeByte((Byte) v);
+		} else if (v instanceof Short) {
+			out.writeByte(SHORT);
+			out.writeShort((Short) v);
+		} else if (v instanceof Character) {
+			out.writeByte(CHAR);
+			out.writeChar((Character) v);
+		} else if (v instanceof Integer) {
+			out.writeByte(INT);
+			out.writeInt((Integer) v);
+		} else if (v instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long) v);
+		} else if (v instanceof Float) {
+			out.writeByte(FLOAT);
+			out.writeFloat((Float) v);
+		} else if (v instanceof Double) {
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double) v);
+		} else if (v instanceof String) {
+			out.writeByte(STRING);
+			writeString(out, (String) v);
+		} else if (v instanceof byte[]) {
+			byte[] b = (byte[]) v;
+			out.writeByte(BYTES);
+			writeCount(out, b.length);
+			out.write(b);
+		} else if (v instanceof ByteBuffer) {
+			ByteBuffer b = ((ByteBuffer) v).duplicate();
+			out.writeByte(BUFFER);
+			writeCount(out, b.remaining());
+			byte[] chunk = new byte[b.remaining()];
+			b.get(chunk);
+			out.write(chunk);
+		} else if (v.getClass() == String[].class) {
+			String[] a = (String[]) v;
+			out.writeByte(STRINGS);
+			writeCount(out, a.length);
+			for (String s : a) {
+				writeString(out, s);
+			}
+		} else if (v.getClass() == Path.class) {
+			out.writeByte(PATH);
+			writeString(out, v.toString());
+		} else if (v.getClass() == Path[].class) {
+			Path[] a = (Path[]) v;
+			out.writeByte(PATHS);
+			writeCount(out, a.length);
+			for (Path p : a) {
+				writeString(out, p == null ? null : p.toString());
+			}
+		} else if (isStub(v)) {
+			Stub.ProxyHandler h = (Stub.ProxyHandler) Proxy
+					.getInvocationHandler(v);
+			out.writeByte(STUB);
+			out.writeUTF(v.getClass().getInterfaces()[0].getName());
+			writeAddress(out, h.getAddress());
+		} else {
+			out.writeByte(SERIAL);
+			byte[] b = Frame.serialize(v);
+			writeCount(out, b.length);
+			out.write(b);
+		}
+	}
+
+	/**
+	 * reads one value.
+	 *
+	 * @param in
+	 *            The stream to read from
+	 * @return The value
+	 * @throws IOException
+	 *             If the value cannot be read
+	 * @throws ClassNotFoundException
+	 *             If the value names a class that cannot be found
+	 */
+	static Object read(DataInputStream in) throws IOException,
+			ClassNotFoundException {
+		byte tag = in.readByte();
+
+		switch (tag) {
+		case NULL:
+			return null;
+		case BOOLEAN:
+			return in.readBoolean();
+		case BYTE:
+			return in.readByte();
+		case SHORT:
+			return in.readShort();
+		case CHAR:
+			return in.readChar();
+		case INT:
+			return in.readInt();
+		case LONG:
+			return in.readLong();
+		case FLOAT:
+			return in.readFloat();
+		case DOUBLE:
+			return in.readDouble();
+		case STRING:
+			return readString(in);
+		case BYTES: {
+			byte[] b = new byte[readSize(in)];
+			in.readFully(b);
+			return b;
+		}
+		case BUFFER: {
+			byte[] b = new byte[readSize(in)];
+			in.readFully(b);
+			return ByteBuffer.wrap(b);
+		}
+		case SEGMENT_BYTES: {
+			ByteBuffer b = nextSegment(in);
+			if (b.hasArray() && b.arrayOffset() == 0 && b.position() == 0
+					&& b.remaining() == b.array().length) {
+				// the segment was read into an array of its own
+				return b.array();
+			}
+			byte[] copy = new byte[b.remaining()];
+			b.duplicate().get(copy);
+			return copy;
+		}
+		case SEGMENT_BUFFER:
+			return nextSegment(in);
+		case STRINGS: {
+			String[] a = new String[readSize(in)];
+			for (int i = 0; i < a.length; i++) {
+				a[i] = readString(in);
+			}
+			return a;
+		}
+		case PATH:
+			return new Path(readString(in));
+		case PATHS: {
+			Path[] a = new Path[readSize(in)];
+			for (int i = 0; i < a.length; i++) {
+				String s = readString(in);
+				a[i] = s == null ? null : new Path(s);
+			}
+			return a;
+		}
+		case STUB: {
+			// the class is named by the peer, so it is not initialized, and
+			// anything short of a remote interface is refused as bad input
+			// rather than thrown as an Error the caller does not expect
+			String name = in.readUTF();
+			InetSocketAddress address = readAddress(in);
+			Class<?> c;
+			try {
+				c = Class.forName(name, false, Codec.class.getClassLoader());
+			} catch (LinkageError e) {
+				throw new IOException("cannot load stub interface " + name, e);
+			}
+			if (!c.isInterface()) {
+				throw new IOException("stub class " + name
+						+ " is not an interface");
+			}
+			try {
+				return Stub.create(c, address);
+			} catch (Error e) {
+				throw new IOException("cannot make stub for " + name, e);
+			}
+		}
+		case SERIAL: {
+			byte[] b = new byte[readSize(in)];
+			in.readFully(b);
+			return Frame.deserialize(b);
+		}
+		default:
+			throw new IOException("unknown value tag " + tag);
+		}
+	}
+
+	/**
+	 * @param v
+	 *            A value
+	 * @return true if the value is a stub made by <code>Stub.create</code>
+	 */
+	private static boolean isStub(Object v) {
+		if (!Proxy.isProxyClass(v.getClass())) {
+			return false;
+		}
+		InvocationHandler h = Proxy.getInvocationHandler(v);
+		return h instanceof Stub.ProxyHandler
+				&& v.getClass().getInterfaces().length == 1;
+	}
+
+	/**
+	 * writes a string as its length plus one, then its UTF-8 bytes. A length
+	 * of zero stands for <code>null</code>.
+	 */
+	private static void writeString(DataOutputStream out, String s)
+			throws IOException {
+		if (s == null) {
+			writeCount(out, 0);
+			return;
+		}
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		writeCount(out, b.length + 1);
+		out.write(b);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = readCount(in) - 1;
+		if (length < 0) {
+			return null;
+		}
+		if (length > in.available()) {
+			throw new IOException("string of " + length
+					+ " bytes overruns the frame");
+		}
+		byte[] b = new byte[length];
+		in.readFully(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * writes a count or length seven bits at a time, low bits first, with the
+	 * top bit of each byte set if more follow. Most path components and
+	 * listings need only one byte.
+	 */
+	private static void writeCount(DataOutputStream out, int n)
+			throws IOException {
+		while ((n & ~0x7f) != 0) {
+			out.writeByte((n & 0x7f) | 0x80);
+			n >>>= 7;
+		}
+		out.writeByte(n);
+	}
+
+	private static int readCount(DataInputStream in) throws IOException {
+		int n = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			n |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				if (n < 0 || n > Frame.MAX_FRAME) {
+					throw new IOException("bad count " + n);
+				}
+				return n;
+			}
+		}
+		throw new IOException("count too long");
+	}
+
+	/**
+	 * reads the number of elements of an array about to be allocated.
+	 *
+	 * @throws IOException
+	 *             If there are fewer bytes left in the frame than elements
+	 */
+	private static int readSize(DataInputStream in) throws IOException {
+		int n = readCount(in);
+		if (n > in.available()) {
+			throw new IOException("count " + n + " overruns the frame");
+		}
+		return n;
+	}
+
+	/**
+	 * writes a socket address the way serialization would keep it: the host
+	 * name as given, and the raw address if it was resolved.
+	 */
+	private static void writeAddress(DataOutputStream out,
+			InetSocketAddress address) throws IOException {
+		out.writeUTF(address.getHostString());
+		out.writeShort(address.getPort());
+
+		if (address.isUnresolved()) {
+			out.writeByte(0);
+		} else {
+			byte[] raw = address.getAddress().getAddress();
+			out.writeByte(raw.length);
+			out.write(raw);
+		}
+	}
+
+	private static InetSocketAddress readAddress(DataInputStream in)
+			throws IOException {
+		String host = in.readUTF();
+		int port = in.readUnsignedShort();
+		byte[] raw = new byte[in.readUnsignedByte()];
+
+		if (raw.length == 0) {
+			return InetSocketAddress.createUnresolved(host, port);
+		}
+
+		in.readFully(raw);
+		return new InetSocketAddress(InetAddress.getByAddress(host, raw), port);
+	}
+
+	/**
+	 * @param body
+	 *            An encoded frame body
+	 * @return a stream positioned at the start of the body
+	 */
+	static DataInputStream reader(byte[] body) {
+		return new DataInputStream(new ByteArrayInputStream(body));
+	}
+
+	/**
+	 * @param frame
+	 *            A frame
+	 * @return a stream positioned at the start of the frame's body, which
+	 *         hands out the frame's segments where the body refers to them
+	 */
+	static DataInputStream reader(Frame frame) {
+		if (frame.segments == null) {
+			return reader(frame.body);
+		}
+		return new Input(frame);
+	}
+
+	private static ByteBuffer nextSegment(DataInputStream in)
+			throws IOException {
+		if (!(in instanceof Input)) {
+			throw new IOException("segment referred to outside a frame");
+		}
+		Input frame = (Input) in;
+		if (frame.next >= frame.segments.length) {
+			throw new IOException("missing segment " + frame.next);
+		}
+		return frame.segments[frame.next++];
+	}
+
+	/**
+	 * The body of a frame, together with its segments.
+	 */
+	private static class Input extends DataInputStream {
+		private final ByteBuffer[] segments;
+		private int next = 0;
+
+		Input(Frame frame) {
+			super(new ByteArrayInputStream(frame.body));
+			this.segments = frame.segments;
+		}
+	}
+}
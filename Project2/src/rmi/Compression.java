@@ -0,0 +1,341 @@
+package rmi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of large frames between stubs and skeletons.
+ *
+ * <p>
+ * Compression is off unless enabled with <code>setEnabled</code>. A stub
+ * offers it in its handshake when it is enabled in the stub's JVM, and the
+ * skeleton accepts when it is enabled in its own; frames are compressed on a
+ * connection only when both ends agreed. Small frames, which are most calls,
+ * are never compressed and cost nothing extra.
+ *
+ * <p>
+ * The body and each segment of a frame are compressed separately, with the
+ * JDK's <code>Deflater</code>, and only if they are at least the threshold in
+ * size. In a compressed frame every part starts with its original size, or -1
+ * for a part sent as it was:
+ *
+ * <pre>
+ * [size][deflated part]   or   [-1][part]
+ * </pre>
+ *
+ * <p>
+ * The sizes are not trusted: a part must expand to exactly the size in front
+ * of it, and the parts of a frame together to no more than
+ * <code>Frame.MAX_FRAME</code> bytes. A frame which would expand to more is
+ * not compressed when sent.
+ *
+ * <p>
+ * Data which does not compress, such as files already compressed, would cost
+ * CPU for nothing. A part which shrinks by less than an eighth is therefore
+ * sent as it was, and the connection then sends the next few large parts
+ * without trying: one after the first failure, then twice as many after each
+ * further one, up to 64. A part which compresses well resets the count.
+ *
+ * <p>
+ * The bytes saved are counted in the <code>Metrics</code> of the stubs or of
+ * the skeleton which sent them.
+ */
+public class Compression {
+
+	/** Bit of the handshake which offers or accepts compression. */
+	static final int FEATURE = 1;
+
+	private static volatile boolean enabled = false;
+	private static volatile int threshold = 1024;
+	private static volatile int level = Deflater.BEST_SPEED;
+
+	/** Most large parts sent without trying after poor compression. */
+	private static final int MAX_SKIP = 64;
+
+	private static final ThreadLocal<Deflater> deflaters = ThreadLocal
+			.withInitial(Deflater::new);
+	private static final ThreadLocal<Inflater> inflaters = ThreadLocal
+			.withInitial(Inflater::new);
+
+	private final Metrics metrics;
+	/** Large parts still to send without trying to compress them. */
+	private int skip = 0;
+	/** Parts to skip after the next poor compression. */
+	private int penalty = 1;
+
+	/**
+	 * @param metrics
+	 *            The metrics to count the bytes saved in
+	 */
+	Compression(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * enables or disables compression of frames sent by stubs and skeletons
+	 * in this JVM. Connections already open keep what they agreed on.
+	 *
+	 * @param on
+	 *            Whether to offer and accept compression
+	 */
+	public static void setEnabled(boolean on) {
+		enabled = on;
+	}
+
+	/**
+	 * @return true if compression is offered and accepted
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * sets the size below which parts of a frame are not compressed.
+	 *
+	 * @param bytes
+	 *            The size, at least 64 bytes
+	 */
+	public static void setThreshold(int bytes) {
+		if (bytes < 64) {
+			throw new IllegalArgumentException("threshold below 64 bytes");
+		}
+		threshold = bytes;
+	}
+
+	/**
+	 * sets the <code>Deflater</code> level, trading CPU for size. The
+	 * default is <code>Deflater.BEST_SPEED</code>.
+	 *
+	 * @param deflaterLevel
+	 *            The level, from 1 to 9
+	 */
+	public static void setLevel(int deflaterLevel) {
+		if (deflaterLevel < 1 || deflaterLevel > 9) {
+			throw new IllegalArgumentException("bad level " + deflaterLevel);
+		}
+		level = deflaterLevel;
+	}
+
+	/**
+	 * compresses the large parts of a frame, if they compress well.
+	 *
+	 * @param frame
+	 *            The frame to send
+	 * @return The frame to send in its place, which is <code>frame</code>
+	 *         itself if nothing was compressed
+	 */
+	Frame deflate(Frame frame) {
+		int limit = threshold;
+		boolean large = frame.body.length >= limit;
+		if (frame.segments != null) {
+			for (ByteBuffer s : frame.segments) {
+				large |= s.remaining() >= limit;
+			}
+		}
+		if (frame.compressed || !large) {
+			return frame;
+		}
+		// the peer would refuse to expand it, so let the write fail instead
+		if (frame.size() - 4 > Frame.MAX_FRAME) {
+			return frame;
+		}
+
+		boolean any = false;
+		byte[] body = squeeze(ByteBuffer.wrap(frame.body), limit);
+		any |= body != null;
+
+		ByteBuffer[] segments = null;
+		byte[][] parts = null;
+		if (frame.segments != null) {
+			parts = new byte[frame.segments.length][];
+			for (int i = 0; i < parts.length; i++) {
+				parts[i] = squeeze(frame.segments[i], limit);
+				any |= parts[i] != null;
+			}
+		}
+
+		if (!any) {
+			return frame;
+		}
+
+		if (body == null) {
+			body = stored(ByteBuffer.wrap(frame.body));
+		}
+		if (parts != null) {
+			segments = new ByteBuffer[parts.length];
+			for (int i = 0; i < parts.length; i++) {
+				segments[i] = ByteBuffer.wrap(parts[i] != null ? parts[i]
+						: stored(frame.segments[i]));
+			}
+		}
+		return frame.withContents(body, segments, true);
+	}
+
+	/**
+	 * @return the part compressed, with its size in front, or
+	 *         <code>null</code> if it is too small, it is being skipped, or it
+	 *         did not compress well
+	 */
+	private byte[] squeeze(ByteBuffer part, int limit) {
+		int size = part.remaining();
+		if (size < limit || !attempt()) {
+			return null;
+		}
+
+		Deflater d = deflaters.get();
+		d.reset();
+		d.setLevel(level);
+		d.setInput(part.duplicate());
+		d.finish();
+
+		// anything bigger than seven eighths of the part is not worth it
+		byte[] out = new byte[4 + size - size / 8];
+		int written = 4;
+		while (!d.finished() && written < out.length) {
+			written += d.deflate(out, written, out.length - written);
+		}
+
+		if (!d.finished()) {
+			outcome(false, size, 0);
+			return null;
+		}
+
+		ByteBuffer.wrap(out).putInt(size);
+		outcome(true, size, written);
+		return Arrays.copyOf(out, written);
+	}
+
+	/**
+	 * @return true if the next large part should be compressed
+	 */
+	private synchronized boolean attempt() {
+		if (skip > 0) {
+			skip--;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * records how well a part compressed, and backs off after poor results.
+	 */
+	private void outcome(boolean good, int before, int after) {
+		synchronized (this) {
+			if (good) {
+				penalty = 1;
+			} else {
+				skip = penalty;
+				penalty = Math.min(MAX_SKIP, penalty * 2);
+			}
+		}
+		metrics.compressed(good, before, after);
+	}
+
+	/**
+	 * @return the part as it is, marked as not compressed
+	 */
+	private static byte[] stored(ByteBuffer part) {
+		byte[] out = new byte[4 + part.remaining()];
+		ByteBuffer.wrap(out).putInt(-1).put(part.duplicate());
+		return out;
+	}
+
+	/**
+	 * restores a frame to its original form if it was compressed.
+	 *
+	 * @param frame
+	 *            A frame as received
+	 * @return The frame as it was before it was compressed
+	 * @throws IOException
+	 *             If the compressed data is damaged
+	 */
+	static Frame inflate(Frame frame) throws IOException {
+		if (!frame.compressed) {
+			return frame;
+		}
+
+		// the sizes are the peer's word, so all the parts together may not
+		// expand to more than an uncompressed frame could hold
+		int budget = Frame.MAX_FRAME;
+		byte[] body = expand(ByteBuffer.wrap(frame.body), budget);
+		budget -= body.length;
+		ByteBuffer[] segments = null;
+		if (frame.segments != null) {
+			segments = new ByteBuffer[frame.segments.length];
+			for (int i = 0; i < segments.length; i++) {
+				byte[] part = expand(frame.segments[i].duplicate(), budget);
+				budget -= part.length;
+				segments[i] = ByteBuffer.wrap(part);
+			}
+		}
+		return frame.withContents(body, segments, false);
+	}
+
+	/**
+	 * @param budget
+	 *            The most bytes the part may expand to
+	 * @return one part of a compressed frame, expanded
+	 * @throws IOException
+	 *             If the part is damaged, declares more than
+	 *             <code>budget</code> bytes, or does not expand to exactly
+	 *             the size it declares
+	 */
+	private static byte[] expand(ByteBuffer part, int budget)
+			throws IOException {
+		if (part.remaining() < 4) {
+			throw new IOException("truncated compressed frame");
+		}
+
+		int size = part.getInt();
+		if (size == -1) {
+			if (part.remaining() > budget) {
+				throw new IOException("compressed frame too large");
+			}
+			byte[] out = new byte[part.remaining()];
+			part.get(out);
+			return out;
+		}
+		if (size < 0) {
+			throw new IOException("bad compressed size " + size);
+		}
+		if (size > budget) {
+			throw new IOException("compressed part of " + size
+					+ " bytes exceeds the frame limit");
+		}
+
+		Inflater i = inflaters.get();
+		i.reset();
+		i.setInput(part);
+
+		byte[] out = new byte[size];
+		int read = 0;
+		try {
+			while (read < size) {
+				int n = i.inflate(out, read, size - read);
+				if (n == 0 && (i.finished() || i.needsInput()
+						|| i.needsDictionary())) {
+					break;
+				}
+				read += n;
+			}
+			// the data must end where the declared size does
+			if (read == size && !i.finished()
+					&& (i.inflate(new byte[1]) > 0 || !i.finished())) {
+				throw new IOException("compressed part does not end at "
+						+ "its declared " + size + " bytes");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("damaged compressed frame", e);
+		}
+
+		if (read != size) {
+			throw new IOException("compressed part of " + read
+					+ " bytes, expected " + size);
+		}
+		return out;
+	}
+}
@@ -0,0 +1,412 @@
+package rmi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A long-lived connection from stubs to a skeleton.
+ *
+ * <p>
+ * Connections are handed out by <code>ConnectionPool</code>, which all stubs
+ * in the JVM share, no matter how they were created or whether they were
+ * received over the network. Every call is sent with its own id, so any number of
+ * threads may have calls outstanding on the connection at once and the
+ * skeleton may answer them in any order. A daemon thread reads the responses
+ * and hands each one to the thread waiting for it.
+ *
+ * <p>
+ * When the connection breaks, every call still waiting on it fails, and the
+ * pool drops it.
+ */
+class Connection implements Runnable {
+
+	private final InetSocketAddress address;
+	/** The TCP socket or Unix domain socket channel. */
+	private final Closeable socket;
+	private final DataOutputStream out;
+	private final DataInputStream in;
+	private final AtomicInteger nextId = new AtomicInteger();
+	private final ConcurrentHashMap<Integer, CompletableFuture<Frame>> calls = new ConcurrentHashMap<Integer, CompletableFuture<Frame>>();
+	private volatile IOException closed = null;
+	private final HashMap<String, Integer> table;
+	private final ConcurrentHashMap<Method, Integer> indices = new ConcurrentHashMap<Method, Integer>();
+	private final ConnectionPool.Endpoint endpoint;
+	/** Compresses frames sent, or <code>null</code> if not agreed. */
+	private final Compression compression;
+	private volatile long lastUsed = System.nanoTime();
+
+	/**
+	 * connects to the given address, fetches the skeleton's method table and
+	 * starts the thread reading responses.
+	 *
+	 * @param address
+	 *            The address of the skeleton
+	 * @param endpoint
+	 *            The pool entry to remove the connection from when it closes
+	 * @param timeout
+	 *            Milliseconds to wait for the connection to be made and the
+	 *            skeleton to answer the handshake
+	 * @throws SocketTimeoutException
+	 *             If the connection is not made, or the handshake is not
+	 *             answered, within the timeout
+	 * @throws IOException
+	 *             If the connection cannot be made
+	 */
+	Connection(InetSocketAddress address, ConnectionPool.Endpoint endpoint,
+			int timeout) throws IOException {
+		this.address = address;
+		this.endpoint = endpoint;
+		long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+		// a skeleton on this host is reached through its Unix domain socket,
+		// if it has one
+		SocketChannel local = UnixSockets.connect(address);
+		this.socket = local != null ? local : new Socket();
+
+		try {
+			if (local != null) {
+				out = new DataOutputStream(new BufferedOutputStream(
+						UnixSockets.output(local)));
+				in = new DataInputStream(new BufferedInputStream(
+						UnixSockets.input(local)));
+			} else {
+				Socket tcp = (Socket) socket;
+				tcp.setTcpNoDelay(true);
+				tcp.connect(address, timeout);
+				out = new DataOutputStream(new BufferedOutputStream(
+						tcp.getOutputStream()));
+				in = new DataInputStream(new BufferedInputStream(
+						tcp.getInputStream()));
+			}
+
+			// the handshake offers the features this end supports, and the
+			// answer says which of them the skeleton accepted. A skeleton
+			// which takes the connection but does not answer in the time left
+			// is given up on by closing the socket under the reading thread,
+			// which works for both kinds of socket. Whichever of the two
+			// settles the handshake first decides how it ended.
+			AtomicBoolean settled = new AtomicBoolean();
+			long left = Math.max(1, TimeUnit.NANOSECONDS.toMillis(end
+					- System.nanoTime()));
+			ScheduledFuture<?> watchdog = ConnectionPool.schedule(() -> {
+				if (settled.compareAndSet(false, true)) {
+					try {
+						socket.close();
+					} catch (IOException e) {
+					}
+				}
+			}, left, TimeUnit.MILLISECONDS);
+
+			int offered = Compression.isEnabled() ? Compression.FEATURE : 0;
+			Frame hello = null;
+			IOException failure = null;
+			try {
+				new Frame(Frame.HELLO, 0, new byte[] { (byte) offered })
+						.write(out);
+				out.flush();
+				hello = Frame.read(in);
+			} catch (IOException e) {
+				failure = e;
+			} finally {
+				watchdog.cancel(false);
+			}
+			if (!settled.compareAndSet(false, true)) {
+				throw new SocketTimeoutException("no handshake from " + address
+						+ " within " + timeout + " ms");
+			}
+			if (failure != null) {
+				throw failure;
+			}
+
+			if (hello == null || hello.type != Frame.HELLO) {
+				throw new IOException("bad handshake from " + address);
+			}
+			DataInputStream answer = Codec.reader(hello.body);
+			int accepted = answer.readUnsignedByte() & offered;
+			compression = (accepted & Compression.FEATURE) != 0 ? new Compression(
+					Metrics.stubs) : null;
+			table = MethodTable.read(answer);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+
+		Thread reader = new Thread(this, "rmi connection " + address
+				+ (local != null ? " (unix socket)" : ""));
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * claims the connection for a call about to be sent, so that it is not
+	 * closed as idle in the meantime.
+	 *
+	 * @return false if the connection has already been closed
+	 */
+	synchronized boolean acquire() {
+		if (closed != null) {
+			return false;
+		}
+		lastUsed = System.nanoTime();
+		return true;
+	}
+
+	/**
+	 * closes the connection if no call has used it since the given time and
+	 * none is waiting on it.
+	 *
+	 * @param cutoff
+	 *            A value of <code>System.nanoTime</code>
+	 * @return true if the connection was closed
+	 */
+	boolean retire(long cutoff) {
+		synchronized (this) {
+			if (closed != null || !calls.isEmpty() || lastUsed - cutoff > 0) {
+				return false;
+			}
+		}
+		close(new IOException("connection to " + address + " closed when idle"));
+		return true;
+	}
+
+	/**
+	 * @return nanoseconds since the connection was last used
+	 */
+	long idle() {
+		return System.nanoTime() - lastUsed;
+	}
+
+	/**
+	 * @return the number of calls waiting for responses
+	 */
+	int pending() {
+		return calls.size();
+	}
+
+	/**
+	 * @return true if the connection has not been closed
+	 */
+	boolean isOpen() {
+		return closed == null;
+	}
+
+	/**
+	 * checks that the skeleton still answers on this connection.
+	 *
+	 * @param timeout
+	 *            Milliseconds to wait for the answer
+	 * @return true if the skeleton answered in time
+	 */
+	boolean ping(long timeout) {
+		try {
+			send(new Frame(Frame.PING, 0, new byte[0])).get(timeout,
+					TimeUnit.MILLISECONDS);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException | TimeoutException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @param m
+	 *            A method of the remote interface
+	 * @return the number of the method in the skeleton's table, or -1 if the
+	 *         skeleton does not have it
+	 */
+	int index(Method m) {
+		Integer i = indices.get(m);
+		if (i == null) {
+			i = table.get(MethodTable.signature(m));
+			if (i == null) {
+				i = -1;
+			}
+			indices.put(m, i);
+		}
+		return i;
+	}
+
+	/**
+	 * encodes a call. Methods the skeleton knows are called by number, with
+	 * binary arguments. Anything else falls back to naming the method and
+	 * serializing the arguments.
+	 *
+	 * @param m
+	 *            The method of the remote interface
+	 * @param args
+	 *            The arguments, or <code>null</code> for none
+	 * @param segments
+	 *            Whether large byte arrays and buffers may be sent as segments
+	 *            of the frame rather than in its body
+	 * @return the call frame, without an id
+	 * @throws IOException
+	 *             If the arguments cannot be encoded
+	 */
+	Frame encode(Method m, Object[] args, boolean segments)
+			throws IOException {
+		int index = index(m);
+		if (index >= 0) {
+			if (!segments) {
+				return new Frame(Frame.CALL, 0, Codec.encode(index, args));
+			}
+			ArrayList<ByteBuffer> bulk = new ArrayList<ByteBuffer>();
+			byte[] body = Codec.encode(bulk, index, args);
+			return new Frame(Frame.CALL, 0, body,
+					bulk.toArray(new ByteBuffer[bulk.size()]));
+		}
+		return new Frame(Frame.CALL_BY_NAME, 0, Frame.serialize(new Object[] {
+				m.getName(), m.getParameterTypes(), args }));
+	}
+
+	/**
+	 * sends a frame without waiting for the response.
+	 *
+	 * @param request
+	 *            The frame to send. It is sent with an id of its own, whatever
+	 *            its id field says.
+	 * @return a future for the response frame, which may still be compressed.
+	 *         It fails with an <code>IOException</code> if the frame cannot
+	 *         be sent or the connection breaks before the response arrives.
+	 *         It is completed by the thread reading the connection, so
+	 *         actions attached to it must not block.
+	 */
+	CompletableFuture<Frame> send(Frame request) {
+		final int id = nextId.incrementAndGet();
+		CompletableFuture<Frame> response = new CompletableFuture<Frame>();
+		if (compression != null) {
+			request = compression.deflate(request);
+		}
+		calls.put(id, response);
+		response.whenComplete((f, t) -> calls.remove(id));
+
+		try {
+			// the connection may have been closed after the call was put in
+			// the table but before the reader failed the calls in it.
+			if (closed != null) {
+				throw new IOException("connection closed", closed);
+			}
+
+			synchronized (out) {
+				request.withId(id).write(out);
+				out.flush();
+			}
+		} catch (IOException e) {
+			close(e);
+			response.completeExceptionally(e);
+		}
+
+		return response;
+	}
+
+	/**
+	 * sends a frame and waits for the response to it.
+	 *
+	 * @param request
+	 *            The frame to send
+	 * @param timeout
+	 *            Nanoseconds to wait for the response, or
+	 *            <code>Deadline.NONE</code> to wait until it arrives. The
+	 *            time is sent to the skeleton along with the frame.
+	 * @return The response frame, expanded if it was compressed
+	 * @throws IOException
+	 *             If the frame cannot be sent, or the connection breaks before
+	 *             the response arrives
+	 * @throws InterruptedException
+	 *             If the calling thread is interrupted while waiting
+	 * @throws RMITimeoutException
+	 *             If the response does not arrive in time
+	 */
+	Frame call(Frame request, long timeout) throws IOException,
+			InterruptedException, RMITimeoutException {
+		if (timeout <= 0) {
+			throw new RMITimeoutException("deadline passed before call to "
+					+ address + " was sent");
+		}
+
+		CompletableFuture<Frame> response = send(request.withTimeout(timeout));
+
+		try {
+			Frame f = timeout == Deadline.NONE ? response.get() : response
+					.get(timeout, TimeUnit.NANOSECONDS);
+			return Compression.inflate(f);
+		} catch (ExecutionException e) {
+			throw new IOException("connection to " + address + " broken",
+					e.getCause());
+		} catch (TimeoutException e) {
+			response.cancel(false);
+			throw new RMITimeoutException("no response from " + address
+					+ " in " + TimeUnit.NANOSECONDS.toMillis(timeout) + " ms");
+		} catch (InterruptedException e) {
+			// nobody is waiting for the response any more
+			response.cancel(false);
+			throw e;
+		}
+	}
+
+	/**
+	 * closes the connection and fails every call waiting on it.
+	 *
+	 * @param cause
+	 *            The reason for closing
+	 */
+	void close(IOException cause) {
+		synchronized (this) {
+			if (closed != null) {
+				return;
+			}
+			closed = cause;
+		}
+
+		endpoint.remove(this);
+
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+
+		for (CompletableFuture<Frame> c : calls.values()) {
+			c.completeExceptionally(cause);
+		}
+	}
+
+	/**
+	 * reads responses and gives each one to the call waiting for it.
+	 */
+	@Override
+	public void run() {
+		try {
+			Frame f;
+			while ((f = Frame.read(in)) != null) {
+				CompletableFuture<Frame> c = calls.get(f.id);
+				if (c != null) {
+					c.complete(f);
+				}
+			}
+			close(new IOException("connection closed by server"));
+		} catch (IOException e) {
+			close(e);
+		}
+	}
+}
@@ -0,0 +1,446 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The connections from this JVM to skeletons.
+ *
+ * <p>
+ * Every stub, however it was made and wherever it came from, gets its
+ * connection here, so stubs for the same address share connections rather
+ * than each opening their own. Since a connection carries any number of calls
+ * at once, one per address is usually enough; more can be allowed with
+ * <code>setMaxConnections</code>, in which case a new connection is opened
+ * only when every existing one has calls waiting on it, and calls go to the
+ * connection with the fewest.
+ *
+ * <p>
+ * A daemon thread closes connections which have not been used for the idle
+ * timeout. A connection which has been quiet for a while is pinged before it
+ * is used again, so that a call is not sent down a connection the server
+ * dropped without the client noticing.
+ *
+ * <p>
+ * When a connection to an address cannot be made, the address is marked down
+ * for a short time, which doubles with every further failure up to a limit.
+ * While it is down, calls which would need a new connection fail at once with
+ * a <code>ConnectException</code> instead of each waiting on the network. The
+ * first connection made clears the mark.
+ *
+ * <p>
+ * A new connection is made by one thread at a time, outside the lock of its
+ * address, and other threads needing it wait for it only as long as their
+ * calls may take. Making it, including the handshake with the skeleton, is
+ * given the check timeout, or the time left before the call's deadline if
+ * that is shorter. A connection which runs out of the shorter time does not
+ * mark the address down, as the skeleton may only be slow.
+ */
+public class ConnectionPool {
+
+	private static volatile int maxConnections = 1;
+	private static volatile long idleTimeout = TimeUnit.MINUTES.toNanos(5);
+	private static volatile long validateAfter = TimeUnit.SECONDS.toNanos(30);
+	private static volatile long downInitial = TimeUnit.MILLISECONDS.toNanos(100);
+	private static volatile long downMax = TimeUnit.SECONDS.toNanos(5);
+
+	/**
+	 * Milliseconds to wait for a ping, or for a new connection to be made and
+	 * its handshake answered.
+	 */
+	private static final int CHECK_TIMEOUT = 5000;
+
+	private static final ConcurrentHashMap<InetSocketAddress, Endpoint> endpoints = new ConcurrentHashMap<InetSocketAddress, Endpoint>();
+
+	private static final ScheduledExecutorService reaper = Executors
+			.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "rmi connection reaper");
+				t.setDaemon(true);
+				return t;
+			});
+
+	static {
+		reaper.scheduleWithFixedDelay(ConnectionPool::reap, 1, 1,
+				TimeUnit.SECONDS);
+	}
+
+	private ConnectionPool() {
+	}
+
+	/**
+	 * sets the most connections kept to one address.
+	 *
+	 * @param max
+	 *            The number of connections, at least one
+	 */
+	public static void setMaxConnections(int max) {
+		if (max < 1) {
+			throw new IllegalArgumentException("at least one connection needed");
+		}
+		maxConnections = max;
+	}
+
+	/**
+	 * @return the most connections kept to one address
+	 */
+	public static int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * sets how long a connection may go unused before it is closed.
+	 *
+	 * @param time
+	 *            The time
+	 * @param unit
+	 *            The unit of <code>time</code>
+	 */
+	public static void setIdleTimeout(long time, TimeUnit unit) {
+		idleTimeout = unit.toNanos(time);
+	}
+
+	/**
+	 * sets how long a connection may go unused before it is pinged ahead of
+	 * its next call.
+	 *
+	 * @param time
+	 *            The time
+	 * @param unit
+	 *            The unit of <code>time</code>
+	 */
+	public static void setValidateAfter(long time, TimeUnit unit) {
+		validateAfter = unit.toNanos(time);
+	}
+
+	/**
+	 * sets how long an address is marked down after it cannot be reached.
+	 *
+	 * @param initial
+	 *            The time after the first failure
+	 * @param max
+	 *            The longest time, reached by doubling after each further
+	 *            failure
+	 * @param unit
+	 *            The unit of both times
+	 */
+	public static void setDownBackoff(long initial, long max, TimeUnit unit) {
+		if (initial > max) {
+			throw new IllegalArgumentException("initial backoff above maximum");
+		}
+		downInitial = unit.toNanos(initial);
+		downMax = unit.toNanos(max);
+	}
+
+	/**
+	 * @param address
+	 *            The address of a skeleton
+	 * @return the number of open connections to it
+	 */
+	public static int connections(InetSocketAddress address) {
+		Endpoint e = endpoints.get(address);
+		return e == null ? 0 : e.connections.size();
+	}
+
+	/**
+	 * @param address
+	 *            The address of a skeleton
+	 * @return true if new connections to it currently fail at once
+	 */
+	public static boolean isDown(InetSocketAddress address) {
+		Endpoint e = endpoints.get(address);
+		return e != null && e.down();
+	}
+
+	/**
+	 * returns an open connection to the given address, connecting if needed.
+	 *
+	 * @param address
+	 *            The address of the skeleton
+	 * @param wait
+	 *            The nanoseconds left for the call, as given by
+	 *            <code>Deadline.remaining</code>
+	 * @return The connection, claimed for a call
+	 * @throws RMITimeoutException
+	 *             If the call runs out of time before it has a connection
+	 * @throws IOException
+	 *             If there is no usable connection and none can be made
+	 */
+	static Connection get(InetSocketAddress address, long wait)
+			throws IOException, RMITimeoutException {
+		long began = System.nanoTime();
+		Endpoint e = endpoints.computeIfAbsent(address, Endpoint::new);
+
+		Connection c = e.pick();
+		if (c != null && c.pending() == 0 && c.idle() > validateAfter) {
+			int timeout = checkTimeout(began, wait);
+			if (!c.ping(timeout)) {
+				// a ping cut short by the deadline says nothing of the
+				// connection
+				if (timeout < CHECK_TIMEOUT) {
+					throw new RMITimeoutException("deadline passed while "
+							+ "checking connection to " + address);
+				}
+				c.close(new IOException("connection to " + address
+						+ " did not answer ping"));
+				c = null;
+			}
+		}
+		if (c != null && c.acquire()) {
+			if (c.pending() == 0 || e.connections.size() >= maxConnections) {
+				return c;
+			}
+		} else {
+			c = null;
+		}
+
+		return e.connect(c, began, wait);
+	}
+
+	/**
+	 * works out how long a check made on the way to a call may take.
+	 *
+	 * @param began
+	 *            When the call began, as a value of <code>System.nanoTime</code>
+	 * @param wait
+	 *            The nanoseconds the call may take, or
+	 *            <code>Deadline.NONE</code>
+	 * @return milliseconds, at least one and at most
+	 *         <code>CHECK_TIMEOUT</code>
+	 */
+	private static int checkTimeout(long began, long wait) {
+		if (wait == Deadline.NONE) {
+			return CHECK_TIMEOUT;
+		}
+		long left = wait - (System.nanoTime() - began);
+		return (int) Math.max(1, Math.min(CHECK_TIMEOUT,
+				TimeUnit.NANOSECONDS.toMillis(left)));
+	}
+
+	/**
+	 * runs a task on the thread which closes idle connections.
+	 *
+	 * @param task
+	 *            The task, which must be short
+	 * @param delay
+	 *            The time to wait before running it
+	 * @param unit
+	 *            The unit of <code>delay</code>
+	 * @return the task, which may be cancelled
+	 */
+	static ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+		return reaper.schedule(task, delay, unit);
+	}
+
+	/**
+	 * closes connections which have been idle for too long.
+	 */
+	private static void reap() {
+		long cutoff = System.nanoTime() - idleTimeout;
+		for (Endpoint e : endpoints.values()) {
+			for (Connection c : e.connections) {
+				c.retire(cutoff);
+			}
+			if (e.connections.isEmpty() && !e.down()) {
+				endpoints.remove(e.address, e);
+			}
+		}
+	}
+
+	/**
+	 * The connections to one address.
+	 */
+	static class Endpoint {
+		private final InetSocketAddress address;
+		private final CopyOnWriteArrayList<Connection> connections = new CopyOnWriteArrayList<Connection>();
+		private int failures = 0;
+		private volatile long downUntil;
+		/** The connection being made, or <code>null</code>. */
+		private CompletableFuture<Connection> connecting = null;
+
+		private Endpoint(InetSocketAddress address) {
+			this.address = address;
+			this.downUntil = System.nanoTime();
+		}
+
+		/**
+		 * @return the open connection with the fewest calls waiting, or
+		 *         <code>null</code> if there is none
+		 */
+		private Connection pick() {
+			Connection best = null;
+			for (Connection c : connections) {
+				if (c.isOpen()
+						&& (best == null || c.pending() < best.pending())) {
+					best = c;
+				}
+			}
+			return best;
+		}
+
+		private boolean down() {
+			return downUntil - System.nanoTime() > 0;
+		}
+
+		/**
+		 * opens a new connection, unless another thread already has or the
+		 * limit has been reached. If another thread is opening one, waits for
+		 * it, for no longer than the call may take.
+		 *
+		 * @param fallback
+		 *            A claimed connection to use if no new one is needed or
+		 *            can be made, or <code>null</code>
+		 * @param began
+		 *            When the call began, as a value of
+		 *            <code>System.nanoTime</code>
+		 * @param wait
+		 *            The nanoseconds the call may take, or
+		 *            <code>Deadline.NONE</code>
+		 */
+		private Connection connect(Connection fallback, long began, long wait)
+				throws IOException, RMITimeoutException {
+			for (;;) {
+				CompletableFuture<Connection> pending;
+				boolean opening = false;
+				synchronized (this) {
+					if (fallback != null && connections.size() >= maxConnections) {
+						return fallback;
+					}
+					if (fallback == null) {
+						// another thread may have connected while this one
+						// waited
+						Connection c = pick();
+						if (c != null && c.acquire()) {
+							if (c.pending() == 0
+									|| connections.size() >= maxConnections) {
+								return c;
+							}
+							fallback = c;
+						} else if (down()) {
+							throw new ConnectException(address + " is down");
+						}
+					}
+					if (connecting == null) {
+						connecting = new CompletableFuture<Connection>();
+						opening = true;
+					}
+					pending = connecting;
+				}
+
+				if (opening) {
+					return open(pending, fallback, began, wait);
+				}
+
+				// a call with a connection to fall back on does not wait for
+				// the other thread; one without looks again once it is done
+				if (fallback != null) {
+					return fallback;
+				}
+				await(pending, began, wait);
+			}
+		}
+
+		/**
+		 * makes a new connection, outside the lock, and tells the threads
+		 * waiting for it when it is done.
+		 */
+		private Connection open(CompletableFuture<Connection> pending,
+				Connection fallback, long began, long wait) throws IOException,
+				RMITimeoutException {
+			int timeout = checkTimeout(began, wait);
+			Connection c = null;
+			IOException failure = null;
+			try {
+				c = new Connection(address, this, timeout);
+			} catch (IOException e) {
+				failure = e;
+			} finally {
+				synchronized (this) {
+					connecting = null;
+					if (c != null) {
+						c.acquire();
+						connections.add(c);
+						// it may have closed before it could be added
+						if (!c.isOpen()) {
+							connections.remove(c);
+						}
+						failures = 0;
+						downUntil = System.nanoTime();
+						// the reaper may have dropped this entry while it was
+						// empty
+						endpoints.putIfAbsent(address, this);
+					} else if (failure != null && !shortened(failure, timeout)) {
+						long backoff = Math.min(downMax,
+								downInitial << Math.min(failures, 30));
+						failures++;
+						downUntil = System.nanoTime() + backoff;
+					}
+				}
+				pending.complete(c);
+			}
+
+			if (c != null) {
+				return c;
+			}
+			if (fallback != null) {
+				return fallback;
+			}
+			if (shortened(failure, timeout)) {
+				throw new RMITimeoutException("deadline passed while "
+						+ "connecting to " + address, failure);
+			}
+			throw failure;
+		}
+
+		/**
+		 * @return true if a connection failed only for lack of the time its
+		 *         call's deadline left it
+		 */
+		private static boolean shortened(IOException failure, int timeout) {
+			return failure instanceof SocketTimeoutException
+					&& timeout < CHECK_TIMEOUT;
+		}
+
+		/**
+		 * waits for another thread to finish making a connection.
+		 */
+		private void await(CompletableFuture<Connection> pending, long began,
+				long wait) throws IOException, RMITimeoutException {
+			try {
+				if (wait == Deadline.NONE) {
+					pending.get();
+				} else {
+					pending.get(wait - (System.nanoTime() - began),
+							TimeUnit.NANOSECONDS);
+				}
+			} catch (ExecutionException e) {
+				// it is only ever completed normally
+			} catch (TimeoutException e) {
+				throw new RMITimeoutException("deadline passed while "
+						+ "connecting to " + address);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while "
+						+ "connecting to " + address);
+			}
+		}
+
+		/**
+		 * drops a connection which has closed.
+		 */
+		void remove(Connection c) {
+			connections.remove(c);
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package rmi;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A deadline for the remote calls made by one thread.
+ *
+ * <p>
+ * A deadline is set for a block of code with
+ *
+ * <pre>
+ * try (Deadline d = Deadline.after(2, TimeUnit.SECONDS)) {
+ * 	storage.read(file, 0, size);
+ * 	...
+ * }
+ * </pre>
+ *
+ * Every call the thread makes through a stub inside the block, synchronous,
+ * asynchronous or batched, must complete before the deadline, or it fails
+ * with an <code>RMITimeoutException</code>. The time left is sent to the
+ * skeleton with each call, and the skeleton drops calls which are still
+ * waiting to run when their time is up.
+ *
+ * <p>
+ * Deadlines nest: a deadline set inside another never ends later than the
+ * outer one. A stub made with <code>Stub.withTimeout</code> also has a timeout
+ * of its own for each call, and a call made through it ends at whichever of
+ * the two comes first.
+ */
+public final class Deadline implements AutoCloseable {
+
+	/** Returned by <code>remaining</code> for calls without a deadline. */
+	static final long NONE = Long.MAX_VALUE;
+
+	private static final ThreadLocal<Deadline> current = new ThreadLocal<Deadline>();
+
+	/** The deadline, as a value of <code>System.nanoTime</code>. */
+	private final long at;
+	private final Deadline outer;
+	private final Thread thread;
+
+	private Deadline(long at, Deadline outer) {
+		this.at = at;
+		this.outer = outer;
+		this.thread = Thread.currentThread();
+	}
+
+	/**
+	 * sets a deadline for the calls made by the current thread, until the
+	 * deadline is closed.
+	 *
+	 * @param time
+	 *            The time from now
+	 * @param unit
+	 *            The unit of <code>time</code>
+	 * @return The deadline
+	 */
+	public static Deadline after(long time, TimeUnit unit) {
+		Deadline outer = current.get();
+		long at = System.nanoTime() + unit.toNanos(time);
+		if (outer != null && outer.at - at < 0) {
+			at = outer.at;
+		}
+
+		Deadline d = new Deadline(at, outer);
+		current.set(d);
+		return d;
+	}
+
+	/**
+	 * @param unit
+	 *            The unit of the result
+	 * @return the time left before the deadline, which is negative once it
+	 *         has passed
+	 */
+	public long remaining(TimeUnit unit) {
+		return unit.convert(at - System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return true if the deadline has passed
+	 */
+	public boolean expired() {
+		return at - System.nanoTime() <= 0;
+	}
+
+	/**
+	 * ends the deadline. The deadline it was set inside of, if any, applies
+	 * again.
+	 *
+	 * @throws IllegalStateException
+	 *             If called from another thread, or while a deadline set
+	 *             inside this one is still open
+	 */
+	@Override
+	public void close() {
+		if (Thread.currentThread() != thread || current.get() != this) {
+			throw new IllegalStateException("deadlines must be closed in the "
+					+ "order they were set, by the thread which set them");
+		}
+		if (outer == null) {
+			current.remove();
+		} else {
+			current.set(outer);
+		}
+	}
+
+	/**
+	 * works out how long a call may take.
+	 *
+	 * @param timeout
+	 *            The timeout of the stub making the call in nanoseconds, or
+	 *            zero if it has none
+	 * @return the nanoseconds left for the call, which may be zero or less if
+	 *         it is already too late, or <code>NONE</code> if the call has no
+	 *         deadline
+	 */
+	static long remaining(long timeout) {
+		Deadline d = current.get();
+		if (d == null) {
+			return timeout > 0 ? timeout : NONE;
+		}
+
+		long left = d.at - System.nanoTime();
+		return timeout > 0 ? Math.min(left, timeout) : left;
+	}
+}
@@ -0,0 +1,271 @@
+package rmi;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the calls received by a skeleton.
+ *
+ * <p>
+ * By default a skeleton starts a new thread for every call, which is what
+ * <code>threadPerCall</code> returns. A burst of calls then creates as many
+ * threads as there are calls. A skeleton may instead be given a bounded pool
+ * of workers with <code>setDispatcher</code>, in which case calls wait in a
+ * queue of limited length for a free worker, and what happens once the queue
+ * is full is set by a <code>Rejection</code> policy.
+ *
+ * <p>
+ * A dispatcher keeps count of the calls waiting in its queue and of the
+ * workers busy running calls. One dispatcher may be shared by several
+ * skeletons, in which case the counts are for all of them together.
+ */
+public class Dispatcher {
+
+	/**
+	 * What a bounded dispatcher does with a call that arrives when all the
+	 * workers are busy and the queue is full.
+	 */
+	public enum Rejection {
+		/**
+		 * The call fails at once, and the stub receives an
+		 * <code>RMIException</code>.
+		 */
+		REJECT,
+		/**
+		 * The call runs in the thread reading the connection it came on. No
+		 * further calls are read from that connection until it is done.
+		 */
+		CALLER_RUNS,
+		/**
+		 * The thread reading the connection waits until there is room in the
+		 * queue. No further calls are read from that connection until then.
+		 */
+		BLOCK
+	}
+
+	private final Executor executor;
+	private final ArrayBlockingQueue<Runnable> queue;
+	private final Rejection rejection;
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * @param executor
+	 *            The executor that runs the calls
+	 * @param queue
+	 *            The queue of the executor, if it is a bounded pool, or
+	 *            <code>null</code>
+	 * @param rejection
+	 *            What to do with calls the executor refuses
+	 */
+	private Dispatcher(Executor executor, ArrayBlockingQueue<Runnable> queue,
+			Rejection rejection) {
+		this.executor = executor;
+		this.queue = queue;
+		this.rejection = rejection;
+	}
+
+	/**
+	 * @return a dispatcher that starts a new thread for every call. This is
+	 *         what a skeleton uses unless it is given another dispatcher.
+	 */
+	public static Dispatcher threadPerCall() {
+		return new Dispatcher(new Executor() {
+			@Override
+			public void execute(Runnable r) {
+				new Thread(r).start();
+			}
+		}, null, Rejection.REJECT);
+	}
+
+	/**
+	 * Creates a dispatcher with a fixed number of worker threads.
+	 *
+	 * @param workers
+	 *            The number of worker threads
+	 * @param queueLimit
+	 *            The most calls that may wait for a free worker
+	 * @param rejection
+	 *            What to do with a call that arrives when the queue is full
+	 * @return the dispatcher
+	 * @throws IllegalArgumentException
+	 *             If <code>workers</code> or <code>queueLimit</code> is less
+	 *             than one.
+	 * @throws NullPointerException
+	 *             If <code>rejection</code> is <code>null</code>.
+	 */
+	public static Dispatcher bounded(int workers, int queueLimit,
+			Rejection rejection) {
+		if (rejection == null) {
+			throw new NullPointerException("rejection policy is null");
+		}
+
+		if (workers < 1 || queueLimit < 1) {
+			throw new IllegalArgumentException(
+					"workers and queue limit must be at least one");
+		}
+
+		ArrayBlockingQueue<Runnable> queue = new ArrayBlockingQueue<Runnable>(
+				queueLimit);
+
+		// workers that stay idle for a minute exit, so that a skeleton that is
+		// stopped does not keep its pool alive.
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers, 60,
+				TimeUnit.SECONDS, queue, new ThreadFactory() {
+					private final AtomicInteger n = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "rmi worker "
+								+ n.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				}, new ThreadPoolExecutor.AbortPolicy());
+		pool.allowCoreThreadTimeOut(true);
+
+		return new Dispatcher(pool, queue, rejection);
+	}
+
+	/**
+	 * Creates a dispatcher that runs every call in a new virtual thread.
+	 *
+	 * <p>
+	 * Virtual threads are cheap enough that a call blocked for a long time,
+	 * such as a call to <code>lock</code> on the naming server, costs little
+	 * more than its stack. They are only available on Java 21 and later; on an
+	 * older runtime this method returns <code>threadPerCall()</code>.
+	 *
+	 * @return the dispatcher
+	 */
+	public static Dispatcher virtualThreads() {
+		try {
+			ExecutorService virtual = (ExecutorService) java.util.concurrent.Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			return new Dispatcher(virtual, null, Rejection.REJECT);
+		} catch (ReflectiveOperationException e) {
+			return threadPerCall();
+		}
+	}
+
+	/**
+	 * @return the number of calls waiting for a free worker
+	 */
+	public int queueDepth() {
+		return queued.get();
+	}
+
+	/**
+	 * @return the number of workers currently running a call
+	 */
+	public int activeWorkers() {
+		return active.get();
+	}
+
+	/**
+	 * @return the number of calls rejected because the queue was full
+	 */
+	public long rejectedCalls() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return the most calls that may wait for a free worker, or -1 if the
+	 *         dispatcher does not queue calls
+	 */
+	public int queueLimit() {
+		return queue == null ? -1 : queue.size() + queue.remainingCapacity();
+	}
+
+	/**
+	 * @return true if a call arriving when the queue is full may hold up the
+	 *         thread that read it, under the <code>CALLER_RUNS</code> or
+	 *         <code>BLOCK</code> policies
+	 */
+	boolean blocksCaller() {
+		return queue != null && rejection != Rejection.REJECT;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "active " + activeWorkers() + ", queued " + queueDepth()
+				+ ", rejected " + rejectedCalls();
+	}
+
+	/**
+	 * runs a call, or hands it to a worker to be run later.
+	 *
+	 * @param call
+	 *            The call to run
+	 * @throws RejectedExecutionException
+	 *             If the call was refused and the rejection policy is
+	 *             <code>REJECT</code>.
+	 */
+	void dispatch(Runnable call) {
+		Counted task = new Counted(call);
+		queued.incrementAndGet();
+
+		try {
+			executor.execute(task);
+			return;
+		} catch (RejectedExecutionException e) {
+			if (queue == null || rejection == Rejection.REJECT) {
+				queued.decrementAndGet();
+				rejected.incrementAndGet();
+				throw e;
+			}
+		}
+
+		if (rejection == Rejection.CALLER_RUNS) {
+			task.run();
+			return;
+		}
+
+		// BLOCK: wait for room in the queue. The pool takes new work from the
+		// queue as soon as a worker is free.
+		try {
+			queue.put(task);
+		} catch (InterruptedException e) {
+			queued.decrementAndGet();
+			rejected.incrementAndGet();
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException(e);
+		}
+	}
+
+	/**
+	 * A call that keeps the queued and active counts up to date as it goes
+	 * from waiting to running to done.
+	 */
+	private class Counted implements Runnable {
+		private final Runnable call;
+
+		Counted(Runnable call) {
+			this.call = call;
+		}
+
+		@Override
+		public void run() {
+			queued.decrementAndGet();
+			active.incrementAndGet();
+			try {
+				call.run();
+			} finally {
+				active.decrementAndGet();
+			}
+		}
+	}
+}
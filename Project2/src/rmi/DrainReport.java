@@ -0,0 +1,107 @@
+package rmi;
+
+/**
+ * What became of the calls of a server which was drained before stopping.
+ *
+ * <p>
+ * Calls which were running, or waiting for a worker, when the server stopped
+ * taking new calls are either completed, if their responses were sent before
+ * the deadline, or abandoned, if they were still running when it passed and
+ * the connections were closed under them. A result being streamed to a stub
+ * which has not pulled its last element by the deadline counts as abandoned
+ * as well. Calls which arrived after the server stopped taking new ones were
+ * refused, and their stubs told so with an <code>RMIOverloadException</code>,
+ * so that they may try another server.
+ *
+ * <p>
+ * Reports of several skeletons drained together can be added up with
+ * <code>plus</code>.
+ */
+public final class DrainReport {
+
+	private final long completed;
+	private final long abandoned;
+	private final long refused;
+	private final long elapsed;
+
+	/**
+	 * @param completed
+	 *            The calls whose responses were sent while draining
+	 * @param abandoned
+	 *            The calls and streams still unfinished at the deadline
+	 * @param refused
+	 *            The calls turned away while draining
+	 * @param elapsed
+	 *            Milliseconds from the start of the drain until the server
+	 *            stopped
+	 */
+	public DrainReport(long completed, long abandoned, long refused,
+			long elapsed) {
+		this.completed = completed;
+		this.abandoned = abandoned;
+		this.refused = refused;
+		this.elapsed = elapsed;
+	}
+
+	/**
+	 * @return the number of calls whose responses were sent while draining
+	 */
+	public long completed() {
+		return completed;
+	}
+
+	/**
+	 * @return the number of calls and streams still unfinished at the
+	 *         deadline
+	 */
+	public long abandoned() {
+		return abandoned;
+	}
+
+	/**
+	 * @return the number of calls turned away while draining
+	 */
+	public long refused() {
+		return refused;
+	}
+
+	/**
+	 * @return milliseconds from the start of the drain until the server
+	 *         stopped
+	 */
+	public long elapsed() {
+		return elapsed;
+	}
+
+	/**
+	 * @return true if nothing was abandoned
+	 */
+	public boolean isClean() {
+		return abandoned == 0;
+	}
+
+	/**
+	 * adds up the reports of two servers drained together. The time taken is
+	 * the longer of the two.
+	 *
+	 * @param other
+	 *            The report of the other server
+	 * @return the report of both
+	 */
+	public DrainReport plus(DrainReport other) {
+		return new DrainReport(completed + other.completed, abandoned
+				+ other.abandoned, refused + other.refused, Math.max(elapsed,
+				other.elapsed));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "completed " + completed + ", abandoned " + abandoned
+				+ ", refused " + refused + " in " + elapsed + " ms";
+	}
+}
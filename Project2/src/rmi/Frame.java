@@ -0,0 +1,663 @@
+package rmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A single message exchanged between a stub and a skeleton.
+ *
+ * <p>
+ * Connections between stubs and skeletons are long-lived and carry many calls,
+ * possibly at the same time. Every message is therefore sent as a frame: a
+ * length, a type, the id of the call the message belongs to, and a body. The
+ * id lets the stub match a response to its call when the skeleton answers
+ * calls out of order.
+ *
+ * <p>
+ * Large byte arrays and buffers do not go in the body. They follow it as raw
+ * segments, and the body only marks where each one belongs. Segments are
+ * written straight from the caller's arrays and read straight into arrays of
+ * their exact size, so the bulk of a big read or write is never copied into or
+ * out of an intermediate body. A frame with segments has a flag set in its
+ * type, and the sizes of its segments follow the id:
+ *
+ * <pre>
+ * [length][type | SEGMENTED][id][count][size]...[body][segment]...
+ * </pre>
+ *
+ * <p>
+ * A call with a deadline carries the milliseconds its caller will wait for
+ * it, right after the id, and has another flag set in its type. The time is
+ * relative, since the clocks of the two ends need not agree.
+ *
+ * <p>
+ * On connections where both ends agreed to it, the body and segments of a
+ * large frame may be compressed, as described in <code>Compression</code>. A
+ * third flag in the type marks such frames.
+ */
+class Frame {
+
+	/**
+	 * A call request. The body carries the number of the method in the
+	 * skeleton's method table, followed by the arguments in binary encoding.
+	 */
+	static final byte CALL = 1;
+	/** A normal return. The body carries the encoded result. */
+	static final byte RESULT = 2;
+	/** An exceptional return. The body carries the encoded exception. */
+	static final byte EXCEPTION = 3;
+	/**
+	 * The handshake. The stub sends one with an empty body when it connects,
+	 * and the skeleton answers with its method table.
+	 */
+	static final byte HELLO = 4;
+	/**
+	 * A call request for a method missing from the skeleton's table. The body
+	 * carries the serialized method name, parameter types and arguments.
+	 */
+	static final byte CALL_BY_NAME = 5;
+	/**
+	 * A batch of calls, or the answer to one. The body carries the number of
+	 * entries, then each entry: a call frame's type and body in a request, a
+	 * response frame's type and body in the answer. The entries of an answer
+	 * are in the order of the calls.
+	 */
+	static final byte BATCH = 6;
+	/**
+	 * A health check. The skeleton answers at once with an empty frame of the
+	 * same type.
+	 */
+	static final byte PING = 7;
+	/**
+	 * A chunk of a streamed result, sent in answer to a call whose method
+	 * returns an <code>Iterator</code>, and to each pull of the stream. The
+	 * body carries the stream id, the number of elements, the elements and
+	 * whether more are to come.
+	 */
+	static final byte STREAM = 8;
+	/**
+	 * A pull of the next chunk of a stream. The body carries the stream id and
+	 * the most elements wanted. Zero elements closes the stream.
+	 */
+	static final byte NEXT = 9;
+
+	/** Flag set in the type of a frame that carries segments. */
+	private static final byte SEGMENTED = (byte) 0x80;
+	/** Flag set in the type of a frame that carries a timeout. */
+	private static final byte TIMED = 0x40;
+	/** Flag set in the type of a frame whose contents are compressed. */
+	private static final byte COMPRESSED = 0x20;
+
+	/** Size of the type and id fields that precede the body. */
+	static final int HEADER = 5;
+
+	/**
+	 * The largest length a frame may have, not counting the length field. A
+	 * length read from a peer is checked against it before anything is
+	 * allocated for the frame, so that a single header cannot make the
+	 * reader set aside gigabytes; frames larger than this are not sent.
+	 */
+	static final int MAX_FRAME = 64 * 1024 * 1024;
+
+	final byte type;
+	final int id;
+	final byte[] body;
+	/** Bulk data following the body, or <code>null</code> if there is none. */
+	final ByteBuffer[] segments;
+	/** Milliseconds the caller waits for a response, or zero for no limit. */
+	final int timeout;
+	/** Whether the body and segments are in compressed form. */
+	final boolean compressed;
+
+	/**
+	 * @param type
+	 *            The type of the frame
+	 * @param id
+	 *            The id of the call the frame belongs to
+	 * @param body
+	 *            The contents of the frame
+	 */
+	Frame(byte type, int id, byte[] body) {
+		this(type, id, body, null);
+	}
+
+	/**
+	 * @param type
+	 *            The type of the frame
+	 * @param id
+	 *            The id of the call the frame belongs to
+	 * @param body
+	 *            The contents of the frame
+	 * @param segments
+	 *            The bulk data to send after the body, or <code>null</code>
+	 *            for none. The positions of the buffers are not changed.
+	 */
+	Frame(byte type, int id, byte[] body, ByteBuffer[] segments) {
+		this(type, id, body, segments, 0, false);
+	}
+
+	private Frame(byte type, int id, byte[] body, ByteBuffer[] segments,
+			int timeout, boolean compressed) {
+		this.type = type;
+		this.id = id;
+		this.body = body;
+		this.segments = (segments == null || segments.length == 0) ? null
+				: segments;
+		this.timeout = timeout;
+		this.compressed = compressed;
+	}
+
+	/**
+	 * @param id
+	 *            The id of the call
+	 * @return a copy of the frame with the given id
+	 */
+	Frame withId(int id) {
+		return new Frame(type, id, body, segments, timeout, compressed);
+	}
+
+	/**
+	 * @param body
+	 *            The new body
+	 * @param segments
+	 *            The new segments, or <code>null</code> for none
+	 * @param compressed
+	 *            Whether the new contents are compressed
+	 * @return a copy of the frame with other contents
+	 */
+	Frame withContents(byte[] body, ByteBuffer[] segments, boolean compressed) {
+		return new Frame(type, id, body, segments, timeout, compressed);
+	}
+
+	/**
+	 * @param nanos
+	 *            How long the caller waits for a response, or
+	 *            <code>Deadline.NONE</code>
+	 * @return a copy of the frame carrying the time, rounded up to whole
+	 *         milliseconds
+	 */
+	Frame withTimeout(long nanos) {
+		if (nanos == Deadline.NONE) {
+			return new Frame(type, id, body, segments, 0, compressed);
+		}
+		long millis = Math.max(1, (Math.max(nanos, 0) + 999999) / 1000000);
+		return new Frame(type, id, body, segments, (int) Math.min(millis,
+				Integer.MAX_VALUE), compressed);
+	}
+
+	/**
+	 * @return the type as sent, with the flags for what the frame carries
+	 */
+	private byte flags() {
+		byte t = type;
+		if (segments != null) {
+			t |= SEGMENTED;
+		}
+		if (timeout > 0) {
+			t |= TIMED;
+		}
+		if (compressed) {
+			t |= COMPRESSED;
+		}
+		return t;
+	}
+
+	/**
+	 * @return the number of bytes the frame takes on the wire
+	 */
+	long size() {
+		long size = 4 + HEADER + body.length;
+		if (timeout > 0) {
+			size += 4;
+		}
+		if (segments != null) {
+			size += 2 + 4 * segments.length;
+			for (ByteBuffer b : segments) {
+				size += b.remaining();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return the length of the frame, not counting the length field itself
+	 * @throws IOException
+	 *             If the frame is too large to send
+	 */
+	private int length() throws IOException {
+		long length = size() - 4;
+		if (length > MAX_FRAME) {
+			throw new IOException("frame too large: " + length + " bytes");
+		}
+		return (int) length;
+	}
+
+	/**
+	 * writes everything that comes between the id and the body.
+	 */
+	private void writeSizes(DataOutput out) throws IOException {
+		if (timeout > 0) {
+			out.writeInt(timeout);
+		}
+		if (segments == null) {
+			return;
+		}
+		if (segments.length > 0xffff) {
+			throw new IOException("too many segments: " + segments.length);
+		}
+		out.writeShort(segments.length);
+		for (ByteBuffer b : segments) {
+			out.writeInt(b.remaining());
+		}
+	}
+
+	/**
+	 * writes the frame to the stream. The caller is responsible for flushing
+	 * the stream and for making sure no other frame is written at the same
+	 * time.
+	 *
+	 * @param out
+	 *            The stream to write to
+	 * @throws IOException
+	 *             If the frame cannot be written
+	 */
+	void write(DataOutputStream out) throws IOException {
+		out.writeInt(length());
+		out.writeByte(flags());
+		out.writeInt(id);
+		writeSizes(out);
+		out.write(body);
+
+		if (segments != null) {
+			for (ByteBuffer b : segments) {
+				if (b.hasArray()) {
+					// large arrays go past the stream's buffer to the socket
+					out.write(b.array(), b.arrayOffset() + b.position(),
+							b.remaining());
+				} else {
+					byte[] chunk = new byte[Math.min(b.remaining(), 64 * 1024)];
+					ByteBuffer d = b.duplicate();
+					while (d.hasRemaining()) {
+						int n = Math.min(chunk.length, d.remaining());
+						d.get(chunk, 0, n);
+						out.write(chunk, 0, n);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Decides from its header whether the rest of a frame is read, so that a
+	 * frame can be refused before anything is allocated for it.
+	 */
+	interface Gate {
+		/**
+		 * @param type
+		 *            The type of the frame, without its flags
+		 * @param id
+		 *            The id of the frame
+		 * @param length
+		 *            The length of the frame, as declared
+		 * @return false if the rest of the frame is to be skipped
+		 */
+		boolean admits(byte type, int id, int length);
+	}
+
+	/**
+	 * reads the next frame from the stream.
+	 *
+	 * @param in
+	 *            The stream to read from
+	 * @return The frame read, or <code>null</code> if the stream ended cleanly
+	 *         between two frames
+	 * @throws IOException
+	 *             If the frame cannot be read, or the stream ended in the
+	 *             middle of a frame
+	 */
+	static Frame read(DataInputStream in) throws IOException {
+		return read(in, null);
+	}
+
+	/**
+	 * reads the next frame from the stream which the gate admits. The frames
+	 * it refuses are skipped without being stored.
+	 *
+	 * @param in
+	 *            The stream to read from
+	 * @param gate
+	 *            The gate to offer each frame to, or <code>null</code> to
+	 *            read every frame
+	 * @return The frame read, or <code>null</code> if the stream ended cleanly
+	 *         between two frames
+	 * @throws IOException
+	 *             If the frame cannot be read, or the stream ended in the
+	 *             middle of a frame
+	 */
+	static Frame read(DataInputStream in, Gate gate) throws IOException {
+		int length;
+		byte type;
+		int id;
+
+		while (true) {
+			try {
+				length = in.readInt();
+			} catch (EOFException e) {
+				return null;
+			}
+
+			if (!validLength(length)) {
+				throw new IOException("bad frame length " + length);
+			}
+
+			type = in.readByte();
+			id = in.readInt();
+			if (gate == null || gate.admits(plain(type), id, length)) {
+				break;
+			}
+			skip(in, length - HEADER);
+		}
+
+		int timeout = 0;
+		if ((type & TIMED) != 0) {
+			length -= 4;
+			if (length < HEADER) {
+				throw new IOException("bad frame length " + length);
+			}
+			timeout = in.readInt();
+		}
+
+		if ((type & SEGMENTED) == 0) {
+			byte[] body = new byte[length - HEADER];
+			in.readFully(body);
+			return new Frame(plain(type), id, body, null, timeout,
+					(type & COMPRESSED) != 0);
+		}
+
+		int[] sizes = readSizes(in, length);
+		byte[] body = new byte[sizes[sizes.length - 1]];
+		in.readFully(body);
+
+		// each segment is read into an array of its own, which the value it
+		// belongs to can then use as it is
+		ByteBuffer[] segments = new ByteBuffer[sizes.length - 1];
+		for (int i = 0; i < segments.length; i++) {
+			byte[] b = new byte[sizes[i]];
+			in.readFully(b);
+			segments[i] = ByteBuffer.wrap(b);
+		}
+
+		return new Frame(plain(type), id, body, segments, timeout,
+				(type & COMPRESSED) != 0);
+	}
+
+	/**
+	 * @return a type as sent, without its flags
+	 */
+	static byte plain(byte type) {
+		return (byte) (type & ~(SEGMENTED | TIMED | COMPRESSED));
+	}
+
+	/**
+	 * reads and drops the given number of bytes.
+	 */
+	private static void skip(DataInputStream in, int n) throws IOException {
+		while (n > 0) {
+			int skipped = in.skipBytes(n);
+			if (skipped <= 0) {
+				// skipBytes gives up at the end of the stream, readByte fails
+				in.readByte();
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+
+	/**
+	 * reads the segment sizes of a frame.
+	 *
+	 * @param in
+	 *            The frame, positioned just before the segment count
+	 * @param length
+	 *            The length of the frame, not counting the timeout
+	 * @return the size of each segment, followed by the size of the body
+	 * @throws IOException
+	 *             If the sizes cannot be read, or do not fit in the frame
+	 */
+	private static int[] readSizes(DataInput in, int length)
+			throws IOException {
+		int[] sizes = new int[in.readUnsignedShort() + 1];
+		for (int i = 0; i < sizes.length - 1; i++) {
+			sizes[i] = in.readInt();
+		}
+		return withBody(sizes, length);
+	}
+
+	/**
+	 * checks the segment sizes of a frame and works out the size of its
+	 * body, which is whatever the segments leave of the frame.
+	 *
+	 * @param sizes
+	 *            The size of each segment, with room for the body at the end
+	 * @param length
+	 *            The length of the frame, not counting the timeout
+	 * @return <code>sizes</code>, with the body size filled in
+	 * @throws IOException
+	 *             If the sizes do not fit in the frame
+	 */
+	private static int[] withBody(int[] sizes, int length) throws IOException {
+		int count = sizes.length - 1;
+		long rest = (long) length - HEADER - 2 - 4L * count;
+
+		for (int i = 0; i < count; i++) {
+			if (sizes[i] < 0) {
+				throw new IOException("bad segment size " + sizes[i]);
+			}
+			rest -= sizes[i];
+		}
+
+		if (rest < 0) {
+			throw new IOException("segments do not fit in frame of length "
+					+ length);
+		}
+		sizes[count] = (int) rest;
+		return sizes;
+	}
+
+	/**
+	 * writes the type and body of the frame as one entry of a batch. Entries
+	 * cannot carry segments.
+	 *
+	 * @param out
+	 *            The stream to write to
+	 * @throws IOException
+	 *             If the entry cannot be written
+	 */
+	void writeEntry(DataOutputStream out) throws IOException {
+		if (segments != null) {
+			throw new IOException("batch entries cannot carry segments");
+		}
+		out.writeByte(type);
+		out.writeInt(body.length);
+		out.write(body);
+	}
+
+	/**
+	 * reads one entry of a batch.
+	 *
+	 * @param in
+	 *            The body of the batch frame, positioned at the entry. The
+	 *            length of the entry is checked against the bytes left in it
+	 *            before the entry is allocated.
+	 * @param id
+	 *            The id of the batch, given to the frame read
+	 * @return The frame
+	 * @throws IOException
+	 *             If the entry cannot be read
+	 */
+	static Frame readEntry(DataInputStream in, int id) throws IOException {
+		byte type = in.readByte();
+		int length = in.readInt();
+		if (length < 0 || length > in.available()) {
+			throw new IOException("bad batch entry length " + length);
+		}
+		byte[] body = new byte[length];
+		in.readFully(body);
+		return new Frame(type, id, body);
+	}
+
+	/**
+	 * @return the whole frame, length first, ready for a gathering write to a
+	 *         channel. Segments are not copied.
+	 * @throws IOException
+	 *             If the frame is too large to send
+	 */
+	ByteBuffer[] encode() throws IOException {
+		int extra = timeout > 0 ? 4 : 0;
+
+		if (segments == null) {
+			ByteBuffer b = ByteBuffer.allocate(4 + HEADER + extra
+					+ body.length);
+			b.putInt(HEADER + extra + body.length);
+			b.put(flags());
+			b.putInt(id);
+			if (timeout > 0) {
+				b.putInt(timeout);
+			}
+			b.put(body);
+			b.flip();
+			return new ByteBuffer[] { b };
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(4 + HEADER + extra + 2 + 4
+				* segments.length);
+		header.putInt(length());
+		header.put(flags());
+		header.putInt(id);
+		if (timeout > 0) {
+			header.putInt(timeout);
+		}
+		header.putShort((short) segments.length);
+		for (ByteBuffer b : segments) {
+			header.putInt(b.remaining());
+		}
+		header.flip();
+
+		ByteBuffer[] all = new ByteBuffer[2 + segments.length];
+		all[0] = header;
+		all[1] = ByteBuffer.wrap(body);
+		for (int i = 0; i < segments.length; i++) {
+			all[2 + i] = segments[i].duplicate();
+		}
+		return all;
+	}
+
+	/**
+	 * @param length
+	 *            The length read from the start of a frame
+	 * @return true if it is the length of a well-formed frame, no longer
+	 *         than <code>MAX_FRAME</code>
+	 */
+	static boolean validLength(int length) {
+		return length >= HEADER && length <= MAX_FRAME;
+	}
+
+	/**
+	 * rebuilds a frame from everything that followed its length.
+	 *
+	 * @param content
+	 *            The type, id and body of the frame
+	 * @return The frame
+	 * @throws IOException
+	 *             If the segment sizes do not fit in the frame
+	 */
+	static Frame decode(ByteBuffer content) throws IOException {
+		int length = content.remaining();
+		byte type = content.get();
+		int id = content.getInt();
+
+		int timeout = 0;
+		if ((type & TIMED) != 0) {
+			length -= 4;
+			if (length < HEADER) {
+				throw new IOException("bad frame length " + length);
+			}
+			timeout = content.getInt();
+		}
+
+		if ((type & SEGMENTED) == 0) {
+			byte[] body = new byte[content.remaining()];
+			content.get(body);
+			return new Frame(plain(type), id, body, null, timeout,
+					(type & COMPRESSED) != 0);
+		}
+
+		int[] sizes;
+		try {
+			sizes = new int[(content.getShort() & 0xffff) + 1];
+			for (int i = 0; i < sizes.length - 1; i++) {
+				sizes[i] = content.getInt();
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IOException("truncated frame", e);
+		}
+		withBody(sizes, length);
+
+		byte[] body = new byte[sizes[sizes.length - 1]];
+		content.get(body);
+
+		// the segments stay where they are in the buffer the frame was read
+		// into
+		ByteBuffer[] segments = new ByteBuffer[sizes.length - 1];
+		for (int i = 0; i < segments.length; i++) {
+			ByteBuffer s = content.slice();
+			s.limit(sizes[i]);
+			segments[i] = s;
+			content.position(content.position() + sizes[i]);
+		}
+
+		return new Frame(plain(type), id, body, segments, timeout,
+				(type & COMPRESSED) != 0);
+	}
+
+	/**
+	 * @param o
+	 *            The object to be serialized
+	 * @return the serialized form of the object
+	 * @throws IOException
+	 *             If the object cannot be serialized
+	 */
+	static byte[] serialize(Object o) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(o);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @param b
+	 *            The serialized form of an object
+	 * @return the object
+	 * @throws IOException
+	 *             If the object cannot be read back
+	 * @throws ClassNotFoundException
+	 *             If the class of the object cannot be found
+	 */
+	static Object deserialize(byte[] b) throws IOException,
+			ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+				b));
+		return in.readObject();
+	}
+}
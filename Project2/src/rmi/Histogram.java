@@ -0,0 +1,165 @@
+package rmi;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations, in nanoseconds.
+ *
+ * <p>
+ * Values are counted in buckets whose width grows with the value: every power
+ * of two is split into sixteen equal buckets, so any value is known to within
+ * about six percent, from a nanosecond up to many minutes, in a fixed table of
+ * counters. Recording is a few shifts and one atomic increment, and never
+ * allocates or locks, so it can be done on every call.
+ *
+ * <p>
+ * Readers take a <code>Snapshot</code>. Since recording does not stop while a
+ * snapshot is taken, a snapshot may be off by the values recorded while it was
+ * being copied.
+ */
+public class Histogram {
+
+	/** Buckets per power of two, as a power of two. */
+	private static final int SUB_BITS = 4;
+	private static final int SUB = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder total = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * records one value.
+	 *
+	 * @param nanos
+	 *            The value. Negative values are counted as zero.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(bucket(nanos));
+		total.add(nanos);
+		max.accumulate(nanos);
+	}
+
+	/**
+	 * @return a copy of the histogram as it is now
+	 */
+	public Snapshot snapshot() {
+		long[] c = new long[BUCKETS];
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			c[i] = counts.get(i);
+			n += c[i];
+		}
+		return new Snapshot(c, n, total.sum(), max.get());
+	}
+
+	/**
+	 * @return the bucket a value is counted in
+	 */
+	private static int bucket(long v) {
+		if (v < SUB) {
+			return (int) v;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(v);
+		int sub = (int) (v >>> (exponent - SUB_BITS)) & (SUB - 1);
+		return (exponent - SUB_BITS + 1) * SUB + sub;
+	}
+
+	/**
+	 * @return the largest value counted in a bucket
+	 */
+	private static long highest(int bucket) {
+		if (bucket < SUB) {
+			return bucket;
+		}
+		int exponent = bucket / SUB + SUB_BITS - 1;
+		long sub = bucket % SUB;
+		long lowest = (1L << exponent) + (sub << (exponent - SUB_BITS));
+		return lowest + (1L << (exponent - SUB_BITS)) - 1;
+	}
+
+	/**
+	 * A histogram at one moment.
+	 */
+	public static class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long total;
+		private final long max;
+
+		Snapshot(long[] counts, long count, long total, long max) {
+			this.counts = counts;
+			this.count = count;
+			this.total = total;
+			this.max = max;
+		}
+
+		/**
+		 * @return the number of values recorded
+		 */
+		public long count() {
+			return count;
+		}
+
+		/**
+		 * @return the largest value recorded, exactly
+		 */
+		public long max() {
+			return max;
+		}
+
+		/**
+		 * @return the mean of the values recorded, or zero if there are none
+		 */
+		public double mean() {
+			return count == 0 ? 0 : (double) total / count;
+		}
+
+		/**
+		 * @param percent
+		 *            A percentile, from 0 to 100
+		 * @return a value at least as large as that share of the values
+		 *         recorded, and no more than six percent larger than it needs
+		 *         to be; zero if none were recorded
+		 */
+		public long percentile(double percent) {
+			if (count == 0) {
+				return 0;
+			}
+
+			long rank = (long) Math.ceil(count * Math.min(100, percent) / 100);
+			rank = Math.max(rank, 1);
+
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return Math.min(highest(i), max);
+				}
+			}
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("n=%d mean=%s p50=%s p99=%s max=%s", count,
+					time((long) mean()), time(percentile(50)),
+					time(percentile(99)), time(max));
+		}
+
+		private static String time(long nanos) {
+			if (nanos < 10000) {
+				return nanos + "ns";
+			}
+			if (nanos < 10000000) {
+				return nanos / 1000 + "us";
+			}
+			return nanos / 1000000 + "ms";
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package rmi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method of a remote interface as safe to answer with the result of
+ * another call.
+ *
+ * <p>
+ * A method may be marked if a call changes nothing on the server, and two
+ * calls with equal arguments made at about the same time may see the same
+ * result. A skeleton then folds identical calls to the method which arrive
+ * while one of them is running into that one call: the method runs once,
+ * and every caller gets its result or exception. This spares the server the
+ * work when many clients ask the same question at once.
+ *
+ * <p>
+ * With a <code>ttl</code>, a normal result is also kept for that long after
+ * the call finishes, and identical calls arriving in that time get it
+ * without the method running at all. Results may then be stale by up to the
+ * <code>ttl</code>, so it should be short, and only used where that is
+ * acceptable.
+ *
+ * <p>
+ * Calls are identical if they are made to the same method with arguments
+ * which encode to the same bytes. Calls with large byte array or buffer
+ * arguments, and calls in batches, are always run on their own.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Idempotent {
+
+	/**
+	 * @return milliseconds to keep a result for after its call finishes, or
+	 *         zero to only share it with calls which arrive while it is
+	 *         running
+	 */
+	long ttl() default 0;
+}
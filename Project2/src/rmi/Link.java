@@ -0,0 +1,30 @@
+package rmi;
+
+import java.io.IOException;
+
+/**
+ * One open connection from a stub, as seen by a skeleton.
+ *
+ * <p>
+ * The skeleton reads calls from a link in whatever way its transport works,
+ * and answers each call by sending a response frame back on the link it came
+ * from. Responses may be sent from any thread, in any order.
+ */
+interface Link {
+
+	/**
+	 * sends a response frame back to the stub.
+	 *
+	 * @param response
+	 *            The frame to send
+	 * @throws IOException
+	 *             If the frame cannot be sent
+	 */
+	void respond(Frame response) throws IOException;
+
+	/**
+	 * closes the connection. Calls still running on it complete, but their
+	 * responses are dropped.
+	 */
+	void close();
+}
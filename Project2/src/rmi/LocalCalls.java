@@ -0,0 +1,120 @@
+package rmi;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Calls from stubs to skeletons running in the same JVM.
+ *
+ * <p>
+ * Every running skeleton is registered here by its port. When a stub's
+ * address is one of this host's addresses and a skeleton of this JVM is
+ * running on its port, the stub hands its calls to that skeleton directly,
+ * in the caller's thread, instead of sending them over a connection. The
+ * arguments and the result are still encoded and decoded exactly as they
+ * would be on the wire, so the server object and the caller get copies and
+ * see the same values, stubs and exceptions either way; only the socket and
+ * the thread switches are saved.
+ *
+ * <p>
+ * Calls with a timeout, or made inside a <code>Deadline</code>, and calls to
+ * methods which stream their result, still go over a connection, as they
+ * cannot be cut off or pulled from in the caller's thread. Local calls skip
+ * the skeleton's dispatcher.
+ *
+ * <p>
+ * Local calls are on unless turned off with <code>setEnabled</code>.
+ */
+public class LocalCalls {
+
+	private static volatile boolean enabled = true;
+
+	/** The running skeletons of this JVM, by port. */
+	private static final ConcurrentHashMap<Integer, Skeleton<?>> skeletons = new ConcurrentHashMap<Integer, Skeleton<?>>();
+
+	/** Addresses already found to be this host's own or not. */
+	private static final ConcurrentHashMap<InetAddress, Boolean> own = new ConcurrentHashMap<InetAddress, Boolean>();
+
+	private LocalCalls() {
+	}
+
+	/**
+	 * turns local calls on or off. Calls already running are not affected.
+	 *
+	 * @param on
+	 *            Whether stubs call skeletons in this JVM directly
+	 */
+	public static void setEnabled(boolean on) {
+		enabled = on;
+	}
+
+	/**
+	 * @return true if stubs call skeletons in this JVM directly
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @param skeleton
+	 *            A skeleton which has just started
+	 */
+	static void register(Skeleton<?> skeleton) {
+		skeletons.put(skeleton.getAddress().getPort(), skeleton);
+	}
+
+	/**
+	 * @param skeleton
+	 *            A skeleton which is stopping
+	 */
+	static void unregister(Skeleton<?> skeleton) {
+		InetSocketAddress address = skeleton.getAddress();
+		if (address != null) {
+			skeletons.remove(address.getPort(), skeleton);
+		}
+	}
+
+	/**
+	 * @param address
+	 *            The address of a stub
+	 * @return the running skeleton of this JVM which the address leads to,
+	 *         or <code>null</code> if there is none or local calls are off
+	 */
+	static Skeleton<?> find(InetSocketAddress address) {
+		if (!enabled || skeletons.isEmpty()) {
+			return null;
+		}
+
+		Skeleton<?> s = skeletons.get(address.getPort());
+		if (s == null || !s.isRunning() || address.isUnresolved()) {
+			return null;
+		}
+
+		InetAddress host = address.getAddress();
+		InetAddress bound = s.getAddress().getAddress();
+		if (bound != null && !bound.isAnyLocalAddress()) {
+			return bound.equals(host) ? s : null;
+		}
+		return isOwn(host) ? s : null;
+	}
+
+	/**
+	 * @return true if the address is one of this host's
+	 */
+	static boolean isOwn(InetAddress host) {
+		Boolean known = own.get(host);
+		if (known == null) {
+			try {
+				known = host.isLoopbackAddress() || host.isAnyLocalAddress()
+						|| NetworkInterface.getByInetAddress(host) != null;
+			} catch (SocketException e) {
+				known = false;
+			}
+			own.put(host, known);
+		}
+		return known;
+	}
+}
@@ -0,0 +1,160 @@
+package rmi;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and timings for one remote method, on one side of the connection.
+ *
+ * <p>
+ * On a skeleton, <code>queueWait</code> is the time a call spent between
+ * arriving and starting to run, and <code>service</code> is the time the
+ * server object took to run it. On the stub side, where the two cannot be told
+ * apart, <code>queueWait</code> is empty and <code>service</code> is the whole
+ * round trip as seen by the caller.
+ */
+public class MethodMetrics {
+
+	private final String side;
+	private final String method;
+	private final LongAdder calls = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder shared = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+	private final Histogram queueWait = new Histogram();
+	private final Histogram service = new Histogram();
+
+	/**
+	 * @param side
+	 *            The name of the metrics the method belongs to
+	 * @param method
+	 *            The signature of the method
+	 */
+	MethodMetrics(String side, String method) {
+		this.side = side;
+		this.method = method;
+	}
+
+	/**
+	 * records one call.
+	 *
+	 * @param error
+	 *            Whether the call failed or threw
+	 * @param in
+	 *            Bytes received for the call
+	 * @param out
+	 *            Bytes sent for the call
+	 * @param waited
+	 *            Nanoseconds the call waited to run, or a negative number if
+	 *            not known
+	 * @param ran
+	 *            Nanoseconds the call took
+	 */
+	void record(boolean error, long in, long out, long waited, long ran) {
+		calls.increment();
+		if (error) {
+			errors.increment();
+		}
+		bytesIn.add(in);
+		bytesOut.add(out);
+		if (waited >= 0) {
+			queueWait.record(waited);
+		}
+		service.record(ran);
+
+		if (CallEvent.enabled()) {
+			CallEvent event = new CallEvent();
+			event.side = side;
+			event.method = method;
+			event.error = error;
+			event.bytesIn = in;
+			event.bytesOut = out;
+			event.queueWait = Math.max(waited, 0);
+			event.service = ran;
+			event.commit();
+		}
+	}
+
+	/**
+	 * records one call which was answered with the result of an identical
+	 * call, as <code>record</code> does.
+	 */
+	void share(boolean error, long in, long out, long waited, long ran) {
+		shared.increment();
+		record(error, in, out, waited, ran);
+	}
+
+	/**
+	 * @return the signature of the method, for example
+	 *         <code>lock(common.Path,boolean)</code> on a skeleton, or
+	 *         <code>naming.Service.lock(common.Path,boolean)</code> for stubs
+	 */
+	public String method() {
+		return method;
+	}
+
+	/**
+	 * @return the number of calls
+	 */
+	public long calls() {
+		return calls.sum();
+	}
+
+	/**
+	 * @return the number of calls which failed or threw
+	 */
+	public long errors() {
+		return errors.sum();
+	}
+
+	/**
+	 * @return the number of calls answered with the result of an identical
+	 *         call to an idempotent method, without running
+	 */
+	public long shared() {
+		return shared.sum();
+	}
+
+	/**
+	 * @return the bytes received for calls of the method
+	 */
+	public long bytesIn() {
+		return bytesIn.sum();
+	}
+
+	/**
+	 * @return the bytes sent for calls of the method
+	 */
+	public long bytesOut() {
+		return bytesOut.sum();
+	}
+
+	/**
+	 * @return the time calls waited before running
+	 */
+	public Histogram.Snapshot queueWait() {
+		return queueWait.snapshot();
+	}
+
+	/**
+	 * @return the time calls took to run
+	 */
+	public Histogram.Snapshot service() {
+		return service.snapshot();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder(method).append(": calls=")
+				.append(calls()).append(" errors=").append(errors())
+				.append(shared() > 0 ? " shared=" + shared() : "")
+				.append(" in=").append(bytesIn()).append("B out=")
+				.append(bytesOut()).append('B');
+		Histogram.Snapshot wait = queueWait();
+		if (wait.count() > 0) {
+			s.append("\n    queue wait ").append(wait);
+		}
+		s.append("\n    service    ").append(service());
+		return s.toString();
+	}
+}
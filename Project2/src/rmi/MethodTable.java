@@ -0,0 +1,243 @@
+package rmi;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Numbered list of the methods of a remote interface.
+ *
+ * <p>
+ * When a stub connects, the skeleton sends it the signatures of the methods
+ * it serves, in the order of its table. From then on a call names its method
+ * by its position in that list instead of by name and parameter types. The
+ * stub matches the signatures against the methods of its own interface, so
+ * the two sides never have to assume that they number the methods the same
+ * way.
+ *
+ * <p>
+ * On the skeleton side the table also holds a method handle for each method,
+ * made once when the skeleton is constructed. A call by number therefore
+ * needs no reflective lookup and no access check.
+ */
+class MethodTable {
+
+	private final Method[] methods;
+	private final String[] signatures;
+	private final MethodHandle[] handles;
+	private final Class<?>[][] parameters;
+
+	/**
+	 * @param c
+	 *            The remote interface
+	 */
+	MethodTable(Class<?> c) {
+		Method[] all = c.getMethods();
+
+		// sort so that the table does not depend on the order reflection
+		// happens to return the methods in
+		Arrays.sort(all, new Comparator<Method>() {
+			@Override
+			public int compare(Method a, Method b) {
+				return signature(a).compareTo(signature(b));
+			}
+		});
+
+		this.methods = all;
+		this.signatures = new String[all.length];
+		this.handles = new MethodHandle[all.length];
+		this.parameters = new Class<?>[all.length][];
+		for (int i = 0; i < all.length; i++) {
+			signatures[i] = signature(all[i]);
+			handles[i] = handle(all[i]);
+			parameters[i] = all[i].getParameterTypes();
+		}
+	}
+
+	/**
+	 * makes a handle which takes the server object and an array of arguments,
+	 * and returns the boxed result.
+	 *
+	 * @param m
+	 *            A method of the remote interface
+	 * @return the handle, or <code>null</code> if the method cannot be
+	 *         reached that way, in which case calls fall back to reflection
+	 */
+	private static MethodHandle handle(Method m) {
+		MethodHandle h;
+
+		try {
+			h = MethodHandles.publicLookup().unreflect(m);
+		} catch (IllegalAccessException e) {
+			// interfaces that are not public can still be reached once the
+			// method is made accessible
+			try {
+				m.setAccessible(true);
+				h = MethodHandles.publicLookup().unreflect(m);
+			} catch (RuntimeException | IllegalAccessException e1) {
+				return null;
+			}
+		}
+
+		int count = m.getParameterCount();
+		return h.asFixedArity().asType(MethodType.genericMethodType(count + 1))
+				.asSpreader(Object[].class, count);
+	}
+
+	/**
+	 * @param m
+	 *            A method
+	 * @return the name and parameter types of the method, for example
+	 *         <code>read(common.Path,long,int)</code>
+	 */
+	static String signature(Method m) {
+		StringBuilder s = new StringBuilder(m.getName()).append('(');
+		Class<?>[] parameters = m.getParameterTypes();
+		for (int i = 0; i < parameters.length; i++) {
+			if (i > 0) {
+				s.append(',');
+			}
+			s.append(parameters[i].getName());
+		}
+		return s.append(')').toString();
+	}
+
+	/**
+	 * @param index
+	 *            The position of a method in the table
+	 * @return the method, or <code>null</code> if there is no such position
+	 */
+	Method get(int index) {
+		if (index < 0 || index >= methods.length) {
+			return null;
+		}
+		return methods[index];
+	}
+
+	/**
+	 * @param m
+	 *            A method of some interface
+	 * @return the position of the method with the same signature in the
+	 *         table, or -1 if there is none
+	 */
+	int index(Method m) {
+		int i = Arrays.binarySearch(signatures, signature(m));
+		return i < 0 ? -1 : i;
+	}
+
+	/**
+	 * @return the number of methods in the table
+	 */
+	int size() {
+		return methods.length;
+	}
+
+	/**
+	 * runs a method of the table on the server object.
+	 *
+	 * @param index
+	 *            The position of the method in the table
+	 * @param server
+	 *            The object to call the method on
+	 * @param args
+	 *            The arguments, one for each parameter of the method
+	 * @return the result of the method, boxed if it is a primitive, or
+	 *         <code>null</code> for a void method
+	 * @throws InvocationTargetException
+	 *             If the method itself threw; the cause is what it threw
+	 * @throws IllegalAccessException
+	 *             If the method has no handle and cannot be called by
+	 *             reflection either
+	 */
+	Object invoke(int index, Object server, Object[] args)
+			throws InvocationTargetException, IllegalAccessException {
+		MethodHandle h = handles[index];
+
+		// arguments the handle cannot take as they are, such as an int for a
+		// long parameter, are left to reflection to convert or reject
+		if (h == null || !fits(index, server, args)) {
+			return methods[index].invoke(server, args);
+		}
+
+		// the arguments have been checked against the parameter types, so
+		// anything thrown from here on was thrown by the method
+		try {
+			return h.invokeExact(server, args);
+		} catch (Throwable t) {
+			throw new InvocationTargetException(t);
+		}
+	}
+
+	/**
+	 * @return true if every argument is exactly of a type the method takes,
+	 *         so that the handle cannot fail on a cast. A call whose arguments
+	 *         do not fit must not be reported as something the server object
+	 *         threw.
+	 */
+	private boolean fits(int index, Object server, Object[] args) {
+		Class<?>[] types = parameters[index];
+
+		if (!methods[index].getDeclaringClass().isInstance(server)
+				|| args == null || args.length != types.length) {
+			return false;
+		}
+
+		for (int i = 0; i < args.length; i++) {
+			Class<?> p = types[i];
+			if (p.isPrimitive()) {
+				if (args[i] == null) {
+					return false;
+				}
+				p = MethodType.methodType(p).wrap().returnType();
+			}
+			if (args[i] != null && !p.isInstance(args[i])) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * sends the signatures of the table, in order, as the skeleton's half of
+	 * the handshake.
+	 *
+	 * @param out
+	 *            The stream to write to
+	 * @throws IOException
+	 *             If the table cannot be written
+	 */
+	void write(DataOutputStream out) throws IOException {
+		out.writeShort(signatures.length);
+		for (String s : signatures) {
+			out.writeUTF(s);
+		}
+	}
+
+	/**
+	 * reads the signatures sent by a skeleton.
+	 *
+	 * @param in
+	 *            The stream to read from
+	 * @return the position of each signature in the skeleton's table
+	 * @throws IOException
+	 *             If the table cannot be read
+	 */
+	static HashMap<String, Integer> read(DataInputStream in)
+			throws IOException {
+		int count = in.readUnsignedShort();
+		HashMap<String, Integer> positions = new HashMap<String, Integer>();
+		for (int i = 0; i < count; i++) {
+			positions.put(in.readUTF(), i);
+		}
+		return positions;
+	}
+}
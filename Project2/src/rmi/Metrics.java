@@ -0,0 +1,218 @@
+package rmi;
+
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-method metrics of a skeleton, or of all the stubs in the JVM.
+ *
+ * <p>
+ * Every call is counted, with its bytes and timings, against the method it
+ * called. The numbers are live: each <code>MethodMetrics</code> reads its
+ * counters when asked, and its histograms are copied as snapshots. The same
+ * calls are also emitted as <code>rmi.Call</code> flight recorder events when
+ * a recording enables them.
+ */
+public class Metrics {
+
+	/** Metrics of every call made through a stub in this JVM. */
+	static final Metrics stubs = new Metrics("stubs");
+
+	/** Stub metrics by method, so that calls do not build signatures. */
+	private static final ConcurrentHashMap<Method, MethodMetrics> stubMethods = new ConcurrentHashMap<Method, MethodMetrics>();
+
+	/** Thread which writes out metrics for <code>dumpEvery</code>. */
+	private static ScheduledExecutorService dumper = null;
+
+	private final String name;
+	private final ConcurrentHashMap<String, MethodMetrics> methods = new ConcurrentHashMap<String, MethodMetrics>();
+
+	// parts of frames sent compressed, their sizes before and after, and
+	// large parts which did not compress well enough to send compressed
+	private final LongAdder compressedParts = new LongAdder();
+	private final LongAdder bytesBeforeCompression = new LongAdder();
+	private final LongAdder bytesAfterCompression = new LongAdder();
+	private final LongAdder incompressibleParts = new LongAdder();
+
+	/**
+	 * @param name
+	 *            What the metrics are for, as shown in dumps
+	 */
+	Metrics(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @param signature
+	 *            The signature of a method
+	 * @return the metrics of the method, made if there are none yet
+	 */
+	MethodMetrics method(String signature) {
+		MethodMetrics m = methods.get(signature);
+		if (m == null) {
+			m = methods.computeIfAbsent(signature, s -> new MethodMetrics(
+					name, s));
+		}
+		return m;
+	}
+
+	/**
+	 * @param m
+	 *            A method of a remote interface
+	 * @return the stub-side metrics of the method
+	 */
+	static MethodMetrics stub(Method m) {
+		MethodMetrics counted = stubMethods.get(m);
+		if (counted == null) {
+			counted = stubs.method(m.getDeclaringClass().getName() + "."
+					+ MethodTable.signature(m));
+			stubMethods.putIfAbsent(m, counted);
+		}
+		return counted;
+	}
+
+	/**
+	 * counts one part of a frame which compression was tried on.
+	 *
+	 * @param good
+	 *            Whether the part was sent compressed
+	 * @param before
+	 *            The size of the part
+	 * @param after
+	 *            The size it was sent with, if compressed
+	 */
+	void compressed(boolean good, long before, long after) {
+		if (good) {
+			compressedParts.increment();
+			bytesBeforeCompression.add(before);
+			bytesAfterCompression.add(after);
+		} else {
+			incompressibleParts.increment();
+		}
+	}
+
+	/**
+	 * @return the number of frame parts sent compressed
+	 */
+	public long compressedParts() {
+		return compressedParts.sum();
+	}
+
+	/**
+	 * @return the number of large frame parts sent as they were, because
+	 *         they did not compress well
+	 */
+	public long incompressibleParts() {
+		return incompressibleParts.sum();
+	}
+
+	/**
+	 * @return the size of the parts sent compressed, before compression
+	 */
+	public long bytesBeforeCompression() {
+		return bytesBeforeCompression.sum();
+	}
+
+	/**
+	 * @return the size of the parts sent compressed, after compression
+	 */
+	public long bytesAfterCompression() {
+		return bytesAfterCompression.sum();
+	}
+
+	/**
+	 * @return the compressed size of the parts sent compressed, as a share of
+	 *         their original size, or 1 if none were
+	 */
+	public double compressionRatio() {
+		long before = bytesBeforeCompression();
+		return before == 0 ? 1 : (double) bytesAfterCompression() / before;
+	}
+
+	/**
+	 * @return what the metrics are for
+	 */
+	public String name() {
+		return name;
+	}
+
+	/**
+	 * @return the metrics of every method, by signature. A skeleton lists all
+	 *         the methods it serves; stubs list the methods called so far.
+	 */
+	public List<MethodMetrics> methods() {
+		List<MethodMetrics> all = new ArrayList<MethodMetrics>(
+				methods.values());
+		Collections.sort(all, Comparator.comparing(MethodMetrics::method));
+		return all;
+	}
+
+	/**
+	 * @param signature
+	 *            The signature of a method, as given by
+	 *            <code>MethodMetrics.method</code>
+	 * @return the metrics of the method, or <code>null</code> if it has not
+	 *         been called
+	 */
+	public MethodMetrics get(String signature) {
+		return methods.get(signature);
+	}
+
+	/**
+	 * writes the metrics to a stream at a fixed rate, from a daemon thread,
+	 * until the returned future is cancelled.
+	 *
+	 * @param period
+	 *            Time between dumps
+	 * @param unit
+	 *            Unit of <code>period</code>
+	 * @param out
+	 *            The stream to write to, for example <code>System.err</code>
+	 * @return a future which stops the dumps when cancelled
+	 */
+	public ScheduledFuture<?> dumpEvery(long period, TimeUnit unit,
+			PrintStream out) {
+		return dumper().scheduleAtFixedRate(() -> out.println(this), period,
+				period, unit);
+	}
+
+	private static synchronized ScheduledExecutorService dumper() {
+		if (dumper == null) {
+			dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "rmi metrics");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		return dumper;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder("rmi metrics: ").append(name);
+		if (compressedParts() > 0 || incompressibleParts() > 0) {
+			s.append(String.format(
+					"\n  compression: %dB -> %dB (ratio %.2f) in %d parts,"
+							+ " %d parts incompressible",
+					bytesBeforeCompression(), bytesAfterCompression(),
+					compressionRatio(), compressedParts(),
+					incompressibleParts()));
+		}
+		for (MethodMetrics m : methods()) {
+			if (m.calls() > 0) {
+				s.append("\n  ").append(m);
+			}
+		}
+		return s.toString();
+	}
+}
@@ -0,0 +1,63 @@
+package rmi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.reflect.Method;
+
+/**
+ * Puts a method of a remote interface in a priority class.
+ *
+ * <p>
+ * A skeleton may be given a dispatcher for each class with
+ * <code>setDispatcher(Level, Dispatcher)</code>. Calls to the methods of a
+ * class then wait in that dispatcher's queue and run on its workers only, so
+ * a class of slow calls which fills its own workers cannot hold up the calls
+ * of another class. A class with no dispatcher of its own uses the
+ * skeleton's main dispatcher.
+ *
+ * <p>
+ * Methods which are not marked are <code>NORMAL</code>. The elements of a
+ * streamed result are pulled in the class of the method which returned it.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Priority {
+
+	/**
+	 * The priority classes.
+	 */
+	public enum Level {
+		/**
+		 * Short calls that others may be waiting on, such as releasing a
+		 * lock or reading metadata.
+		 */
+		HIGH,
+		/**
+		 * Everything not marked otherwise.
+		 */
+		NORMAL,
+		/**
+		 * Bulk or background work, which may wait behind the rest.
+		 */
+		LOW;
+
+		/**
+		 * @param m
+		 *            A method of a remote interface
+		 * @return the class the method is marked with, or <code>NORMAL</code>
+		 */
+		static Level of(Method m) {
+			Priority marked = m.getAnnotation(Priority.class);
+			return marked == null ? NORMAL : marked.value();
+		}
+	}
+
+	/**
+	 * @return the priority class of the method
+	 */
+	Level value();
+}
@@ -0,0 +1,26 @@
+package rmi;
+
+/** RMI exception thrown when a skeleton turns a call away because it is
+    overloaded.
+
+    <p>
+    The call was not run, so it may safely be made again. Callers should wait
+    a little before they do, and longer after each further rejection, so that
+    the server has a chance to catch up.
+ */
+public class RMIOverloadException extends RMIException
+{
+    /** Creates an <code>RMIOverloadException</code> with the given message
+        string. */
+    public RMIOverloadException(String message)
+    {
+        super(message);
+    }
+
+    /** Creates an <code>RMIOverloadException</code> with a message string and
+        the given cause. */
+    public RMIOverloadException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,24 @@
+package rmi;
+
+/** RMI exception thrown when a call does not complete before its deadline.
+
+    <p>
+    The call may or may not have run on the server. If it had not started by
+    the time its deadline passed, the skeleton dropped it without running it.
+ */
+public class RMITimeoutException extends RMIException
+{
+    /** Creates an <code>RMITimeoutException</code> with the given message
+        string. */
+    public RMITimeoutException(String message)
+    {
+        super(message);
+    }
+
+    /** Creates an <code>RMITimeoutException</code> with a message string and
+        the given cause. */
+    public RMITimeoutException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+}
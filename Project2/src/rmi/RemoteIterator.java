@@ -0,0 +1,176 @@
+package rmi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The stub's end of a streamed result.
+ *
+ * <p>
+ * The elements arrive in chunks pulled from the skeleton. As soon as one
+ * chunk arrives the next is asked for, so the next chunk is usually there by
+ * the time the caller needs it, but at most two chunks are held at a time, no
+ * matter how long the result. If a pull fails, <code>hasNext</code> and
+ * <code>next</code> throw an <code>UncheckedRMIException</code>.
+ *
+ * <p>
+ * A caller which stops reading before the end should close the iterator, so
+ * that the skeleton can let go of its end at once. Otherwise the skeleton
+ * drops the stream after it has been idle for a while.
+ *
+ * @param <E>
+ *            The type of the elements
+ */
+class RemoteIterator<E> implements Iterator<E>, AutoCloseable {
+
+	/** Elements asked for in each pull. */
+	static final int CHUNK = 1024;
+
+	private final Connection connection;
+	/** The timeout of the stub which made the call, or zero for none. */
+	private final long timeout;
+	private int id;
+	private Object[] elements;
+	private int position = 0;
+	private boolean more;
+	/** The chunk asked for but not used yet, or <code>null</code>. */
+	private CompletableFuture<Frame> next = null;
+
+	/**
+	 * @param connection
+	 *            The connection the call was made on
+	 * @param first
+	 *            The response to the call, carrying the first chunk
+	 * @param timeout
+	 *            The timeout of the stub in nanoseconds, or zero for none
+	 * @throws RMIException
+	 *             If the first chunk cannot be read
+	 */
+	RemoteIterator(Connection connection, Frame first, long timeout)
+			throws RMIException {
+		this.connection = connection;
+		this.timeout = timeout;
+		read(first);
+	}
+
+	/**
+	 * takes in a chunk, and asks for the one after it if there is one.
+	 */
+	private void read(Frame chunk) throws RMIException {
+		more = false;
+		try {
+			DataInputStream in = Codec.reader(Compression.inflate(chunk));
+			if (chunk.type == Frame.EXCEPTION) {
+				Object failure = Codec.read(in);
+				throw failure instanceof RMIException ? (RMIException) failure
+						: new RMIException("stream failed",
+								(Throwable) failure);
+			}
+			if (chunk.type != Frame.STREAM) {
+				throw new RMIException("unexpected frame type " + chunk.type
+						+ " in stream");
+			}
+
+			id = in.readInt();
+			int count = in.readInt();
+			if (count < 0 || count > in.available()) {
+				throw new IOException("bad element count " + count);
+			}
+			elements = new Object[count];
+			for (int i = 0; i < elements.length; i++) {
+				elements[i] = Codec.read(in);
+			}
+			more = in.readBoolean();
+			position = 0;
+		} catch (IOException | ClassNotFoundException e) {
+			throw new RMIException("bad chunk in stream", e);
+		}
+
+		if (more) {
+			next = connection.send(pull(id, CHUNK));
+		}
+	}
+
+	/**
+	 * @return a frame which pulls up to <code>max</code> elements, or closes
+	 *         the stream if <code>max</code> is zero
+	 */
+	private static Frame pull(int id, int max) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(8);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(id);
+			out.writeInt(max);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return new Frame(Frame.NEXT, 0, bytes.toByteArray());
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (position == elements.length) {
+			if (!more) {
+				return false;
+			}
+
+			CompletableFuture<Frame> pending = next;
+			next = null;
+			try {
+				long wait = Deadline.remaining(timeout);
+				read(wait == Deadline.NONE ? pending.get() : pending.get(
+						Math.max(wait, 0), TimeUnit.NANOSECONDS));
+			} catch (RMIException e) {
+				throw new UncheckedRMIException(e);
+			} catch (TimeoutException e) {
+				pending.cancel(false);
+				more = false;
+				throw new UncheckedRMIException(new RMITimeoutException(
+						"no chunk of stream " + id + " in time"));
+			} catch (ExecutionException e) {
+				more = false;
+				throw new UncheckedRMIException(new RMIException(
+						"stream broken", e.getCause()));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				more = false;
+				throw new UncheckedRMIException(new RMIException(
+						"interrupted while reading stream", e));
+			}
+		}
+		return true;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public E next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		E e = (E) elements[position];
+		elements[position++] = null;
+		return e;
+	}
+
+	/**
+	 * stops reading the stream. The skeleton is told to let go of its end,
+	 * without waiting for it to answer.
+	 */
+	@Override
+	public void close() {
+		if (more) {
+			more = false;
+			elements = new Object[0];
+			position = 0;
+			connection.send(pull(id, 0));
+		}
+	}
+}
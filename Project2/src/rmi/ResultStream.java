@@ -0,0 +1,122 @@
+package rmi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * The skeleton's end of a streamed result.
+ *
+ * <p>
+ * When a remote method returns an <code>Iterator</code>, the skeleton keeps
+ * the iterator and sends its elements to the stub in chunks, one chunk each
+ * time the stub pulls. Elements are taken from the iterator only as the
+ * chunks are made, so a result of any size is never held whole, and a stub
+ * which reads slowly only slows the iterator down.
+ *
+ * <p>
+ * A chunk ends at the number of elements the stub asked for, or once it has
+ * grown to <code>CHUNK_BYTES</code>, whichever comes first.
+ */
+class ResultStream {
+
+	/** Size at which a chunk is sent, even if fewer elements were asked for. */
+	static final int CHUNK_BYTES = 64 * 1024;
+
+	final int id;
+	/** The connection of the stub reading the stream. */
+	final Link link;
+	/** The priority class its pulls are dispatched in. */
+	final Priority.Level level;
+	private final Iterator<?> source;
+	private volatile long lastUsed = System.nanoTime();
+
+	/**
+	 * @param id
+	 *            The id of the stream within its skeleton
+	 * @param link
+	 *            The connection of the stub which made the call
+	 * @param level
+	 *            The priority class of the method which returned it
+	 * @param source
+	 *            The iterator returned by the server object
+	 */
+	ResultStream(int id, Link link, Priority.Level level, Iterator<?> source) {
+		this.id = id;
+		this.link = link;
+		this.level = level;
+		this.source = source;
+	}
+
+	/**
+	 * takes the next elements from the iterator and encodes them.
+	 *
+	 * @param max
+	 *            The most elements to take
+	 * @return the body of a <code>STREAM</code> frame
+	 * @throws IOException
+	 *             If an element cannot be encoded
+	 * @throws RuntimeException
+	 *             If the iterator throws
+	 */
+	synchronized byte[] chunk(int max) throws IOException {
+		lastUsed = System.nanoTime();
+
+		ByteArrayOutputStream elements = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(elements);
+		int count = 0;
+		while (count < max && elements.size() < CHUNK_BYTES
+				&& source.hasNext()) {
+			Codec.write(out, source.next());
+			count++;
+		}
+		out.flush();
+
+		return body(id, count, elements.toByteArray(), source.hasNext());
+	}
+
+	/**
+	 * @return true if the stream has not been pulled from since the given
+	 *         time
+	 */
+	boolean idleSince(long cutoff) {
+		return lastUsed - cutoff < 0;
+	}
+
+	/**
+	 * closes the iterator, if it can be closed.
+	 */
+	void close() {
+		if (source instanceof AutoCloseable) {
+			try {
+				((AutoCloseable) source).close();
+			} catch (Exception e) {
+			}
+		}
+	}
+
+	/**
+	 * @param id
+	 *            The id of the stream
+	 * @param count
+	 *            The number of elements
+	 * @param elements
+	 *            The encoded elements
+	 * @param more
+	 *            Whether more elements follow
+	 * @return the body of a <code>STREAM</code> frame
+	 */
+	static byte[] body(int id, int count, byte[] elements, boolean more)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+				elements.length + 16);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(id);
+		out.writeInt(count);
+		out.write(elements);
+		out.writeBoolean(more);
+		out.flush();
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,429 @@
+package rmi;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Skeleton transport built on non-blocking channels and selectors.
+ *
+ * <p>
+ * A few event loop threads, each with its own selector, do all the accepting,
+ * reading and writing for every connection of the skeleton. The first loop also
+ * accepts new connections and hands them out to the loops in turn. Each call,
+ * once its frame has been read completely, is given to the skeleton, which
+ * passes it on to its dispatcher. A connection that is idle, or a stub that is
+ * slow to send, therefore holds no thread at all.
+ *
+ * <p>
+ * Responses are written directly by the thread that produced them when the
+ * connection can take them at once. Otherwise they are queued and the loop
+ * writes them out as the connection drains. A stub which sends calls faster
+ * than it reads their responses is not allowed to make the queue grow without
+ * bound: once more than <code>QUEUE_LIMIT</code> bytes are queued, the loop
+ * stops reading from the connection until the queue has drained below it.
+ * Frames are read into buffers of the length they declare, which is checked
+ * against <code>Frame.MAX_FRAME</code> first. A call which the skeleton's
+ * admission policy refuses from its header is answered at once and its bytes
+ * are skipped.
+ *
+ * <p>
+ * The loops must never block. A skeleton using this transport therefore
+ * refuses dispatchers with the <code>CALLER_RUNS</code> or <code>BLOCK</code>
+ * rejection policies, as those would stall every connection on the loop.
+ */
+class SelectorServer {
+
+	/** Bytes of queued responses past which a connection is not read. */
+	static final int QUEUE_LIMIT = 4 * 1024 * 1024;
+
+	private final Skeleton<?> skeleton;
+	private final ServerSocketChannel channel;
+	private final Loop[] loops;
+	private final AtomicInteger next = new AtomicInteger();
+	private volatile boolean closed = false;
+
+	/**
+	 * @param skeleton
+	 *            The skeleton to give calls to
+	 * @param channel
+	 *            The bound listening channel
+	 * @param count
+	 *            The number of event loops
+	 * @throws IOException
+	 *             If the selectors cannot be opened
+	 */
+	SelectorServer(Skeleton<?> skeleton, ServerSocketChannel channel, int count)
+			throws IOException {
+		this.skeleton = skeleton;
+		this.channel = channel;
+		this.loops = new Loop[count];
+
+		try {
+			for (int i = 0; i < count; i++) {
+				loops[i] = new Loop(i);
+			}
+
+			channel.configureBlocking(false);
+			channel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			for (Loop l : loops) {
+				if (l != null) {
+					l.selector.close();
+				}
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * starts the event loops.
+	 *
+	 * @return the thread of the loop that accepts connections. The listening
+	 *         channel is not fully closed until this thread has exited.
+	 */
+	Thread start() {
+		for (Loop l : loops) {
+			l.thread.start();
+		}
+		return loops[0].thread;
+	}
+
+	/**
+	 * tells every loop to exit. Each loop closes its connections and its
+	 * selector on the way out.
+	 */
+	void close() {
+		closed = true;
+		for (Loop l : loops) {
+			l.selector.wakeup();
+		}
+	}
+
+	/**
+	 * accepts every connection waiting on the listening channel, and gives
+	 * each to one of the loops.
+	 */
+	private void accept() {
+		while (true) {
+			SocketChannel client;
+
+			try {
+				client = channel.accept();
+				if (client == null) {
+					return;
+				}
+				client.configureBlocking(false);
+				client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			} catch (IOException e) {
+				if (closed) {
+					return;
+				}
+				if (!skeleton.listen_error(e)) {
+					skeleton.listenFailed(channel.socket(), e);
+				}
+				return;
+			}
+
+			Loop l = loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+			l.incoming.add(client);
+			l.selector.wakeup();
+		}
+	}
+
+	/**
+	 * One event loop: a thread and the selector it waits on.
+	 */
+	private class Loop implements Runnable {
+		private final Selector selector;
+		private final Thread thread;
+		private final ConcurrentLinkedQueue<SocketChannel> incoming = new ConcurrentLinkedQueue<SocketChannel>();
+
+		Loop(int index) throws IOException {
+			this.selector = Selector.open();
+			this.thread = new Thread(this, "rmi selector " + index);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!closed) {
+					selector.select();
+
+					// connections accepted by the first loop for this one
+					SocketChannel client;
+					while ((client = incoming.poll()) != null) {
+						ChannelLink link = new ChannelLink(client);
+						try {
+							link.key = client.register(selector,
+									SelectionKey.OP_READ, link);
+							skeleton.connected(link);
+						} catch (IOException e) {
+							link.close();
+						}
+					}
+
+					Iterator<SelectionKey> i = selector.selectedKeys()
+							.iterator();
+					while (i.hasNext()) {
+						SelectionKey key = i.next();
+						i.remove();
+
+						if (!key.isValid()) {
+							continue;
+						}
+
+						if (key.isAcceptable()) {
+							accept();
+							continue;
+						}
+
+						ChannelLink link = (ChannelLink) key.attachment();
+						if (key.isReadable()) {
+							link.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							link.write();
+						}
+					}
+				}
+			} catch (IOException e) {
+				if (!closed) {
+					if (this == loops[0]) {
+						skeleton.listenFailed(channel.socket(), e);
+					} else {
+						skeleton.service_error(new RMIException(
+								"selector failed", e));
+					}
+				}
+			} finally {
+				for (SelectionKey key : new ArrayList<SelectionKey>(selector
+						.keys())) {
+					if (key.attachment() instanceof ChannelLink) {
+						((ChannelLink) key.attachment()).close();
+					}
+				}
+
+				SocketChannel client;
+				while ((client = incoming.poll()) != null) {
+					try {
+						client.close();
+					} catch (IOException e) {
+					}
+				}
+
+				// closing the selector deregisters the listening channel,
+				// which is what finally releases the port
+				try {
+					selector.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * One connection from a stub. Reading and queued writes happen on the
+	 * loop's thread; direct writes happen on whichever thread responds.
+	 */
+	private class ChannelLink implements Link {
+		private final SocketChannel client;
+		private SelectionKey key;
+		/** The length, type and id at the start of a frame. */
+		private final ByteBuffer header = ByteBuffer.allocate(4 + Frame.HEADER);
+		private ByteBuffer content = null;
+		/** Bytes left of a frame which was refused from its header. */
+		private int skip = 0;
+		private ByteBuffer discard = null;
+		private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+		/** Bytes left to write in <code>pending</code>. Guarded by this. */
+		private long queued = 0;
+
+		ChannelLink(SocketChannel client) {
+			this.client = client;
+		}
+
+		/**
+		 * reads as much as the connection has, and gives every complete call
+		 * to the skeleton.
+		 */
+		void read() {
+			try {
+				while (true) {
+					// too many responses are waiting to be written
+					if ((key.interestOps() & SelectionKey.OP_READ) == 0) {
+						return;
+					}
+
+					if (skip > 0) {
+						if (discard == null) {
+							discard = ByteBuffer.allocate(8192);
+						}
+						discard.clear();
+						discard.limit(Math.min(skip, discard.capacity()));
+						int n = client.read(discard);
+						if (n < 0) {
+							throw new EOFException("connection closed in frame");
+						}
+						skip -= n;
+						if (skip > 0) {
+							return;
+						}
+						continue;
+					}
+
+					if (content == null) {
+						int n = client.read(header);
+
+						if (n < 0 && header.position() == 0) {
+							// the stub closed the connection between frames
+							close();
+							return;
+						}
+						if (n < 0) {
+							throw new EOFException("connection closed in frame");
+						}
+						if (header.hasRemaining()) {
+							return;
+						}
+
+						header.flip();
+						int size = header.getInt();
+						byte type = header.get();
+						int id = header.getInt();
+						header.clear();
+
+						// the length is bounded by MAX_FRAME, and the call
+						// offered to the admission policy, before anything is
+						// allocated for it
+						if (!Frame.validLength(size)) {
+							throw new IOException("bad frame length " + size);
+						}
+						if (!skeleton.admits(this, Frame.plain(type), id, size)) {
+							skip = size - Frame.HEADER;
+							continue;
+						}
+						content = ByteBuffer.allocate(size);
+						content.put(type).putInt(id);
+					}
+
+					if (client.read(content) < 0) {
+						throw new EOFException("connection closed in frame");
+					}
+					if (content.hasRemaining()) {
+						return;
+					}
+
+					content.flip();
+					Frame request = Frame.decode(content);
+					content = null;
+					skeleton.receive(this, request);
+				}
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+		/**
+		 * writes out queued responses, and stops asking for write readiness
+		 * once there are none left. Reading resumes once the queue is back
+		 * under its limit.
+		 */
+		void write() {
+			synchronized (this) {
+				try {
+					while (!pending.isEmpty()) {
+						ByteBuffer b = pending.peek();
+						int before = b.remaining();
+						client.write(b);
+						queued -= before - b.remaining();
+						if (b.hasRemaining()) {
+							break;
+						}
+						pending.poll();
+					}
+					interest();
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+		}
+
+		/**
+		 * asks for write readiness while responses are queued, and for read
+		 * readiness while the queue is under its limit. Called holding the
+		 * lock of this object.
+		 */
+		private void interest() {
+			int ops = pending.isEmpty() ? 0 : SelectionKey.OP_WRITE;
+			if (queued <= QUEUE_LIMIT) {
+				ops |= SelectionKey.OP_READ;
+			}
+			key.interestOps(ops);
+		}
+
+		@Override
+		public void respond(Frame response) throws IOException {
+			ByteBuffer[] b = response.encode();
+
+			synchronized (this) {
+				if (!client.isOpen()) {
+					throw new ClosedChannelException();
+				}
+
+				// responses must go out in the order they were queued, so only
+				// write directly when nothing is waiting. The header, body and
+				// any segments go out in one gathering write.
+				if (pending.isEmpty()) {
+					client.write(b);
+					if (!b[b.length - 1].hasRemaining()) {
+						return;
+					}
+				}
+
+				for (ByteBuffer part : b) {
+					if (part.hasRemaining()) {
+						pending.add(part);
+						queued += part.remaining();
+					}
+				}
+				interest();
+			}
+
+			key.selector().wakeup();
+		}
+
+		/**
+		 * @param e
+		 *            The reason the connection failed. Reported to the
+		 *            skeleton if it is still running.
+		 */
+		private void fail(IOException e) {
+			if (skeleton.isRunning() && client.isOpen()) {
+				skeleton.service_error(new RMIException(
+						"connection to stub failed", e));
+			}
+			close();
+		}
+
+		@Override
+		public void close() {
+			skeleton.disconnected(this);
+			try {
+				client.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
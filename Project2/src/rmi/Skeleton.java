@@ -1,12 +1,29 @@
 package rmi;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * RMI skeleton
@@ -37,6 +54,30 @@ import java.net.*;
  */
 public class Skeleton<T> implements Serializable {
 
+	/**
+	 * The ways a skeleton can serve its connections.
+	 */
+	public enum Transport {
+		/**
+		 * A thread blocks in <code>accept</code>, and every connection has a
+		 * thread of its own blocked reading calls from it. This is the
+		 * default.
+		 */
+		BLOCKING,
+		/**
+		 * A few event loop threads serve all the connections with
+		 * non-blocking channels. Idle and slow connections hold no threads.
+		 */
+		SELECTOR
+	}
+
+	/** Time after which a streamed result nobody pulls from is dropped. */
+	private static final long STREAM_IDLE = TimeUnit.MINUTES.toNanos(2);
+
+	/** Number of event loops used by the <code>SELECTOR</code> transport. */
+	private static final int SELECTOR_LOOPS = Math.max(1, Runtime
+			.getRuntime().availableProcessors() / 2);
+
 	/**
 	 * Creates a <code>Skeleton</code> with no initial server address. The
 	 * address will be determined by the system when <code>start</code> is
@@ -65,7 +106,47 @@ public class Skeleton<T> implements Serializable {
 	private T server;
 	private InetSocketAddress address = null;
 	public ServerSocket listenSocket = null;
-	private boolean start = false;
+	private volatile boolean start = false;
+	private Set<Link> connections = ConcurrentHashMap.newKeySet();
+	/** Connections which agreed to compression, and their compressors. */
+	private ConcurrentHashMap<Link, Compression> compressing = new ConcurrentHashMap<Link, Compression>();
+	/** Streamed results still being read, by stream id. */
+	private ConcurrentHashMap<Integer, ResultStream> streams = new ConcurrentHashMap<Integer, ResultStream>();
+	private AtomicInteger nextStream = new AtomicInteger();
+	private volatile Dispatcher dispatcher = Dispatcher.threadPerCall();
+	/** The dispatcher of each priority class, or null to use the main one. */
+	private final AtomicReferenceArray<Dispatcher> dispatchers = new AtomicReferenceArray<Dispatcher>(
+			Priority.Level.values().length);
+	private volatile Admission admission = Admission.unlimited();
+	/** Whether the skeleton has stopped taking new calls ahead of stopping. */
+	private volatile boolean draining = false;
+	/** Calls taken on which are not done yet. */
+	private final AtomicInteger inFlight = new AtomicInteger();
+	/** Calls taken on which are done. */
+	private final AtomicLong completed = new AtomicLong();
+	/** Calls turned away since the skeleton stopped taking new ones. */
+	private final AtomicLong refused = new AtomicLong();
+	/** When the skeleton stopped taking new calls, in nanoseconds. */
+	private long drainStarted;
+	/** Calls done before the skeleton stopped taking new ones. */
+	private long completedBefore;
+	private Thread listeningThread = null;
+	private Transport transport = Transport.BLOCKING;
+	private SelectorServer selectorServer = null;
+	/** The Unix domain socket stubs on this host connect to, or null. */
+	private ServerSocketChannel unixSocket = null;
+	private MethodTable table;
+	private Metrics metrics;
+	/** Metrics of each method of the table, by position. */
+	private MethodMetrics[] methodMetrics;
+	/**
+	 * For each method of the table, nanoseconds to keep its results for if
+	 * it is idempotent, or -1 if it is not.
+	 */
+	private long[] idempotent;
+	/** The priority class of each method of the table, by position. */
+	private Priority.Level[] levels;
+	private Coalescer coalescer = new Coalescer();
 
 	public Skeleton(Class<T> c, T server) {
 
@@ -75,28 +156,12 @@ public class Skeleton<T> implements Serializable {
 		}
 
 		// checks if all the methods in the interface throw RMIException
-
-		Method[] allMethods = c.getDeclaredMethods();
-
-		int count = 0;
-
-		for (Method m : allMethods) {
-			Class[] exceptions = m.getExceptionTypes();
-			for (Class e : exceptions) {
-				if (e.getSimpleName().equals("RMIException")) {
-					count++;
-				}
-			}
-
-			if (count == 0) {
-				throw new Error("not all methods are RMI Exceptions");
-			}
-
-			count = 0;
-		}
+		Stub.checkRemote(c);
 
 		this.interFace = c;
 		this.server = server;
+		this.table = new MethodTable(c);
+		instrument();
 
 	}
 
@@ -130,28 +195,114 @@ public class Skeleton<T> implements Serializable {
 					"interface and server class cannot be null");
 		}
 
+		Stub.checkRemote(c);
+
 		this.address = address;
 		this.interFace = c;
 		this.server = server;
+		this.table = new MethodTable(c);
+		instrument();
+	}
 
-		Method[] allMethods = c.getDeclaredMethods();
+	/**
+	 * Creates a <code>Skeleton</code> with no initial server address which
+	 * serves its connections with the given transport.
+	 * 
+	 * @param c
+	 *            An object representing the class of the interface for which
+	 *            the skeleton server is to handle method call requests.
+	 * @param server
+	 *            An object implementing said interface. Requests for method
+	 *            calls are forwarded by the skeleton to this object.
+	 * @param transport
+	 *            How the skeleton accepts and serves connections.
+	 * @throws Error
+	 *             If <code>c</code> does not represent a remote interface - an
+	 *             interface whose methods are all marked as throwing
+	 *             <code>RMIException</code>.
+	 * @throws NullPointerException
+	 *             If any of <code>c</code>, <code>server</code> or
+	 *             <code>transport</code> is <code>null</code>.
+	 */
+	public Skeleton(Class<T> c, T server, Transport transport) {
+		this(c, server, null, transport);
+	}
 
-		int count = 0;
+	/**
+	 * Creates a <code>Skeleton</code> with the given initial server address
+	 * which serves its connections with the given transport.
+	 * 
+	 * @param c
+	 *            An object representing the class of the interface for which
+	 *            the skeleton server is to handle method call requests.
+	 * @param server
+	 *            An object implementing said interface. Requests for method
+	 *            calls are forwarded by the skeleton to this object.
+	 * @param address
+	 *            The address at which the skeleton is to run. If
+	 *            <code>null</code>, the address will be chosen by the system
+	 *            when <code>start</code> is called.
+	 * @param transport
+	 *            How the skeleton accepts and serves connections.
+	 * @throws Error
+	 *             If <code>c</code> does not represent a remote interface - an
+	 *             interface whose methods are all marked as throwing
+	 *             <code>RMIException</code>.
+	 * @throws NullPointerException
+	 *             If any of <code>c</code>, <code>server</code> or
+	 *             <code>transport</code> is <code>null</code>.
+	 */
+	public Skeleton(Class<T> c, T server, InetSocketAddress address,
+			Transport transport) {
+		this(c, server, address);
 
-		for (Method m : allMethods) {
-			Class[] exceptions = m.getExceptionTypes();
-			for (Class e : exceptions) {
+		if (transport == null) {
+			throw new NullPointerException("transport cannot be null");
+		}
 
-				if (e.getSimpleName().equals("RMIException")) {
-					count++;
-				}
-			}
+		this.transport = transport;
+	}
 
-			if (count == 0) {
-				throw new Error("not all methods are RMI Exceptions");
-			}
+	/**
+	 * @return the transport the skeleton serves its connections with
+	 */
+	public Transport getTransport() {
+		return this.transport;
+	}
+
+	/**
+	 * Returns the metrics of the calls served by this skeleton: for each
+	 * method, the number of calls and errors, the bytes received and sent, and
+	 * histograms of the time calls waited for the dispatcher and the time the
+	 * server object took.
+	 * 
+	 * @return the skeleton's metrics
+	 */
+	public Metrics getMetrics() {
+		return this.metrics;
+	}
+
+	/**
+	 * makes the metrics of every method in the table, so that counting a call
+	 * needs no lookup.
+	 */
+	private void instrument() {
+		this.metrics = new Metrics("skeleton " + interFace.getName());
+		this.methodMetrics = new MethodMetrics[table.size()];
+		this.idempotent = new long[table.size()];
+		this.levels = new Priority.Level[table.size()];
+		for (int i = 0; i < methodMetrics.length; i++) {
+			methodMetrics[i] = metrics.method(MethodTable.signature(table
+					.get(i)));
 
-			count = 0;
+			Idempotent marked = table.get(i).getAnnotation(Idempotent.class);
+			// a stream belongs to the connection it was opened on, so
+			// methods returning one cannot be shared
+			boolean sharable = marked != null
+					&& table.get(i).getReturnType() != Iterator.class;
+			idempotent[i] = sharable ? TimeUnit.MILLISECONDS.toNanos(marked
+					.ttl()) : -1;
+			levels[i] = Priority.Level.of(table.get(i));
 		}
 	}
 
@@ -169,6 +320,154 @@ public class Skeleton<T> implements Serializable {
 		return this.address;
 	}
 
+	/**
+	 * Sets the dispatcher which runs the calls received by the skeleton.
+	 * 
+	 * <p>
+	 * Unless this method is called, the skeleton starts a new thread for each
+	 * call. The dispatcher may be changed while the skeleton is running; calls
+	 * already handed to the old dispatcher are still run by it.
+	 * 
+	 * @param dispatcher
+	 *            The dispatcher to use.
+	 * @throws NullPointerException
+	 *             If <code>dispatcher</code> is <code>null</code>.
+	 * @throws IllegalArgumentException
+	 *             If the skeleton uses the <code>SELECTOR</code> transport and
+	 *             the dispatcher has the <code>CALLER_RUNS</code> or
+	 *             <code>BLOCK</code> rejection policy.
+	 */
+	public void setDispatcher(Dispatcher dispatcher) {
+		if (dispatcher == null) {
+			throw new NullPointerException("dispatcher cannot be null");
+		}
+		checkNonBlocking(dispatcher);
+
+		this.dispatcher = dispatcher;
+	}
+
+	/**
+	 * @return the dispatcher which runs the calls received by the skeleton
+	 */
+	public Dispatcher getDispatcher() {
+		return this.dispatcher;
+	}
+
+	/**
+	 * Sets the dispatcher which runs the calls of one priority class.
+	 * 
+	 * <p>
+	 * Calls to the methods marked with the class wait for and run on this
+	 * dispatcher's workers only. Giving each class a bounded dispatcher of its
+	 * own keeps a class whose calls block for long from taking the workers of
+	 * the others. As with <code>setDispatcher(Dispatcher)</code>, this may be
+	 * done while the skeleton is running.
+	 * 
+	 * @param level
+	 *            The priority class.
+	 * @param dispatcher
+	 *            The dispatcher for the class, or <code>null</code> for the
+	 *            class to use the skeleton's main dispatcher again.
+	 * @throws NullPointerException
+	 *             If <code>level</code> is <code>null</code>.
+	 * @throws IllegalArgumentException
+	 *             If the skeleton uses the <code>SELECTOR</code> transport and
+	 *             the dispatcher has the <code>CALLER_RUNS</code> or
+	 *             <code>BLOCK</code> rejection policy.
+	 */
+	public void setDispatcher(Priority.Level level, Dispatcher dispatcher) {
+		if (level == null) {
+			throw new NullPointerException("priority class cannot be null");
+		}
+		if (dispatcher != null) {
+			checkNonBlocking(dispatcher);
+		}
+
+		dispatchers.set(level.ordinal(), dispatcher);
+	}
+
+	/**
+	 * refuses a dispatcher which could run or hold a call in the thread that
+	 * read it, when that thread is an event loop serving every connection.
+	 */
+	private void checkNonBlocking(Dispatcher dispatcher) {
+		if (transport == Transport.SELECTOR && dispatcher.blocksCaller()) {
+			throw new IllegalArgumentException("the SELECTOR transport "
+					+ "needs a dispatcher with the REJECT policy");
+		}
+	}
+
+	/**
+	 * @param level
+	 *            A priority class
+	 * @return the dispatcher which runs the calls of the class
+	 */
+	public Dispatcher getDispatcher(Priority.Level level) {
+		Dispatcher d = dispatchers.get(level.ordinal());
+		return d != null ? d : this.dispatcher;
+	}
+
+	/**
+	 * Sets the policy which decides which calls the skeleton takes on.
+	 * 
+	 * <p>
+	 * Calls the policy refuses are answered at once with an
+	 * <code>RMIOverloadException</code>, without being run. Unless this method
+	 * is called, every call is taken on. The policy may be changed while the
+	 * skeleton is running; calls already taken on are counted by the old one
+	 * until they are done.
+	 * 
+	 * @param admission
+	 *            The policy to use.
+	 * @throws NullPointerException
+	 *             If <code>admission</code> is <code>null</code>.
+	 */
+	public void setAdmission(Admission admission) {
+		if (admission == null) {
+			throw new NullPointerException("admission policy cannot be null");
+		}
+
+		this.admission = admission;
+	}
+
+	/**
+	 * @return the policy which decides which calls the skeleton takes on
+	 */
+	public Admission getAdmission() {
+		return this.admission;
+	}
+
+	/**
+	 * @return the priority class of a call, found without decoding it. Calls
+	 *         whose method cannot be told from the first bytes are
+	 *         <code>NORMAL</code>.
+	 */
+	private Priority.Level level(Frame request) {
+		byte[] body = request.body;
+		int start = 0;
+		if (request.compressed) {
+			// a body sent as it was starts after its -1 marker
+			if (body.length < 4 || ByteBuffer.wrap(body).getInt() != -1) {
+				return Priority.Level.NORMAL;
+			}
+			start = 4;
+		}
+
+		if (request.type == Frame.CALL && body.length >= start + 2) {
+			int index = ((body[start] & 0xff) << 8) | (body[start + 1] & 0xff);
+			if (index < levels.length) {
+				return levels[index];
+			}
+		} else if (request.type == Frame.NEXT && body.length >= start + 4) {
+			ResultStream stream = streams.get(ByteBuffer.wrap(body, start, 4)
+					.getInt());
+			if (stream != null) {
+				return stream.level;
+			}
+		}
+		return Priority.Level.NORMAL;
+	}
+
 	/**
 	 * Called when the listening thread exits.
 	 * 
@@ -242,103 +541,986 @@ public class Skeleton<T> implements Serializable {
 		if (this.start) {
 			throw new RMIException("The skeleton is already running");
 		}
+		this.draining = false;
 
 		try {
+			if (transport == Transport.SELECTOR) {
+				startSelector();
+				return;
+			}
+
 			// instantiates the listening socket and binds it to the address.
+			// the skeleton closes its connections first when it stops, which
+			// leaves them in TIME_WAIT on this port. Allow the port to be
+			// bound again while they linger.
 			this.listenSocket = new ServerSocket();
+			this.listenSocket.setReuseAddress(true);
 			this.listenSocket.bind(address);
 
-			if (this.address == null) {
+			// a port of zero was chosen by the system as well
+			if (this.address == null || this.address.getPort() == 0) {
 				this.address = (InetSocketAddress) this.listenSocket
 						.getLocalSocketAddress();
 			}
 
-			Thread listeningThread = new Thread(new Listen());
-			listeningThread.start();
+			// the flag has to be up before the listening thread first checks
+			// it
 			this.start = true;
+			this.listeningThread = new Thread(new Listen(listenSocket));
+			this.listeningThread.start();
+			LocalCalls.register(this);
+			listenLocally();
 
 		}
 
 		catch (Exception e) {
-			throw new RMIException("problem with listening socket");
+			this.start = false;
+			throw new RMIException("problem with listening socket", e);
 		}
 
 	}
 
+	/**
+	 * binds a non-blocking listening channel and starts the event loops of
+	 * the <code>SELECTOR</code> transport.
+	 * 
+	 * @throws IOException
+	 *             If the channel cannot be bound or the selectors opened
+	 */
+	private void startSelector() throws IOException {
+		ServerSocketChannel channel = ServerSocketChannel.open();
+
+		try {
+			channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			channel.bind(address);
+			this.selectorServer = new SelectorServer(this, channel,
+					SELECTOR_LOOPS);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		// the adaptor stands in for the listening socket, so that closing it
+		// closes the channel
+		this.listenSocket = channel.socket();
+
+		if (this.address == null || this.address.getPort() == 0) {
+			this.address = (InetSocketAddress) channel.getLocalAddress();
+		}
+
+		this.start = true;
+		this.listeningThread = selectorServer.start();
+		LocalCalls.register(this);
+		listenLocally();
+	}
+
+	/**
+	 * listens on the skeleton's Unix domain socket as well, if it can be
+	 * made. Connections on it are few and local, and are served by a thread
+	 * each whatever the transport.
+	 */
+	private void listenLocally() {
+		this.unixSocket = UnixSockets.listen(address);
+		if (unixSocket != null) {
+			Thread t = new Thread(new ListenLocal(unixSocket),
+					"rmi unix socket " + address.getPort());
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
 	/**
 	 * Stops the skeleton server, if it is already running.
 	 * 
 	 * <p>
-	 * The listening thread terminates. Threads created to service connections
-	 * may continue running until their invocations of the <code>service</code>
-	 * method return. The server stops at some later time; the method
-	 * <code>stopped</code> is called at that point. The server may then be
-	 * restarted.
+	 * The listening thread terminates, and every connection open to a stub is
+	 * closed. Calls that are being serviced when the skeleton stops run to
+	 * completion, but their results are not sent. The server stops at some
+	 * later time; the method <code>stopped</code> is called at that point. The
+	 * server may then be restarted.
+	 * 
+	 * <p>
+	 * To let the calls being serviced send their results first, use
+	 * <code>drain</code> instead.
 	 */
 	public synchronized void stop() {
+		shutdown(null);
+	}
+
+	/**
+	 * Stops taking new calls, ahead of stopping the skeleton with
+	 * <code>drain</code>.
+	 * 
+	 * <p>
+	 * The listening sockets are closed, so that no more stubs can connect,
+	 * and every call arriving on a connection already open is refused with an
+	 * <code>RMIOverloadException</code>, so that its stub may try another
+	 * server. Calls already taken on run on and their responses are sent, and
+	 * results already being streamed may still be read. A server made of
+	 * several skeletons quiesces all of them before draining any, so that
+	 * none keeps taking calls while another drains.
+	 * 
+	 * <p>
+	 * Does nothing if the skeleton is not running or already quiesced.
+	 */
+	public synchronized void quiesce() {
+		if (!start || draining) {
+			return;
+		}
+		this.draining = true;
+		this.drainStarted = System.nanoTime();
+		this.completedBefore = completed.get();
+		refused.set(0);
+		LocalCalls.unregister(this);
+
+		// the listening threads take a closed socket for a stop, not an
+		// error
 		try {
+			listenSocket.close();
+		} catch (IOException e) {
+		}
+		if (unixSocket != null) {
+			UnixSockets.unlisten(unixSocket);
+			unixSocket = null;
+		}
+	}
 
-			if (this.start && listenSocket != null) {
-				this.listenSocket.close();
+	/**
+	 * Stops the skeleton server gracefully.
+	 * 
+	 * <p>
+	 * The skeleton stops taking new calls, as by <code>quiesce</code>, and
+	 * waits until every call already taken on is done and every streamed
+	 * result has been read to its end, or until the timeout passes. It then
+	 * stops as by <code>stop</code>. Calls still running at that point are
+	 * abandoned: they run to completion, but their results are not sent.
+	 * 
+	 * <p>
+	 * A call to <code>stop</code> from another thread while the skeleton
+	 * drains ends the wait at once.
+	 * 
+	 * @param timeout
+	 *            The most milliseconds to wait for calls to finish
+	 * @return what became of the calls taken on, counted from the call to
+	 *         <code>quiesce</code>. If the skeleton was not running, nothing
+	 *         is reported.
+	 */
+	public synchronized DrainReport drain(long timeout) {
+		if (!start) {
+			return new DrainReport(0, 0, 0, 0);
+		}
+		quiesce();
+
+		// wait releases the lock, so that stop can still be called meanwhile
+		long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeout));
+		while (start && (inFlight.get() > 0 || !streams.isEmpty())) {
+			long left = TimeUnit.NANOSECONDS.toMillis(deadline
+					- System.nanoTime());
+			if (left <= 0) {
+				break;
 			}
-			stopped(null);
-			this.start = false;
+			try {
+				wait(Math.min(left, 10));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+
+		DrainReport report = new DrainReport(completed.get()
+				- completedBefore, inFlight.get() + streams.size(), refused
+				.get(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+				- drainStarted));
+		if (start) {
+			shutdown(null);
+		}
+		return report;
+	}
+
+	/**
+	 * closes the listening socket and all the connections, and tells the
+	 * subclass that the skeleton stopped.
+	 * 
+	 * @param cause
+	 *            The exception that stopped the skeleton, or <code>null</code>
+	 *            if the skeleton stopped normally.
+	 */
+	private synchronized void shutdown(Throwable cause) {
+		this.start = false;
+		this.draining = false;
+		LocalCalls.unregister(this);
 
+		try {
+			if (listenSocket != null) {
+				this.listenSocket.close();
+			}
 		} catch (IOException e) {
-			stopped(e);
-			e.printStackTrace();
+			if (cause == null) {
+				cause = e;
+			}
+		}
+
+		if (selectorServer != null) {
+			selectorServer.close();
+			selectorServer = null;
+		}
+
+		if (unixSocket != null) {
+			UnixSockets.unlisten(unixSocket);
+			unixSocket = null;
+		}
+
+		for (Link c : connections) {
+			c.close();
 		}
 
+		// a thread blocked in accept keeps the port open until it wakes up,
+		// so wait for it before saying the skeleton stopped. wait releases
+		// the lock in case the listening thread needs it on its way out.
+		Thread listener = this.listeningThread;
+		while (listener != null && listener != Thread.currentThread()
+				&& listener.isAlive()) {
+			try {
+				wait(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+
+		stopped(cause);
 	}
 
 	/**
-	 * This class is for serving a request by one client.
-	 *
+	 * stops the skeleton after <code>listen_error</code> asked for it, unless
+	 * the skeleton has already been stopped or restarted with another socket.
+	 * 
+	 * @param socket
+	 *            The listening socket on which the error occurred
+	 * @param cause
+	 *            The error
+	 */
+	synchronized void listenFailed(ServerSocket socket, Exception cause) {
+		if (start && listenSocket == socket) {
+			shutdown(cause);
+		}
+	}
+
+	/**
+	 * hands a call received on a connection to the dispatcher. If the
+	 * dispatcher refuses it, the stub is told so at once.
+	 * 
+	 * @param connection
+	 *            The connection the call came on
+	 * @param request
+	 *            The call
 	 */
-	private class Service implements Runnable {
+	void receive(Link connection, Frame request) {
+		// the handshake and pings are answered at once, without going
+		// through the dispatcher
+		if (request.type == Frame.HELLO) {
+			try {
+				int offered = request.body.length > 0 ? request.body[0] : 0;
+				int accepted = Compression.isEnabled() ? offered
+						& Compression.FEATURE : 0;
+				if ((accepted & Compression.FEATURE) != 0) {
+					compressing.put(connection, new Compression(metrics));
+				}
+
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				DataOutputStream out = new DataOutputStream(bytes);
+				out.writeByte(accepted);
+				table.write(out);
+				out.flush();
+				connection.respond(new Frame(Frame.HELLO, request.id, bytes
+						.toByteArray()));
+			} catch (IOException e) {
+				connection.close();
+			}
+			return;
+		}
+		if (request.type == Frame.PING) {
+			try {
+				connection.respond(new Frame(Frame.PING, request.id,
+						new byte[0]));
+			} catch (IOException e) {
+				connection.close();
+			}
+			return;
+		}
+
+		Invocation call = new Invocation(connection, request);
+
+		// once the skeleton is draining, only the streams of calls taken on
+		// before are still served
+		if (draining && request.type != Frame.NEXT) {
+			refused.incrementAndGet();
+			call.fail(new RMIOverloadException(
+					"server shutting down, call refused"));
+			return;
+		}
+
+		Admission policy = admission;
+		if (!policy.admit(call.size)) {
+			call.fail(new RMIOverloadException("server overloaded, call rejected"));
+			return;
+		}
+		call.admission = policy;
+		inFlight.incrementAndGet();
+
+		try {
+			getDispatcher(level(request)).dispatch(call);
+		} catch (RejectedExecutionException e) {
+			inFlight.decrementAndGet();
+			policy.finished(call.size, false, -1);
+			call.fail(new RMIOverloadException("server busy, call rejected", e));
+		}
+	}
+
+	/**
+	 * offers a call to the admission policy as soon as its header has been
+	 * read, so that a call the policy would refuse is not read into memory
+	 * first. Such a call is answered with an
+	 * <code>RMIOverloadException</code> at once.
+	 * 
+	 * @param connection
+	 *            The connection the call is coming on
+	 * @param type
+	 *            The type of the frame, without its flags
+	 * @param id
+	 *            The id of the frame
+	 * @param length
+	 *            The length the frame declares
+	 * @return false if the call was refused, and the rest of its frame is to
+	 *         be skipped
+	 */
+	boolean admits(Link connection, byte type, int id, int length) {
+		if (type == Frame.HELLO || type == Frame.PING) {
+			return true;
+		}
+		// the size as receive counts it, including the length itself
+		if (admission.fits(4L + length)) {
+			return true;
+		}
+
+		new Invocation(connection, new Frame(type, id, new byte[0]))
+				.fail(new RMIOverloadException(
+						"server overloaded, call rejected"));
+		return false;
+	}
+
+	/**
+	 * runs a call made through a stub in this JVM, in the caller's thread.
+	 * The call is encoded and its response decoded as if it had come over a
+	 * connection, so that neither side shares objects with the other.
+	 * 
+	 * @param m
+	 *            The method called on the stub
+	 * @param args
+	 *            The arguments, or <code>null</code> for none
+	 * @return the response, or <code>null</code> if the call has to be sent
+	 *         over a connection instead
+	 * @throws IOException
+	 *             If the arguments cannot be encoded
+	 */
+	Frame call(Method m, Object[] args) throws IOException {
+		int index = table.index(m);
+		if (!start || draining || index < 0
+				|| table.get(index).getReturnType() == Iterator.class) {
+			return null;
+		}
+
+		// large arrays are copied into the body rather than sent as segments,
+		// which would share them
+		Frame request = new Frame(Frame.CALL, 0, Codec.encode(index, args));
+		Invocation call = new Invocation(null, request);
+		Admission policy = admission;
+		if (!policy.admit(call.size)) {
+			return call.exception(0, new RMIOverloadException(
+					"server overloaded, call rejected"));
+		}
+
+		inFlight.incrementAndGet();
+		policy.started();
+		try {
+			return call.execute(request, false);
+		} finally {
+			policy.finished(call.size, true, System.nanoTime() - call.arrived);
+			done();
+		}
+	}
+
+	/**
+	 * counts a call taken on as done, whether or not it was answered.
+	 */
+	private void done() {
+		// counted before it leaves the calls in flight, so that a drain
+		// which sees none left also sees it completed
+		completed.incrementAndGet();
+		inFlight.decrementAndGet();
+	}
+
+	/**
+	 * @param connection
+	 *            A connection that was just accepted. It is closed when the
+	 *            skeleton stops.
+	 */
+	void connected(Link connection) {
+		connections.add(connection);
+	}
+
+	/**
+	 * @param connection
+	 *            A connection that has been closed.
+	 */
+	void disconnected(Link connection) {
+		connections.remove(connection);
+		compressing.remove(connection);
+		for (ResultStream s : streams.values()) {
+			if (s.link == connection && streams.remove(s.id, s)) {
+				s.close();
+			}
+		}
+	}
+
+	/**
+	 * This class serves one connection from a stub. It reads the calls coming
+	 * on the connection one by one and hands each to the dispatcher, so that a
+	 * slow call does not hold up the ones behind it. Responses are written back
+	 * on the same connection as each call finishes.
+	 */
+	private class Service implements Runnable, Link, Frame.Gate {
 		private Socket client = null;
+		/** The connection if it came on the Unix domain socket. */
+		private SocketChannel local = null;
+		private DataOutputStream out = null;
 
 		public Service(Socket client) {
 			this.client = client;
 		}
 
+		Service(SocketChannel local) {
+			this.local = local;
+		}
+
+		@Override
+		public void run() {
+
+			try {
+				InputStream input;
+				if (local != null) {
+					input = UnixSockets.input(local);
+					out = new DataOutputStream(new BufferedOutputStream(
+							UnixSockets.output(local)));
+				} else {
+					client.setTcpNoDelay(true);
+					input = client.getInputStream();
+					out = new DataOutputStream(new BufferedOutputStream(
+							client.getOutputStream()));
+				}
+				DataInputStream in = new DataInputStream(
+						new BufferedInputStream(input));
+
+				Frame request;
+				while ((request = Frame.read(in, this)) != null) {
+					receive(this, request);
+				}
+
+			} catch (IOException e) {
+				// a connection reset while the skeleton is running is a
+				// problem of this connection only. Once the skeleton is
+				// stopped, it is how the connection is closed.
+				if (start) {
+					service_error(new RMIException(
+							"connection to stub failed", e));
+				}
+			}
+
+			finally {
+				disconnected(this);
+				close();
+			}
+
+		}
+
+		@Override
+		public boolean admits(byte type, int id, int length) {
+			return Skeleton.this.admits(this, type, id, length);
+		}
+
+		@Override
+		public void respond(Frame response) throws IOException {
+			synchronized (out) {
+				response.write(out);
+				out.flush();
+			}
+		}
+
+		@Override
+		public void close() {
+			try {
+				if (local != null) {
+					local.close();
+				} else {
+					client.close();
+				}
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * This class is for serving one call made by a stub. It unmarshals the
+	 * method and the arguments, calls the method on the server object, and
+	 * sends back what the method returned or threw.
+	 *
+	 */
+	private class Invocation implements Runnable {
+		private Link connection;
+		private Frame request;
+		private final long arrived = System.nanoTime();
+		private long waited;
+		/** The size of the call as received. */
+		private final long size;
+		/** The policy which took the call on, or <code>null</code>. */
+		private Admission admission;
+
+		public Invocation(Link connection, Frame request) {
+			this.connection = connection;
+			this.request = request;
+			this.size = request.size();
+		}
+
 		@Override
-		public synchronized void run() {
+		public void run() {
+			waited = System.nanoTime() - arrived;
 
-			ObjectOutputStream out = null;
+			try {
+				if (admission == null) {
+					serve();
+					return;
+				}
+				admission.started();
+				try {
+					serve();
+				} finally {
+					admission.finished(size, true, System.nanoTime() - arrived);
+				}
+			} finally {
+				// calls sharing the response of this one were answered
+				// before it returns
+				done();
+			}
+		}
 
+		/**
+		 * runs the call and sends its response, unless it has expired.
+		 */
+		private void serve() {
+			// the caller has given up on the call, so it is not run and no
+			// response is sent
+			if (expired()) {
+				return;
+			}
+
+			// compressed calls are expanded here rather than by the thread
+			// reading the connection, which may be serving many others
 			try {
-				// just serve for one thing the client asks
-				out = new ObjectOutputStream(client.getOutputStream());
+				request = Compression.inflate(request);
+			} catch (IOException e) {
+				fail(new RMIException("could not expand call", e));
+				return;
+			}
+
+			if (request.type == Frame.BATCH) {
+				send(batch());
+			} else if (request.type == Frame.NEXT) {
+				send(pull());
+			} else if (!coalesce()) {
+				send(execute(request, true));
+			}
+		}
+
+		/**
+		 * runs a call to an idempotent method together with the identical
+		 * calls in flight, and answers it.
+		 * 
+		 * @return false if the call cannot be shared and is still to be run
+		 */
+		private boolean coalesce() {
+			if (request.type != Frame.CALL || request.segments != null
+					|| request.body.length < 2) {
+				return false;
+			}
+			int index = ((request.body[0] & 0xff) << 8)
+					| (request.body[1] & 0xff);
+			if (index >= idempotent.length || idempotent[index] < 0) {
+				return false;
+			}
+
+			ByteBuffer key = ByteBuffer.wrap(request.body);
+			CompletableFuture<Frame> shared = coalescer.join(key);
+
+			if (shared == null) {
+				Frame response = null;
+				try {
+					response = execute(request, true);
+				} finally {
+					coalescer.finish(key, response != null ? response
+							: exception(request.id, new RMIException(
+									"call failed")), idempotent[index]);
+				}
+				send(response);
+				return true;
+			}
+
+			// the response goes out from the thread of the leading call, and
+			// this thread is free to serve other calls meanwhile
+			MethodMetrics counted = methodMetrics[index];
+			long began = System.nanoTime();
+			shared.thenAccept(response -> {
+				Frame mine = response.withId(request.id);
+				counted.share(response.type == Frame.EXCEPTION,
+						request.size(), mine.size(), waited, System
+								.nanoTime() - began);
+				send(mine);
+			});
+			return true;
+		}
+
+		/**
+		 * runs one call.
+		 * 
+		 * @param request
+		 *            The call
+		 * @param segments
+		 *            Whether a large byte array or buffer result may be sent
+		 *            as a segment of the response
+		 * @return the response to send for it
+		 */
+		private Frame execute(Frame request, boolean segments) {
+
+			Frame response;
+			MethodMetrics counted = null;
+			long began = 0;
+
+			try {
+				Object result;
+				Method method;
+
+				if (request.type == Frame.CALL) {
+					// method number, then the arguments one by one. The
+					// table calls the method through its precompiled handle.
+					DataInputStream in = Codec.reader(request);
+					int index = in.readUnsignedShort();
+					method = table.get(index);
+
+					if (method == null) {
+						throw new RMIException("no method number " + index);
+					}
+					counted = methodMetrics[index];
+
+					Object[] args = new Object[method.getParameterCount()];
+					for (int i = 0; i < args.length; i++) {
+						args[i] = Codec.read(in);
+					}
+
+					began = System.nanoTime();
+					result = table.invoke(index, server, args);
+				}
+
+				else if (request.type == Frame.CALL_BY_NAME) {
+					Object[] call = (Object[]) Frame.deserialize(request.body);
+					String name = (String) call[0];
+					Class<?>[] parameters = (Class<?>[]) call[1];
+					Object[] args = (Object[]) call[2];
+					method = interFace.getMethod(name, parameters);
+					counted = metrics.method(MethodTable.signature(method));
+
+					began = System.nanoTime();
+					result = method.invoke(server, args);
+				}
+
+				else {
+					throw new RMIException("unexpected frame type "
+							+ request.type);
+				}
+
+				if (result instanceof Iterator
+						&& method.getReturnType() == Iterator.class) {
+					// the elements are sent as the stub pulls them, which
+					// cannot be done from inside a batch
+					if (!segments) {
+						close(result);
+						throw new RMIException(
+								"streamed results cannot be batched");
+					}
+					response = open(request.id, Priority.Level.of(method),
+							(Iterator<?>) result);
+				} else if (segments) {
+					ArrayList<ByteBuffer> bulk = new ArrayList<ByteBuffer>();
+					byte[] body = Codec.encode(bulk, -1, new Object[] { result });
+					response = new Frame(Frame.RESULT, request.id, body,
+							bulk.toArray(new ByteBuffer[bulk.size()]));
+				} else {
+					response = new Frame(Frame.RESULT, request.id,
+							Codec.encode(-1, new Object[] { result }));
+				}
+
+			} catch (InvocationTargetException e) {
+				// the server object threw. The stub rethrows it to the client
+				response = exception(request.id, e.getCause());
+
+			} catch (Exception | Error e) {
+				// the call is answered however it failed, or its caller
+				// would wait for ever
+				RMIException error = new RMIException(
+						"could not service call", e);
+				service_error(error);
+				response = exception(request.id, error);
+			}
+
+			if (counted != null) {
+				counted.record(response.type == Frame.EXCEPTION, request
+						.size(), response.size(), waited,
+						began == 0 ? 0 : System.nanoTime() - began);
+			}
+
+			return response;
+		}
+
+		/**
+		 * runs the calls of a batch one after the other, in the order they
+		 * were queued, and collects their responses. Each call succeeds or
+		 * fails on its own.
+		 * 
+		 * @return the response to the whole batch
+		 */
+		private Frame batch() {
+			try {
+				DataInputStream in = Codec.reader(request.body);
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				DataOutputStream out = new DataOutputStream(bytes);
+
+				int count = in.readUnsignedShort();
+				out.writeShort(count);
+				for (int i = 0; i < count; i++) {
+					Frame entry = Frame.readEntry(in, request.id);
+					if (expired()) {
+						exception(request.id, new RMITimeoutException(
+								"batch deadline passed before call " + i
+										+ " ran")).writeEntry(out);
+					} else {
+						execute(entry, false).writeEntry(out);
+					}
+				}
+
 				out.flush();
-				ObjectInputStream in = new ObjectInputStream(
-						client.getInputStream());
+				return new Frame(Frame.BATCH, request.id, bytes.toByteArray());
+
+			} catch (IOException e) {
+				RMIException error = new RMIException(
+						"could not service batch", e);
+				service_error(error);
+				return exception(request.id, error);
+			}
+		}
+
+		/**
+		 * keeps an iterator returned by a call, and answers the call with the
+		 * first chunk of its elements.
+		 * 
+		 * @param id
+		 *            The id of the call
+		 * @param level
+		 *            The priority class of the method which returned it
+		 * @param source
+		 *            The iterator
+		 * @return the response to the call
+		 */
+		private Frame open(int id, Priority.Level level, Iterator<?> source)
+				throws IOException {
+			// streams of stubs which went away without closing them
+			long cutoff = System.nanoTime() - STREAM_IDLE;
+			for (ResultStream s : streams.values()) {
+				if (s.idleSince(cutoff) && streams.remove(s.id, s)) {
+					s.close();
+				}
+			}
+
+			ResultStream stream = new ResultStream(nextStream
+					.incrementAndGet(), connection, level, source);
+			streams.put(stream.id, stream);
+			return chunk(id, stream, RemoteIterator.CHUNK);
+		}
+
+		/**
+		 * answers a pull of a stream with its next chunk.
+		 * 
+		 * @return the response to the pull
+		 */
+		private Frame pull() {
+			ResultStream stream = null;
+			try {
+				DataInputStream in = Codec.reader(request.body);
+				int id = in.readInt();
+				int max = in.readInt();
 
-				String name = (String) in.readObject();
-				Class[] parameters = (Class[]) in.readObject();
-				Object[] args = (Object[]) in.readObject();
-				Method method = interFace.getDeclaredMethod(name, parameters);
-				Object result = method.invoke(server, args);
-				out.writeObject(result);
+				stream = streams.get(id);
+				if (stream == null || stream.link != connection) {
+					throw new RMIException("no stream " + id);
+				}
+
+				if (max <= 0) {
+					streams.remove(id, stream);
+					stream.close();
+					return new Frame(Frame.STREAM, request.id,
+							ResultStream.body(id, 0, new byte[0], false));
+				}
+				return chunk(request.id, stream, max);
 
 			} catch (Exception e) {
+				if (stream != null) {
+					streams.remove(stream.id, stream);
+					stream.close();
+				}
+				return exception(request.id, e);
+			}
+		}
+
+		/**
+		 * takes the next chunk of a stream, and drops the stream once it has
+		 * no more elements.
+		 */
+		private Frame chunk(int id, ResultStream stream, int max)
+				throws IOException {
+			try {
+				byte[] body = stream.chunk(max);
+				if (body[body.length - 1] == 0) {
+					streams.remove(stream.id, stream);
+					stream.close();
+				}
+				return new Frame(Frame.STREAM, id, body);
+			} catch (IOException | RuntimeException e) {
+				streams.remove(stream.id, stream);
+				stream.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * closes an object, if it can be closed.
+		 */
+		private void close(Object o) {
+			if (o instanceof AutoCloseable) {
+				try {
+					((AutoCloseable) o).close();
+				} catch (Exception e) {
+				}
+			}
+		}
+
+		/**
+		 * @return true if the call carries a timeout and it has run out
+		 */
+		private boolean expired() {
+			return request.timeout > 0
+					&& System.nanoTime() - arrived > request.timeout * 1000000L;
+		}
+
+		/**
+		 * answers the call with an exception, without running it.
+		 * 
+		 * @param t
+		 *            The exception to send to the stub
+		 */
+		void fail(Throwable t) {
+			send(exception(request.id, t));
+		}
+
+		/**
+		 * @param response
+		 *            The response to send back on the connection
+		 */
+		private void send(Frame response) {
+			Compression compression = compressing.get(connection);
+			if (compression != null) {
+				response = compression.deflate(response);
+			}
+
+			try {
+				connection.respond(response);
+			} catch (IOException e) {
+				if (start) {
+					service_error(new RMIException("could not send response",
+							e));
+				}
+			}
+		}
+
+		/**
+		 * @param id
+		 *            The id of the call
+		 * @param t
+		 *            The exception to send to the stub
+		 * @return an exception frame for the call. If the exception itself
+		 *         cannot be serialized, the frame carries an RMIException
+		 *         instead
+		 */
+		private Frame exception(int id, Throwable t) {
+			try {
+				return new Frame(Frame.EXCEPTION, id, Codec.encode(
+						-1, new Object[] { t }));
+			} catch (IOException e) {
 				try {
-					out.writeObject(e.getCause());
+					return new Frame(Frame.EXCEPTION, id,
+							Codec.encode(-1, new Object[] { new RMIException(
+									"exception could not be sent: " + t) }));
 				} catch (IOException e1) {
+					throw new IllegalStateException(e1);
 				}
 			}
+		}
+	}
 
-			finally {
+	/**
+	 * This class accepts the connections of stubs on the same host, which
+	 * come on the skeleton's Unix domain socket, and gives each to a service
+	 * thread as <code>Listen</code> does. Failures here never stop the
+	 * skeleton; stubs can still connect over TCP.
+	 */
+	private class ListenLocal implements Runnable {
+		private ServerSocketChannel socket;
+
+		ListenLocal(ServerSocketChannel socket) {
+			this.socket = socket;
+		}
+
+		@Override
+		public void run() {
+			while (start && socket.isOpen()) {
 				try {
-					if (client != null || !client.isClosed()) {
-						client.close();
+					SocketChannel client = socket.accept();
+					Service connection = new Service(client);
+					connected(connection);
+
+					if (!start) {
+						disconnected(connection);
+						connection.close();
+						break;
 					}
-				} catch (IOException e) {
 
+					new Thread(connection).start();
+				} catch (IOException e) {
+					// the socket is given up rather than retried, so that
+					// stubs which find its file are not left waiting
+					if (start && socket.isOpen()) {
+						UnixSockets.unlisten(socket);
+					}
+					break;
 				}
-
 			}
-
 		}
 	}
 
@@ -349,18 +1531,43 @@ public class Skeleton<T> implements Serializable {
 	 *
 	 */
 	private class Listen implements Runnable {
+		private ServerSocket socket;
+
+		public Listen(ServerSocket socket) {
+			this.socket = socket;
+		}
 
 		@Override
-		public synchronized void run() {
+		public void run() {
 			while (start) {
 				try {
 
-					Socket client = listenSocket.accept();
-					Thread serviceThread = new Thread(new Service(client));
+					Socket client = socket.accept();
+					Service connection = new Service(client);
+					connected(connection);
+
+					// the skeleton may have stopped while the connection was
+					// being accepted
+					if (!start) {
+						disconnected(connection);
+						connection.close();
+						break;
+					}
+
+					Thread serviceThread = new Thread(connection);
 					serviceThread.start();
 
 				} catch (IOException e) {
 
+					// closing the socket is how the skeleton is stopped
+					if (!start || socket.isClosed()) {
+						break;
+					}
+
+					if (!listen_error(e)) {
+						listenFailed(socket, e);
+						break;
+					}
 				}
 
 			}
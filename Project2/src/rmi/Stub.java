@@ -1,11 +1,13 @@
 package rmi;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.net.*;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.lang.reflect.Proxy.*;
 
 /**
@@ -23,6 +25,102 @@ import java.lang.reflect.Proxy.*;
  * connect to the same skeleton. Stubs are serializable.
  */
 public abstract class Stub {
+
+	/** Interfaces already found to be remote interfaces. */
+	private static final Set<Class<?>> remote = ConcurrentHashMap.newKeySet();
+
+	/** Constructors of the proxy classes made so far, by interface. */
+	private static final ConcurrentHashMap<Class<?>, Constructor<?>> proxies = new ConcurrentHashMap<Class<?>, Constructor<?>>();
+
+	/**
+	 * checks that every method of an interface is marked as throwing
+	 * <code>RMIException</code>. Interfaces which pass are remembered, so each
+	 * is only checked once.
+	 * 
+	 * @param c
+	 *            The interface
+	 * @throws Error
+	 *             If some method is not marked as throwing
+	 *             <code>RMIException</code>
+	 */
+	static void checkRemote(Class<?> c) {
+		if (remote.contains(c)) {
+			return;
+		}
+
+		// checks if all the methods in the interface throw RMIException
+		Method[] allMethods = c.getDeclaredMethods();
+		int count = 0;
+
+		for (Method m : allMethods) {
+			Class[] exceptions = m.getExceptionTypes();
+			for (Class e : exceptions) {
+				if (e.getSimpleName().equals("RMIException")) {
+					count++;
+				}
+			}
+
+			if (count == 0) {
+				throw new Error("not all methods are RMI Exceptions");
+			}
+
+			count = 0;
+		}
+
+		remote.add(c);
+	}
+
+	/**
+	 * makes a stub for the interface with a handler for the given address.
+	 * The interface is checked and the first stub made by <code>Proxy</code>
+	 * the first time only; after that, making a stub is a single call to the
+	 * constructor of the first stub's class.
+	 * 
+	 * @param c
+	 *            The remote interface
+	 * @param address
+	 *            The address of the skeleton
+	 * @param timeout
+	 *            The timeout of each call in nanoseconds, or zero for none
+	 * @return The stub
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> T proxy(Class<T> c, InetSocketAddress address,
+			long timeout) {
+		ProxyHandler handler = new ProxyHandler(address, timeout);
+		Constructor<?> constructor = proxies.get(c);
+
+		if (constructor == null) {
+			checkRemote(c);
+
+			Object first;
+			try {
+				first = java.lang.reflect.Proxy.newProxyInstance(
+						c.getClassLoader(), new Class[] { c }, handler);
+			} catch (RuntimeException e) {
+				throw new Error("cannot make a stub for " + c, e);
+			}
+
+			// should the constructor not be usable, every stub of the
+			// interface is made by Proxy
+			try {
+				constructor = first.getClass().getConstructor(
+						InvocationHandler.class);
+				constructor.setAccessible(true);
+				proxies.putIfAbsent(c, constructor);
+			} catch (ReflectiveOperationException | RuntimeException e) {
+			}
+
+			return (T) first;
+		}
+
+		try {
+			return (T) constructor.newInstance(handler);
+		} catch (ReflectiveOperationException e) {
+			throw new Error("cannot make a stub for " + c, e);
+		}
+	}
+
 	/**
 	 * Creates a stub, given a skeleton with an assigned address.
 	 * 
@@ -57,7 +155,6 @@ public abstract class Stub {
 	 *             interface cannot be dynamically created.
 	 */
 
-	@SuppressWarnings("unchecked")
 	public static <T> T create(Class<T> c, Skeleton<T> skeleton)
 			throws UnknownHostException {
 
@@ -76,30 +173,7 @@ public abstract class Stub {
 			throw new UnknownHostException();
 		}
 
-		// checks if all the methods in the interface throw RMIException
-		Method[] allMethods = c.getDeclaredMethods();
-		int count = 0;
-
-		for (Method m : allMethods) {
-			Class[] exceptions = m.getExceptionTypes();
-			for (Class e : exceptions) {
-				if (e.getSimpleName().equals("RMIException")) {
-					count++;
-				}
-			}
-
-			if (count == 0) {
-				throw new Error("not all methods are RMI Exceptions");
-			}
-
-			count = 0;
-		}
-
-		// create the proxyHandler with the skeleton's address.
-		ProxyHandler p = new ProxyHandler(address);
-
-		return (T) java.lang.reflect.Proxy.newProxyInstance(c.getClassLoader(),
-				new Class[] { c }, p);
+		return proxy(c, address, 0);
 
 	}
 
@@ -139,7 +213,6 @@ public abstract class Stub {
 	 *             <code>RMIException</code>, or if an object implementing this
 	 *             interface cannot be dynamically created.
 	 */
-	@SuppressWarnings("unchecked")
 	public static <T> T create(Class<T> c, Skeleton<T> skeleton, String hostname) {
 
 		if (c == null || skeleton == null || hostname == null) {
@@ -150,29 +223,7 @@ public abstract class Stub {
 		InetSocketAddress address = new InetSocketAddress(hostname, skeleton
 				.getAddress().getPort());
 
-		// checks if all the methods in the interface throw RMIException
-		Method[] allMethods = c.getDeclaredMethods();
-		int count = 0;
-
-		for (Method m : allMethods) {
-			Class[] exceptions = m.getExceptionTypes();
-			for (Class e : exceptions) {
-				if (e.getSimpleName().equals("RMIException")) {
-					count++;
-				}
-			}
-
-			if (count == 0) {
-				throw new Error("not all methods are RMI Exceptions");
-			}
-
-			count = 0;
-		}
-
-		ProxyHandler p = new ProxyHandler(address);
-
-		return (T) java.lang.reflect.Proxy.newProxyInstance(c.getClassLoader(),
-				new Class[] { c }, p);
+		return proxy(c, address, 0);
 
 	}
 
@@ -198,42 +249,210 @@ public abstract class Stub {
 	 *             <code>RMIException</code>, or if an object implementing this
 	 *             interface cannot be dynamically created.
 	 */
-	@SuppressWarnings("unchecked")
 	public static <T> T create(Class<T> c, InetSocketAddress address) {
 		if (c == null || address == null) {
 			throw new NullPointerException(
 					"interface and address should not be null for stub creation");
 		}
 
-		// checks if all the methods in the interface throw RMIException
-		Method[] allMethods = c.getDeclaredMethods();
-		int count = 0;
+		return proxy(c, address, 0);
 
-		for (Method m : allMethods) {
-			Class[] exceptions = m.getExceptionTypes();
-			for (Class e : exceptions) {
-				if (e.getSimpleName().equals("RMIException")) {
-					count++;
-				}
-			}
+	}
 
-			if (count == 0) {
-				throw new Error("not all methods are RMI Exceptions");
-			}
+	/**
+	 * Creates an asynchronous stub, given the address of a remote server.
+	 * 
+	 * <p>
+	 * The stub implements <code>async</code>, a companion of the remote
+	 * interface <code>c</code>. For every method of the companion, the remote
+	 * interface must have a method with the same name and parameter types.
+	 * The companion method returns a <code>CompletableFuture</code> of what
+	 * the remote method returns. Calls through the stub return as soon as the
+	 * request has been sent. The future completes with the result, with the
+	 * exception the remote method threw, or with an <code>RMIException</code>
+	 * if the call could not be completed. Asynchronous and ordinary stubs for
+	 * the same address share the connections of <code>ConnectionPool</code>.
+	 * 
+	 * @param async
+	 *            The companion interface implemented by the stub.
+	 * @param c
+	 *            The remote interface.
+	 * @param address
+	 *            The network address of the remote skeleton.
+	 * @return The stub created.
+	 * @throws NullPointerException
+	 *             If any argument is <code>null</code>.
+	 * @throws Error
+	 *             If <code>c</code> does not represent a remote interface, or
+	 *             <code>async</code> is not a companion of it.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <A> A createAsync(Class<A> async, Class<?> c,
+			InetSocketAddress address) {
+		if (async == null || c == null || address == null) {
+			throw new NullPointerException(
+					"interfaces and address should not be null for stub creation");
+		}
 
-			count = 0;
+		checkRemote(c);
+		AsyncHandler.check(async, c);
+
+		return (A) java.lang.reflect.Proxy.newProxyInstance(
+				async.getClassLoader(), new Class[] { async },
+				new AsyncHandler(c, address, null, 0));
+	}
+
+	/**
+	 * Creates an asynchronous stub which calls the same skeleton as an
+	 * existing stub.
+	 * 
+	 * <p>
+	 * If <code>stub</code> is not a stub but a local object implementing
+	 * <code>c</code>, the asynchronous stub calls it directly, and the futures
+	 * it returns are already complete. Code holding a remote interface can
+	 * therefore use this method whether or not the object is remote.
+	 * 
+	 * @param async
+	 *            The companion interface implemented by the stub.
+	 * @param c
+	 *            The remote interface.
+	 * @param stub
+	 *            A stub for <code>c</code>, or an object implementing it.
+	 * @return The stub created.
+	 * @throws NullPointerException
+	 *             If any argument is <code>null</code>.
+	 * @throws Error
+	 *             If <code>c</code> does not represent a remote interface, or
+	 *             <code>async</code> is not a companion of it.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T, A> A createAsync(Class<A> async, Class<T> c, T stub) {
+		if (async == null || c == null || stub == null) {
+			throw new NullPointerException(
+					"interfaces and stub should not be null for stub creation");
+		}
+
+		ProxyHandler h = handler(stub);
+
+		checkRemote(c);
+		AsyncHandler.check(async, c);
+
+		return (A) java.lang.reflect.Proxy.newProxyInstance(
+				async.getClassLoader(), new Class[] { async },
+				h == null ? new AsyncHandler(c, null, stub, 0)
+						: new AsyncHandler(c, h.getAddress(), null, h.timeout));
+	}
+
+	/**
+	 * Creates a batch of calls to the skeleton of an existing stub.
+	 * 
+	 * <p>
+	 * Calls queued on the batch are sent to the skeleton together and
+	 * answered together, in one round trip. If <code>stub</code> is not a stub
+	 * but a local object implementing <code>c</code>, the calls are made on it
+	 * directly when the batch is sent.
+	 * 
+	 * @param c
+	 *            The remote interface.
+	 * @param stub
+	 *            A stub for <code>c</code>, or an object implementing it.
+	 * @return An empty batch.
+	 * @throws NullPointerException
+	 *             If any argument is <code>null</code>.
+	 * @throws Error
+	 *             If <code>c</code> does not represent a remote interface.
+	 */
+	public static <T> Batch<T> batch(Class<T> c, T stub) {
+		if (c == null || stub == null) {
+			throw new NullPointerException(
+					"interface and stub should not be null for batch creation");
+		}
+
+		checkRemote(c);
+
+		ProxyHandler h = handler(stub);
+		if (h != null) {
+			return new Batch<T>(c, h.getAddress(), null, h.timeout);
+		}
+
+		return new Batch<T>(c, null, stub, 0);
+	}
+
+	/**
+	 * Creates a stub which calls the same skeleton as an existing stub, with
+	 * a timeout on every call.
+	 * 
+	 * <p>
+	 * A call through the new stub which has no response within the timeout
+	 * throws an <code>RMITimeoutException</code>. The timeout is sent to the
+	 * skeleton with the call, and the skeleton drops the call if it has not
+	 * started running by the time the caller gives up. Calls made inside a
+	 * <code>Deadline</code> end at the deadline if it comes first.
+	 * Asynchronous stubs and batches made from the new stub have the same
+	 * timeout. The new stub is equal to <code>stub</code>.
+	 * 
+	 * @param c
+	 *            The remote interface.
+	 * @param stub
+	 *            A stub for <code>c</code>.
+	 * @param time
+	 *            The timeout, or zero for none.
+	 * @param unit
+	 *            The unit of <code>time</code>.
+	 * @return The stub created.
+	 * @throws NullPointerException
+	 *             If any argument is <code>null</code>.
+	 * @throws IllegalArgumentException
+	 *             If <code>stub</code> is not a stub, or <code>time</code>
+	 *             is negative.
+	 */
+	public static <T> T withTimeout(Class<T> c, T stub, long time,
+			TimeUnit unit) {
+		if (c == null || stub == null || unit == null) {
+			throw new NullPointerException(
+					"interface, stub and unit should not be null");
+		}
+		if (time < 0) {
+			throw new IllegalArgumentException("negative timeout");
 		}
 
-		ProxyHandler p = new ProxyHandler(address);
+		ProxyHandler h = handler(stub);
+		if (h == null) {
+			throw new IllegalArgumentException(stub + " is not a stub");
+		}
+
+		return proxy(c, h.getAddress(), unit.toNanos(time));
+	}
 
-		return (T) java.lang.reflect.Proxy.newProxyInstance(c.getClassLoader(),
-				new Class[] { c }, p);
+	/**
+	 * @return the handler of a stub, or <code>null</code> if the object is
+	 *         not a stub
+	 */
+	private static ProxyHandler handler(Object stub) {
+		if (java.lang.reflect.Proxy.isProxyClass(stub.getClass())
+				&& java.lang.reflect.Proxy.getInvocationHandler(stub) instanceof ProxyHandler) {
+			return (ProxyHandler) java.lang.reflect.Proxy
+					.getInvocationHandler(stub);
+		}
+		return null;
+	}
 
+	/**
+	 * Returns the metrics of every call made through stubs in this JVM, by
+	 * method. For each method: the number of calls and errors, the bytes sent
+	 * and received, and a histogram of round trip times as seen by callers.
+	 * 
+	 * @return the metrics of all stubs
+	 */
+	public static Metrics getMetrics() {
+		return Metrics.stubs;
 	}
 
 	public static class ProxyHandler implements InvocationHandler, Serializable {
 
 		private InetSocketAddress serverAddress;
+		/** The timeout of each call in nanoseconds, or zero for none. */
+		private long timeout;
 
 		/**
 		 * instantiates the proxy handler with the given address.
@@ -242,8 +461,21 @@ public abstract class Stub {
 		 *            the address for the proxyHandler
 		 */
 		public ProxyHandler(InetSocketAddress serverAddress) {
-			this.serverAddress = serverAddress;
+			this(serverAddress, 0);
+		}
 
+		/**
+		 * instantiates the proxy handler with the given address and call
+		 * timeout.
+		 * 
+		 * @param serverAddress
+		 *            the address for the proxyHandler
+		 * @param timeout
+		 *            the timeout of each call in nanoseconds, or zero for none
+		 */
+		ProxyHandler(InetSocketAddress serverAddress, long timeout) {
+			this.serverAddress = serverAddress;
+			this.timeout = timeout;
 		}
 
 		/**
@@ -337,36 +569,60 @@ public abstract class Stub {
 				return toString();
 			}
 
-			// remote method. Marshals the arguments and the methods. Unmarshals
-			// the result back. and returns it back to the client
+			// remote method. Marshals the method and the arguments into a
+			// frame and sends it over the shared connection to the skeleton.
+			// Unmarshals the result back and returns it to the client
 			else {
-				Socket clientSocket = new Socket();
+				Frame response = null;
+				MethodMetrics counted = Metrics.stub(arg1);
+				long began = System.nanoTime();
+				long sent = 0;
 				try {
-					clientSocket.connect(this.serverAddress);
-
-					ObjectOutputStream out = new ObjectOutputStream(
-							clientSocket.getOutputStream());
-					out.flush();
-					ObjectInputStream in = new ObjectInputStream(
-							clientSocket.getInputStream());
-
-					out.writeObject(arg1.getName());
-					out.writeObject(arg1.getParameterTypes());
-					out.writeObject(arg2);
-
-					result = in.readObject();
+					long wait = Deadline.remaining(timeout);
+
+					// a skeleton in this JVM is called directly, unless the
+					// call must be able to time out
+					Skeleton<?> near = wait == Deadline.NONE ? LocalCalls
+							.find(this.serverAddress) : null;
+					if (near != null) {
+						response = near.call(arg1, arg2);
+					}
+
+					if (response != null) {
+						result = Codec.read(Codec.reader(response));
+					} else {
+						Connection connection = ConnectionPool.get(
+								this.serverAddress, wait);
+
+						Frame request = connection.encode(arg1, arg2, true);
+						sent = request.size();
+						response = connection.call(request, wait);
+
+						// the elements of an iterator follow in chunks,
+						// pulled as they are read
+						result = response.type == Frame.STREAM ? new RemoteIterator<Object>(
+								connection, response, timeout)
+								: Codec.read(Codec.reader(response));
+					}
 
 					// if during the process, an error is seen then throws an
-					// RMIException
+					// RMIException. Those of the connection layer, such as
+					// timeouts, are thrown as they are, so that callers can
+					// tell them apart.
+				} catch (RMIException e) {
+					counted.record(true, 0, sent, -1, System.nanoTime() - began);
+					throw e;
 				} catch (Exception e) {
+					counted.record(true, 0, sent, -1, System.nanoTime() - began);
 					throw new RMIException(e);
-				} finally {
-					clientSocket.close();
-
 				}
-				// if the result is an error itself, meaning the skeleton threw
-				// an error, then tells the client that an error is seen
-				if (result instanceof Throwable) {
+
+				counted.record(response.type == Frame.EXCEPTION, response
+						.size(), sent, -1, System.nanoTime() - began);
+
+				// if the skeleton says the call threw, then rethrow what it
+				// threw to the client
+				if (response.type == Frame.EXCEPTION) {
 					throw (Throwable) result;
 				}
 			}
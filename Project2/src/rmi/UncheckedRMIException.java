@@ -0,0 +1,25 @@
+package rmi;
+
+/** Wraps an <code>RMIException</code> where a checked exception cannot be
+    thrown.
+
+    <p>
+    Iterators returned by remote methods fetch their elements as they are
+    needed. If fetching fails, <code>hasNext</code> and <code>next</code>
+    throw this exception, with the <code>RMIException</code> as its cause.
+ */
+public class UncheckedRMIException extends RuntimeException
+{
+    /** Creates an <code>UncheckedRMIException</code> from the given cause. */
+    public UncheckedRMIException(RMIException cause)
+    {
+        super(cause);
+    }
+
+    /** Returns the <code>RMIException</code> wrapped by this exception. */
+    @Override
+    public RMIException getCause()
+    {
+        return (RMIException) super.getCause();
+    }
+}
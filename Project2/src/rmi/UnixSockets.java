@@ -0,0 +1,322 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Unix domain sockets between stubs and skeletons on the same host.
+ *
+ * <p>
+ * A running skeleton also listens on a Unix domain socket, a file named
+ * after the address and TCP port it is bound to. A stub whose address is one
+ * of this host's then connects to that socket instead of the TCP port, if it
+ * finds it, so that calls between processes on one host, such as bulk reads
+ * and writes between a storage server and the applications next to it, skip
+ * the TCP stack. Frames are the same on both kinds of connection.
+ *
+ * <p>
+ * The sockets are made in a directory of the user's own, by default
+ * <code>rmi-</code> and the user name in the system's temporary directory,
+ * which is created readable by its owner only. The directory, and every
+ * socket file a stub is about to connect to, must belong to the user running
+ * the JVM; if they do not, or if the file system cannot tell, sockets are not
+ * used. Processes of other users therefore neither see nor stand in for a
+ * skeleton's socket, and reach it over TCP.
+ *
+ * <p>
+ * Stubs keep their TCP address, since they may be passed to other hosts, and
+ * choose the socket each time a connection is opened. If the socket cannot
+ * be listened on or connected to, TCP is used as before.
+ *
+ * <p>
+ * Unix domain sockets are used unless turned off with
+ * <code>setEnabled</code>.
+ */
+public class UnixSockets {
+
+	/** Name of the file of a skeleton bound to every address. */
+	private static final String ANY = "any";
+
+	private static volatile boolean enabled = true;
+	private static volatile Path directory = Paths.get(
+			System.getProperty("java.io.tmpdir"),
+			"rmi-" + System.getProperty("user.name"));
+
+	private UnixSockets() {
+	}
+
+	/**
+	 * turns the use of Unix domain sockets on or off. Skeletons already
+	 * running and connections already open are not affected.
+	 *
+	 * @param on
+	 *            Whether skeletons listen on, and stubs connect to, Unix
+	 *            domain sockets
+	 */
+	public static void setEnabled(boolean on) {
+		enabled = on;
+	}
+
+	/**
+	 * @return true if Unix domain sockets are used
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * sets the directory the sockets are made in. Stubs and skeletons only
+	 * find each other if their JVMs use the same directory. It is created if
+	 * it does not exist, and is only used if it belongs to the user running
+	 * the JVM and no one else may read or write it.
+	 *
+	 * @param dir
+	 *            The directory
+	 */
+	public static void setDirectory(Path dir) {
+		if (dir == null) {
+			throw new NullPointerException("directory cannot be null");
+		}
+		directory = dir;
+	}
+
+	/**
+	 * @return the directory the sockets are made in
+	 */
+	public static Path getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @return the socket directory, created if needed, or <code>null</code>
+	 *         if it does not belong to this user alone
+	 */
+	private static Path directory() {
+		Path dir = directory;
+		try {
+			if (!Files.exists(dir, LinkOption.NOFOLLOW_LINKS)) {
+				try {
+					Files.createDirectories(dir.getParent());
+					Files.createDirectory(dir, PosixFilePermissions
+							.asFileAttribute(PosixFilePermissions
+									.fromString("rwx------")));
+				} catch (FileAlreadyExistsException e) {
+					// made by another JVM meanwhile, and checked below
+				}
+			}
+			if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)
+					|| !ours(dir)) {
+				return null;
+			}
+			Set<PosixFilePermission> others = Files.getPosixFilePermissions(
+					dir, LinkOption.NOFOLLOW_LINKS);
+			others.removeAll(EnumSet.of(PosixFilePermission.OWNER_READ,
+					PosixFilePermission.OWNER_WRITE,
+					PosixFilePermission.OWNER_EXECUTE));
+			return others.isEmpty() ? dir : null;
+		} catch (IOException | RuntimeException e) {
+			// including file systems without owners and permissions
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if the file, not following links, belongs to the user
+	 *         running the JVM
+	 */
+	private static boolean ours(Path file) throws IOException {
+		UserPrincipal owner = Files.getOwner(file, LinkOption.NOFOLLOW_LINKS);
+		UserPrincipal self = file.getFileSystem()
+				.getUserPrincipalLookupService()
+				.lookupPrincipalByName(System.getProperty("user.name"));
+		return owner.equals(self);
+	}
+
+	/**
+	 * @param dir
+	 *            The socket directory
+	 * @param host
+	 *            The address a skeleton is bound to, or <code>null</code> for
+	 *            every address
+	 * @param port
+	 *            The TCP port of the skeleton
+	 * @return the file of the skeleton's socket
+	 */
+	static Path path(Path dir, InetAddress host, int port) {
+		String name = host == null || host.isAnyLocalAddress() ? ANY : host
+				.getHostAddress().replace(':', '_').replace('%', '_');
+		return dir.resolve("rmi-" + name + "-" + port + ".sock");
+	}
+
+	/**
+	 * makes the socket of a skeleton which has just bound its TCP address. A
+	 * file left by an earlier skeleton on the address, which no longer
+	 * answers, is replaced; a socket which still answers is left alone.
+	 *
+	 * @param address
+	 *            The TCP address the skeleton is bound to
+	 * @return the listening channel, or <code>null</code> if the socket is
+	 *         not to be used or cannot be made
+	 */
+	static ServerSocketChannel listen(InetSocketAddress address) {
+		if (!enabled) {
+			return null;
+		}
+		Path dir = directory();
+		if (dir == null) {
+			return null;
+		}
+
+		Path file = path(dir, address.getAddress(), address.getPort());
+		ServerSocketChannel channel = null;
+		try {
+			if (Files.exists(file, LinkOption.NOFOLLOW_LINKS)) {
+				if (answers(file)) {
+					return null;
+				}
+				Files.delete(file);
+			}
+			channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+			channel.bind(UnixDomainSocketAddress.of(file));
+			return channel;
+		} catch (IOException | RuntimeException e) {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e1) {
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if something is listening on the socket file
+	 */
+	private static boolean answers(Path file) {
+		try (SocketChannel probe = SocketChannel.open(UnixDomainSocketAddress
+				.of(file))) {
+			return true;
+		} catch (IOException | RuntimeException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * closes the socket of a skeleton, and removes its file.
+	 *
+	 * @param channel
+	 *            The listening channel
+	 */
+	static void unlisten(ServerSocketChannel channel) {
+		Path file = null;
+		try {
+			file = ((UnixDomainSocketAddress) channel.getLocalAddress())
+					.getPath();
+		} catch (IOException | RuntimeException e) {
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+		// no other skeleton can have made the file again while this one
+		// still held the address
+		if (file != null) {
+			try {
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * @param address
+	 *            The address of a skeleton
+	 * @return a connection to the skeleton's socket, or <code>null</code> if
+	 *         it is not on this host or has no socket of this user's that
+	 *         answers
+	 */
+	static SocketChannel connect(InetSocketAddress address) {
+		if (!enabled || address.isUnresolved()
+				|| !LocalCalls.isOwn(address.getAddress())) {
+			return null;
+		}
+		Path dir = directory();
+		if (dir == null) {
+			return null;
+		}
+
+		// the skeleton may be bound to this address, or to all of them
+		for (InetAddress host : new InetAddress[] { address.getAddress(),
+				null }) {
+			Path file = path(dir, host, address.getPort());
+			try {
+				if (!Files.exists(file, LinkOption.NOFOLLOW_LINKS)
+						|| !ours(file)) {
+					continue;
+				}
+				return SocketChannel.open(UnixDomainSocketAddress.of(file));
+			} catch (IOException | RuntimeException e) {
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return a stream reading from a blocking channel. Unlike the streams of
+	 *         <code>Channels</code>, reads and writes on the channel may
+	 *         block in different threads at once.
+	 */
+	static InputStream input(SocketChannel channel) {
+		return new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return len == 0 ? 0 : channel.read(ByteBuffer.wrap(b, off, len));
+			}
+		};
+	}
+
+	/**
+	 * @return a stream writing to a blocking channel
+	 */
+	static OutputStream output(SocketChannel channel) {
+		return new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,44 @@
+package storage;
+
+import java.util.concurrent.CompletableFuture;
+
+import common.*;
+
+/** Asynchronous companion of the storage server command interface.
+
+    <p>
+    Stubs implementing this interface are created with
+    <code>Stub.createAsync</code>. Each method sends the request for the
+    <code>Command</code> method of the same name and returns at once. The
+    future completes with the result of the remote call, with the exception it
+    threw, or with an <code>RMIException</code> if the call could not be
+    completed.
+
+    <p>
+    The naming server uses this interface to send the same command to several
+    storage servers at the same time.
+ */
+public interface CommandAsync
+{
+    /** Creates a file on the storage server.
+
+        @param file Path to the file to be created.
+        @return A future for the result of <code>Command.create</code>.
+     */
+    public CompletableFuture<Boolean> create(Path file);
+
+    /** Deletes a file or directory on the storage server.
+
+        @param path Path to the file or directory to be deleted.
+        @return A future for the result of <code>Command.delete</code>.
+     */
+    public CompletableFuture<Boolean> delete(Path path);
+
+    /** Copies a file from another storage server.
+
+        @param file Path to the file to be copied.
+        @param server Storage server from which the file is to be downloaded.
+        @return A future for the result of <code>Command.copy</code>.
+     */
+    public CompletableFuture<Boolean> copy(Path file, Storage server);
+}
@@ -3,6 +3,7 @@ package storage;
 import java.io.*;
 
 import common.*;
+import rmi.Idempotent;
 import rmi.RMIException;
 
 /** Storage server client interface.
@@ -23,6 +24,7 @@ public interface Storage
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Idempotent
     public long size(Path file) throws RMIException, FileNotFoundException;
 
     /** Reads a sequence of bytes from a file.
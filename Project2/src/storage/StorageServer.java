@@ -5,8 +5,10 @@ import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
 
 import common.*;
 import conformance.rmi.TestInterface;
@@ -36,9 +38,34 @@ public class StorageServer implements Storage, Command {
 	private Skeleton<Command> commandSkeleton;
 	private File root;
 
+	// client calls never wait on other servers, so a small pool of workers
+	// serves them. When the pool falls behind, calls wait in its queue.
+	private static final int STORAGE_WORKERS = 4 * Runtime.getRuntime()
+			.availableProcessors();
+	private static final int STORAGE_QUEUE = 1024;
+
+	// writes carry their data, so calls waiting in the queue can hold a lot
+	// of memory. Calls beyond the queue, or beyond this many bytes, are
+	// refused at once and may be retried. Should a burst still overshoot the
+	// queue, the connections that sent it stop being read until there is
+	// room again.
+	private static final long STORAGE_BYTES = 256L * 1024 * 1024;
+
+	// files are copied from other storage servers this much at a time, so
+	// that a large file does not have to be held in memory whole
+	private static final int COPY_BLOCK = 1024 * 1024;
+
+	// a source server which stops answering fails the copy after this many
+	// seconds, instead of holding the copy up for ever
+	private static final int COPY_BLOCK_TIMEOUT = 30;
+
 	public StorageServer(File root) {
 
 		this.storageSkeleton = new Skeleton<Storage>(Storage.class, this);
+		this.storageSkeleton.setDispatcher(Dispatcher.bounded(
+				STORAGE_WORKERS, STORAGE_QUEUE, Dispatcher.Rejection.BLOCK));
+		this.storageSkeleton.setAdmission(Admission.limits(STORAGE_WORKERS,
+				STORAGE_QUEUE, STORAGE_BYTES));
 		this.commandSkeleton = new Skeleton<Command>(Command.class, this);
 		this.root = root;
 	}
@@ -129,6 +156,31 @@ public class StorageServer implements Storage, Command {
 		}
 	}
 
+	/**
+	 * Stops the storage server gracefully, for example ahead of a restart.
+	 * 
+	 * <p>
+	 * Both skeletons stop taking new calls at once, and reads, writes and
+	 * copies already taken on are given until the timeout to finish before
+	 * the skeletons are stopped as by <code>stop</code>. Calls refused
+	 * meanwhile fail with an <code>RMIOverloadException</code>, so that
+	 * clients can go to another replica rather than have a transfer cut off
+	 * halfway.
+	 * 
+	 * @param timeout
+	 *            The most milliseconds to wait for calls to finish
+	 * @return what became of the calls of both skeletons
+	 */
+	public DrainReport drain(long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		this.commandSkeleton.quiesce();
+		this.storageSkeleton.quiesce();
+		DrainReport report = this.storageSkeleton.drain(timeout).plus(
+				this.commandSkeleton.drain(deadline - System.currentTimeMillis()));
+		stopped(null);
+		return report;
+	}
+
 	/**
 	 * Called when the storage server has shut down.
 	 * 
@@ -187,11 +239,22 @@ public class StorageServer implements Storage, Command {
 			return new byte[0];
 		}
 
-		// get the input stream and read from it
-		FileInputStream in = new FileInputStream(f);
+		// read straight from the channel at the offset into the array that
+		// is returned. The RMI layer sends large arrays as they are, without
+		// copying them again.
 		byte[] b = new byte[length];
-		in.read(b, (int) offset, length);
-		in.close();
+		ByteBuffer buffer = ByteBuffer.wrap(b);
+		FileChannel fC = FileChannel.open(f.toPath(),
+				StandardOpenOption.READ);
+		try {
+			while (buffer.hasRemaining()) {
+				if (fC.read(buffer, offset + buffer.position()) < 0) {
+					throw new EOFException("file shrank while being read");
+				}
+			}
+		} finally {
+			fC.close();
+		}
 		return b;
 
 	}
@@ -219,13 +282,18 @@ public class StorageServer implements Storage, Command {
 			return;
 		}
 
-		// get the output stream. position it correctly with respect tp the
-		// offset you want. And write to it then
-		FileOutputStream out = new FileOutputStream(f);
-		FileChannel fC = out.getChannel();
-		fC.position(offset);
-		fC.write(ByteBuffer.wrap(data));
-		out.close();
+		// write the array straight to the channel at the offset, leaving the
+		// rest of the file as it is
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		FileChannel fC = FileChannel.open(f.toPath(),
+				StandardOpenOption.WRITE);
+		try {
+			while (buffer.hasRemaining()) {
+				fC.write(buffer, offset + buffer.position());
+			}
+		} finally {
+			fC.close();
+		}
 	}
 
 	// The following methods are documented in Command.java.
@@ -338,7 +406,10 @@ public class StorageServer implements Storage, Command {
 		// Create the file here
 		create(file);
 
-		long fileSize = server.size(file);
+		long fileSize;
+		try (Deadline d = Deadline.after(COPY_BLOCK_TIMEOUT, TimeUnit.SECONDS)) {
+			fileSize = server.size(file);
+		}
 		long offset = 0;
 
 		// start copying the file. The whole size should not be copied
@@ -347,9 +418,12 @@ public class StorageServer implements Storage, Command {
 
 		try {
 			while (offset < fileSize) {
-				int toRead = (int) Math.min(fileSize - offset,
-						Integer.MAX_VALUE);
-				byte[] data = server.read(file, offset, toRead);
+				int toRead = (int) Math.min(fileSize - offset, COPY_BLOCK);
+				byte[] data;
+				try (Deadline d = Deadline.after(COPY_BLOCK_TIMEOUT,
+						TimeUnit.SECONDS)) {
+					data = server.read(file, offset, toRead);
+				}
 				write(file, offset, data);
 				offset += toRead;
 			}
@@ -8,6 +8,31 @@ import test.*;
     Tests run are:
     <ul>
     <li>{@link common.SampleUnitTest}</li>
+    <li>{@link common.PathTest}</li>
+    <li>{@link rmi.FrameTest}</li>
+    <li>{@link rmi.CodecTest}</li>
+    <li>{@link rmi.SegmentTest}</li>
+    <li>{@link rmi.ConnectionPoolTest}</li>
+    <li>{@link rmi.CompressionTest}</li>
+    <li>{@link rmi.AdmissionTest}</li>
+    <li>{@link rmi.UnixSocketsTest}</li>
+    <li>{@link rmi.DeadlineTest}</li>
+    <li>{@link rmi.StreamTest}</li>
+    <li>{@link rmi.CoalesceTest}</li>
+    <li>{@link rmi.DrainTest}</li>
+    <li>{@link rmi.LocalCallsTest}</li>
+    <li>{@link rmi.AsyncTest}</li>
+    <li>{@link rmi.PriorityTest}</li>
+    <li>{@link rmi.DispatcherTest}</li>
+    <li>{@link rmi.SelectorServerTest}</li>
+    <li>{@link rmi.MetricsTest}</li>
+    <li>{@link naming.FairLockTest}</li>
+    <li>{@link naming.LockAllTest}</li>
+    <li>{@link naming.LeaseTest}</li>
+    <li>{@link naming.ServerDrainTest}</li>
+    <li>{@link naming.UnlockTest}</li>
+    <li>{@link naming.IndexTest}</li>
+    <li>{@link naming.BatchTest}</li>
     </ul>
  */
 public class UnitTests
@@ -21,7 +46,32 @@ public class UnitTests
         // Create the test list, the series object, and run the test series.
         @SuppressWarnings("unchecked")
         Class<? extends Test>[]     tests =
-            new Class[] {unit.common.SampleUnitTest.class};
+            new Class[] {unit.common.SampleUnitTest.class,
+                         common.PathTest.class,
+                         rmi.FrameTest.class,
+                         rmi.CodecTest.class,
+                         rmi.SegmentTest.class,
+                         rmi.ConnectionPoolTest.class,
+                         rmi.CompressionTest.class,
+                         rmi.AdmissionTest.class,
+                         rmi.UnixSocketsTest.class,
+                         rmi.DeadlineTest.class,
+                         rmi.StreamTest.class,
+                         rmi.CoalesceTest.class,
+                         rmi.DrainTest.class,
+                         rmi.LocalCallsTest.class,
+                         rmi.AsyncTest.class,
+                         rmi.PriorityTest.class,
+                         rmi.DispatcherTest.class,
+                         rmi.SelectorServerTest.class,
+                         rmi.MetricsTest.class,
+                         naming.FairLockTest.class,
+                         naming.LockAllTest.class,
+                         naming.LeaseTest.class,
+                         naming.ServerDrainTest.class,
+                         naming.UnlockTest.class,
+                         naming.IndexTest.class,
+                         naming.BatchTest.class};
         Series                      series = new Series(tests);
         SeriesReport                report = series.run(3, System.out);
 
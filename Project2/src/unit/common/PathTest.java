@@ -0,0 +1,127 @@
+package common;
+
+import test.*;
+import java.util.*;
+
+/** Checks the order of paths.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>Paths are ordered component by component, so that a directory comes
+        before everything in it, and everything in it comes before the
+        directories which follow it.</li>
+    <li>The order is consistent with <code>equals</code>, and is
+        antisymmetric and transitive over a set of awkward paths.</li>
+    <li>Comparing with <code>null</code> throws
+        <code>NullPointerException</code>.</li>
+    </ul>
+ */
+public class PathTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking the order of paths";
+
+    /** Paths in the order expected. Character by character, <code>/a-b</code>
+        and <code>/a.b</code> would come before <code>/a/b</code>, as
+        <code>-</code> and <code>.</code> come before <code>/</code>. */
+    private static final String[]   ORDERED = new String[] {
+        "/", "/A", "/a", "/a/b", "/a/b/c", "/a/bc", "/a/c", "/a-b", "/a.b",
+        "/ab", "/b"};
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        testOrder();
+        testSorting();
+        testNull();
+    }
+
+    /** Checks each pair of paths. */
+    private void testOrder() throws TestFailed
+    {
+        for(int i = 0; i < ORDERED.length; ++i)
+        {
+            for(int j = 0; j < ORDERED.length; ++j)
+            {
+                Path    first = new Path(ORDERED[i]);
+                Path    second = new Path(ORDERED[j]);
+                int     order = first.compareTo(second);
+                int     reverse = second.compareTo(first);
+
+                if(Integer.signum(order) != Integer.compare(i, j))
+                {
+                    throw new TestFailed(first + " compared with " + second +
+                                         " gave " + order);
+                }
+
+                if(Integer.signum(order) != -Integer.signum(reverse))
+                    throw new TestFailed("order of " + first + " and " +
+                                         second + " is not antisymmetric");
+
+                if((order == 0) != first.equals(second))
+                    throw new TestFailed("order of " + first + " and " +
+                                         second + " disagrees with equals");
+            }
+        }
+
+        // Paths made in different ways are equal in the order.
+        if(new Path(new Path("/a"), "b").compareTo(new Path("/a/b")) != 0)
+            throw new TestFailed("equal paths compared unequal");
+    }
+
+    /** Checks that sorting shuffled paths gives the expected order, and that
+        a directory sorts before its contents. */
+    private void testSorting() throws TestFailed
+    {
+        List<Path>  paths = new ArrayList<Path>();
+
+        for(String p : ORDERED)
+            paths.add(new Path(p));
+
+        List<Path>  shuffled = new ArrayList<Path>(paths);
+
+        Collections.shuffle(shuffled, new Random(1));
+        Collections.sort(shuffled);
+
+        if(!paths.equals(shuffled))
+            throw new TestFailed("paths sorted as " + shuffled);
+
+        for(Path directory : paths)
+        {
+            for(Path p : paths)
+            {
+                if(inside(p, directory) && directory.compareTo(p) >= 0)
+                    throw new TestFailed(directory + " sorted after " + p +
+                                         ", which is inside it");
+            }
+        }
+    }
+
+    /** Tells whether a path is strictly inside a directory. */
+    private static boolean inside(Path path, Path directory)
+    {
+        String      d = directory.toString();
+        String      p = path.toString();
+
+        if(d.equals("/"))
+            return !p.equals("/");
+
+        return p.startsWith(d + "/");
+    }
+
+    /** Checks comparison with <code>null</code>. */
+    private void testNull() throws TestFailed
+    {
+        try
+        {
+            new Path("/a").compareTo(null);
+            throw new TestFailed("path compared with null");
+        }
+        catch(NullPointerException e) { }
+    }
+}
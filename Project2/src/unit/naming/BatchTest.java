@@ -0,0 +1,210 @@
+package naming;
+
+import test.*;
+import rmi.*;
+import common.*;
+import storage.*;
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Checks that a call which throws in a batch fails on its own.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>A batch asking whether a path is a directory and for its listing, as
+        the <code>ls</code> application sends it, is sent normally when the
+        path is a file: the first call's result is delivered, and the listing
+        fails with <code>FileNotFoundException</code>.</li>
+    <li>The calls after a failing call in the same batch still run, and their
+        results are delivered.</li>
+    <li>The same holds for a batch of calls made on a local object rather
+        than a stub.</li>
+    </ul>
+ */
+public class BatchTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking batches with failing calls";
+
+    /** Directory on the naming server. */
+    private static final Path   DIRECTORY = new Path("/directory");
+    /** File in the directory. */
+    private static final Path   FILE = new Path("/directory/file");
+
+    /** Naming server serving the batches. */
+    private NamingServer        server;
+    /** Skeleton for the naming server's service interface. */
+    private Skeleton<Service>   skeleton;
+    /** Stub for the skeleton. */
+    private Service             stub;
+    /** Whether stubs called skeletons in this JVM directly before the
+        test. */
+    private boolean             local;
+
+    /** Starts a skeleton for a naming server holding a file.
+
+        @throws TestFailed If the skeleton cannot be started.
+     */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        local = LocalCalls.isEnabled();
+        LocalCalls.setEnabled(false);
+
+        server = new NamingServer();
+        skeleton = new Skeleton<Service>(Service.class, server,
+            new InetSocketAddress("127.0.0.1", 0));
+
+        try
+        {
+            server.register(dummy(Storage.class), dummy(Command.class),
+                            new Path[] {FILE});
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start naming server skeleton", t);
+        }
+
+        stub = Stub.create(Service.class, new InetSocketAddress(
+            "127.0.0.1", skeleton.getAddress().getPort()));
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+            skeleton.stop();
+
+        LocalCalls.setEnabled(local);
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testListing(stub, "remote");
+            testListing(server, "local");
+            testSiblings(stub, "remote");
+            testSiblings(server, "local");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Sends the batch of the <code>ls</code> application for a file. */
+    private void testListing(Service service, String kind) throws Throwable
+    {
+        Batch<Service>              batch = Stub.batch(Service.class, service);
+        CompletableFuture<Boolean>  directory =
+            batch.add(s -> s.isDirectory(FILE));
+        CompletableFuture<String[]> listing = batch.add(s -> s.list(FILE));
+
+        batch.send();
+
+        if(!Boolean.FALSE.equals(outcome(directory)))
+            throw new TestFailed(kind + ": file taken for a directory");
+
+        if(!(outcome(listing) instanceof FileNotFoundException))
+        {
+            throw new TestFailed(kind + ": listing of a file gave " +
+                                 outcome(listing));
+        }
+    }
+
+    /** Checks that calls after a failing call run. */
+    private void testSiblings(Service service, String kind) throws Throwable
+    {
+        Batch<Service>              batch = Stub.batch(Service.class, service);
+        CompletableFuture<String[]> failed = batch.add(s -> s.list(FILE));
+        CompletableFuture<Boolean>  created =
+            batch.add(s -> s.createDirectory(new Path(DIRECTORY, kind)));
+        CompletableFuture<Boolean>  missing =
+            batch.add(s -> s.isDirectory(new Path("/missing")));
+        CompletableFuture<String[]> listing =
+            batch.add(s -> s.list(DIRECTORY));
+
+        batch.send();
+
+        if(!(outcome(failed) instanceof FileNotFoundException) ||
+           !(outcome(missing) instanceof FileNotFoundException))
+        {
+            throw new TestFailed(kind + ": failing calls in a batch did not " +
+                                 "fail");
+        }
+
+        if(!Boolean.TRUE.equals(outcome(created)))
+            throw new TestFailed(kind + ": call after a failing call not run");
+
+        Object                      entries = outcome(listing);
+
+        if(!(entries instanceof String[]) ||
+           !new HashSet<String>(Arrays.asList((String[])entries))
+               .contains(kind))
+        {
+            throw new TestFailed(kind + ": listing after failing calls gave " +
+                                 entries);
+        }
+    }
+
+    /** Gives the outcome of a batched call, which must be complete.
+
+        @return The result of the call, or the exception it threw.
+     */
+    private static Object outcome(CompletableFuture<?> result)
+        throws TestFailed
+    {
+        if(!result.isDone())
+            throw new TestFailed("batch sent with a call not complete");
+
+        try
+        {
+            return result.get();
+        }
+        catch(ExecutionException e)
+        {
+            return e.getCause();
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+    }
+
+    /** Makes an object implementing a storage server interface, whose
+        methods are not expected to be called. */
+    private static <T> T dummy(Class<T> c)
+    {
+        Object  proxy = Proxy.newProxyInstance(c.getClassLoader(),
+            new Class<?>[] {c}, new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object self, Method m, Object[] args)
+                {
+                    if(m.getName().equals("equals"))
+                        return self == args[0];
+                    if(m.getName().equals("hashCode"))
+                        return System.identityHashCode(self);
+                    if(m.getName().equals("toString"))
+                        return "dummy " + c.getSimpleName();
+
+                    throw new UnsupportedOperationException(m.getName());
+                }
+            });
+
+        return c.cast(proxy);
+    }
+}
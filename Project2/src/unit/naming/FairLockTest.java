@@ -0,0 +1,308 @@
+package naming;
+
+import test.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Checks the order in which <code>FairLock</code> lets requests in.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>Shared and exclusive requests are let in in the order they came.</li>
+    <li>Shared requests queued one after another are let in together.</li>
+    <li>A shared request arriving while an exclusive request waits for
+        readers waits behind it, so that readers cannot starve the
+        writer.</li>
+    <li>A lock may be released by a different thread from the one that took
+        it.</li>
+    <li>Releasing a lock which is not held throws
+        <code>IllegalStateException</code>, and leaves the lock usable.</li>
+    </ul>
+ */
+public class FairLockTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking fair reader/writer locks";
+
+    /** Milliseconds to wait for a thread to be let in or queued. */
+    private static final long   WAIT = 1000;
+
+    /** Threads started by the test. */
+    private final List<Holder>  holders = new ArrayList<Holder>();
+
+    /** Lets all threads still holding locks release them. */
+    @Override
+    protected void clean()
+    {
+        for(Holder h : holders)
+            h.release.countDown();
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testOrder();
+            testBatching();
+            testWriterNotStarved();
+            testCrossThread();
+            testBadRelease();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks that requests are let in first come, first served. */
+    private void testOrder() throws Throwable
+    {
+        FairLock        lock = new FairLock();
+        List<String>    order =
+            Collections.synchronizedList(new ArrayList<String>());
+
+        lock.getExclusive();
+
+        Holder          r1 = queue(lock, false, "r1", order);
+        Holder          w1 = queue(lock, true, "w1", order);
+        Holder          r2 = queue(lock, false, "r2", order);
+        Holder          w2 = queue(lock, true, "w2", order);
+
+        lock.releaseExclusive();
+
+        for(Holder h : new Holder[] {r1, w1, r2, w2})
+        {
+            h.awaitAcquired();
+            h.release.countDown();
+        }
+
+        if(!Arrays.asList("r1", "w1", "r2", "w2").equals(order))
+            throw new TestFailed("requests let in out of order: " + order);
+
+        expectFree(lock);
+    }
+
+    /** Checks that readers queued together are let in together. */
+    private void testBatching() throws Throwable
+    {
+        FairLock        lock = new FairLock();
+        Holder[]        readers = new Holder[3];
+
+        lock.getExclusive();
+
+        for(int i = 0; i < readers.length; ++i)
+            readers[i] = queue(lock, false, "r" + i, null);
+
+        lock.releaseExclusive();
+
+        // All of them hold the lock at once, none having been released.
+        for(Holder h : readers)
+            h.awaitAcquired();
+
+        for(Holder h : readers)
+            h.release.countDown();
+
+        expectFree(lock);
+    }
+
+    /** Checks that a waiting writer holds up readers arriving after it. */
+    private void testWriterNotStarved() throws Throwable
+    {
+        FairLock        lock = new FairLock();
+        List<String>    order =
+            Collections.synchronizedList(new ArrayList<String>());
+
+        lock.getShared();
+
+        Holder          writer = queue(lock, true, "writer", order);
+        Holder          reader = queue(lock, false, "reader", order);
+
+        if(reader.acquired.getCount() == 0)
+            throw new TestFailed("reader passed a waiting writer");
+
+        lock.releaseShared();
+
+        writer.awaitAcquired();
+        writer.release.countDown();
+        reader.awaitAcquired();
+        reader.release.countDown();
+
+        if(!Arrays.asList("writer", "reader").equals(order))
+            throw new TestFailed("writer starved by readers: " + order);
+
+        expectFree(lock);
+    }
+
+    /** Checks that locks can be released by another thread. */
+    private void testCrossThread() throws Throwable
+    {
+        for(boolean exclusive : new boolean[] {true, false})
+        {
+            final FairLock  lock = new FairLock();
+            final boolean   kind = exclusive;
+            Thread          taker = new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        if(kind)
+                            lock.getExclusive();
+                        else
+                            lock.getShared();
+                    }
+                });
+
+            taker.start();
+            taker.join(WAIT);
+            if(taker.isAlive())
+                throw new TestFailed("unable to take free lock");
+
+            if(exclusive)
+                lock.releaseExclusive();
+            else
+                lock.releaseShared();
+
+            expectFree(lock);
+        }
+    }
+
+    /** Checks releases of locks which are not held. */
+    private void testBadRelease() throws Throwable
+    {
+        FairLock    lock = new FairLock();
+
+        expectBadRelease(lock, true);
+        expectBadRelease(lock, false);
+
+        lock.getShared();
+        lock.releaseShared();
+        expectBadRelease(lock, false);
+
+        // A shared lock is not released as an exclusive one.
+        lock.getShared();
+        expectBadRelease(lock, true);
+        lock.releaseShared();
+
+        lock.getExclusive();
+        lock.releaseExclusive();
+        expectBadRelease(lock, true);
+
+        expectFree(lock);
+    }
+
+    /** Checks that releasing a lock of the given kind throws. */
+    private void expectBadRelease(FairLock lock, boolean exclusive)
+        throws TestFailed
+    {
+        try
+        {
+            if(exclusive)
+                lock.releaseExclusive();
+            else
+                lock.releaseShared();
+
+            throw new TestFailed((exclusive ? "exclusive" : "shared") +
+                                 " lock released when not held");
+        }
+        catch(IllegalStateException e) { }
+    }
+
+    /** Checks that a lock is free, by taking it exclusively. */
+    private void expectFree(FairLock lock) throws Throwable
+    {
+        Holder      h = new Holder(lock, true, "check", null);
+
+        h.start();
+        h.awaitAcquired();
+        h.release.countDown();
+        h.join(WAIT);
+    }
+
+    /** Starts a thread requesting a lock, and waits until it has been let in
+        or queued. */
+    private Holder queue(FairLock lock, boolean exclusive, String name,
+                         List<String> order) throws Throwable
+    {
+        int         before = lock.waiting();
+        Holder      h = new Holder(lock, exclusive, name, order);
+
+        h.start();
+
+        long        deadline = System.currentTimeMillis() + WAIT;
+
+        while(lock.waiting() == before && h.acquired.getCount() != 0)
+        {
+            if(System.currentTimeMillis() > deadline)
+                throw new TestFailed(name + " neither let in nor queued");
+            Thread.sleep(1);
+        }
+
+        return h;
+    }
+
+    /** Thread which takes a lock, notes that it has, and holds it until
+        told to release it. */
+    private class Holder extends Thread
+    {
+        /** Lock to take. */
+        private final FairLock          lock;
+        /** Whether to take it exclusively. */
+        private final boolean           exclusive;
+        /** List the name is added to once the lock is taken, or
+            <code>null</code>. */
+        private final List<String>      order;
+        /** Counted down once the lock is taken. */
+        final CountDownLatch            acquired = new CountDownLatch(1);
+        /** Counted down to release the lock. */
+        final CountDownLatch            release = new CountDownLatch(1);
+
+        Holder(FairLock lock, boolean exclusive, String name,
+               List<String> order)
+        {
+            super(name);
+            this.lock = lock;
+            this.exclusive = exclusive;
+            this.order = order;
+            setDaemon(true);
+            holders.add(this);
+        }
+
+        @Override
+        public void run()
+        {
+            if(exclusive)
+                lock.getExclusive();
+            else
+                lock.getShared();
+
+            if(order != null)
+                order.add(getName());
+            acquired.countDown();
+
+            try
+            {
+                release.await();
+            }
+            catch(InterruptedException e) { }
+
+            if(exclusive)
+                lock.releaseExclusive();
+            else
+                lock.releaseShared();
+        }
+
+        /** Waits until the lock has been taken. */
+        void awaitAcquired() throws Throwable
+        {
+            if(!acquired.await(WAIT, TimeUnit.MILLISECONDS))
+                throw new TestFailed(getName() + " not let in");
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package naming;
+
+import test.*;
+import common.*;
+import storage.*;
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Checks that the naming server finds paths as they are in its tree after
+    the tree changes.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>Once a directory is deleted, nothing under it is found, listed,
+        locked or given a storage server, and a new directory or file of the
+        same name has none of the old contents.</li>
+    <li>A path deleted and registered again by another storage server is
+        found with the new server's stubs.</li>
+    <li>Of a file and a directory of the same name created at once, exactly
+        one is made, and the path is found as what was made.</li>
+    <li>Directories and files created while the directory above them is
+        deleted are not found once the delete returns.</li>
+    </ul>
+
+    <p>
+    The naming server is not started, and its methods are called directly.
+ */
+public class IndexTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking the naming server path " +
+                                         "index";
+
+    /** Rounds of each race. */
+    private static final int    ROUNDS = 500;
+
+    /** Naming server under test. */
+    private NamingServer        server;
+    /** Threads racing each other. */
+    private ExecutorService     racers = Executors.newCachedThreadPool();
+
+    /** Creates the naming server.
+
+        @throws TestFailed If a storage server cannot be registered.
+     */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        server = new NamingServer();
+
+        try
+        {
+            server.register(dummy(Storage.class), dummy(Command.class),
+                            new Path[0]);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to register storage server", t);
+        }
+    }
+
+    /** Stops the racing threads. */
+    @Override
+    protected void clean()
+    {
+        racers.shutdownNow();
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testDeletedSubtree();
+            testReregistration();
+            testCreationRace();
+            testDeletionRace();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks that nothing under a deleted directory is found. */
+    private void testDeletedSubtree() throws Throwable
+    {
+        Storage     storage = dummy(Storage.class);
+
+        server.register(storage, dummy(Command.class),
+                        new Path[] {new Path("/a/b/c/f"), new Path("/a/g")});
+
+        // Every path is looked up once, so that it would be found in the
+        // index if it were left there.
+        if(server.getStorage(new Path("/a/b/c/f")) != storage ||
+           server.isDirectory(new Path("/a/g")) ||
+           !server.isDirectory(new Path("/a/b/c")))
+        {
+            throw new TestFailed("registered files not found");
+        }
+
+        if(!server.delete(new Path("/a")))
+            throw new TestFailed("directory not deleted");
+
+        for(String path : new String[] {"/a", "/a/b", "/a/b/c", "/a/b/c/f",
+                                        "/a/g"})
+        {
+            missing(new Path(path), "deleted");
+        }
+
+        if(Arrays.asList(server.list(new Path())).contains("a"))
+            throw new TestFailed("deleted directory listed");
+
+        // A directory of the same name is made anew, with a file where the
+        // old one had a directory.
+        if(!server.createDirectory(new Path("/a")) ||
+           !server.createDirectory(new Path("/a/b")) ||
+           !server.createFile(new Path("/a/b/c")))
+        {
+            throw new TestFailed("deleted paths not created again");
+        }
+
+        if(server.isDirectory(new Path("/a/b/c")))
+            throw new TestFailed("deleted directory found for a new file");
+
+        if(server.list(new Path("/a")).length != 1 ||
+           server.list(new Path("/a/b")).length != 1)
+        {
+            throw new TestFailed("deleted contents listed in new directory");
+        }
+
+        missing(new Path("/a/b/c/f"), "deleted");
+        missing(new Path("/a/g"), "deleted");
+
+        server.delete(new Path("/a"));
+    }
+
+    /** Checks that a path registered again is found with its new stubs. */
+    private void testReregistration() throws Throwable
+    {
+        Path        file = new Path("/r/s/f");
+        Storage     first = dummy(Storage.class);
+        Storage     second = dummy(Storage.class);
+
+        server.register(first, dummy(Command.class), new Path[] {file});
+
+        if(server.getStorage(file) != first)
+            throw new TestFailed("registered file not found");
+
+        server.delete(new Path("/r"));
+        missing(file, "deleted");
+
+        Path[]      duplicates = server.register(second, dummy(Command.class),
+                                                 new Path[] {file});
+
+        if(duplicates.length != 0)
+            throw new TestFailed("deleted file taken for a duplicate");
+
+        if(server.getStorage(file) != second)
+        {
+            throw new TestFailed("file registered again found with its old " +
+                                 "storage server");
+        }
+
+        if(!server.isDirectory(new Path("/r/s")) ||
+           !Arrays.equals(server.list(new Path("/r/s")), new String[] {"f"}))
+        {
+            throw new TestFailed("directories of a file registered again " +
+                                 "not found");
+        }
+
+        server.delete(new Path("/r"));
+    }
+
+    /** Creates a file and a directory of the same name at once. */
+    private void testCreationRace() throws Throwable
+    {
+        Path        parent = new Path("/c");
+
+        server.createDirectory(parent);
+
+        for(int i = 0; i < ROUNDS; ++i)
+        {
+            Path                path = new Path(parent, "n" + i);
+            CountDownLatch      start = new CountDownLatch(1);
+            Future<Boolean>     file = racers.submit(() ->
+            {
+                start.await();
+                return server.createFile(path);
+            });
+            Future<Boolean>     directory = racers.submit(() ->
+            {
+                start.await();
+                return server.createDirectory(path);
+            });
+
+            start.countDown();
+
+            boolean             isFile = file.get(1, TimeUnit.SECONDS);
+            boolean             isDirectory =
+                directory.get(1, TimeUnit.SECONDS);
+
+            if(isFile == isDirectory)
+            {
+                throw new TestFailed(path + ": " +
+                                     (isFile ? "both" : "neither") + " of a " +
+                                     "file and a directory created");
+            }
+
+            if(server.isDirectory(path) != isDirectory)
+                throw new TestFailed(path + " found as what was not created");
+        }
+
+        if(server.list(parent).length != ROUNDS)
+            throw new TestFailed("raced names listed more than once");
+
+        server.delete(parent);
+    }
+
+    /** Creates directories and files while the directory above them is
+        deleted. */
+    private void testDeletionRace() throws Throwable
+    {
+        Path        parent = new Path("/d");
+        Path        directory = new Path(parent, "e");
+        Path        file = new Path(directory, "f");
+
+        for(int i = 0; i < ROUNDS; ++i)
+        {
+            server.createDirectory(parent);
+
+            CountDownLatch      start = new CountDownLatch(1);
+            Future<Void>        creation = racers.submit(() ->
+            {
+                start.await();
+
+                try
+                {
+                    server.createDirectory(directory);
+                    server.createFile(file);
+                }
+                catch(FileNotFoundException e) { }
+
+                return null;
+            });
+            Future<Boolean>     deletion = racers.submit(() ->
+            {
+                start.await();
+                return server.delete(parent);
+            });
+
+            start.countDown();
+            creation.get(1, TimeUnit.SECONDS);
+
+            if(!deletion.get(1, TimeUnit.SECONDS))
+                throw new TestFailed("racing directory not deleted");
+
+            // The directory above is gone, so nothing under it may be found.
+            missing(parent, "deleted");
+            missing(directory, "created in a deleted directory");
+            missing(file, "created in a deleted directory");
+        }
+    }
+
+    /** Checks that a path is not found by any of the naming server's
+        methods which look paths up. */
+    private void missing(Path path, String kind) throws Throwable
+    {
+        try
+        {
+            server.isDirectory(path);
+            throw new TestFailed(kind + " path " + path + " found");
+        }
+        catch(FileNotFoundException e) { }
+
+        try
+        {
+            server.list(path);
+            throw new TestFailed(kind + " path " + path + " listed");
+        }
+        catch(FileNotFoundException e) { }
+
+        try
+        {
+            server.getStorage(path);
+            throw new TestFailed(kind + " path " + path + " given a storage " +
+                                 "server");
+        }
+        catch(FileNotFoundException e) { }
+
+        try
+        {
+            server.lock(path, true);
+            server.unlock(path, true);
+            throw new TestFailed(kind + " path " + path + " locked");
+        }
+        catch(FileNotFoundException e) { }
+    }
+
+    /** Makes an object implementing a storage server interface. Calls which
+        create or delete files succeed; other calls are not expected. */
+    private static <T> T dummy(Class<T> c)
+    {
+        Object  proxy = Proxy.newProxyInstance(c.getClassLoader(),
+            new Class<?>[] {c}, new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object self, Method m, Object[] args)
+                {
+                    if(m.getName().equals("equals"))
+                        return self == args[0];
+                    if(m.getName().equals("hashCode"))
+                        return System.identityHashCode(self);
+                    if(m.getName().equals("toString"))
+                        return "dummy " + c.getSimpleName();
+                    if(m.getName().equals("create") ||
+                       m.getName().equals("delete"))
+                    {
+                        return true;
+                    }
+
+                    throw new UnsupportedOperationException(m.getName());
+                }
+            });
+
+        return c.cast(proxy);
+    }
+}
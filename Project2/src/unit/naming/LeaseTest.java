@@ -0,0 +1,314 @@
+package naming;
+
+import test.*;
+import common.*;
+import storage.*;
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Checks that leases of locks run out, and that each grant has its own.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>A lock taken with <code>lock</code> is not released however long it
+        is held.</li>
+    <li>A lease which has run out, or has been released, cannot be renewed
+        or released, and neither can a lease which was never granted.</li>
+    <li>A client releasing a lease after it ran out does not release the
+        same lock granted since to another client.</li>
+    <li>Of two clients holding the same shared lock, the one which stops
+        renewing loses its lease while the other keeps its own.</li>
+    <li>A lease whose locks cannot be released when it runs out is reported
+        through <code>leaseError</code>, and ended all the same.</li>
+    </ul>
+
+    <p>
+    The naming server is not started, and the test reaps leases itself
+    rather than waiting for the reaper.
+ */
+public class LeaseTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking naming server lock leases";
+
+    /** Milliseconds a blocked lock request is given to prove it blocks. */
+    private static final long   BLOCKED = 100;
+    /** Lease time used by the test, in milliseconds. */
+    private static final long   LEASE = 100;
+
+    /** File on the naming server. */
+    private static final Path   F = new Path("/d/f");
+
+    /** Naming server under test. */
+    private NamingServer        server;
+    /** Threads started by the test. */
+    private ExecutorService     clients = Executors.newCachedThreadPool();
+    /** Leases reported through <code>leaseError</code>. */
+    private final List<Long>    failed =
+        Collections.synchronizedList(new ArrayList<Long>());
+
+    /** Creates the naming server and registers a storage server holding the
+        file.
+
+        @throws TestFailed If the storage server cannot be registered.
+     */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        server = new NamingServer()
+        {
+            @Override
+            protected void leaseError(long lease, RuntimeException exception)
+            {
+                failed.add(lease);
+            }
+        };
+        server.setLeaseTime(LEASE, TimeUnit.MILLISECONDS);
+
+        try
+        {
+            server.register(dummy(Storage.class), dummy(Command.class),
+                            new Path[] {F});
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to register storage server", t);
+        }
+    }
+
+    /** Stops the client threads. */
+    @Override
+    protected void clean()
+    {
+        clients.shutdownNow();
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testPlainLock();
+            testStaleLease();
+            testLateRelease();
+            testSharedHolders();
+            testFailedRelease();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks that a lock taken without a lease is kept. */
+    private void testPlainLock() throws Throwable
+    {
+        server.lock(F, true);
+
+        Thread.sleep(LEASE * 2);
+        server.reap();
+
+        expectBlocked(lockLater(F, false), "lock taken without a lease " +
+                                           "released by the naming server");
+
+        server.unlock(F, true);
+        expectFree(F);
+
+        if(server.reclaimedLeases() != 0)
+            throw new TestFailed("lock taken without a lease reclaimed");
+    }
+
+    /** Checks that ended and unknown leases are refused. */
+    private void testStaleLease() throws Throwable
+    {
+        long        released = server.lease(F, true);
+
+        server.release(released);
+        expectEnded(released, "released");
+
+        long        expired = server.lease(F, true);
+
+        Thread.sleep(LEASE * 2);
+        server.reap();
+
+        if(server.reclaimedLeases() != 1)
+            throw new TestFailed("lease which ran out not reclaimed");
+
+        expectEnded(expired, "reclaimed");
+        expectEnded(Math.max(released, expired) + 1000, "unknown");
+        expectFree(F);
+    }
+
+    /** Checks that releasing a lease late does not release a lock granted
+        since to another client. */
+    private void testLateRelease() throws Throwable
+    {
+        long        late = server.lease(F, true);
+
+        Thread.sleep(LEASE * 2);
+        server.reap();
+
+        long        other = server.lease(F, true);
+
+        try
+        {
+            server.release(late);
+            throw new TestFailed("lease released after it ran out");
+        }
+        catch(IllegalArgumentException e) { }
+
+        expectBlocked(lockLater(F, false), "late release of a lease released " +
+                                           "the lock of another client");
+
+        if(!server.renew(other))
+            throw new TestFailed("lease lost through a late release");
+
+        server.release(other);
+        expectFree(F);
+    }
+
+    /** Checks that a renewing shared holder does not keep the lease of
+        another holder alive. */
+    private void testSharedHolders() throws Throwable
+    {
+        long        crashed = server.lease(F, false);
+        long        renewing = server.lease(F, false);
+        long        deadline = System.currentTimeMillis() + LEASE * 2;
+
+        while(System.currentTimeMillis() < deadline)
+        {
+            if(!server.renew(renewing))
+                throw new TestFailed("renewed lease ran out");
+
+            Thread.sleep(LEASE / 10);
+        }
+
+        server.reap();
+
+        if(server.renew(crashed))
+            throw new TestFailed("lease kept alive by another holder of " +
+                                 "the same lock");
+
+        if(!server.renew(renewing))
+            throw new TestFailed("renewed lease ran out");
+
+        if(server.activeLeases() != 1)
+        {
+            throw new TestFailed(server.activeLeases() + " leases active " +
+                                 "instead of 1");
+        }
+
+        expectBlocked(lockLater(F, true), "shared lock of a renewed lease " +
+                                          "released");
+
+        server.release(renewing);
+        expectFree(F);
+    }
+
+    /** Checks that a lease whose release fails is reported and ended. */
+    private void testFailedRelease() throws Throwable
+    {
+        long        lease = server.lease(F, true);
+
+        // The lock is released behind the lease's back, so that releasing
+        // the lease fails.
+        server.unlock(F, true);
+
+        Thread.sleep(LEASE * 2);
+        server.reap();
+
+        if(!failed.equals(Arrays.asList(lease)))
+            throw new TestFailed("failed release reported for " + failed);
+
+        if(server.activeLeases() != 0)
+            throw new TestFailed("lease kept after its release failed");
+
+        expectEnded(lease, "failed");
+        expectFree(F);
+    }
+
+    /** Checks that a lease can be neither renewed nor released. */
+    private void expectEnded(long lease, String kind) throws Throwable
+    {
+        if(server.renew(lease))
+            throw new TestFailed(kind + " lease renewed");
+
+        try
+        {
+            server.release(lease);
+            throw new TestFailed(kind + " lease released");
+        }
+        catch(IllegalArgumentException e) { }
+    }
+
+    /** Takes a lock, and releases it at once, in another thread. */
+    private Future<?> lockLater(final Path path, final boolean exclusive)
+    {
+        return clients.submit(new Callable<Void>()
+        {
+            @Override
+            public Void call() throws Exception
+            {
+                server.lock(path, exclusive);
+                server.unlock(path, exclusive);
+                return null;
+            }
+        });
+    }
+
+    /** Checks that a lock request has not been granted. */
+    private static void expectBlocked(Future<?> request, String message)
+        throws Throwable
+    {
+        try
+        {
+            request.get(BLOCKED, TimeUnit.MILLISECONDS);
+            throw new TestFailed(message);
+        }
+        catch(TimeoutException e) { }
+    }
+
+    /** Checks that no lock is held on a path, by locking it exclusively. */
+    private void expectFree(Path path) throws Throwable
+    {
+        try
+        {
+            lockLater(path, true).get(1, TimeUnit.SECONDS);
+        }
+        catch(TimeoutException e)
+        {
+            throw new TestFailed("lock on " + path + " not released");
+        }
+    }
+
+    /** Makes an object implementing a storage server interface, whose
+        methods are not expected to be called. */
+    private static <T> T dummy(Class<T> c)
+    {
+        Object  proxy = Proxy.newProxyInstance(c.getClassLoader(),
+            new Class<?>[] {c}, new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object self, Method m, Object[] args)
+                {
+                    if(m.getName().equals("equals"))
+                        return self == args[0];
+                    if(m.getName().equals("hashCode"))
+                        return System.identityHashCode(self);
+                    if(m.getName().equals("toString"))
+                        return "dummy " + c.getSimpleName();
+
+                    throw new UnsupportedOperationException(m.getName());
+                }
+            });
+
+        return c.cast(proxy);
+    }
+}
@@ -0,0 +1,252 @@
+package naming;
+
+import test.*;
+import common.*;
+import storage.*;
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Checks that <code>lockAll</code> takes each lock once, in path order.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>A path given twice, once shared and once exclusive, is locked
+        exclusively, and <code>unlockAll</code> with the same arguments
+        releases it completely.</li>
+    <li>A directory given both as a path and as the directory above another
+        path is locked once, in the stronger mode.</li>
+    <li>Clients locking overlapping sets of paths, given in opposite orders
+        and in mixed modes, do not deadlock.</li>
+    </ul>
+ */
+public class LockAllTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking naming server lockAll";
+
+    /** Milliseconds a blocked lock request is given to prove it blocks. */
+    private static final long   BLOCKED = 100;
+    /** Times each client locks its set in the deadlock test. */
+    private static final int    ROUNDS = 200;
+
+    /** Files on the naming server. */
+    private static final Path   F1 = new Path("/d/f1");
+    private static final Path   F2 = new Path("/d/f2");
+    private static final Path   G = new Path("/e/g");
+    private static final Path   D = new Path("/d");
+
+    /** Naming server under test. It is not started: its methods are called
+        directly. */
+    private NamingServer        server;
+    /** Threads started by the test. */
+    private ExecutorService     clients = Executors.newCachedThreadPool();
+
+    /** Creates the naming server and registers a storage server holding the
+        files.
+
+        @throws TestFailed If the storage server cannot be registered.
+     */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        server = new NamingServer();
+
+        try
+        {
+            server.register(dummy(Storage.class), dummy(Command.class),
+                            new Path[] {F1, F2, G});
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to register storage server", t);
+        }
+    }
+
+    /** Stops the client threads. */
+    @Override
+    protected void clean()
+    {
+        clients.shutdownNow();
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testMixedModes();
+            testDirectoryTwice();
+            testOpposingOrders();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks a path given in both modes. */
+    private void testMixedModes() throws Throwable
+    {
+        Path[]      paths = new Path[] {F1, F1};
+        boolean[]   modes = new boolean[] {false, true};
+
+        server.lockAll(paths, modes);
+
+        Future<?>   reader = lockLater(F1, false);
+
+        expectBlocked(reader, "shared lock granted on a path locked in " +
+                              "both modes");
+
+        server.unlockAll(paths, modes);
+        reader.get(1, TimeUnit.SECONDS);
+        server.unlock(F1, false);
+
+        expectFree(F1);
+    }
+
+    /** Checks a directory given as a path and as a directory above
+        another. */
+    private void testDirectoryTwice() throws Throwable
+    {
+        Path[]      paths = new Path[] {F1, D};
+        boolean[]   modes = new boolean[] {false, true};
+
+        server.lockAll(paths, modes);
+
+        Future<?>   reader = lockLater(D, false);
+
+        expectBlocked(reader, "shared lock granted on a directory locked " +
+                              "exclusively");
+
+        server.unlockAll(paths, modes);
+        reader.get(1, TimeUnit.SECONDS);
+        server.unlock(D, false);
+
+        expectFree(D);
+        expectFree(F1);
+    }
+
+    /** Checks clients locking overlapping sets in opposite orders. */
+    private void testOpposingOrders() throws Throwable
+    {
+        List<Future<?>>     results = new ArrayList<Future<?>>();
+
+        results.add(repeat(new Path[] {F1, F2}, new boolean[] {true, true}));
+        results.add(repeat(new Path[] {F2, F1}, new boolean[] {true, true}));
+        results.add(repeat(new Path[] {F1, G}, new boolean[] {true, false}));
+        results.add(repeat(new Path[] {G, F1}, new boolean[] {true, false}));
+
+        long                deadline = System.currentTimeMillis() + 2000;
+
+        for(Future<?> result : results)
+        {
+            try
+            {
+                result.get(Math.max(1, deadline - System.currentTimeMillis()),
+                           TimeUnit.MILLISECONDS);
+            }
+            catch(TimeoutException e)
+            {
+                throw new TestFailed("clients locking in opposite orders " +
+                                     "deadlocked");
+            }
+        }
+
+        expectFree(F1);
+        expectFree(F2);
+        expectFree(G);
+    }
+
+    /** Locks and unlocks a set of paths <code>ROUNDS</code> times in another
+        thread. */
+    private Future<?> repeat(final Path[] paths, final boolean[] modes)
+    {
+        return clients.submit(new Callable<Void>()
+        {
+            @Override
+            public Void call() throws Exception
+            {
+                for(int i = 0; i < ROUNDS; ++i)
+                {
+                    server.lockAll(paths, modes);
+                    server.unlockAll(paths, modes);
+                }
+                return null;
+            }
+        });
+    }
+
+    /** Takes a lock in another thread. */
+    private Future<?> lockLater(final Path path, final boolean exclusive)
+    {
+        return clients.submit(new Callable<Void>()
+        {
+            @Override
+            public Void call() throws Exception
+            {
+                server.lock(path, exclusive);
+                return null;
+            }
+        });
+    }
+
+    /** Checks that a lock request has not been granted. */
+    private static void expectBlocked(Future<?> request, String message)
+        throws Throwable
+    {
+        try
+        {
+            request.get(BLOCKED, TimeUnit.MILLISECONDS);
+            throw new TestFailed(message);
+        }
+        catch(TimeoutException e) { }
+    }
+
+    /** Checks that no lock is held on a path, by locking it exclusively. */
+    private void expectFree(Path path) throws Throwable
+    {
+        Future<?>   writer = lockLater(path, true);
+
+        try
+        {
+            writer.get(1, TimeUnit.SECONDS);
+        }
+        catch(TimeoutException e)
+        {
+            throw new TestFailed("lock on " + path + " not released");
+        }
+
+        server.unlock(path, true);
+    }
+
+    /** Makes an object implementing a storage server interface, whose
+        methods are not expected to be called. */
+    private static <T> T dummy(Class<T> c)
+    {
+        Object  proxy = Proxy.newProxyInstance(c.getClassLoader(),
+            new Class<?>[] {c}, new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object self, Method m, Object[] args)
+                {
+                    if(m.getName().equals("equals"))
+                        return self == args[0];
+                    if(m.getName().equals("hashCode"))
+                        return System.identityHashCode(self);
+                    if(m.getName().equals("toString"))
+                        return "dummy " + c.getSimpleName();
+
+                    throw new UnsupportedOperationException(m.getName());
+                }
+            });
+
+        return c.cast(proxy);
+    }
+}
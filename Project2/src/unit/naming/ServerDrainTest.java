@@ -0,0 +1,296 @@
+package naming;
+
+import test.*;
+import rmi.*;
+import common.*;
+import storage.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Checks that the naming and storage servers drain both of their skeletons
+    before stopping.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>While the naming server drains, calls to both of its interfaces are
+        refused with <code>RMIOverloadException</code>. A client waiting for
+        a lock whose holder cannot unlock it is abandoned at the deadline, and
+        the report counts it and the refused calls.</li>
+    <li>While a storage server drains, calls to both of its interfaces are
+        refused with <code>RMIOverloadException</code>, a read in flight is
+        answered, and the report counts it and the refused calls.</li>
+    <li>Both servers report that they stopped normally.</li>
+    </ul>
+ */
+public class ServerDrainTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking naming and storage server " +
+                                         "drains";
+
+    /** Root directory. */
+    private static final Path   ROOT = new Path("/");
+    /** File on the storage server. */
+    private static final Path   FILE = new Path("/file");
+
+    /** Naming server under test. */
+    private NamingServer        naming;
+    /** Storage server under test. */
+    private StorageServer       storage;
+    /** Directory served by the storage server. */
+    private TemporaryDirectory  directory;
+    /** Threads making calls and draining the servers. */
+    private ExecutorService     callers = Executors.newCachedThreadPool();
+    /** Released by each call to <code>size</code> on the storage server when
+        it starts. */
+    private final Semaphore     entered = new Semaphore(0);
+    /** Released to let the calls to <code>size</code> return. */
+    private final CountDownLatch    gate = new CountDownLatch(1);
+    /** Causes the servers reported when they stopped. */
+    private final List<Object>  stopped =
+        Collections.synchronizedList(new ArrayList<Object>());
+    /** Whether stubs called skeletons in this JVM directly before the
+        test. */
+    private boolean             local;
+
+    /** Turns off local calls, which skip the skeletons' accounting. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        local = LocalCalls.isEnabled();
+        LocalCalls.setEnabled(false);
+    }
+
+    /** Stops the servers and the calling threads. */
+    @Override
+    protected void clean()
+    {
+        gate.countDown();
+        callers.shutdownNow();
+
+        if(naming != null)
+            naming.stop();
+        if(storage != null)
+            storage.stop();
+        if(directory != null)
+            directory.remove();
+
+        LocalCalls.setEnabled(local);
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testNamingServer();
+            testStorageServer();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Drains the naming server while a client waits for a lock. */
+    private void testNamingServer() throws Throwable
+    {
+        naming = new NamingServer()
+        {
+            @Override
+            protected void stopped(Throwable cause)
+            {
+                ServerDrainTest.this.stopped.add(String.valueOf(cause));
+            }
+        };
+        naming.start();
+
+        Service             service = NamingStubs.service("127.0.0.1");
+        Registration        registration =
+            NamingStubs.registration("127.0.0.1");
+        InetSocketAddress   nowhere = new InetSocketAddress("127.0.0.1", 1);
+
+        // Connections made once the server drains are refused, so both
+        // stubs connect first.
+        registration.register(Stub.create(Storage.class, nowhere),
+                              Stub.create(Command.class, nowhere),
+                              new Path[0]);
+        service.lock(ROOT, true);
+
+        Future<Void>        waiting = callers.submit(() ->
+        {
+            service.lock(ROOT, true);
+            return null;
+        });
+
+        try
+        {
+            waiting.get(100, TimeUnit.MILLISECONDS);
+            throw new TestFailed("exclusive lock granted twice");
+        }
+        catch(TimeoutException e) { }
+
+        Future<DrainReport> drained = callers.submit(() -> naming.drain(300));
+
+        awaitRefusal(() -> service.isDirectory(ROOT));
+
+        try
+        {
+            service.unlock(ROOT, true);
+            throw new TestFailed("unlock taken on while draining");
+        }
+        catch(RMIOverloadException e) { }
+
+        try
+        {
+            registration.register(Stub.create(Storage.class, nowhere),
+                                  Stub.create(Command.class, nowhere),
+                                  new Path[0]);
+            throw new TestFailed("registration taken on while draining");
+        }
+        catch(RMIOverloadException e) { }
+
+        DrainReport         report = drained.get(1, TimeUnit.SECONDS);
+
+        if(report.abandoned() != 1 || report.refused() != 3)
+        {
+            throw new TestFailed("naming server drain reported " + report +
+                                 " instead of 1 abandoned and 3 refused");
+        }
+
+        try
+        {
+            waiting.get(1, TimeUnit.SECONDS);
+            throw new TestFailed("lock granted to abandoned call");
+        }
+        catch(ExecutionException e) { }
+
+        if(!stopped.equals(Arrays.asList("null")))
+            throw new TestFailed("naming server reported stopping " + stopped);
+
+        naming = null;
+    }
+
+    /** Drains a storage server while a read is in flight. */
+    private void testStorageServer() throws Throwable
+    {
+        stopped.clear();
+        directory = new TemporaryDirectory();
+        directory.add(new String[] {"file"}, "contents");
+
+        final Storage[]     storageStub = new Storage[1];
+        final Command[]     commandStub = new Command[1];
+
+        storage = new StorageServer(directory.root())
+        {
+            @Override
+            public long size(Path file) throws FileNotFoundException
+            {
+                entered.release();
+
+                try
+                {
+                    gate.await();
+                }
+                catch(InterruptedException e) { }
+
+                return super.size(file);
+            }
+
+            @Override
+            protected void stopped(Throwable cause)
+            {
+                ServerDrainTest.this.stopped.add(String.valueOf(cause));
+            }
+        };
+
+        storage.start("127.0.0.1", new Registration()
+        {
+            @Override
+            public Path[] register(Storage client_stub, Command command_stub,
+                                   Path[] files)
+            {
+                storageStub[0] = client_stub;
+                commandStub[0] = command_stub;
+                return new Path[0];
+            }
+        });
+
+        // The command stub connects before the server drains.
+        if(commandStub[0].delete(new Path("/missing")))
+            throw new TestFailed("missing file deleted");
+
+        Future<Long>        read = callers.submit(() ->
+            storageStub[0].size(FILE));
+
+        if(!entered.tryAcquire(1, TimeUnit.SECONDS))
+            throw new TestFailed("read did not reach the storage server");
+
+        Future<DrainReport> drained = callers.submit(() -> storage.drain(2000));
+
+        awaitRefusal(() -> commandStub[0].delete(new Path("/missing")));
+
+        try
+        {
+            storageStub[0].read(FILE, 0, 1);
+            throw new TestFailed("read taken on while draining");
+        }
+        catch(RMIOverloadException e) { }
+
+        gate.countDown();
+
+        if(read.get(1, TimeUnit.SECONDS) != "contents".length())
+            throw new TestFailed("read in flight not answered while draining");
+
+        DrainReport         report = drained.get(1, TimeUnit.SECONDS);
+
+        if(report.completed() < 1 || report.abandoned() != 0 ||
+           report.refused() != 2 || report.elapsed() >= 2000)
+        {
+            throw new TestFailed("storage server drain reported " + report +
+                                 " instead of none abandoned and 2 refused");
+        }
+
+        if(!stopped.equals(Arrays.asList("null")))
+            throw new TestFailed("storage server reported stopping " + stopped);
+
+        storage = null;
+    }
+
+    /** A call which can be made to a server any number of times. */
+    private interface Call
+    {
+        void make() throws Exception;
+    }
+
+    /** Makes a call until it is refused because the server has started to
+        drain. */
+    private static void awaitRefusal(Call call) throws Throwable
+    {
+        long                deadline = System.currentTimeMillis() + 1000;
+
+        while(System.currentTimeMillis() < deadline)
+        {
+            try
+            {
+                call.make();
+            }
+            catch(RMIOverloadException e)
+            {
+                return;
+            }
+
+            Thread.sleep(5);
+        }
+
+        throw new TestFailed("calls not refused while draining");
+    }
+}
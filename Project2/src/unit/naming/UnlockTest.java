@@ -0,0 +1,179 @@
+package naming;
+
+import test.*;
+import rmi.*;
+import common.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Checks that calls releasing locks reach the naming server while many
+    clients wait for locks.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>While a lease on the root is held and many clients wait to lock it,
+        the lease is renewed and released at once.</li>
+    <li>Each waiting client is granted the lock in turn as the one before it
+        unlocks, with every unlock answered at once.</li>
+    </ul>
+ */
+public class UnlockTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking naming server unlocks " +
+                                         "under load";
+
+    /** Root directory. */
+    private static final Path   ROOT = new Path("/");
+    /** Number of clients waiting for the lock. */
+    private static final int    WAITING = 32;
+    /** Milliseconds in which a call releasing a lock must be answered. */
+    private static final long   PROMPT = 500;
+
+    /** Naming server under test. */
+    private NamingServer        server;
+    /** Threads making the calls which wait for the lock. */
+    private ExecutorService     callers = Executors.newCachedThreadPool();
+    /** Whether stubs called skeletons in this JVM directly before the
+        test. */
+    private boolean             local;
+
+    /** Starts the naming server.
+
+        @throws TestFailed If the naming server cannot be started.
+     */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        local = LocalCalls.isEnabled();
+        LocalCalls.setEnabled(false);
+
+        server = new NamingServer();
+
+        try
+        {
+            server.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start naming server", t);
+        }
+    }
+
+    /** Stops the naming server and the calling threads. */
+    @Override
+    protected void clean()
+    {
+        callers.shutdownNow();
+
+        if(server != null)
+            server.stop();
+
+        LocalCalls.setEnabled(local);
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            Service             service = NamingStubs.service("127.0.0.1");
+            long                lease = service.lease(ROOT, true);
+            List<Future<Void>>  waiting = new ArrayList<Future<Void>>();
+
+            for(int i = 0; i < WAITING; ++i)
+            {
+                waiting.add(callers.submit(() ->
+                {
+                    service.lock(ROOT, true);
+                    return null;
+                }));
+            }
+
+            Thread.sleep(100);
+
+            for(Future<Void> f : waiting)
+            {
+                if(f.isDone())
+                    throw new TestFailed("lock granted under a lease");
+            }
+
+            long                began = System.currentTimeMillis();
+
+            if(!service.renew(lease))
+                throw new TestFailed("lease not renewed");
+
+            service.release(lease);
+            prompt(began, "renew and release");
+
+            // Each unlock lets the next waiting client in.
+            for(int i = 0; i < WAITING; ++i)
+            {
+                int             granted = granted(waiting, i + 1);
+
+                if(granted != i + 1)
+                {
+                    throw new TestFailed("lock granted to " + granted +
+                                         " clients instead of " + (i + 1));
+                }
+
+                began = System.currentTimeMillis();
+                service.unlock(ROOT, true);
+                prompt(began, "unlock");
+            }
+
+            for(Future<Void> f : waiting)
+                f.get(1, TimeUnit.SECONDS);
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Waits for a number of clients to be granted the lock, and counts
+        the clients which have been. */
+    private static int granted(List<Future<Void>> waiting, int expected)
+        throws Throwable
+    {
+        long                deadline = System.currentTimeMillis() + PROMPT;
+
+        while(done(waiting) < expected &&
+              System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(5);
+        }
+
+        // A grant too many, which would be wrong, is given a chance to show.
+        Thread.sleep(5);
+
+        return done(waiting);
+    }
+
+    /** Counts the clients which have been granted the lock. */
+    private static int done(List<Future<Void>> waiting)
+    {
+        int                 done = 0;
+
+        for(Future<Void> f : waiting)
+        {
+            if(f.isDone())
+                ++done;
+        }
+
+        return done;
+    }
+
+    /** Checks that calls begun at a time were answered promptly. */
+    private static void prompt(long began, String calls) throws TestFailed
+    {
+        if(System.currentTimeMillis() - began > PROMPT)
+            throw new TestFailed(calls + " held up by waiting lockers");
+    }
+}
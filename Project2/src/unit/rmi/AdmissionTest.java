@@ -0,0 +1,207 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.net.*;
+
+/** Checks that calls too large for a skeleton's admission policy are refused
+    from their headers.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>A call whose declared length is over the policy's byte limit is
+        answered with an <code>RMIOverloadException</code> before its body
+        has arrived, with both transports.</li>
+    <li>The body of a refused call is skipped, and the calls after it on the
+        same connection are served.</li>
+    <li>Through a stub, a large call fails with an
+        <code>RMIOverloadException</code>, and a small one then succeeds.</li>
+    </ul>
+ */
+public class AdmissionTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking admission of calls from their headers";
+
+    /** Most request bytes the skeletons take on. */
+    private static final long   MAX_BYTES = 4096;
+
+    /** Remote interface of the skeletons. */
+    public interface Sink
+    {
+        int take(byte[] b) throws RMIException;
+    }
+
+    /** Skeleton with the blocking transport. */
+    private Skeleton<Sink>      blocking;
+    /** Skeleton with the selector transport. */
+    private Skeleton<Sink>      selector;
+    /** Whether stubs called skeletons in this JVM directly before the
+        test. */
+    private boolean             local;
+
+    /** Starts the skeletons.
+
+        @throws TestFailed If the skeletons cannot be started.
+     */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        local = LocalCalls.isEnabled();
+        LocalCalls.setEnabled(false);
+
+        blocking = skeleton(Skeleton.Transport.BLOCKING);
+        selector = skeleton(Skeleton.Transport.SELECTOR);
+    }
+
+    /** Stops the skeletons. */
+    @Override
+    protected void clean()
+    {
+        if(blocking != null)
+            blocking.stop();
+        if(selector != null)
+            selector.stop();
+
+        LocalCalls.setEnabled(local);
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testHeader(blocking);
+            testHeader(selector);
+            testStub(blocking);
+            testStub(selector);
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Sends the header of a large call and checks that it is refused before
+        the body is sent, and that the connection is still served after the
+        body. */
+    private void testHeader(Skeleton<Sink> skeleton) throws Throwable
+    {
+        String          name = skeleton.getTransport().toString();
+        long            rejected = skeleton.getAdmission().rejectedCalls();
+        Socket          socket = new Socket("127.0.0.1",
+                                            skeleton.getAddress().getPort());
+
+        try
+        {
+            socket.setSoTimeout(2000);
+
+            DataInputStream     in = new DataInputStream(
+                new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream    out = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream()));
+
+            new Frame(Frame.HELLO, 0, new byte[] {0}).write(out);
+            out.flush();
+            Frame.read(in);
+
+            byte[]              body = new byte[1024 * 1024];
+
+            out.writeInt(Frame.HEADER + body.length);
+            out.writeByte(Frame.CALL);
+            out.writeInt(7);
+            out.flush();
+
+            Frame               refusal;
+
+            try
+            {
+                refusal = Frame.read(in);
+            }
+            catch(SocketTimeoutException e)
+            {
+                throw new TestFailed(name + ": large call not refused " +
+                                     "before its body arrived");
+            }
+
+            if(refusal == null || refusal.type != Frame.EXCEPTION ||
+               refusal.id != 7 ||
+               !(Codec.read(Codec.reader(refusal.body))
+                    instanceof RMIOverloadException))
+            {
+                throw new TestFailed(name + ": large call not refused with " +
+                                     "RMIOverloadException");
+            }
+
+            if(skeleton.getAdmission().rejectedCalls() != rejected + 1)
+                throw new TestFailed(name + ": refusal not counted once");
+
+            // The skeleton skips the body, and answers what follows it.
+            out.write(body);
+            new Frame(Frame.PING, 8, new byte[0]).write(out);
+            out.flush();
+
+            Frame               ping = Frame.read(in);
+
+            if(ping == null || ping.type != Frame.PING || ping.id != 8)
+                throw new TestFailed(name + ": connection not served after " +
+                                     "a refused call");
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+
+    /** Checks refusals of calls made through a stub. */
+    private void testStub(Skeleton<Sink> skeleton) throws Throwable
+    {
+        String  name = skeleton.getTransport().toString();
+        Sink    stub = Stub.create(Sink.class, new InetSocketAddress(
+            "127.0.0.1", skeleton.getAddress().getPort()));
+
+        try
+        {
+            stub.take(new byte[256 * 1024]);
+            throw new TestFailed(name + ": call over the byte limit taken on");
+        }
+        catch(RMIOverloadException e) { }
+
+        if(stub.take(new byte[16]) != 16)
+            throw new TestFailed(name + ": small call failed after refusal");
+    }
+
+    /** Starts a skeleton with a small byte limit. */
+    private static Skeleton<Sink> skeleton(Skeleton.Transport transport)
+        throws TestFailed
+    {
+        Skeleton<Sink>  skeleton = new Skeleton<Sink>(Sink.class, new Sink()
+            {
+                @Override
+                public int take(byte[] b)
+                {
+                    return b.length;
+                }
+            }, new InetSocketAddress("127.0.0.1", 0), transport);
+
+        skeleton.setAdmission(Admission.limits(4, 4, MAX_BYTES));
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        return skeleton;
+    }
+}
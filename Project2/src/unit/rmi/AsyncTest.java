@@ -0,0 +1,453 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Checks asynchronous stubs.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>Many calls may be outstanding at once, and each future is completed
+        with the result of its own call, on a thread other than the
+        caller's.</li>
+    <li>Actions attached to a future may make further calls.</li>
+    <li>A future of a call which threw fails with the exception the server
+        object threw, not wrapped in another.</li>
+    <li>Exceptions of the <code>RMIException</code> family, whether thrown by
+        the server object, by the skeleton refusing a call or by the stub
+        timing it out, reach callers of synchronous and asynchronous stubs as
+        they are. Other failures of the connection are wrapped in a plain
+        <code>RMIException</code>, and an <code>RMIException</code> raised by
+        the stub itself, such as for a garbled stream, is not wrapped in
+        another.</li>
+    <li>An asynchronous stub made for a local object returns futures which
+        are already complete.</li>
+    </ul>
+ */
+public class AsyncTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking asynchronous stubs";
+
+    /** Remote interface of the skeleton. */
+    public interface Calculator
+    {
+        int add(int a, int b) throws RMIException;
+        int fail(String kind) throws RMIException, IOException;
+        void sleep(long millis) throws RMIException;
+        Iterator<Integer> count(int n) throws RMIException;
+    }
+
+    /** Companion interface of <code>Calculator</code>. */
+    public interface AsyncCalculator
+    {
+        CompletableFuture<Integer> add(int a, int b);
+        CompletableFuture<Integer> fail(String kind);
+        CompletableFuture<Void> sleep(long millis);
+        CompletableFuture<Iterator<Integer>> count(int n);
+    }
+
+    /** Server object. */
+    private static class Server implements Calculator
+    {
+        @Override
+        public int add(int a, int b)
+        {
+            return a + b;
+        }
+
+        @Override
+        public int fail(String kind) throws RMIException, IOException
+        {
+            if(kind.equals("io"))
+                throw new FileNotFoundException(kind);
+            if(kind.equals("overload"))
+                throw new RMIOverloadException(kind);
+
+            throw new IllegalStateException(kind);
+        }
+
+        @Override
+        public void sleep(long millis)
+        {
+            try
+            {
+                Thread.sleep(millis);
+            }
+            catch(InterruptedException e) { }
+        }
+
+        @Override
+        public Iterator<Integer> count(int n)
+        {
+            List<Integer>   numbers = new ArrayList<Integer>();
+
+            for(int i = 0; i < n; ++i)
+                numbers.add(i);
+
+            return numbers.iterator();
+        }
+    }
+
+    /** Skeleton serving <code>Calculator</code>. */
+    private Skeleton<Calculator>    skeleton;
+    /** Address of the skeleton. */
+    private InetSocketAddress       address;
+    /** Server which answers every call with a garbled stream. */
+    private ServerSocket            garbled;
+    /** Whether stubs called skeletons in this JVM directly before the
+        test. */
+    private boolean                 local;
+
+    /** Starts the skeleton.
+
+        @throws TestFailed If the skeleton cannot be started.
+     */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        local = LocalCalls.isEnabled();
+        LocalCalls.setEnabled(false);
+
+        skeleton = new Skeleton<Calculator>(Calculator.class, new Server(),
+            new InetSocketAddress("127.0.0.1", 0));
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        address = new InetSocketAddress("127.0.0.1",
+                                        skeleton.getAddress().getPort());
+
+        try
+        {
+            garbled = new ServerSocket(0, 50,
+                                       InetAddress.getByName("127.0.0.1"));
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start garbling server", t);
+        }
+
+        Thread                      acceptor = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    garble();
+                }
+            }, "garbling server");
+
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+            skeleton.stop();
+
+        try
+        {
+            if(garbled != null)
+                garbled.close();
+        }
+        catch(IOException e) { }
+
+        LocalCalls.setEnabled(local);
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            AsyncCalculator stub = Stub.createAsync(AsyncCalculator.class,
+                                                    Calculator.class, address);
+
+            testCompletion(stub);
+            testExceptions(stub, "remote");
+            testExceptions(Stub.createAsync(AsyncCalculator.class,
+                                            Calculator.class,
+                                            (Calculator)new Server()),
+                           "local");
+            testLocal();
+            testGarbledStream();
+            testRMIExceptions(stub);
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks that outstanding calls each complete with their result. */
+    private void testCompletion(AsyncCalculator stub) throws Throwable
+    {
+        CompletableFuture<Void>         slow = stub.sleep(200);
+
+        if(slow.isDone())
+            throw new TestFailed("asynchronous call waited for its result");
+
+        List<CompletableFuture<Integer>>    sums =
+            new ArrayList<CompletableFuture<Integer>>();
+
+        for(int i = 0; i < 50; ++i)
+            sums.add(stub.add(i, 1000));
+
+        for(int i = 0; i < sums.size(); ++i)
+        {
+            if(sums.get(i).get(1, TimeUnit.SECONDS) != i + 1000)
+                throw new TestFailed("future completed with another result");
+        }
+
+        // The call is still running when the action is attached to it, so
+        // the action runs on the thread completing the future.
+        Thread                          caller = Thread.currentThread();
+        CompletableFuture<Thread>       completer =
+            stub.sleep(100).thenApply(v -> Thread.currentThread());
+
+        if(completer.get(1, TimeUnit.SECONDS) == caller)
+            throw new TestFailed("future completed by the caller's thread");
+
+        // An action attached to a future makes a call of its own, and waits
+        // for it.
+        CompletableFuture<Integer>      chained = stub.add(1, 2)
+            .thenCompose(sum -> stub.add(sum, 3))
+            .thenApply(sum -> stub.add(sum, 4).join());
+
+        if(chained.get(1, TimeUnit.SECONDS) != 10)
+            throw new TestFailed("chained calls gave the wrong result");
+
+        slow.get(1, TimeUnit.SECONDS);
+    }
+
+    /** Checks that the exceptions of server objects reach callers. */
+    private void testExceptions(AsyncCalculator stub, String kind)
+        throws Throwable
+    {
+        expect(stub.fail("io"), FileNotFoundException.class, kind);
+        expect(stub.fail("state"), IllegalStateException.class, kind);
+        expect(stub.fail("overload"), RMIOverloadException.class, kind);
+
+        try
+        {
+            stub.fail("io").join();
+            throw new TestFailed(kind + ": failed call joined normally");
+        }
+        catch(CompletionException e)
+        {
+            if(!(e.getCause() instanceof FileNotFoundException))
+            {
+                throw new TestFailed(kind + ": join failed with " +
+                                     e.getCause());
+            }
+        }
+    }
+
+    /** Checks that an asynchronous stub for a local object completes its
+        futures at once. */
+    private void testLocal() throws Throwable
+    {
+        AsyncCalculator     stub = Stub.createAsync(AsyncCalculator.class,
+            Calculator.class, (Calculator)new Server());
+
+        CompletableFuture<Integer>  sum = stub.add(2, 3);
+        CompletableFuture<Integer>  failed = stub.fail("io");
+
+        if(!sum.isDone() || !failed.isDone())
+            throw new TestFailed("local call returned an incomplete future");
+
+        if(sum.get() != 5)
+            throw new TestFailed("local call gave the wrong result");
+    }
+
+    /** Checks that exceptions of the <code>RMIException</code> family are not
+        wrapped by either kind of stub. */
+    private void testRMIExceptions(AsyncCalculator stub) throws Throwable
+    {
+        Calculator          sync = Stub.create(Calculator.class, address);
+        Calculator          timed = Stub.withTimeout(Calculator.class, sync,
+                                                     50, TimeUnit.MILLISECONDS);
+        AsyncCalculator     async = Stub.createAsync(AsyncCalculator.class,
+                                                     Calculator.class, timed);
+
+        // The stub times the call out.
+        expect(async.sleep(500), RMITimeoutException.class, "timeout");
+
+        try
+        {
+            timed.sleep(500);
+            throw new TestFailed("timeout: synchronous call did not time out");
+        }
+        catch(RMITimeoutException e) { }
+
+        // The deadline has passed before the call is made.
+        try(Deadline d = Deadline.after(0, TimeUnit.MILLISECONDS))
+        {
+            expect(stub.add(1, 1), RMITimeoutException.class, "deadline");
+        }
+
+        // The skeleton refuses calls once it drains. The stubs are connected
+        // already, since the listening socket is closed.
+        sync.add(1, 1);
+        skeleton.quiesce();
+
+        expect(stub.add(1, 1), RMIOverloadException.class, "refusal");
+
+        try
+        {
+            sync.add(1, 1);
+            throw new TestFailed("refusal: synchronous call taken on");
+        }
+        catch(RMIOverloadException e) { }
+
+        // Other failures are wrapped.
+        skeleton.stop();
+
+        CompletableFuture<Integer>  lost = stub.add(1, 1);
+
+        try
+        {
+            lost.get(1, TimeUnit.SECONDS);
+            throw new TestFailed("call to a stopped skeleton answered");
+        }
+        catch(ExecutionException e)
+        {
+            if(e.getCause().getClass() != RMIException.class)
+            {
+                throw new TestFailed("call to a stopped skeleton failed " +
+                                     "with " + e.getCause());
+            }
+        }
+    }
+
+    /** Checks that an <code>RMIException</code> raised by a stub reading a
+        garbled stream is not wrapped in another. */
+    private void testGarbledStream() throws Throwable
+    {
+        InetSocketAddress   at = new InetSocketAddress("127.0.0.1",
+                                                       garbled.getLocalPort());
+
+        try
+        {
+            Stub.create(Calculator.class, at).count(3);
+            throw new TestFailed("garbled stream read");
+        }
+        catch(RMIException e)
+        {
+            if(e.getClass() != RMIException.class ||
+               e.getCause() instanceof RMIException)
+            {
+                throw new TestFailed("garbled stream failed with " + e +
+                                     " caused by " + e.getCause());
+            }
+        }
+
+        try
+        {
+            Stub.createAsync(AsyncCalculator.class, Calculator.class, at)
+                .count(3).get(1, TimeUnit.SECONDS);
+            throw new TestFailed("garbled stream read asynchronously");
+        }
+        catch(ExecutionException e)
+        {
+            if(e.getCause().getClass() != RMIException.class ||
+               e.getCause().getCause() instanceof RMIException)
+            {
+                throw new TestFailed("garbled stream failed asynchronously " +
+                                     "with " + e.getCause() + " caused by " +
+                                     e.getCause().getCause());
+            }
+        }
+    }
+
+    /** Accepts connections to the garbling server, and answers every call
+        on them with the start of a stream frame cut short. */
+    private void garble()
+    {
+        while(true)
+        {
+            final Socket    s;
+
+            try
+            {
+                s = garbled.accept();
+            }
+            catch(Throwable t)
+            {
+                return;
+            }
+
+            Thread          reader = new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            DataInputStream     in =
+                                new DataInputStream(s.getInputStream());
+                            DataOutputStream    out =
+                                new DataOutputStream(s.getOutputStream());
+                            Frame               call;
+
+                            Frame.read(in);
+                            new Frame(Frame.HELLO, 0, new byte[] {0, 0, 0})
+                                .write(out);
+                            out.flush();
+
+                            // A stream id, and no element count after it.
+                            while((call = Frame.read(in)) != null)
+                            {
+                                new Frame(Frame.STREAM, call.id,
+                                          new byte[] {0, 0, 0, 1}).write(out);
+                                out.flush();
+                            }
+                        }
+                        catch(Throwable t) { }
+                    }
+                }, "garbled connection");
+
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    /** Checks that a future fails with an exception of exactly a class. */
+    private static void expect(CompletableFuture<?> future,
+                               Class<? extends Throwable> expected,
+                               String kind) throws Throwable
+    {
+        try
+        {
+            future.get(1, TimeUnit.SECONDS);
+            throw new TestFailed(kind + ": future did not fail");
+        }
+        catch(ExecutionException e)
+        {
+            if(e.getCause() == null || e.getCause().getClass() != expected)
+            {
+                throw new TestFailed(kind + ": future failed with " +
+                                     e.getCause() + " instead of " +
+                                     expected.getSimpleName());
+            }
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package rmi;
+
+import test.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Checks that identical calls to idempotent methods are run once.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>Identical calls made while one of them is running share its result,
+        and the method runs once for all of them.</li>
+    <li>Each caller gets its own copy of a shared result, which it may change
+        without the others seeing it.</li>
+    <li>Each caller of a shared call which throws gets its own copy of the
+        exception.</li>
+    <li>Calls with different arguments are not merged.</li>
+    </ul>
+ */
+public class CoalesceTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking merging of identical idempotent calls";
+
+    /** Callers making the same call at once. */
+    private static final int    CALLERS = 5;
+    /** Milliseconds given to the calls to reach the skeleton. */
+    private static final long   ARRIVAL = 100;
+
+    /** Exception thrown for keys which are not found. */
+    public static class Missing extends Exception
+    {
+        Missing(int key)
+        {
+            super("no key " + key);
+        }
+    }
+
+    /** Remote interface of the skeleton. */
+    public interface Lookup
+    {
+        @Idempotent
+        int[] find(int key) throws RMIException, Missing;
+    }
+
+    /** Skeleton serving <code>Lookup</code>. */
+    private Skeleton<Lookup>    skeleton;
+    /** Stub for the skeleton. */
+    private Lookup              stub;
+    /** Threads making the calls. */
+    private ExecutorService     callers = Executors.newCachedThreadPool();
+    /** Number of times the method ran, by key. */
+    private final ConcurrentHashMap<Integer, AtomicInteger>  runs =
+        new ConcurrentHashMap<Integer, AtomicInteger>();
+    /** Released to let the running calls return. */
+    private volatile CountDownLatch gate;
+    /** Whether stubs called skeletons in this JVM directly before the
+        test. */
+    private boolean             local;
+
+    /** Starts the skeleton.
+
+        @throws TestFailed If the skeleton cannot be started.
+     */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        // Only calls arriving over connections are merged.
+        local = LocalCalls.isEnabled();
+        LocalCalls.setEnabled(false);
+
+        skeleton = new Skeleton<Lookup>(Lookup.class, new Lookup()
+            {
+                @Override
+                public int[] find(int key) throws Missing
+                {
+                    runs.computeIfAbsent(key, k -> new AtomicInteger())
+                        .incrementAndGet();
+
+                    try
+                    {
+                        gate.await(1, TimeUnit.SECONDS);
+                    }
+                    catch(InterruptedException e) { }
+
+                    if(key < 0)
+                        throw new Missing(key);
+
+                    return new int[] {key};
+                }
+            }, new InetSocketAddress("127.0.0.1", 0));
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        stub = Stub.create(Lookup.class, new InetSocketAddress(
+            "127.0.0.1", skeleton.getAddress().getPort()));
+    }
+
+    /** Stops the skeleton and the calling threads. */
+    @Override
+    protected void clean()
+    {
+        callers.shutdownNow();
+
+        if(skeleton != null)
+            skeleton.stop();
+
+        LocalCalls.setEnabled(local);
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testResults();
+            testExceptions();
+            testDifferentArguments();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks that identical calls share one run, and get their own copies
+        of its result. */
+    private void testResults() throws Throwable
+    {
+        long            shared = metrics().shared();
+        List<Object>    results = callAll(7, CALLERS);
+
+        expectRuns(7, 1);
+
+        if(metrics().shared() - shared != CALLERS - 1)
+        {
+            throw new TestFailed((metrics().shared() - shared) + " calls " +
+                                 "shared instead of " + (CALLERS - 1));
+        }
+
+        for(Object result : results)
+        {
+            if(!(result instanceof int[]) || ((int[])result)[0] != 7)
+                throw new TestFailed("shared call returned " + result);
+        }
+
+        // Changing one caller's result leaves the others as they were.
+        ((int[])results.get(0))[0] = -1;
+
+        for(int i = 1; i < results.size(); ++i)
+        {
+            if(results.get(i) == results.get(0) ||
+               ((int[])results.get(i))[0] != 7)
+            {
+                throw new TestFailed("callers of a shared call given the " +
+                                     "same result object");
+            }
+        }
+    }
+
+    /** Checks that the callers of a shared call which throws each get the
+        exception. */
+    private void testExceptions() throws Throwable
+    {
+        List<Object>    results = callAll(-3, CALLERS);
+
+        expectRuns(-3, 1);
+
+        Set<Object>     distinct = Collections.newSetFromMap(
+            new IdentityHashMap<Object, Boolean>());
+
+        for(Object result : results)
+        {
+            if(!(result instanceof Missing) ||
+               !((Missing)result).getMessage().equals("no key -3"))
+            {
+                throw new TestFailed("shared call which threw gave " + result);
+            }
+
+            distinct.add(result);
+        }
+
+        if(distinct.size() != CALLERS)
+        {
+            throw new TestFailed("callers of a shared call given the same " +
+                                 "exception object");
+        }
+    }
+
+    /** Checks that calls with different arguments each run. */
+    private void testDifferentArguments() throws Throwable
+    {
+        gate = new CountDownLatch(1);
+
+        Future<Object>  first = call(11);
+        Future<Object>  second = call(12);
+
+        Thread.sleep(ARRIVAL);
+        gate.countDown();
+
+        if(((int[])first.get(1, TimeUnit.SECONDS))[0] != 11 ||
+           ((int[])second.get(1, TimeUnit.SECONDS))[0] != 12)
+        {
+            throw new TestFailed("calls with different arguments given the " +
+                                 "wrong results");
+        }
+
+        expectRuns(11, 1);
+        expectRuns(12, 1);
+    }
+
+    /** Makes the same call from several threads at once, and lets them all
+        return once they have reached the skeleton.
+
+        @return The result or exception of each call.
+     */
+    private List<Object> callAll(int key, int count) throws Throwable
+    {
+        gate = new CountDownLatch(1);
+
+        List<Future<Object>>    pending = new ArrayList<Future<Object>>();
+
+        for(int i = 0; i < count; ++i)
+            pending.add(call(key));
+
+        Thread.sleep(ARRIVAL);
+        gate.countDown();
+
+        List<Object>            results = new ArrayList<Object>();
+
+        for(Future<Object> f : pending)
+            results.add(f.get(1, TimeUnit.SECONDS));
+
+        return results;
+    }
+
+    /** Calls <code>find</code> in another thread.
+
+        @return A future for the result, or for the exception the call threw.
+     */
+    private Future<Object> call(int key)
+    {
+        return callers.submit(new Callable<Object>()
+        {
+            @Override
+            public Object call()
+            {
+                try
+                {
+                    return stub.find(key);
+                }
+                catch(Throwable t)
+                {
+                    return t;
+                }
+            }
+        });
+    }
+
+    /** Checks the number of times the method ran for a key. */
+    private void expectRuns(int key, int expected) throws TestFailed
+    {
+        AtomicInteger   counted = runs.get(key);
+        int             ran = counted == null ? 0 : counted.get();
+
+        if(ran != expected)
+        {
+            throw new TestFailed("method ran " + ran + " times for key " +
+                                 key + " instead of " + expected);
+        }
+    }
+
+    /** Gives the skeleton's metrics of the method. */
+    private MethodMetrics metrics()
+    {
+        return skeleton.getMetrics().get("find(int)");
+    }
+}
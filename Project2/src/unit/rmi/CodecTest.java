@@ -0,0 +1,399 @@
+package rmi;
+
+import test.*;
+import common.*;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Checks that values survive the binary encoding of calls and results.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>A value of each kind with an encoding of its own is read back equal,
+        and is written with the tag of its kind. Values of every other kind
+        fall back to serialization. The segment tags, 17 and 18, are
+        checked by <code>SegmentTest</code>.</li>
+    <li>Counts are written seven bits to a byte, and lengths at the edges of
+        one, two and three bytes are read back correctly.</li>
+    <li><code>null</code>, <code>null</code> elements of string and path
+        arrays, and nested arrays are read back correctly.</li>
+    <li>A stub naming a class which is missing, is not an interface, or is
+        not a remote interface is refused with an
+        <code>IOException</code>, and a skeleton sent such a stub as an
+        argument answers the call with an <code>RMIException</code>.</li>
+    </ul>
+ */
+public class CodecTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking binary value encoding";
+
+    /** Remote interface of the stubs sent as values. */
+    public interface Remote
+    {
+        void call() throws RMIException;
+    }
+
+    /** Remote interface taking any value. */
+    public interface Sink
+    {
+        void take(Object value) throws RMIException;
+    }
+
+    /** Skeleton serving <code>Sink</code>. */
+    private Skeleton<Sink>      skeleton;
+    /** Whether stubs called skeletons in this JVM directly before the
+        test. */
+    private boolean             local;
+
+    /** Starts the skeleton.
+
+        @throws TestFailed If the skeleton cannot be started.
+     */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        local = LocalCalls.isEnabled();
+        LocalCalls.setEnabled(false);
+
+        skeleton = new Skeleton<Sink>(Sink.class, new Sink()
+            {
+                @Override
+                public void take(Object value)
+                {
+                }
+            }, new InetSocketAddress("127.0.0.1", 0));
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        LocalCalls.setEnabled(local);
+
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        testTags();
+        testCounts();
+        testArrays();
+        testBadStubs();
+    }
+
+    /** Checks that each kind of value is written with its tag and read back
+        equal.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testTags() throws TestFailed
+    {
+        InetSocketAddress   address =
+            InetSocketAddress.createUnresolved("example.com", 7000);
+
+        roundTrip(null, 0);
+        roundTrip(new ArrayList<String>(Arrays.asList("a", "b")), 1);
+        roundTrip(true, 2);
+        roundTrip(false, 2);
+        roundTrip((byte)-128, 3);
+        roundTrip((short)-32768, 4);
+        roundTrip('\uffff', 5);
+        roundTrip(Integer.MIN_VALUE, 6);
+        roundTrip(Long.MAX_VALUE, 7);
+        roundTrip(Float.NaN, 8);
+        roundTrip(-0.0d, 9);
+        roundTrip("", 10);
+        roundTrip("caf\u00e9 \ud83d\ude00", 10);
+        roundTrip(new byte[] {1, 2, 3}, 11);
+        roundTrip(new String[] {"x", "", null}, 12);
+        roundTrip(new Path("/a/b"), 13);
+        roundTrip(new Path(), 13);
+        roundTrip(new Path[] {new Path("/a"), null, new Path()}, 14);
+        roundTrip(Stub.create(Remote.class, address), 15);
+        roundTrip(ByteBuffer.wrap(new byte[] {4, 5, 6}), 16);
+        roundTrip(ByteBuffer.allocateDirect(0), 16);
+
+        // Exceptions are serialized, and keep their class and message.
+        Object  e = roundTrip(new FileNotFoundException("gone"), 1);
+        if(!"gone".equals(((Throwable)e).getMessage()))
+            throw new TestFailed("exception message lost");
+    }
+
+    /** Checks counts of lengths at the edges of the variable-length
+        encoding.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testCounts() throws TestFailed
+    {
+        int[]       lengths = new int[] {0, 1, 127, 128, 16383, 16384,
+                                         (1 << 21) - 1, 1 << 21};
+        int[]       countBytes = new int[] {1, 1, 1, 2, 2, 3, 3, 4};
+
+        for(int i = 0; i < lengths.length; ++i)
+        {
+            byte[]  value = new byte[lengths[i]];
+
+            for(int j = 0; j < value.length; ++j)
+                value[j] = (byte)j;
+
+            byte[]  body = encode(value);
+
+            if(body.length != 1 + countBytes[i] + lengths[i])
+            {
+                throw new TestFailed("length " + lengths[i] + " written in " +
+                                     (body.length - 1 - lengths[i]) +
+                                     " bytes, not " + countBytes[i]);
+            }
+
+            if(!Arrays.equals(value, (byte[])decode(body)))
+                throw new TestFailed("array of " + lengths[i] + " bytes " +
+                                     "read back incorrectly");
+        }
+
+        // A count which does not end within five bytes is refused.
+        try
+        {
+            Codec.read(Codec.reader(new byte[] {11, (byte)0xff, (byte)0xff,
+                                                (byte)0xff, (byte)0xff,
+                                                (byte)0xff, 0}));
+            throw new TestFailed("overlong count accepted");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(IOException e) { }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception for overlong count", t);
+        }
+    }
+
+    /** Checks arrays with <code>null</code> and nested elements, which are
+        serialized.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testArrays() throws TestFailed
+    {
+        roundTrip(new String[0], 12);
+        roundTrip(new String[] {null}, 12);
+        roundTrip(new Path[0], 14);
+        roundTrip(new int[] {1, -1, Integer.MAX_VALUE}, 1);
+        roundTrip(new int[][] {{1, 2}, null, {}}, 1);
+        roundTrip(new String[][] {{"a"}, {null, "b"}}, 1);
+        roundTrip(new Object[] {"a", 1, null, new byte[] {7}}, 1);
+
+        // Several values in one body are read back in order.
+        try
+        {
+            byte[]          body =
+                Codec.encode(3, "a", null, new byte[0], 42L);
+            DataInputStream in = Codec.reader(body);
+
+            if(in.readShort() != 3 || !"a".equals(Codec.read(in)) ||
+               Codec.read(in) != null ||
+               ((byte[])Codec.read(in)).length != 0 ||
+               !Long.valueOf(42).equals(Codec.read(in)) || in.available() != 0)
+            {
+                throw new TestFailed("values of a call read back " +
+                                     "incorrectly");
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to encode a list of values", t);
+        }
+    }
+
+    /** Checks stubs naming classes which cannot be stub interfaces.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testBadStubs() throws TestFailed
+    {
+        String[]    names = new String[] {"no.such.Interface",
+                                          "java.lang.String",
+                                          "java.lang.Runnable"};
+
+        for(String name : names)
+        {
+            try
+            {
+                Codec.read(Codec.reader(stub(name)));
+                throw new TestFailed("stub for " + name + " accepted");
+            }
+            catch(TestFailed e) { throw e; }
+            catch(IOException | ClassNotFoundException e) { }
+            catch(Throwable t)
+            {
+                throw new TestFailed("stub for " + name + " not refused " +
+                                     "as bad input", t);
+            }
+        }
+
+        // The skeleton answers a call whose argument cannot be read, rather
+        // than leaving the caller waiting.
+        try
+        {
+            InetSocketAddress   address = new InetSocketAddress("127.0.0.1",
+                skeleton.getAddress().getPort());
+            Connection          connection =
+                ConnectionPool.get(address, Deadline.NONE);
+            int                 index = connection.index(
+                Sink.class.getMethod("take", Object.class));
+            ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+            DataOutputStream    out = new DataOutputStream(bytes);
+
+            out.writeShort(index);
+            out.write(stub("java.lang.Runnable"));
+            out.flush();
+
+            Frame               response = connection.call(
+                new Frame(Frame.CALL, 0, bytes.toByteArray()),
+                TimeUnit.SECONDS.toNanos(1));
+
+            if(response.type != Frame.EXCEPTION ||
+               !(Codec.read(Codec.reader(response.body))
+                 instanceof RMIException))
+            {
+                throw new TestFailed("call with a bad stub argument not " +
+                                     "failed");
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(RMITimeoutException e)
+        {
+            throw new TestFailed("call with a bad stub argument not " +
+                                 "answered", e);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Encodes a stub for the named class, to an unresolved address. */
+    private static byte[] stub(String name) throws TestFailed
+    {
+        try
+        {
+            ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+            DataOutputStream        out = new DataOutputStream(bytes);
+
+            // The tag, the class name and the address of a stub.
+            out.writeByte(15);
+            out.writeUTF(name);
+            out.writeUTF("example.com");
+            out.writeShort(7000);
+            out.writeByte(0);
+            out.flush();
+
+            return bytes.toByteArray();
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to encode stub", e);
+        }
+    }
+
+    /** Encodes one value with no segments. */
+    private byte[] encode(Object value) throws TestFailed
+    {
+        try
+        {
+            return Codec.encode(-1, new Object[] {value});
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to encode " + value, t);
+        }
+    }
+
+    /** Decodes one value. */
+    private Object decode(byte[] body) throws TestFailed
+    {
+        try
+        {
+            DataInputStream in = Codec.reader(body);
+            Object          value = Codec.read(in);
+
+            if(in.available() != 0)
+                throw new TestFailed("bytes left over after value");
+
+            return value;
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to decode value", t);
+        }
+    }
+
+    /** Encodes and decodes a value, checking its tag and that it is read
+        back equal.
+
+        @param value The value.
+        @param tag The tag it is expected to be written with.
+        @return The value read back.
+        @throws TestFailed If the value is written with another tag, or read
+                           back different.
+     */
+    private Object roundTrip(Object value, int tag) throws TestFailed
+    {
+        byte[]      body = encode(value);
+
+        if(body[0] != tag)
+        {
+            throw new TestFailed(describe(value) + " written with tag " +
+                                 body[0] + ", not " + tag);
+        }
+
+        Object      read = decode(body);
+
+        if(value instanceof Throwable)
+        {
+            if(read == null || read.getClass() != value.getClass())
+                throw new TestFailed(describe(value) + " read back as " +
+                                     describe(read));
+            return read;
+        }
+
+        if(!Objects.deepEquals(value, read))
+            throw new TestFailed(describe(value) + " read back as " +
+                                 describe(read));
+
+        return read;
+    }
+
+    /** Describes a value for a failure message. */
+    private static String describe(Object value)
+    {
+        if(value instanceof Object[])
+            return Arrays.deepToString((Object[])value);
+
+        return String.valueOf(value);
+    }
+}
@@ -0,0 +1,257 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.zip.*;
+
+/** Checks the negotiation of compression and the expansion of compressed
+    frames.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>Large calls and results are compressed on a connection opened while
+        compression is enabled, and not on one opened while it is disabled.
+        Open connections keep what they agreed on when the setting
+        changes.</li>
+    <li>Data which does not compress is sent as it was.</li>
+    <li>A compressed part is refused if it expands to more or fewer bytes
+        than it declares, or declares more than
+        <code>Frame.MAX_FRAME</code> bytes, alone or with the other parts of
+        its frame.</li>
+    </ul>
+ */
+public class CompressionTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking frame compression";
+
+    /** Remote interface which echoes its argument. */
+    public interface Echo
+    {
+        byte[] echo(byte[] b) throws RMIException;
+    }
+
+    /** Skeletons started by the test. */
+    private final List<Skeleton<Echo>>  skeletons =
+        new ArrayList<Skeleton<Echo>>();
+    /** Whether stubs called skeletons in this JVM directly before the
+        test. */
+    private boolean                     local;
+    /** Whether compression was enabled before the test. */
+    private boolean                     enabled;
+
+    /** Makes stubs reach skeletons over connections. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        local = LocalCalls.isEnabled();
+        enabled = Compression.isEnabled();
+        LocalCalls.setEnabled(false);
+    }
+
+    /** Stops the skeletons and restores the settings. */
+    @Override
+    protected void clean()
+    {
+        for(Skeleton<Echo> skeleton : skeletons)
+            skeleton.stop();
+
+        Compression.setEnabled(enabled);
+        LocalCalls.setEnabled(local);
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testNegotiation();
+            testIncompressible();
+            testExpansion();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks that compression is used only on connections which agreed to
+        it. */
+    private void testNegotiation() throws Throwable
+    {
+        Compression.setEnabled(true);
+        Skeleton<Echo>  agreed = start();
+        Echo            compressing = stub(agreed);
+
+        if(call(compressing, agreed) != 2)
+        {
+            throw new TestFailed("call and result not compressed on a " +
+                                 "connection which agreed to it");
+        }
+
+        Compression.setEnabled(false);
+        Skeleton<Echo>  declined = start();
+        Echo            plain = stub(declined);
+
+        if(call(plain, declined) != 0)
+            throw new TestFailed("frames compressed with compression off");
+
+        // Open connections keep what was agreed when they were opened.
+        if(call(compressing, agreed) != 2)
+            throw new TestFailed("open connection stopped compressing");
+
+        Compression.setEnabled(true);
+
+        if(call(plain, declined) != 0)
+            throw new TestFailed("open connection started compressing");
+    }
+
+    /** Checks that data which does not compress is sent as it was. */
+    private void testIncompressible() throws Throwable
+    {
+        Compression.setEnabled(true);
+        Skeleton<Echo>  skeleton = start();
+        Echo            stub = stub(skeleton);
+        byte[]          noise = new byte[64 * 1024];
+
+        new Random(1).nextBytes(noise);
+
+        long            before = Metrics.stubs.incompressibleParts();
+        long            compressed = Metrics.stubs.compressedParts();
+
+        if(!Arrays.equals(noise, stub.echo(noise)))
+            throw new TestFailed("incompressible data damaged");
+
+        if(Metrics.stubs.compressedParts() != compressed ||
+           Metrics.stubs.incompressibleParts() == before)
+        {
+            throw new TestFailed("incompressible data sent compressed");
+        }
+    }
+
+    /** Checks that the sizes declared in compressed frames are enforced. */
+    private void testExpansion() throws Throwable
+    {
+        byte[]      data = new byte[4096];
+
+        Arrays.fill(data, (byte)'x');
+
+        byte[]      body = compressed(data, data.length);
+        Frame       frame = Compression.inflate(frame(body));
+
+        if(!Arrays.equals(data, frame.body))
+            throw new TestFailed("compressed part expanded incorrectly");
+
+        reject(frame(compressed(data, data.length + 1)),
+               "part expanding to fewer bytes than declared");
+        reject(frame(compressed(data, data.length - 1)),
+               "part expanding to more bytes than declared");
+        reject(frame(compressed(data, Frame.MAX_FRAME + 1)),
+               "part declaring more than MAX_FRAME bytes");
+
+        // Each part is within the limit, but not all of them together.
+        byte[]          half = compressed(data, Frame.MAX_FRAME / 2 + 1);
+        ByteBuffer[]    segments = new ByteBuffer[] {ByteBuffer.wrap(half)};
+
+        reject(new Frame(Frame.RESULT, 1, half, null)
+                   .withContents(half, segments, true),
+               "parts declaring more than MAX_FRAME bytes together");
+
+        reject(frame(new byte[] {0, 0}), "truncated part");
+    }
+
+    /** Checks that a compressed frame is refused when expanded. */
+    private void reject(Frame frame, String description) throws TestFailed
+    {
+        try
+        {
+            Compression.inflate(frame);
+            throw new TestFailed(description + " accepted");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(IOException e) { }
+    }
+
+    /** Makes a compressed frame with the given body. */
+    private static Frame frame(byte[] body)
+    {
+        return new Frame(Frame.RESULT, 1, new byte[0])
+            .withContents(body, null, true);
+    }
+
+    /** Compresses data, putting the given size in front of it. */
+    private static byte[] compressed(byte[] data, int size)
+    {
+        Deflater                d = new Deflater();
+        ByteArrayOutputStream   out = new ByteArrayOutputStream();
+        byte[]                  chunk = new byte[1024];
+
+        d.setInput(data);
+        d.finish();
+
+        out.write(size >>> 24);
+        out.write(size >>> 16);
+        out.write(size >>> 8);
+        out.write(size);
+
+        while(!d.finished())
+            out.write(chunk, 0, d.deflate(chunk));
+
+        d.end();
+        return out.toByteArray();
+    }
+
+    /** Calls <code>echo</code> with a large, compressible array.
+
+        @return The number of the call and its result which were sent
+                compressed.
+     */
+    private int call(Echo stub, Skeleton<Echo> skeleton) throws Throwable
+    {
+        byte[]      data = new byte[64 * 1024];
+
+        Arrays.fill(data, (byte)7);
+
+        long        calls = Metrics.stubs.compressedParts();
+        long        results = skeleton.getMetrics().compressedParts();
+
+        if(!Arrays.equals(data, stub.echo(data)))
+            throw new TestFailed("data damaged in call");
+
+        return (Metrics.stubs.compressedParts() > calls ? 1 : 0) +
+               (skeleton.getMetrics().compressedParts() > results ? 1 : 0);
+    }
+
+    /** Starts a skeleton on a new port. */
+    private Skeleton<Echo> start() throws Throwable
+    {
+        Skeleton<Echo>  skeleton = new Skeleton<Echo>(Echo.class, new Echo()
+            {
+                @Override
+                public byte[] echo(byte[] b)
+                {
+                    return b;
+                }
+            }, new InetSocketAddress("127.0.0.1", 0));
+
+        skeleton.start();
+        skeletons.add(skeleton);
+        return skeleton;
+    }
+
+    /** Makes a stub for a skeleton. */
+    private static Echo stub(Skeleton<Echo> skeleton)
+    {
+        return Stub.create(Echo.class, new InetSocketAddress(
+            "127.0.0.1", skeleton.getAddress().getPort()));
+    }
+}
@@ -0,0 +1,413 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Checks the sharing, health checks and retirement of pooled connections.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>Stubs for the same address share one connection.</li>
+    <li>A connection to a skeleton answers pings, and one which has been quiet
+        for longer than the validation time is pinged and kept.</li>
+    <li>A connection to a server which has stopped answering fails its
+        ping.</li>
+    <li>An address which cannot be reached is marked down, and further
+        connections to it fail at once.</li>
+    <li>Calls with timeouts or deadlines to a server which takes connections
+        but never answers the handshake fail with
+        <code>RMITimeoutException</code> in their own time, even while
+        another call is making the connection, and do not mark the address
+        down.</li>
+    <li>Connections idle for longer than the idle timeout are closed, and a
+        later call opens a new one.</li>
+    </ul>
+ */
+public class ConnectionPoolTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking the connection pool";
+
+    /** Remote interface of the skeleton. */
+    public interface Counter
+    {
+        int next() throws RMIException;
+    }
+
+    /** Skeleton serving <code>Counter</code>. */
+    private Skeleton<Counter>   skeleton;
+    /** Address of the skeleton. */
+    private InetSocketAddress   address;
+    /** Server which completes the handshake and then never answers. */
+    private ServerSocket        silent;
+    /** Server which takes connections, but never accepts them or answers
+        their handshakes. */
+    private ServerSocket        mute;
+    /** Connections accepted by the silent server. */
+    private final List<Socket>  accepted =
+        Collections.synchronizedList(new ArrayList<Socket>());
+    /** Whether stubs called skeletons in this JVM directly before the
+        test. */
+    private boolean             local;
+
+    /** Starts the skeleton and the silent server.
+
+        @throws TestFailed If either cannot be started.
+     */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        local = LocalCalls.isEnabled();
+        LocalCalls.setEnabled(false);
+
+        final int[]     count = new int[] {0};
+
+        skeleton = new Skeleton<Counter>(Counter.class, new Counter()
+            {
+                @Override
+                public synchronized int next()
+                {
+                    return ++count[0];
+                }
+            }, new InetSocketAddress("127.0.0.1", 0));
+
+        try
+        {
+            skeleton.start();
+            address = new InetSocketAddress("127.0.0.1",
+                                            skeleton.getAddress().getPort());
+
+            silent = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            mute = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start servers", t);
+        }
+
+        Thread          acceptor = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    acceptSilently();
+                }
+            }, "silent server");
+
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /** Stops the servers and restores the pool settings. */
+    @Override
+    protected void clean()
+    {
+        // The defaults of ConnectionPool.
+        ConnectionPool.setIdleTimeout(5, TimeUnit.MINUTES);
+        ConnectionPool.setValidateAfter(30, TimeUnit.SECONDS);
+        ConnectionPool.setDownBackoff(100, 5000, TimeUnit.MILLISECONDS);
+        LocalCalls.setEnabled(local);
+
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+
+        if(silent != null)
+        {
+            try
+            {
+                silent.close();
+            }
+            catch(IOException e) { }
+            silent = null;
+        }
+
+        if(mute != null)
+        {
+            try
+            {
+                mute.close();
+            }
+            catch(IOException e) { }
+            mute = null;
+        }
+
+        synchronized(accepted)
+        {
+            for(Socket s : accepted)
+            {
+                try
+                {
+                    s.close();
+                }
+                catch(IOException e) { }
+            }
+        }
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testSharing();
+            testPing();
+            testDown();
+            testHandshake();
+            testRetirement();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks that stubs for one address share a connection. */
+    private void testSharing() throws Throwable
+    {
+        Counter     first = Stub.create(Counter.class, address);
+        Counter     second = Stub.create(Counter.class, address);
+
+        first.next();
+        second.next();
+
+        if(ConnectionPool.connections(address) != 1)
+            throw new TestFailed("stubs for one address did not share a " +
+                                 "connection");
+
+        if(ConnectionPool.get(address, Deadline.NONE) !=
+           ConnectionPool.get(address, Deadline.NONE))
+        {
+            throw new TestFailed("pool handed out different connections");
+        }
+    }
+
+    /** Checks pings of live and silent connections. */
+    private void testPing() throws Throwable
+    {
+        Connection  live = ConnectionPool.get(address, Deadline.NONE);
+
+        if(!live.ping(1000))
+            throw new TestFailed("skeleton did not answer ping");
+
+        // With no validation time, the next call pings the connection first,
+        // and keeps it since it answers.
+        ConnectionPool.setValidateAfter(0, TimeUnit.NANOSECONDS);
+        Thread.sleep(5);
+
+        if(ConnectionPool.get(address, Deadline.NONE) != live || !live.isOpen())
+            throw new TestFailed("connection which answered ping replaced");
+
+        ConnectionPool.setValidateAfter(30, TimeUnit.SECONDS);
+
+        InetSocketAddress   quiet =
+            new InetSocketAddress("127.0.0.1", silent.getLocalPort());
+        Connection          dead = ConnectionPool.get(quiet, Deadline.NONE);
+
+        if(dead.ping(200))
+            throw new TestFailed("server which does not answer passed ping");
+
+        dead.close(new IOException("test over"));
+        if(ConnectionPool.connections(quiet) != 0)
+            throw new TestFailed("closed connection left in pool");
+    }
+
+    /** Checks that an unreachable address is marked down. */
+    private void testDown() throws Throwable
+    {
+        ServerSocket        closed =
+            new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        InetSocketAddress   unreachable =
+            new InetSocketAddress("127.0.0.1", closed.getLocalPort());
+
+        closed.close();
+        ConnectionPool.setDownBackoff(1, 1, TimeUnit.SECONDS);
+
+        try
+        {
+            ConnectionPool.get(unreachable, Deadline.NONE);
+            throw new TestFailed("connection to closed port made");
+        }
+        catch(IOException e) { }
+
+        if(!ConnectionPool.isDown(unreachable))
+            throw new TestFailed("unreachable address not marked down");
+
+        try
+        {
+            ConnectionPool.get(unreachable, Deadline.NONE);
+            throw new TestFailed("connection to down address attempted");
+        }
+        catch(ConnectException e)
+        {
+            if(e.getMessage() == null || !e.getMessage().contains("down"))
+                throw new TestFailed("down address not failed at once", e);
+        }
+    }
+
+    /** Checks that a handshake which is never answered does not hold up
+        calls past their timeouts. */
+    private void testHandshake() throws Throwable
+    {
+        final InetSocketAddress hung =
+            new InetSocketAddress("127.0.0.1", mute.getLocalPort());
+        final Counter           stub = Stub.withTimeout(Counter.class,
+            Stub.create(Counter.class, hung), 200, TimeUnit.MILLISECONDS);
+        ExecutorService         callers = Executors.newFixedThreadPool(2);
+        List<Future<Throwable>> results = new ArrayList<Future<Throwable>>();
+
+        // One call makes the connection while the other waits for it.
+        try
+        {
+            for(int i = 0; i < 2; ++i)
+            {
+                results.add(callers.submit(new Callable<Throwable>()
+                {
+                    @Override
+                    public Throwable call()
+                    {
+                        try
+                        {
+                            stub.next();
+                            return null;
+                        }
+                        catch(Throwable t)
+                        {
+                            return t;
+                        }
+                    }
+                }));
+            }
+
+            for(Future<Throwable> result : results)
+            {
+                Throwable   t;
+
+                try
+                {
+                    t = result.get(1, TimeUnit.SECONDS);
+                }
+                catch(TimeoutException e)
+                {
+                    throw new TestFailed("call with a timeout held up by an " +
+                                         "unanswered handshake");
+                }
+
+                if(!(t instanceof RMITimeoutException))
+                    throw new TestFailed("call to unanswering server did not " +
+                                         "time out", t);
+            }
+        }
+        finally
+        {
+            callers.shutdownNow();
+        }
+
+        if(ConnectionPool.isDown(hung))
+            throw new TestFailed("address marked down by a call's deadline");
+
+        Counter     plain = Stub.create(Counter.class, hung);
+        long        began = System.currentTimeMillis();
+
+        try(Deadline d = Deadline.after(200, TimeUnit.MILLISECONDS))
+        {
+            plain.next();
+            throw new TestFailed("call to unanswering server returned");
+        }
+        catch(RMITimeoutException e) { }
+
+        if(System.currentTimeMillis() - began > 1000)
+            throw new TestFailed("call inside a deadline held up by an " +
+                                 "unanswered handshake");
+    }
+
+    /** Checks that idle connections are closed and replaced when needed. */
+    private void testRetirement() throws Throwable
+    {
+        Counter     stub = Stub.create(Counter.class, address);
+        Connection  before = ConnectionPool.get(address, Deadline.NONE);
+
+        ConnectionPool.setIdleTimeout(50, TimeUnit.MILLISECONDS);
+
+        // The reaper looks for idle connections once a second.
+        long        deadline = System.currentTimeMillis() + 2000;
+
+        while(ConnectionPool.connections(address) != 0)
+        {
+            if(System.currentTimeMillis() > deadline)
+                throw new TestFailed("idle connection not closed");
+            Thread.sleep(20);
+        }
+
+        if(before.isOpen())
+            throw new TestFailed("retired connection still open");
+
+        ConnectionPool.setIdleTimeout(5, TimeUnit.MINUTES);
+
+        stub.next();
+        if(ConnectionPool.connections(address) != 1 ||
+           ConnectionPool.get(address, Deadline.NONE) == before)
+        {
+            throw new TestFailed("no new connection after retirement");
+        }
+    }
+
+    /** Accepts connections, answers their handshakes with an empty method
+        table, and then reads and ignores everything sent on them. */
+    private void acceptSilently()
+    {
+        while(true)
+        {
+            final Socket    s;
+
+            try
+            {
+                s = silent.accept();
+            }
+            catch(Throwable t)
+            {
+                return;
+            }
+
+            accepted.add(s);
+
+            Thread          reader = new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            DataInputStream     in =
+                                new DataInputStream(s.getInputStream());
+                            DataOutputStream    out =
+                                new DataOutputStream(s.getOutputStream());
+
+                            Frame.read(in);
+                            new Frame(Frame.HELLO, 0, new byte[] {0, 0, 0})
+                                .write(out);
+                            out.flush();
+
+                            while(Frame.read(in) != null)
+                                ;
+                        }
+                        catch(Throwable t) { }
+                    }
+                }, "silent connection");
+
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+}
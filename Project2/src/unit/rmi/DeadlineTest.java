@@ -0,0 +1,313 @@
+package rmi;
+
+import test.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Checks that deadlines and stub timeouts bound remote calls.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>A deadline set inside another never ends later than the outer one,
+        the outer one applies again once the inner one is closed, and
+        deadlines closed out of order are refused.</li>
+    <li>A deadline which has passed is expired, and a call made inside it
+        fails with <code>RMITimeoutException</code> without running.</li>
+    <li>A call through a stub made with <code>Stub.withTimeout</code> fails
+        with <code>RMITimeoutException</code> in its own time when the server
+        takes longer.</li>
+    <li>A call whose timeout runs out while it waits for a worker is dropped
+        by the skeleton without running, and a call after it without a
+        timeout is run.</li>
+    <li>A call to a skeleton in the same JVM is run in the caller's thread,
+        but not when it is made inside a deadline or through a stub with a
+        timeout.</li>
+    </ul>
+ */
+public class DeadlineTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking call deadlines";
+
+    /** Milliseconds calls are given to time out in. */
+    private static final long   TIMEOUT = 100;
+
+    /** Remote interface of the skeleton. */
+    public interface Slow
+    {
+        void sleep(long millis) throws RMIException;
+        void mark() throws RMIException;
+    }
+
+    /** Skeleton serving <code>Slow</code>, with a single worker. */
+    private Skeleton<Slow>      skeleton;
+    /** Address of the skeleton. */
+    private InetSocketAddress   address;
+    /** Number of calls to <code>mark</code> run. */
+    private final AtomicInteger marks = new AtomicInteger();
+    /** Thread which ran the last call to <code>mark</code>. */
+    private volatile Thread     marked;
+    /** Whether stubs called skeletons in this JVM directly before the
+        test. */
+    private boolean             local;
+
+    /** Starts the skeleton.
+
+        @throws TestFailed If the skeleton cannot be started.
+     */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        local = LocalCalls.isEnabled();
+        LocalCalls.setEnabled(true);
+
+        skeleton = new Skeleton<Slow>(Slow.class, new Slow()
+            {
+                @Override
+                public void sleep(long millis)
+                {
+                    try
+                    {
+                        Thread.sleep(millis);
+                    }
+                    catch(InterruptedException e) { }
+                }
+
+                @Override
+                public void mark()
+                {
+                    marked = Thread.currentThread();
+                    marks.incrementAndGet();
+                }
+            }, new InetSocketAddress("127.0.0.1", 0));
+
+        skeleton.setDispatcher(
+            Dispatcher.bounded(1, 8, Dispatcher.Rejection.REJECT));
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        address = new InetSocketAddress("127.0.0.1",
+                                        skeleton.getAddress().getPort());
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+            skeleton.stop();
+
+        LocalCalls.setEnabled(local);
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testNesting();
+            testExpiry();
+            testStubTimeout();
+            testDropped();
+            testLocalCalls();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks that nested deadlines never end later than outer ones. */
+    private void testNesting() throws Throwable
+    {
+        if(Deadline.remaining(0) != Deadline.NONE)
+            throw new TestFailed("deadline set before any was opened");
+
+        Deadline    outer = Deadline.after(1, TimeUnit.SECONDS);
+
+        try
+        {
+            Deadline    later = Deadline.after(1, TimeUnit.HOURS);
+
+            try
+            {
+                if(later.remaining(TimeUnit.MILLISECONDS) > 1000)
+                    throw new TestFailed("inner deadline ends after outer");
+
+                try
+                {
+                    outer.close();
+                    throw new TestFailed("outer deadline closed before " +
+                                         "inner");
+                }
+                catch(IllegalStateException e) { }
+            }
+            finally
+            {
+                later.close();
+            }
+
+            Deadline    sooner = Deadline.after(TIMEOUT, TimeUnit.MILLISECONDS);
+
+            try
+            {
+                if(sooner.remaining(TimeUnit.MILLISECONDS) > TIMEOUT)
+                    throw new TestFailed("inner deadline ends after its time");
+
+                if(Deadline.remaining(TimeUnit.MILLISECONDS.toNanos(10)) >
+                   TimeUnit.MILLISECONDS.toNanos(10))
+                {
+                    throw new TestFailed("call given longer than the " +
+                                         "timeout of its stub");
+                }
+            }
+            finally
+            {
+                sooner.close();
+            }
+
+            long        left = Deadline.remaining(0);
+
+            if(left <= TimeUnit.MILLISECONDS.toNanos(TIMEOUT) ||
+               left > TimeUnit.SECONDS.toNanos(1))
+            {
+                throw new TestFailed("outer deadline not restored after " +
+                                     "inner was closed");
+            }
+        }
+        finally
+        {
+            outer.close();
+        }
+
+        if(Deadline.remaining(0) != Deadline.NONE)
+            throw new TestFailed("deadline left open after it was closed");
+    }
+
+    /** Checks that a passed deadline is expired and fails calls. */
+    private void testExpiry() throws Throwable
+    {
+        Slow        stub = Stub.create(Slow.class, address);
+        int         before = marks.get();
+
+        try(Deadline d = Deadline.after(TIMEOUT / 10, TimeUnit.MILLISECONDS))
+        {
+            Thread.sleep(TIMEOUT / 5);
+
+            if(!d.expired() || d.remaining(TimeUnit.NANOSECONDS) > 0)
+                throw new TestFailed("deadline not expired after its time");
+
+            try
+            {
+                stub.mark();
+                throw new TestFailed("call made after its deadline");
+            }
+            catch(RMITimeoutException e) { }
+        }
+
+        Thread.sleep(TIMEOUT / 5);
+
+        if(marks.get() != before)
+            throw new TestFailed("call run after its deadline");
+    }
+
+    /** Checks that a stub with a timeout gives up on a slow call. */
+    private void testStubTimeout() throws Throwable
+    {
+        Slow        stub = Stub.withTimeout(Slow.class,
+                                            Stub.create(Slow.class, address),
+                                            TIMEOUT, TimeUnit.MILLISECONDS);
+        long        began = System.currentTimeMillis();
+
+        try
+        {
+            stub.sleep(TIMEOUT * 5);
+            throw new TestFailed("slow call did not time out");
+        }
+        catch(RMITimeoutException e) { }
+
+        if(System.currentTimeMillis() - began >= TIMEOUT * 4)
+            throw new TestFailed("call timed out late");
+
+        // The worker is still busy with the slow call; let it finish.
+        Thread.sleep(TIMEOUT * 5);
+    }
+
+    /** Checks that the skeleton drops calls which expired while queued. */
+    private void testDropped() throws Throwable
+    {
+        Connection  connection = ConnectionPool.get(address, Deadline.NONE);
+        Method      sleep = Slow.class.getMethod("sleep", long.class);
+        Method      mark = Slow.class.getMethod("mark");
+        int         before = marks.get();
+
+        // The only worker is kept busy for longer than the timed call may
+        // wait.
+        CompletableFuture<Frame>    busy = connection.send(
+            connection.encode(sleep, new Object[] {TIMEOUT * 2}, false));
+        CompletableFuture<Frame>    timed = connection.send(
+            connection.encode(mark, null, false).withTimeout(
+                TimeUnit.MILLISECONDS.toNanos(TIMEOUT / 2)));
+
+        busy.get(1, TimeUnit.SECONDS);
+
+        try
+        {
+            timed.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            throw new TestFailed("expired call answered");
+        }
+        catch(TimeoutException e)
+        {
+            timed.cancel(false);
+        }
+
+        if(marks.get() != before)
+            throw new TestFailed("call run after its timeout ran out");
+
+        Frame       untimed = connection.call(
+            connection.encode(mark, null, false), Deadline.NONE);
+
+        if(untimed.type != Frame.RESULT || marks.get() != before + 1)
+            throw new TestFailed("call after a dropped call not run");
+    }
+
+    /** Checks that calls which must be able to time out are not local. */
+    private void testLocalCalls() throws Throwable
+    {
+        Slow        stub = Stub.create(Slow.class, address);
+        Thread      caller = Thread.currentThread();
+
+        stub.mark();
+
+        if(marked != caller)
+            throw new TestFailed("call to a skeleton in this JVM not local");
+
+        try(Deadline d = Deadline.after(1, TimeUnit.SECONDS))
+        {
+            stub.mark();
+        }
+
+        if(marked == caller)
+            throw new TestFailed("call inside a deadline made locally");
+
+        Stub.withTimeout(Slow.class, stub, 1, TimeUnit.SECONDS).mark();
+
+        if(marked == caller)
+            throw new TestFailed("call with a timeout made locally");
+    }
+}
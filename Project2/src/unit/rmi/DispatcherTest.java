@@ -0,0 +1,340 @@
+package rmi;
+
+import test.*;
+import java.net.*;
+import java.util.concurrent.*;
+
+/** Checks the rejection policies of bounded dispatchers.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>Dispatchers are only made with at least one worker and a queue of
+        at least one call, and report their queue limit and whether they may
+        hold up the thread giving them calls.</li>
+    <li>Once the workers are busy and the queue is full, a dispatcher with
+        the <code>REJECT</code> policy refuses calls and counts them, and
+        takes calls again once its workers are free.</li>
+    <li>A dispatcher with the <code>CALLER_RUNS</code> policy runs such a
+        call in the thread giving it, and one with the <code>BLOCK</code>
+        policy holds that thread until there is room in the queue, or until
+        it is interrupted.</li>
+    <li>A skeleton with the <code>SELECTOR</code> transport refuses
+        dispatchers with the <code>CALLER_RUNS</code> and <code>BLOCK</code>
+        policies, which a skeleton with the <code>BLOCKING</code> transport
+        takes.</li>
+    </ul>
+ */
+public class DispatcherTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking dispatcher policies";
+
+    /** Workers of the dispatchers under test. */
+    private static final int    WORKERS = 2;
+    /** Queue limit of the dispatchers under test. */
+    private static final int    QUEUE = 3;
+
+    /** Remote interface of the skeletons. */
+    public interface Echo
+    {
+        int echo(int value) throws RMIException;
+    }
+
+    /** Released to let the calls holding the workers return. */
+    private volatile CountDownLatch gate;
+    /** Threads giving calls to dispatchers which may hold them up. */
+    private ExecutorService     callers = Executors.newCachedThreadPool();
+
+    /** Lets any held calls return, and stops the calling threads. */
+    @Override
+    protected void clean()
+    {
+        if(gate != null)
+            gate.countDown();
+
+        callers.shutdownNow();
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testArguments();
+            testReject();
+            testCallerRuns();
+            testBlock();
+            testTransports();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks the arguments dispatchers are made with, and what they report
+        of their policies. */
+    private void testArguments() throws Throwable
+    {
+        for(int[] sizes : new int[][] {{0, 1}, {1, 0}, {-1, 1}})
+        {
+            try
+            {
+                Dispatcher.bounded(sizes[0], sizes[1],
+                                   Dispatcher.Rejection.REJECT);
+                throw new TestFailed("dispatcher made with " + sizes[0] +
+                                     " workers and a queue of " + sizes[1]);
+            }
+            catch(IllegalArgumentException e) { }
+        }
+
+        try
+        {
+            Dispatcher.bounded(1, 1, null);
+            throw new TestFailed("dispatcher made without a policy");
+        }
+        catch(NullPointerException e) { }
+
+        if(Dispatcher.bounded(WORKERS, QUEUE, Dispatcher.Rejection.REJECT)
+               .queueLimit() != QUEUE)
+        {
+            throw new TestFailed("bounded dispatcher reports the wrong queue " +
+                                 "limit");
+        }
+
+        if(Dispatcher.threadPerCall().queueLimit() != -1)
+            throw new TestFailed("dispatcher without a queue reports a limit");
+
+        for(Dispatcher.Rejection rejection : Dispatcher.Rejection.values())
+        {
+            if(Dispatcher.bounded(1, 1, rejection).blocksCaller() !=
+               (rejection != Dispatcher.Rejection.REJECT))
+            {
+                throw new TestFailed(rejection + " dispatcher reports " +
+                                     "wrongly whether it holds up its " +
+                                     "caller");
+            }
+        }
+
+        if(Dispatcher.threadPerCall().blocksCaller() ||
+           Dispatcher.virtualThreads().blocksCaller())
+        {
+            throw new TestFailed("unbounded dispatcher reports that it holds " +
+                                 "up its caller");
+        }
+    }
+
+    /** Checks that a full dispatcher with the <code>REJECT</code> policy
+        refuses calls. */
+    private void testReject() throws Throwable
+    {
+        Dispatcher          dispatcher = Dispatcher.bounded(
+            WORKERS, QUEUE, Dispatcher.Rejection.REJECT);
+        CountDownLatch      done = fill(dispatcher);
+
+        try
+        {
+            dispatcher.dispatch(() -> { });
+            throw new TestFailed("full dispatcher took a call");
+        }
+        catch(RejectedExecutionException e) { }
+
+        if(dispatcher.rejectedCalls() != 1 ||
+           dispatcher.activeWorkers() != WORKERS ||
+           dispatcher.queueDepth() != QUEUE)
+        {
+            throw new TestFailed("full dispatcher reports " + dispatcher);
+        }
+
+        empty(dispatcher, done);
+
+        CountDownLatch      ran = new CountDownLatch(1);
+
+        dispatcher.dispatch(() -> ran.countDown());
+
+        if(!ran.await(1, TimeUnit.SECONDS))
+            throw new TestFailed("call not run once the dispatcher was free");
+    }
+
+    /** Checks that a full dispatcher with the <code>CALLER_RUNS</code>
+        policy runs calls in the thread giving them. */
+    private void testCallerRuns() throws Throwable
+    {
+        Dispatcher          dispatcher = Dispatcher.bounded(
+            WORKERS, QUEUE, Dispatcher.Rejection.CALLER_RUNS);
+        CountDownLatch      done = fill(dispatcher);
+        Thread[]            ran = new Thread[1];
+
+        dispatcher.dispatch(() -> ran[0] = Thread.currentThread());
+
+        if(ran[0] != Thread.currentThread())
+            throw new TestFailed("overflow call not run by its caller");
+
+        if(dispatcher.rejectedCalls() != 0)
+            throw new TestFailed("call run by its caller counted as rejected");
+
+        empty(dispatcher, done);
+    }
+
+    /** Checks that a full dispatcher with the <code>BLOCK</code> policy
+        holds up the thread giving it a call until there is room. */
+    private void testBlock() throws Throwable
+    {
+        Dispatcher          dispatcher = Dispatcher.bounded(
+            WORKERS, QUEUE, Dispatcher.Rejection.BLOCK);
+        CountDownLatch      done = fill(dispatcher);
+        CountDownLatch      ran = new CountDownLatch(1);
+        Future<?>           blocked = callers.submit(() ->
+            dispatcher.dispatch(() -> ran.countDown()));
+
+        try
+        {
+            blocked.get(100, TimeUnit.MILLISECONDS);
+            throw new TestFailed("full dispatcher did not hold up its caller");
+        }
+        catch(TimeoutException e) { }
+
+        // A caller interrupted while held up is refused.
+        Future<?>           interrupted = callers.submit(() ->
+            dispatcher.dispatch(() -> { }));
+
+        Thread.sleep(50);
+        interrupted.cancel(true);
+
+        long                deadline = System.currentTimeMillis() + 1000;
+
+        while(dispatcher.rejectedCalls() != 1)
+        {
+            if(System.currentTimeMillis() > deadline)
+                throw new TestFailed("interrupted caller not refused");
+
+            Thread.sleep(5);
+        }
+
+        gate.countDown();
+        blocked.get(1, TimeUnit.SECONDS);
+
+        if(!ran.await(1, TimeUnit.SECONDS))
+            throw new TestFailed("call given once there was room not run");
+
+        empty(dispatcher, done);
+    }
+
+    /** Checks which policies each transport takes. */
+    private void testTransports() throws Throwable
+    {
+        for(Skeleton.Transport transport : Skeleton.Transport.values())
+        {
+            Skeleton<Echo>  skeleton = new Skeleton<Echo>(Echo.class,
+                value -> value, new InetSocketAddress("127.0.0.1", 0),
+                transport);
+
+            for(Dispatcher.Rejection rejection :
+                    Dispatcher.Rejection.values())
+            {
+                Dispatcher  dispatcher = Dispatcher.bounded(1, 1, rejection);
+                boolean     refused =
+                    transport == Skeleton.Transport.SELECTOR &&
+                    rejection != Dispatcher.Rejection.REJECT;
+
+                try
+                {
+                    skeleton.setDispatcher(dispatcher);
+
+                    if(refused)
+                    {
+                        throw new TestFailed(transport + " transport took a " +
+                                             rejection + " dispatcher");
+                    }
+
+                    if(skeleton.getDispatcher() != dispatcher)
+                        throw new TestFailed("dispatcher not set");
+                }
+                catch(IllegalArgumentException e)
+                {
+                    if(!refused)
+                    {
+                        throw new TestFailed(transport + " transport refused " +
+                                             "a " + rejection + " dispatcher");
+                    }
+                }
+            }
+        }
+    }
+
+    /** Gives a dispatcher calls which hold all of its workers and fill its
+        queue. Each call is given once the one before is running or queued,
+        so that none finds the queue full while idle workers have yet to take
+        calls from it.
+
+        @return A latch counted down as each of the calls returns.
+     */
+    private CountDownLatch fill(Dispatcher dispatcher) throws Throwable
+    {
+        CountDownLatch      done = new CountDownLatch(WORKERS + QUEUE);
+
+        gate = new CountDownLatch(1);
+
+        for(int i = 1; i <= WORKERS + QUEUE; ++i)
+        {
+            CountDownLatch  held = gate;
+            int             active = Math.min(i, WORKERS);
+            long            deadline = System.currentTimeMillis() + 1000;
+
+            dispatcher.dispatch(() ->
+            {
+                try
+                {
+                    held.await(2, TimeUnit.SECONDS);
+                }
+                catch(InterruptedException e) { }
+
+                done.countDown();
+            });
+
+            while(dispatcher.activeWorkers() != active ||
+                  dispatcher.queueDepth() != i - active)
+            {
+                if(System.currentTimeMillis() > deadline)
+                {
+                    throw new TestFailed("dispatcher not filled: " +
+                                         dispatcher);
+                }
+
+                Thread.sleep(1);
+            }
+        }
+
+        return done;
+    }
+
+    /** Lets the calls filling a dispatcher return, and checks that its
+        counts go back to zero. */
+    private void empty(Dispatcher dispatcher, CountDownLatch done)
+        throws Throwable
+    {
+        gate.countDown();
+
+        if(!done.await(1, TimeUnit.SECONDS))
+            throw new TestFailed("held calls not run: " + dispatcher);
+
+        long                deadline = System.currentTimeMillis() + 1000;
+
+        while(dispatcher.activeWorkers() != 0 || dispatcher.queueDepth() != 0)
+        {
+            if(System.currentTimeMillis() > deadline)
+            {
+                throw new TestFailed("emptied dispatcher reports " +
+                                     dispatcher);
+            }
+
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package rmi;
+
+import test.*;
+import java.net.*;
+import java.util.concurrent.*;
+
+/** Checks that skeletons finish the calls they have taken on before
+    stopping.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>A quiesced skeleton refuses new calls with
+        <code>RMIOverloadException</code>, while the calls it took on before
+        run to the end and their results are delivered.</li>
+    <li>The report of the drain counts the calls completed and refused.</li>
+    <li>A call still running when the drain times out is counted as
+        abandoned.</li>
+    <li>A call to <code>stop</code> from another thread ends the drain at
+        once.</li>
+    </ul>
+ */
+public class DrainTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking skeleton drains";
+
+    /** Remote interface of the skeleton. */
+    public interface Slow
+    {
+        int hold() throws RMIException;
+        int ping() throws RMIException;
+    }
+
+    /** Skeleton under test. */
+    private Skeleton<Slow>      skeleton;
+    /** Stub for the skeleton. */
+    private Slow                stub;
+    /** Threads making the calls. */
+    private ExecutorService     callers = Executors.newCachedThreadPool();
+    /** Released once by each call to <code>hold</code> when it starts. */
+    private final Semaphore     entered = new Semaphore(0);
+    /** Released to let the calls to <code>hold</code> return. */
+    private volatile CountDownLatch gate;
+    /** Whether stubs called skeletons in this JVM directly before the
+        test. */
+    private boolean             local;
+
+    /** Turns off local calls, which skip the skeleton's accounting. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        local = LocalCalls.isEnabled();
+        LocalCalls.setEnabled(false);
+    }
+
+    /** Stops the skeleton and the calling threads. */
+    @Override
+    protected void clean()
+    {
+        if(gate != null)
+            gate.countDown();
+
+        callers.shutdownNow();
+
+        if(skeleton != null)
+            skeleton.stop();
+
+        LocalCalls.setEnabled(local);
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testCompleted();
+            testAbandoned();
+            testStop();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks that calls taken on finish while new ones are refused. */
+    private void testCompleted() throws Throwable
+    {
+        start();
+
+        Future<Integer>         first = hold();
+        Future<Integer>         second = hold();
+
+        await(2);
+        skeleton.quiesce();
+
+        for(int i = 0; i < 3; ++i)
+        {
+            try
+            {
+                stub.ping();
+                throw new TestFailed("call taken on while quiesced");
+            }
+            catch(RMIOverloadException e) { }
+        }
+
+        Future<DrainReport>     drained = drain(2000);
+
+        try
+        {
+            drained.get(100, TimeUnit.MILLISECONDS);
+            throw new TestFailed("drain did not wait for calls in flight");
+        }
+        catch(TimeoutException e) { }
+
+        gate.countDown();
+
+        if(first.get(1, TimeUnit.SECONDS) != 1 ||
+           second.get(1, TimeUnit.SECONDS) != 1)
+        {
+            throw new TestFailed("call in flight not answered while " +
+                                 "draining");
+        }
+
+        DrainReport             report = drained.get(1, TimeUnit.SECONDS);
+
+        if(report.completed() != 2 || report.abandoned() != 0 ||
+           report.refused() != 3 || report.elapsed() >= 2000)
+        {
+            throw new TestFailed("drain reported " + report + " instead of " +
+                                 "2 completed and 3 refused");
+        }
+
+        if(skeleton.isRunning())
+            throw new TestFailed("skeleton running after drain");
+    }
+
+    /** Checks that a call running at the deadline is abandoned. */
+    private void testAbandoned() throws Throwable
+    {
+        start();
+
+        Future<Integer>         held = hold();
+
+        await(1);
+
+        DrainReport             report = skeleton.drain(100);
+
+        if(report.completed() != 0 || report.abandoned() != 1)
+        {
+            throw new TestFailed("drain reported " + report + " instead of " +
+                                 "1 abandoned");
+        }
+
+        gate.countDown();
+
+        try
+        {
+            held.get(1, TimeUnit.SECONDS);
+            throw new TestFailed("result of abandoned call delivered");
+        }
+        catch(ExecutionException e) { }
+    }
+
+    /** Checks that stop ends a drain at once. */
+    private void testStop() throws Throwable
+    {
+        start();
+        hold();
+        await(1);
+
+        Future<DrainReport>     drained = drain(5000);
+
+        Thread.sleep(100);
+        skeleton.stop();
+
+        DrainReport             report;
+
+        try
+        {
+            report = drained.get(1, TimeUnit.SECONDS);
+        }
+        catch(TimeoutException e)
+        {
+            throw new TestFailed("drain not ended by stop");
+        }
+
+        if(report.abandoned() != 1 || report.elapsed() >= 5000)
+        {
+            throw new TestFailed("drain ended by stop reported " + report +
+                                 " instead of 1 abandoned");
+        }
+    }
+
+    /** Starts a new skeleton, and makes a stub for it. */
+    private void start() throws TestFailed
+    {
+        if(skeleton != null)
+            skeleton.stop();
+        if(gate != null)
+            gate.countDown();
+
+        gate = new CountDownLatch(1);
+        skeleton = new Skeleton<Slow>(Slow.class, new Slow()
+            {
+                @Override
+                public int hold()
+                {
+                    entered.release();
+
+                    try
+                    {
+                        gate.await();
+                    }
+                    catch(InterruptedException e) { }
+
+                    return 1;
+                }
+
+                @Override
+                public int ping()
+                {
+                    return 0;
+                }
+            }, new InetSocketAddress("127.0.0.1", 0));
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        stub = Stub.create(Slow.class, new InetSocketAddress(
+            "127.0.0.1", skeleton.getAddress().getPort()));
+    }
+
+    /** Calls <code>hold</code> in another thread. */
+    private Future<Integer> hold()
+    {
+        Slow                    caller = stub;
+
+        return callers.submit(() -> caller.hold());
+    }
+
+    /** Waits for a number of calls to <code>hold</code> to start. */
+    private void await(int calls) throws Throwable
+    {
+        if(!entered.tryAcquire(calls, 1, TimeUnit.SECONDS))
+            throw new TestFailed("calls did not reach the skeleton");
+    }
+
+    /** Drains the skeleton in another thread. */
+    private Future<DrainReport> drain(long timeout)
+    {
+        Skeleton<Slow>          drained = skeleton;
+
+        return callers.submit(() -> drained.drain(timeout));
+    }
+}
@@ -0,0 +1,158 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+
+/** Checks that lengths and counts sent by a peer are bounded before anything
+    is allocated for them.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>A frame header declaring more than <code>Frame.MAX_FRAME</code> bytes
+        is rejected, as is a negative length.</li>
+    <li>A frame larger than <code>Frame.MAX_FRAME</code> is not written.</li>
+    <li>A batch entry declaring more bytes than are left in the batch is
+        rejected.</li>
+    <li>Byte array, string, array and serialized value counts declaring more
+        bytes than are left in the body are rejected.</li>
+    </ul>
+ */
+public class FrameTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking frame and value length bounds";
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        testFrameLength();
+        testEntryLength();
+        testCounts();
+    }
+
+    /** Checks the length at the head of a frame.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testFrameLength() throws TestFailed
+    {
+        if(!Frame.validLength(Frame.MAX_FRAME) || !Frame.validLength(5))
+            throw new TestFailed("valid frame length rejected");
+
+        rejectFrame(Frame.MAX_FRAME + 1);
+        rejectFrame(Integer.MAX_VALUE);
+        rejectFrame(-1);
+        rejectFrame(4);
+
+        // A frame too large to be accepted is not sent either.
+        try
+        {
+            new Frame(Frame.RESULT, 1, new byte[Frame.MAX_FRAME])
+                .write(new DataOutputStream(new ByteArrayOutputStream()));
+            throw new TestFailed("frame larger than MAX_FRAME written");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(IOException e) { }
+    }
+
+    /** Checks that a frame header with the given length is rejected when
+        read.
+
+        @throws TestFailed If the frame is read.
+     */
+    private void rejectFrame(int length) throws TestFailed
+    {
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+        DataOutputStream        out = new DataOutputStream(bytes);
+
+        try
+        {
+            out.writeInt(length);
+            out.writeByte(Frame.RESULT);
+            out.writeInt(1);
+            out.flush();
+
+            Frame.read(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+            throw new TestFailed("frame length " + length + " accepted");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(IOException e) { }
+    }
+
+    /** Checks the length of a batch entry.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testEntryLength() throws TestFailed
+    {
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+        DataOutputStream        out = new DataOutputStream(bytes);
+
+        try
+        {
+            new Frame(Frame.CALL, 0, new byte[] {1, 2, 3}).writeEntry(out);
+            out.writeByte(Frame.CALL);
+            out.writeInt(1 << 30);
+            out.write(new byte[16]);
+            out.flush();
+
+            DataInputStream     in = Codec.reader(bytes.toByteArray());
+            Frame               entry = Frame.readEntry(in, 7);
+
+            if(entry.id != 7 || entry.body.length != 3)
+                throw new TestFailed("batch entry read incorrectly");
+
+            Frame.readEntry(in, 7);
+            throw new TestFailed("batch entry longer than its batch " +
+                                 "accepted");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(IOException e) { }
+    }
+
+    /** Checks the counts of values which are allocated when read.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testCounts() throws TestFailed
+    {
+        // Counts of a gigabyte, beyond MAX_FRAME, and of a megabyte, within
+        // it but beyond the bytes that follow.
+        byte[][]    counts = new byte[][] {
+            {(byte)0x80, (byte)0x80, (byte)0x80, (byte)0x80, 0x04},
+            {(byte)0x80, (byte)0x80, 0x40}};
+
+        // BYTES, STRING, STRINGS, PATHS and SERIAL.
+        for(byte tag : new byte[] {11, 10, 12, 14, 1})
+        {
+            for(byte[] count : counts)
+            {
+                byte[]  body = new byte[1 + count.length + 8];
+
+                body[0] = tag;
+                System.arraycopy(count, 0, body, 1, count.length);
+
+                try
+                {
+                    Codec.read(Codec.reader(body));
+                    throw new TestFailed("count overrunning the frame " +
+                                         "accepted for tag " + tag);
+                }
+                catch(TestFailed e) { throw e; }
+                catch(IOException e) { }
+                catch(Throwable t)
+                {
+                    throw new TestFailed("unexpected exception for tag " +
+                                         tag, t);
+                }
+            }
+        }
+    }
+}
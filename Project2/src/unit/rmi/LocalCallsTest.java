@@ -0,0 +1,315 @@
+package rmi;
+
+import test.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.util.*;
+
+/** Checks calls from stubs to skeletons in the same JVM.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>A call to a skeleton in this JVM is run in the caller's thread, and
+        the server object and the caller each get their own copies of the
+        arguments and the result.</li>
+    <li>With local calls turned off, the same call goes over a
+        connection.</li>
+    <li>A skeleton is only found for addresses of this host: those it is
+        bound to, or any of the host's if it is bound to the wildcard
+        address.</li>
+    <li>A skeleton which is draining or stopped is not called directly, and
+        calls to it go over a connection, where they are refused.</li>
+    </ul>
+ */
+public class LocalCallsTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking calls within the JVM";
+
+    /** An address of no host of this test's, from the documentation
+        range. */
+    private static final String ELSEWHERE = "192.0.2.1";
+
+    /** Remote interface of the skeletons. */
+    public interface Store
+    {
+        int[] keep(int[] values) throws RMIException;
+        int[] kept() throws RMIException;
+    }
+
+    /** Skeleton bound to the loopback address. */
+    private Skeleton<Store>     bound;
+    /** Skeleton bound to the wildcard address. */
+    private Skeleton<Store>     wildcard;
+    /** Array last given to the server object. */
+    private volatile int[]      received;
+    /** Thread which ran the last call. */
+    private volatile Thread     ran;
+    /** Whether stubs called skeletons in this JVM directly before the
+        test. */
+    private boolean             local;
+
+    /** Starts the skeletons.
+
+        @throws TestFailed If the skeletons cannot be started.
+     */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        local = LocalCalls.isEnabled();
+        LocalCalls.setEnabled(true);
+
+        bound = start(new InetSocketAddress("127.0.0.1", 0));
+        wildcard = start(new InetSocketAddress(0));
+    }
+
+    /** Stops the skeletons. */
+    @Override
+    protected void clean()
+    {
+        if(bound != null)
+            bound.stop();
+        if(wildcard != null)
+            wildcard.stop();
+
+        LocalCalls.setEnabled(local);
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testCopies();
+            testDisabled();
+            testAddresses();
+            testDraining();
+            testStopped();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks that a local call copies its arguments and result. */
+    private void testCopies() throws Throwable
+    {
+        Store       stub = stub(bound);
+        int[]       values = {1, 2, 3};
+        int[]       result = stub.keep(values);
+
+        if(ran != Thread.currentThread())
+            throw new TestFailed("call to a skeleton in this JVM not local");
+
+        if(received == values)
+            throw new TestFailed("server object given the caller's argument");
+
+        if(result == values || result == received)
+            throw new TestFailed("caller given the server object's result");
+
+        if(!Arrays.equals(result, values))
+            throw new TestFailed("local call returned the wrong result");
+
+        // Neither side sees what the other does to its copy.
+        values[0] = 7;
+        result[1] = 8;
+        received[2] = 9;
+
+        int[]       kept = stub.kept();
+
+        if(kept == received || kept[0] != 1 || kept[1] != 2)
+            throw new TestFailed("local call shared arrays with its caller");
+    }
+
+    /** Checks that turning local calls off sends calls over a
+        connection. */
+    private void testDisabled() throws Throwable
+    {
+        Store       stub = stub(bound);
+
+        LocalCalls.setEnabled(false);
+
+        try
+        {
+            if(LocalCalls.find(address(bound)) != null)
+                throw new TestFailed("skeleton found with local calls off");
+
+            stub.keep(new int[] {1});
+
+            if(ran == Thread.currentThread())
+                throw new TestFailed("call made locally with local calls off");
+        }
+        finally
+        {
+            LocalCalls.setEnabled(true);
+        }
+
+        stub.keep(new int[] {1});
+
+        if(ran != Thread.currentThread())
+            throw new TestFailed("call not local after local calls turned on");
+    }
+
+    /** Checks which addresses lead to a skeleton in this JVM. */
+    private void testAddresses() throws Throwable
+    {
+        int         port = bound.getAddress().getPort();
+
+        if(LocalCalls.find(new InetSocketAddress("127.0.0.1", port)) != bound)
+            throw new TestFailed("skeleton not found at its own address");
+
+        if(LocalCalls.find(new InetSocketAddress("127.0.0.2", port)) != null)
+        {
+            throw new TestFailed("skeleton bound to one address found at " +
+                                 "another");
+        }
+
+        if(LocalCalls.find(InetSocketAddress.createUnresolved("localhost",
+                                                              port)) != null)
+        {
+            throw new TestFailed("skeleton found at an unresolved address");
+        }
+
+        port = wildcard.getAddress().getPort();
+
+        if(LocalCalls.find(new InetSocketAddress("127.0.0.1", port))
+           != wildcard)
+        {
+            throw new TestFailed("skeleton bound to the wildcard address not " +
+                                 "found at the loopback address");
+        }
+
+        if(LocalCalls.find(new InetSocketAddress(ELSEWHERE, port)) != null)
+            throw new TestFailed("skeleton found at another host's address");
+
+        if(!LocalCalls.isOwn(InetAddress.getLoopbackAddress()) ||
+           !LocalCalls.isOwn(InetAddress.getByName("0.0.0.0")))
+        {
+            throw new TestFailed("loopback or wildcard address not taken " +
+                                 "for this host's");
+        }
+
+        if(LocalCalls.isOwn(InetAddress.getByName(ELSEWHERE)))
+            throw new TestFailed("another host's address taken for this one's");
+
+        // An address of one of this host's interfaces, if it has any besides
+        // the loopback interface.
+        for(NetworkInterface i :
+                Collections.list(NetworkInterface.getNetworkInterfaces()))
+        {
+            for(InetAddress a : Collections.list(i.getInetAddresses()))
+            {
+                if(!LocalCalls.isOwn(a))
+                {
+                    throw new TestFailed("address " + a + " of interface " +
+                                         i.getName() + " not taken for " +
+                                         "this host's");
+                }
+            }
+        }
+    }
+
+    /** Checks that a draining skeleton is called over a connection. */
+    private void testDraining() throws Throwable
+    {
+        Store       stub = stub(bound);
+        Method      keep = Store.class.getMethod("keep", int[].class);
+
+        // Connections cannot be made once the skeleton drains, so the stub
+        // connects first.
+        LocalCalls.setEnabled(false);
+        stub.kept();
+        LocalCalls.setEnabled(true);
+
+        bound.quiesce();
+
+        if(bound.call(keep, new Object[] {new int[0]}) != null)
+            throw new TestFailed("draining skeleton called directly");
+
+        if(LocalCalls.find(address(bound)) != null)
+            throw new TestFailed("draining skeleton found for local calls");
+
+        try
+        {
+            stub.keep(new int[0]);
+            throw new TestFailed("call to draining skeleton taken on");
+        }
+        catch(RMIOverloadException e) { }
+    }
+
+    /** Checks that a stopped skeleton is not called directly. */
+    private void testStopped() throws Throwable
+    {
+        Store       stub = stub(wildcard);
+        Method      kept = Store.class.getMethod("kept");
+
+        wildcard.stop();
+
+        if(wildcard.call(kept, null) != null)
+            throw new TestFailed("stopped skeleton called directly");
+
+        if(LocalCalls.find(address(wildcard)) != null)
+            throw new TestFailed("stopped skeleton found for local calls");
+
+        try
+        {
+            stub.kept();
+            throw new TestFailed("call to stopped skeleton answered");
+        }
+        catch(RMIException e) { }
+    }
+
+    /** Starts a skeleton at an address. */
+    private Skeleton<Store> start(InetSocketAddress address) throws TestFailed
+    {
+        Skeleton<Store>     skeleton = new Skeleton<Store>(Store.class,
+            new Store()
+            {
+                @Override
+                public int[] keep(int[] values)
+                {
+                    ran = Thread.currentThread();
+                    received = values;
+                    return values;
+                }
+
+                @Override
+                public int[] kept()
+                {
+                    ran = Thread.currentThread();
+                    return received;
+                }
+            }, address);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        return skeleton;
+    }
+
+    /** Makes a stub for a skeleton, at the loopback address. */
+    private static Store stub(Skeleton<Store> skeleton)
+    {
+        return Stub.create(Store.class, address(skeleton));
+    }
+
+    /** Gives the loopback address of a skeleton. */
+    private static InetSocketAddress address(Skeleton<Store> skeleton)
+    {
+        return new InetSocketAddress("127.0.0.1",
+                                     skeleton.getAddress().getPort());
+    }
+}
@@ -0,0 +1,239 @@
+package rmi;
+
+import test.*;
+import java.util.*;
+
+/** Checks histograms of durations and the metrics built on them.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>An empty histogram gives zero for every statistic.</li>
+    <li>Values under sixteen are counted exactly, and negative values are
+        counted as zero.</li>
+    <li>A percentile is never below the value at its rank, and no more than a
+        sixteenth above it, over the whole range of values; it is never above
+        the largest value, which is kept exactly, as is the mean.</li>
+    <li>The metrics of a method count calls, errors, shared results and
+        bytes, and leave waits which are not known out of their
+        histogram.</li>
+    <li>Metrics give one set of method metrics for each signature, list them
+        in order, and work out the compression ratio of the parts they
+        count.</li>
+    </ul>
+ */
+public class MetricsTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking metrics and histograms";
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testEmpty();
+            testExact();
+            testBounds();
+            testRanks();
+            testMethodMetrics();
+            testMetrics();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks the statistics of a histogram with nothing recorded. */
+    private void testEmpty() throws Throwable
+    {
+        Histogram.Snapshot  empty = new Histogram().snapshot();
+
+        if(empty.count() != 0 || empty.max() != 0 || empty.mean() != 0 ||
+           empty.percentile(50) != 0 || empty.percentile(100) != 0)
+        {
+            throw new TestFailed("empty histogram gives " + empty);
+        }
+    }
+
+    /** Checks that small values are counted exactly. */
+    private void testExact() throws Throwable
+    {
+        Histogram           histogram = new Histogram();
+
+        for(int v = 0; v < 16; ++v)
+            histogram.record(v);
+
+        Histogram.Snapshot  snapshot = histogram.snapshot();
+
+        // Each value is a sixteenth of those recorded.
+        for(int v = 0; v < 16; ++v)
+        {
+            if(snapshot.percentile(100.0 * (v + 1) / 16) != v)
+                throw new TestFailed("small value " + v + " not exact");
+        }
+
+        if(snapshot.count() != 16 || snapshot.max() != 15 ||
+           snapshot.mean() != 7.5)
+        {
+            throw new TestFailed("small values give " + snapshot);
+        }
+
+        Histogram           negative = new Histogram();
+
+        negative.record(-5);
+        snapshot = negative.snapshot();
+
+        if(snapshot.count() != 1 || snapshot.max() != 0 ||
+           snapshot.percentile(100) != 0)
+        {
+            throw new TestFailed("negative value not counted as zero");
+        }
+    }
+
+    /** Checks the error of percentiles over the range of values. */
+    private void testBounds() throws Throwable
+    {
+        Random              random = new Random(1);
+        List<Long>          values = new ArrayList<Long>();
+
+        for(int bits = 4; bits < 62; ++bits)
+        {
+            values.add(1L << bits);
+            values.add((1L << bits) - 1);
+            values.add((1L << bits) + 1);
+            values.add((1L << bits) + (random.nextLong() >>> (64 - bits)));
+        }
+
+        for(long v : values)
+        {
+            // A larger value is recorded as well, so that the percentile is
+            // not cut down to the largest value.
+            Histogram       histogram = new Histogram();
+
+            histogram.record(v);
+            histogram.record(2 * v);
+
+            long            p = histogram.snapshot().percentile(50);
+
+            if(p < v || p > v + v / 16)
+            {
+                throw new TestFailed("percentile " + p + " of " + v +
+                                     " out of bounds");
+            }
+        }
+    }
+
+    /** Checks percentiles of many values, and the statistics kept
+        exactly. */
+    private void testRanks() throws Throwable
+    {
+        Histogram           histogram = new Histogram();
+        int                 count = 10000;
+
+        for(int v = 1; v <= count; ++v)
+            histogram.record(v);
+
+        Histogram.Snapshot  snapshot = histogram.snapshot();
+
+        for(double percent : new double[] {0.5, 10, 50, 90, 99, 99.9})
+        {
+            long            rank = (long)Math.ceil(count * percent / 100);
+            long            p = snapshot.percentile(percent);
+
+            if(p < rank || p > rank + rank / 16)
+            {
+                throw new TestFailed("percentile " + percent + " of 1 to " +
+                                     count + " is " + p);
+            }
+        }
+
+        if(snapshot.percentile(0) != 1)
+            throw new TestFailed("lowest percentile not the smallest value");
+
+        if(snapshot.percentile(100) != count ||
+           snapshot.percentile(150) != count)
+        {
+            throw new TestFailed("highest percentile not the largest value");
+        }
+
+        if(snapshot.count() != count || snapshot.max() != count ||
+           snapshot.mean() != (count + 1) / 2.0)
+        {
+            throw new TestFailed("values 1 to " + count + " give " +
+                                 snapshot);
+        }
+    }
+
+    /** Checks the counts kept for a method. */
+    private void testMethodMetrics() throws Throwable
+    {
+        MethodMetrics       m = new MethodMetrics("test", "m()");
+
+        m.record(false, 10, 20, 5, 100);
+        m.record(true, 1, 2, -1, 50);
+        m.share(false, 100, 200, 0, 10);
+
+        if(m.calls() != 3 || m.errors() != 1 || m.shared() != 1)
+        {
+            throw new TestFailed("method counted " + m.calls() + " calls, " +
+                                 m.errors() + " errors and " + m.shared() +
+                                 " shared");
+        }
+
+        if(m.bytesIn() != 111 || m.bytesOut() != 222)
+            throw new TestFailed("method bytes counted wrongly");
+
+        if(m.queueWait().count() != 2 || m.queueWait().max() != 5)
+            throw new TestFailed("unknown wait recorded");
+
+        if(m.service().count() != 3 || m.service().max() != 100 ||
+           m.service().mean() != 160 / 3.0)
+        {
+            throw new TestFailed("service times give " + m.service());
+        }
+
+        if(!m.method().equals("m()"))
+            throw new TestFailed("method metrics under the wrong signature");
+    }
+
+    /** Checks the methods and compression counts of metrics. */
+    private void testMetrics() throws Throwable
+    {
+        Metrics             metrics = new Metrics("test");
+
+        if(metrics.get("a()") != null)
+            throw new TestFailed("metrics of a method not called");
+
+        if(metrics.compressionRatio() != 1)
+            throw new TestFailed("ratio given with nothing compressed");
+
+        MethodMetrics       b = metrics.method("b()");
+        MethodMetrics       a = metrics.method("a()");
+
+        if(metrics.method("b()") != b || metrics.get("b()") != b)
+            throw new TestFailed("metrics of a method made twice");
+
+        if(!metrics.methods().equals(Arrays.asList(a, b)))
+            throw new TestFailed("methods not listed in order");
+
+        metrics.compressed(true, 100, 25);
+        metrics.compressed(true, 300, 75);
+        metrics.compressed(false, 1000, 1000);
+
+        if(metrics.compressedParts() != 2 ||
+           metrics.incompressibleParts() != 1 ||
+           metrics.bytesBeforeCompression() != 400 ||
+           metrics.bytesAfterCompression() != 100 ||
+           metrics.compressionRatio() != 0.25)
+        {
+            throw new TestFailed("compression counted wrongly");
+        }
+    }
+}
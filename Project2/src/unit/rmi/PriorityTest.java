@@ -0,0 +1,319 @@
+package rmi;
+
+import test.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Checks that calls of each priority class have workers of their own.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>While the workers and queues of the <code>LOW</code> and
+        <code>NORMAL</code> classes are full, <code>HIGH</code> calls are run
+        at once, and further calls of the full classes are refused with
+        <code>RMIOverloadException</code>, with both transports.</li>
+    <li>When the <code>HIGH</code> class is full as well, its overflow is
+        refused rather than run or held by the thread reading the connection,
+        which goes on answering the connection.</li>
+    <li>Once the calls holding the workers return, every class is served
+        again.</li>
+    <li>The <code>SELECTOR</code> transport refuses dispatchers for a class
+        which could run or hold overflow calls on its event loop.</li>
+    </ul>
+ */
+public class PriorityTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking priority classes of calls";
+
+    /** Workers of the <code>HIGH</code> class. */
+    private static final int    HIGH_WORKERS = 2;
+    /** Queue limit of every class. */
+    private static final int    QUEUE = 2;
+
+    /** Remote interface of the skeletons. */
+    public interface Lanes
+    {
+        @Priority(Priority.Level.HIGH)
+        int high(boolean hold) throws RMIException;
+        int normal() throws RMIException;
+        @Priority(Priority.Level.LOW)
+        int low() throws RMIException;
+    }
+
+    /** Skeletons started by the test. */
+    private final List<Skeleton<Lanes>> skeletons =
+        new ArrayList<Skeleton<Lanes>>();
+    /** Threads making the calls which hold the workers. */
+    private ExecutorService     callers = Executors.newCachedThreadPool();
+    /** Released to let the held calls return. */
+    private volatile CountDownLatch gate;
+    /** Whether stubs called skeletons in this JVM directly before the
+        test. */
+    private boolean             local;
+
+    /** Turns off local calls, which skip the dispatchers. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        local = LocalCalls.isEnabled();
+        LocalCalls.setEnabled(false);
+    }
+
+    /** Stops the skeletons and the calling threads. */
+    @Override
+    protected void clean()
+    {
+        if(gate != null)
+            gate.countDown();
+
+        callers.shutdownNow();
+
+        for(Skeleton<Lanes> skeleton : skeletons)
+            skeleton.stop();
+
+        LocalCalls.setEnabled(local);
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testLanes(Skeleton.Transport.BLOCKING);
+            testLanes(Skeleton.Transport.SELECTOR);
+            testSelectorDispatchers();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Fills the workers of each class in turn, and checks that the other
+        classes are served. */
+    private void testLanes(Skeleton.Transport transport) throws Throwable
+    {
+        String              name = transport.toString();
+        Skeleton<Lanes>     skeleton = start(transport);
+        InetSocketAddress   address = new InetSocketAddress("127.0.0.1",
+            skeleton.getAddress().getPort());
+        Lanes               stub = Stub.create(Lanes.class, address);
+        List<Future<?>>     held = new ArrayList<Future<?>>();
+
+        gate = new CountDownLatch(1);
+
+        // One call running and the queue full in the NORMAL and LOW classes.
+        for(int i = 0; i < 1 + QUEUE; ++i)
+        {
+            held.add(hold(() -> stub.normal(),
+                          skeleton.getDispatcher(Priority.Level.NORMAL), 1,
+                          name));
+            held.add(hold(() -> stub.low(),
+                          skeleton.getDispatcher(Priority.Level.LOW), 1,
+                          name));
+        }
+
+        long                began = System.currentTimeMillis();
+
+        for(int i = 0; i < 10; ++i)
+        {
+            if(stub.high(false) != 1)
+                throw new TestFailed(name + ": HIGH call gave wrong result");
+        }
+
+        if(System.currentTimeMillis() - began > 500)
+        {
+            throw new TestFailed(name + ": HIGH calls held up by full " +
+                                 "classes");
+        }
+
+        expectRefused(() -> stub.normal(), name + ": NORMAL");
+        expectRefused(() -> stub.low(), name + ": LOW");
+
+        // The HIGH class is filled as well; its overflow is refused, and the
+        // connection is still read.
+        Dispatcher          high = skeleton.getDispatcher(Priority.Level.HIGH);
+
+        for(int i = 0; i < HIGH_WORKERS + QUEUE; ++i)
+            held.add(hold(() -> stub.high(true), high, HIGH_WORKERS, name));
+
+        if(high.activeWorkers() != HIGH_WORKERS || high.queueDepth() != QUEUE)
+            throw new TestFailed(name + ": HIGH class not full: " + high);
+
+        long                rejected = high.rejectedCalls();
+
+        expectRefused(() -> stub.high(false), name + ": HIGH");
+
+        if(high.rejectedCalls() != rejected + 1)
+        {
+            throw new TestFailed(name + ": HIGH overflow not counted");
+        }
+
+        if(!ConnectionPool.get(address, Deadline.NONE).ping(1000))
+            throw new TestFailed(name + ": connection not read while full");
+
+        gate.countDown();
+
+        for(Future<?> f : held)
+            f.get(1, TimeUnit.SECONDS);
+
+        if(stub.normal() != 0 || stub.low() != 2 || stub.high(false) != 1)
+            throw new TestFailed(name + ": classes not served after overflow");
+    }
+
+    /** Checks the dispatchers a skeleton with the selector transport takes
+        for a class. */
+    private void testSelectorDispatchers() throws Throwable
+    {
+        Skeleton<Lanes>     skeleton = start(Skeleton.Transport.SELECTOR);
+
+        for(Dispatcher.Rejection rejection :
+                new Dispatcher.Rejection[] {Dispatcher.Rejection.CALLER_RUNS,
+                                            Dispatcher.Rejection.BLOCK})
+        {
+            try
+            {
+                skeleton.setDispatcher(Priority.Level.HIGH,
+                                       Dispatcher.bounded(1, 1, rejection));
+                throw new TestFailed("SELECTOR transport took a " + rejection +
+                                     " dispatcher for a class");
+            }
+            catch(IllegalArgumentException e) { }
+        }
+
+        skeleton.setDispatcher(Priority.Level.HIGH, null);
+
+        if(skeleton.getDispatcher(Priority.Level.HIGH) !=
+           skeleton.getDispatcher())
+        {
+            throw new TestFailed("class without a dispatcher does not use " +
+                                 "the main one");
+        }
+    }
+
+    /** Starts a skeleton with a bounded dispatcher for each class. */
+    private Skeleton<Lanes> start(Skeleton.Transport transport)
+        throws TestFailed
+    {
+        Skeleton<Lanes>     skeleton = new Skeleton<Lanes>(Lanes.class,
+            new Lanes()
+            {
+                @Override
+                public int high(boolean hold)
+                {
+                    if(hold)
+                        pass();
+
+                    return 1;
+                }
+
+                @Override
+                public int normal()
+                {
+                    pass();
+                    return 0;
+                }
+
+                @Override
+                public int low()
+                {
+                    pass();
+                    return 2;
+                }
+            }, new InetSocketAddress("127.0.0.1", 0), transport);
+
+        skeleton.setDispatcher(Dispatcher.bounded(
+            1, QUEUE, Dispatcher.Rejection.REJECT));
+        skeleton.setDispatcher(Priority.Level.LOW, Dispatcher.bounded(
+            1, QUEUE, Dispatcher.Rejection.REJECT));
+        skeleton.setDispatcher(Priority.Level.HIGH, Dispatcher.bounded(
+            HIGH_WORKERS, QUEUE, Dispatcher.Rejection.REJECT));
+
+        skeletons.add(skeleton);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        return skeleton;
+    }
+
+    /** Waits for the gate to be opened. */
+    private void pass()
+    {
+        try
+        {
+            gate.await(2, TimeUnit.SECONDS);
+        }
+        catch(InterruptedException e) { }
+    }
+
+    /** Makes a call which holds a worker or a place in the queue, and waits
+        for the dispatcher of its class to take it on. Calls are made one at a
+        time, each once the call before is running or queued, so that none
+        finds the queue full while idle workers have yet to take calls from
+        it. */
+    private Future<?> hold(Callable<Integer> call, Dispatcher dispatcher,
+                           int workers, String name) throws Throwable
+    {
+        int                 active = dispatcher.activeWorkers();
+        int                 queued = dispatcher.queueDepth();
+        long                rejected = dispatcher.rejectedCalls();
+        Future<?>           future = callers.submit(call);
+        long                deadline = System.currentTimeMillis() + 1000;
+
+        if(active < workers)
+            ++active;
+        else
+            ++queued;
+
+        while(dispatcher.activeWorkers() != active ||
+              dispatcher.queueDepth() != queued)
+        {
+            if(dispatcher.rejectedCalls() != rejected)
+            {
+                throw new TestFailed(name + ": held call refused: " +
+                                     dispatcher);
+            }
+
+            if(System.currentTimeMillis() > deadline)
+                throw new TestFailed(name + ": held call not taken on");
+
+            Thread.sleep(1);
+        }
+
+        return future;
+    }
+
+    /** A call which may be refused. */
+    private interface Call
+    {
+        void make() throws RMIException;
+    }
+
+    /** Checks that a call is refused because its class is full. */
+    private static void expectRefused(Call call, String name)
+        throws Throwable
+    {
+        try
+        {
+            call.make();
+            throw new TestFailed(name + " call taken on while its class was " +
+                                 "full");
+        }
+        catch(RMIOverloadException e) { }
+    }
+}
@@ -0,0 +1,236 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+
+/** Checks that large byte arrays and buffers travel as raw frame segments.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>Byte arrays and buffers of <code>Codec.SEGMENT_THRESHOLD</code> bytes
+        or more are left out of the body, with the tags 17 and 18 marking their
+        places, and are read back from a frame written to a stream and from a
+        frame decoded from one buffer.</li>
+    <li>A body referring to a segment the frame does not have is
+        refused.</li>
+    <li>Large arrays and buffers passed to and returned from a remote call
+        over a connection arrive intact.</li>
+    </ul>
+ */
+public class SegmentTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking frame segments";
+
+    /** Remote interface which echoes its arguments. */
+    public interface Echo
+    {
+        byte[] bytes(byte[] b, int marker) throws RMIException;
+        ByteBuffer buffer(ByteBuffer b) throws RMIException;
+    }
+
+    /** Skeleton serving <code>Echo</code>. */
+    private Skeleton<Echo>      skeleton;
+    /** Whether stubs called skeletons in this JVM directly before the
+        test. */
+    private boolean             local;
+
+    /** Starts the skeleton, and makes stubs reach it over a connection.
+
+        @throws TestFailed If the skeleton cannot be started.
+     */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        local = LocalCalls.isEnabled();
+        LocalCalls.setEnabled(false);
+
+        skeleton = new Skeleton<Echo>(Echo.class, new Echo()
+            {
+                @Override
+                public byte[] bytes(byte[] b, int marker)
+                {
+                    b[0] = (byte)marker;
+                    return b;
+                }
+
+                @Override
+                public ByteBuffer buffer(ByteBuffer b)
+                {
+                    return b;
+                }
+            }, new InetSocketAddress("127.0.0.1", 0));
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+
+        LocalCalls.setEnabled(local);
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        testSegments();
+        testCalls();
+    }
+
+    /** Checks that large arrays and buffers travel as frame segments.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testSegments() throws TestFailed
+    {
+        byte[]              bytes = new byte[Codec.SEGMENT_THRESHOLD];
+        ByteBuffer          buffer =
+            ByteBuffer.wrap(new byte[Codec.SEGMENT_THRESHOLD + 1]);
+
+        bytes[7] = 7;
+        buffer.put(9, (byte)9);
+
+        try
+        {
+            List<ByteBuffer>    segments = new ArrayList<ByteBuffer>();
+            byte[]              body =
+                Codec.encode(segments, -1, bytes, "small", buffer);
+
+            if(segments.size() != 2 || body[0] != 17 ||
+               body[body.length - 1] != 18)
+                throw new TestFailed("large values not sent as segments");
+
+            if(body.length > 16)
+                throw new TestFailed("segments copied into the body");
+
+            // The frame goes over a stream and is read back as a stub or
+            // skeleton would.
+            Frame                   frame =
+                new Frame(Frame.RESULT, 5, body,
+                          segments.toArray(new ByteBuffer[0]));
+            ByteArrayOutputStream   wire = new ByteArrayOutputStream();
+
+            frame.write(new DataOutputStream(wire));
+            if(wire.size() != frame.size())
+                throw new TestFailed("frame size does not match bytes " +
+                                     "written");
+
+            Frame           read = Frame.read(new DataInputStream(
+                new ByteArrayInputStream(wire.toByteArray())));
+            DataInputStream in = Codec.reader(read);
+
+            Object          first = Codec.read(in);
+            Object          second = Codec.read(in);
+            Object          third = Codec.read(in);
+
+            if(!Arrays.equals(bytes, (byte[])first) ||
+               !"small".equals(second) ||
+               !buffer.equals((ByteBuffer)third))
+            {
+                throw new TestFailed("segments read back incorrectly");
+            }
+
+            // Frames read from a channel keep their segments in place in one
+            // buffer.
+            ByteBuffer[]    parts = frame.encode();
+            ByteBuffer      joined = ByteBuffer.allocate((int)frame.size());
+
+            for(ByteBuffer part : parts)
+                joined.put(part);
+            joined.flip();
+            joined.getInt();
+
+            in = Codec.reader(Frame.decode(joined));
+            if(!Arrays.equals(bytes, (byte[])Codec.read(in)) ||
+               !"small".equals(Codec.read(in)) ||
+               !buffer.equals((ByteBuffer)Codec.read(in)))
+            {
+                throw new TestFailed("decoded segments read back " +
+                                     "incorrectly");
+            }
+
+            // A body referring to a segment the frame does not have is
+            // refused.
+            in = Codec.reader(new Frame(Frame.RESULT, 5, new byte[] {17, 17},
+                new ByteBuffer[] {ByteBuffer.allocate(1)}));
+            Codec.read(in);
+            try
+            {
+                Codec.read(in);
+                throw new TestFailed("missing segment accepted");
+            }
+            catch(IOException e) { }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to send values as segments", t);
+        }
+    }
+
+    /** Checks large arrays and buffers sent to and returned from a remote
+        call.
+
+        @throws TestFailed If the test fails.
+     */
+    private void testCalls() throws TestFailed
+    {
+        try
+        {
+            Echo        stub = Stub.create(Echo.class, skeleton);
+
+            for(int size : new int[] {Codec.SEGMENT_THRESHOLD - 1,
+                                      Codec.SEGMENT_THRESHOLD, 1 << 20})
+            {
+                byte[]  sent = new byte[size];
+
+                for(int i = 0; i < size; ++i)
+                    sent[i] = (byte)(i * 31);
+
+                byte[]  echoed = stub.bytes(sent.clone(), 99);
+
+                sent[0] = 99;
+                if(!Arrays.equals(sent, echoed))
+                    throw new TestFailed("array of " + size + " bytes " +
+                                         "echoed incorrectly");
+
+                ByteBuffer  buffer = ByteBuffer.allocateDirect(size + 3);
+
+                buffer.position(3);
+                for(int i = 3; i < size + 3; ++i)
+                    buffer.put(i, (byte)i);
+
+                if(!buffer.equals(stub.buffer(buffer)))
+                    throw new TestFailed("buffer of " + size + " bytes " +
+                                         "echoed incorrectly");
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to call with large arrays", t);
+        }
+    }
+}
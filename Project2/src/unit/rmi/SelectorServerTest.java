@@ -0,0 +1,381 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/** Checks how the selector transport reads calls from its connections.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>A call which arrives a few bytes at a time, with its header split
+        across writes, is read whole and answered.</li>
+    <li>Many calls sent in one write are all read and answered, each under
+        its own id.</li>
+    <li>A connection declaring a frame longer than
+        <code>Frame.MAX_FRAME</code> is closed, and the skeleton goes on
+        serving other connections.</li>
+    <li>Once more than <code>QUEUE_LIMIT</code> bytes of responses wait to
+        be written to a client which does not read them, no further calls
+        are read from its connection. Reading resumes once the client reads
+        the responses, and every call is answered.</li>
+    </ul>
+
+    <p>
+    The test speaks to the skeleton through plain sockets, so that it
+    decides how the bytes of each call are sent and when responses are read.
+ */
+public class SelectorServerTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking the selector transport " +
+                                         "read loop";
+
+    /** Size of each result of <code>blob</code>. */
+    private static final int    BLOB = 1024 * 1024;
+    /** Calls to <code>blob</code> in each half of the backpressure test,
+        whose results are together well over the queue limit. */
+    private static final int    BLOBS =
+        3 * SelectorServer.QUEUE_LIMIT / BLOB;
+
+    /** Remote interface of the skeleton. */
+    public interface Bulk
+    {
+        int echo(int value) throws RMIException;
+        byte[] blob(int size) throws RMIException;
+    }
+
+    /** Skeleton under test. */
+    private Skeleton<Bulk>      skeleton;
+    /** Address of the skeleton. */
+    private InetSocketAddress   address;
+    /** Calls to <code>blob</code> run by the skeleton. */
+    private final AtomicInteger served = new AtomicInteger();
+    /** Sockets opened by the test. */
+    private final List<Socket>  sockets = new ArrayList<Socket>();
+
+    /** Starts the skeleton.
+
+        @throws TestFailed If the skeleton cannot be started.
+     */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Bulk>(Bulk.class, new Bulk()
+            {
+                @Override
+                public int echo(int value)
+                {
+                    return value;
+                }
+
+                @Override
+                public byte[] blob(int size)
+                {
+                    served.incrementAndGet();
+                    return new byte[size];
+                }
+            }, new InetSocketAddress("127.0.0.1", 0),
+            Skeleton.Transport.SELECTOR);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        address = new InetSocketAddress("127.0.0.1",
+                                        skeleton.getAddress().getPort());
+    }
+
+    /** Closes the sockets and stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        for(Socket socket : sockets)
+        {
+            try
+            {
+                socket.close();
+            }
+            catch(IOException e) { }
+        }
+
+        if(skeleton != null)
+            skeleton.stop();
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            testPartialFrames();
+            testPipelinedFrames();
+            testBadLength();
+            testBackpressure();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Sends a call a few bytes at a time. */
+    private void testPartialFrames() throws Throwable
+    {
+        Socket              socket = connect(0);
+        OutputStream        out = socket.getOutputStream();
+        byte[]              call = echo(1, 42);
+
+        // The header is split first, and the rest sent in small pieces.
+        out.write(call, 0, 3);
+        out.flush();
+        Thread.sleep(20);
+
+        for(int i = 3; i < call.length; i += 16)
+        {
+            out.write(call, i, Math.min(16, call.length - i));
+            out.flush();
+            Thread.sleep(1);
+        }
+
+        expect(socket, 1, 42);
+    }
+
+    /** Sends many calls in one write. */
+    private void testPipelinedFrames() throws Throwable
+    {
+        Socket              socket = connect(0);
+        ByteArrayOutputStream   calls = new ByteArrayOutputStream();
+        int                 count = 50;
+
+        for(int id = 1; id <= count; ++id)
+            calls.write(echo(id, 1000 + id));
+
+        socket.getOutputStream().write(calls.toByteArray());
+        socket.getOutputStream().flush();
+
+        DataInputStream     in = new DataInputStream(socket.getInputStream());
+        Set<Integer>        answered = new HashSet<Integer>();
+
+        for(int i = 0; i < count; ++i)
+        {
+            Frame           response = Frame.read(in);
+
+            if(response == null || response.type != Frame.RESULT)
+                throw new TestFailed("pipelined call not answered");
+
+            if(!Integer.valueOf(1000 + response.id).equals(
+                   Codec.read(Codec.reader(response))))
+            {
+                throw new TestFailed("pipelined call " + response.id +
+                                     " answered with another's result");
+            }
+
+            answered.add(response.id);
+        }
+
+        if(answered.size() != count)
+            throw new TestFailed("pipelined call answered twice");
+    }
+
+    /** Declares a frame longer than the largest allowed. */
+    private void testBadLength() throws Throwable
+    {
+        Socket              socket = connect(0);
+        DataOutputStream    out =
+            new DataOutputStream(socket.getOutputStream());
+
+        out.writeInt(Frame.MAX_FRAME + 1);
+        out.writeByte(Frame.CALL_BY_NAME);
+        out.writeInt(1);
+        out.flush();
+
+        socket.setSoTimeout(1000);
+
+        try
+        {
+            if(socket.getInputStream().read() != -1)
+                throw new TestFailed("frame of a bad length answered");
+        }
+        catch(SocketTimeoutException e)
+        {
+            throw new TestFailed("connection sending a frame of a bad length " +
+                                 "not closed");
+        }
+        catch(IOException e) { }
+
+        Socket              other = connect(0);
+
+        other.getOutputStream().write(echo(1, 7));
+        other.getOutputStream().flush();
+        expect(other, 1, 7);
+    }
+
+    /** Sends calls for large results without reading them. */
+    private void testBackpressure() throws Throwable
+    {
+        // The client's own buffer is kept small, so that the responses back
+        // up into the skeleton's queue.
+        Socket              socket = connect(64 * 1024);
+        OutputStream        out = socket.getOutputStream();
+        ByteArrayOutputStream   first = new ByteArrayOutputStream();
+        ByteArrayOutputStream   second = new ByteArrayOutputStream();
+
+        for(int i = 1; i <= BLOBS; ++i)
+        {
+            first.write(blob(i));
+            second.write(blob(BLOBS + i));
+        }
+
+        out.write(first.toByteArray());
+        out.flush();
+
+        // Reading stops once the queue is past its limit, which may be
+        // before every call sent is read.
+        int                 run = settle();
+
+        if(run <= SelectorServer.QUEUE_LIMIT / BLOB)
+            throw new TestFailed("calls not run until the queue was full");
+
+        // The queue is past its limit, so these calls are not read.
+        out.write(second.toByteArray());
+        out.flush();
+
+        if(settle() != run)
+        {
+            throw new TestFailed("calls read while " +
+                                 "responses past the queue limit waited");
+        }
+
+        DataInputStream     in = new DataInputStream(
+            new BufferedInputStream(socket.getInputStream()));
+
+        socket.setSoTimeout(1000);
+
+        for(int i = 0; i < 2 * BLOBS; ++i)
+        {
+            Frame           response = Frame.read(in);
+
+            if(response == null || response.type != Frame.RESULT)
+                throw new TestFailed("call for a large result not answered");
+
+            Object          result = Codec.read(Codec.reader(response));
+
+            if(!(result instanceof byte[]) || ((byte[])result).length != BLOB)
+                throw new TestFailed("large result cut short");
+        }
+
+        if(served.get() != 2 * BLOBS)
+            throw new TestFailed("calls not read once the queue drained");
+    }
+
+    /** Waits for the number of calls to <code>blob</code> run to stop
+        changing.
+
+        @return The number of calls run.
+     */
+    private int settle() throws Throwable
+    {
+        long                deadline = System.currentTimeMillis() + 1000;
+        int                 last = -1;
+
+        while(served.get() != last && System.currentTimeMillis() < deadline)
+        {
+            last = served.get();
+            Thread.sleep(100);
+        }
+
+        return served.get();
+    }
+
+    /** Connects to the skeleton and shakes hands without compression.
+
+        @param buffer Size of the socket's receive buffer, or zero for the
+                      default.
+     */
+    private Socket connect(int buffer) throws Throwable
+    {
+        Socket              socket = new Socket();
+
+        sockets.add(socket);
+
+        if(buffer > 0)
+            socket.setReceiveBufferSize(buffer);
+
+        socket.connect(address);
+        socket.setTcpNoDelay(true);
+
+        DataOutputStream    out =
+            new DataOutputStream(socket.getOutputStream());
+
+        new Frame(Frame.HELLO, 0, new byte[] {0}).write(out);
+        out.flush();
+
+        Frame               hello = Frame.read(
+            new DataInputStream(socket.getInputStream()));
+
+        if(hello == null || hello.type != Frame.HELLO)
+            throw new TestFailed("no handshake from skeleton");
+
+        return socket;
+    }
+
+    /** Reads a response, and checks it is the result of a call. */
+    private static void expect(Socket socket, int id, int value)
+        throws Throwable
+    {
+        socket.setSoTimeout(1000);
+
+        Frame               response = Frame.read(
+            new DataInputStream(socket.getInputStream()));
+
+        if(response == null || response.type != Frame.RESULT ||
+           response.id != id)
+        {
+            throw new TestFailed("call not answered");
+        }
+
+        if(!Integer.valueOf(value).equals(Codec.read(Codec.reader(response))))
+            throw new TestFailed("call answered with the wrong result");
+    }
+
+    /** Encodes a call to <code>echo</code>. */
+    private static byte[] echo(int id, int value) throws IOException
+    {
+        return call(id, "echo", value);
+    }
+
+    /** Encodes a call to <code>blob</code>. */
+    private static byte[] blob(int id) throws IOException
+    {
+        return call(id, "blob", BLOB);
+    }
+
+    /** Encodes a call, by name, of a method taking an <code>int</code>. */
+    private static byte[] call(int id, String name, int argument)
+        throws IOException
+    {
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+        DataOutputStream        out = new DataOutputStream(bytes);
+
+        new Frame(Frame.CALL_BY_NAME, id, Frame.serialize(new Object[] {
+            name, new Class<?>[] {int.class}, new Object[] {argument}}))
+            .write(out);
+        out.flush();
+
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,316 @@
+package rmi;
+
+import test.*;
+import common.*;
+import naming.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Checks that results returned as iterators are streamed to stubs.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>A result longer than several chunks arrives whole and in order, and
+        is taken from the server's iterator only as it is pulled.</li>
+    <li>An iterator closed before its end lets the server close its own
+        iterator.</li>
+    <li>An iterator whose connection breaks while it is being read throws
+        <code>UncheckedRMIException</code>.</li>
+    <li>A skeleton being drained waits for a stream to be read to its end,
+        and counts a stream which is not as abandoned.</li>
+    <li>A directory listed with <code>Service.iterate</code> through a stub
+        holds every entry once.</li>
+    </ul>
+ */
+public class StreamTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking streamed results";
+
+    /** Elements in the results, enough for several chunks. */
+    private static final int    LENGTH = RemoteIterator.CHUNK * 3 + 5;
+
+    /** Remote interface of the skeletons. */
+    public interface Source
+    {
+        Iterator<Integer> count(int n) throws RMIException;
+    }
+
+    /** Skeletons started by the test. */
+    private final List<Skeleton<?>> skeletons = new ArrayList<Skeleton<?>>();
+    /** Iterator returned by the last call to <code>count</code>. */
+    private volatile Counting   source;
+    /** Whether stubs called skeletons in this JVM directly before the
+        test. */
+    private boolean             local;
+
+    /** Iterator over the numbers up to a limit, which counts the numbers
+        taken from it and notes when it is closed. */
+    private static class Counting implements Iterator<Integer>, AutoCloseable
+    {
+        /** Number of elements. */
+        private final int               length;
+        /** Number of elements taken so far. */
+        final AtomicInteger             taken = new AtomicInteger();
+        /** Released when the iterator is closed. */
+        final CountDownLatch            closed = new CountDownLatch(1);
+
+        Counting(int length)
+        {
+            this.length = length;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return taken.get() < length;
+        }
+
+        @Override
+        public Integer next()
+        {
+            return taken.getAndIncrement();
+        }
+
+        @Override
+        public void close()
+        {
+            closed.countDown();
+        }
+    }
+
+    /** Turns off local calls, which are not made for streamed results
+        anyway. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        local = LocalCalls.isEnabled();
+        LocalCalls.setEnabled(false);
+    }
+
+    /** Stops the skeletons. */
+    @Override
+    protected void clean()
+    {
+        for(Skeleton<?> skeleton : skeletons)
+            skeleton.stop();
+
+        LocalCalls.setEnabled(local);
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            Source      stub = stub(start());
+
+            testChunks(stub);
+            testEarlyClose(stub);
+            testBrokenConnection(stub);
+            testDrain();
+            testService();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks that a long result is pulled in chunks, and arrives whole. */
+    private void testChunks(Source stub) throws Throwable
+    {
+        Iterator<Integer>   numbers = stub.count(LENGTH);
+
+        if(!numbers.hasNext() || numbers.next() != 0)
+            throw new TestFailed("first element of stream wrong");
+
+        // The first chunk and the one asked for after it at most.
+        if(source.taken.get() > RemoteIterator.CHUNK * 2)
+            throw new TestFailed("stream taken ahead of being pulled");
+
+        for(int i = 1; i < LENGTH; ++i)
+        {
+            if(!numbers.hasNext())
+                throw new TestFailed("stream ended after " + i + " elements");
+
+            int             n = numbers.next();
+
+            if(n != i)
+                throw new TestFailed("element " + i + " of stream is " + n);
+        }
+
+        if(numbers.hasNext())
+            throw new TestFailed("stream longer than the result");
+
+        if(!source.closed.await(1, TimeUnit.SECONDS))
+            throw new TestFailed("iterator not closed after its end");
+    }
+
+    /** Checks that closing a stream early closes the server's end. */
+    private void testEarlyClose(Source stub) throws Throwable
+    {
+        Iterator<Integer>   numbers = stub.count(LENGTH);
+
+        numbers.next();
+        ((AutoCloseable)numbers).close();
+
+        if(numbers.hasNext())
+            throw new TestFailed("closed stream has more elements");
+
+        if(!source.closed.await(1, TimeUnit.SECONDS))
+            throw new TestFailed("stream closed early not let go of");
+
+        if(source.taken.get() == LENGTH)
+            throw new TestFailed("stream closed early read to its end");
+    }
+
+    /** Checks that a broken connection fails the stream read on it. */
+    private void testBrokenConnection(Source stub) throws Throwable
+    {
+        Iterator<Integer>   numbers = stub.count(LENGTH);
+
+        for(int i = 0; i < RemoteIterator.CHUNK; ++i)
+            numbers.next();
+
+        // Stubs for one address share the connection the stream is read on.
+        ConnectionPool.get(address(skeletons.get(0)), Deadline.NONE)
+            .close(new IOException("broken by test"));
+
+        try
+        {
+            while(numbers.hasNext())
+                numbers.next();
+
+            throw new TestFailed("stream on a broken connection ended " +
+                                 "normally");
+        }
+        catch(UncheckedRMIException e) { }
+    }
+
+    /** Checks that draining waits for open streams. */
+    private void testDrain() throws Throwable
+    {
+        Skeleton<Source>    read = start();
+        Iterator<Integer>   numbers = stub(read).count(LENGTH);
+        FutureTask<DrainReport> drained =
+            new FutureTask<DrainReport>(() -> read.drain(2000));
+
+        new Thread(drained).start();
+
+        try
+        {
+            drained.get(100, TimeUnit.MILLISECONDS);
+            throw new TestFailed("drain did not wait for an open stream");
+        }
+        catch(TimeoutException e) { }
+
+        int                 count = 0;
+
+        while(numbers.hasNext())
+        {
+            numbers.next();
+            ++count;
+        }
+
+        if(count != LENGTH)
+            throw new TestFailed("stream cut short by drain");
+
+        DrainReport         report = drained.get(1, TimeUnit.SECONDS);
+
+        if(report.abandoned() != 0 || report.elapsed() >= 2000)
+            throw new TestFailed("read stream abandoned by drain");
+
+        Skeleton<Source>    unread = start();
+
+        stub(unread).count(LENGTH).next();
+
+        if(unread.drain(100).abandoned() != 1)
+            throw new TestFailed("unread stream not counted as abandoned");
+    }
+
+    /** Checks <code>Service.iterate</code> through a stub. */
+    private void testService() throws Throwable
+    {
+        NamingServer        server = new NamingServer();
+        Skeleton<Service>   skeleton = new Skeleton<Service>(Service.class,
+            server, new InetSocketAddress("127.0.0.1", 0));
+        Path                directory = new Path("/directory");
+        Set<String>         expected = new HashSet<String>();
+
+        skeletons.add(skeleton);
+        skeleton.start();
+
+        server.createDirectory(directory);
+        for(int i = 0; i < RemoteIterator.CHUNK * 2 + 10; ++i)
+        {
+            server.createDirectory(new Path(directory, "entry" + i));
+            expected.add("entry" + i);
+        }
+
+        Iterator<String>    entries =
+            Stub.create(Service.class, address(skeleton)).iterate(directory);
+        Set<String>         listed = new HashSet<String>();
+
+        while(entries.hasNext())
+        {
+            String          entry = entries.next();
+
+            if(!listed.add(entry))
+                throw new TestFailed("entry " + entry + " listed twice");
+        }
+
+        if(!listed.equals(expected))
+            throw new TestFailed("directory listed through a stub wrong");
+    }
+
+    /** Starts a skeleton whose calls return counting iterators. */
+    private Skeleton<Source> start() throws TestFailed
+    {
+        Skeleton<Source>    skeleton = new Skeleton<Source>(Source.class,
+            new Source()
+            {
+                @Override
+                public Iterator<Integer> count(int n)
+                {
+                    source = new Counting(n);
+                    return source;
+                }
+            }, new InetSocketAddress("127.0.0.1", 0));
+
+        skeletons.add(skeleton);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        return skeleton;
+    }
+
+    /** Makes a stub for a skeleton. */
+    private static Source stub(Skeleton<Source> skeleton)
+    {
+        return Stub.create(Source.class, address(skeleton));
+    }
+
+    /** Gives the address stubs reach a skeleton at. */
+    private static InetSocketAddress address(Skeleton<?> skeleton)
+    {
+        return new InetSocketAddress("127.0.0.1",
+                                     skeleton.getAddress().getPort());
+    }
+}
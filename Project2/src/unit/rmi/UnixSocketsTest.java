@@ -0,0 +1,238 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+
+/** Checks where skeletons make their Unix domain sockets, and when they
+    replace existing ones.
+
+    <p>
+    Tests include:
+    <ul>
+    <li>The socket directory is created readable by its owner only.</li>
+    <li>Skeletons bound to different addresses with the same port make
+        different sockets, and a stub connects to the one of its own
+        address.</li>
+    <li>A socket which still answers is not replaced, and one left behind
+        by a skeleton that has gone is.</li>
+    </ul>
+
+    <p>
+    The test is skipped on file systems without POSIX permissions, where
+    Unix domain sockets are not used.
+ */
+public class UnixSocketsTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking Unix domain socket files";
+
+    /** Remote interface returning the name of its skeleton. */
+    public interface Named
+    {
+        String name() throws RMIException;
+    }
+
+    /** Directory holding the socket directory. */
+    private TemporaryDirectory  temporary;
+    /** The socket directory. */
+    private Path                sockets;
+    /** Skeletons started by the test. */
+    private final List<Skeleton<Named>> skeletons =
+        new ArrayList<Skeleton<Named>>();
+    /** Settings before the test. */
+    private Path                directory;
+    private boolean             enabled;
+    private boolean             local;
+
+    /** Points the sockets at a new directory.
+
+        @throws TestFailed If the directory cannot be made.
+     */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            temporary = new TemporaryDirectory();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create temporary directory", t);
+        }
+
+        sockets = temporary.root().toPath().resolve("sockets");
+        directory = UnixSockets.getDirectory();
+        enabled = UnixSockets.isEnabled();
+        local = LocalCalls.isEnabled();
+
+        UnixSockets.setDirectory(sockets);
+        UnixSockets.setEnabled(true);
+        LocalCalls.setEnabled(false);
+    }
+
+    /** Stops the skeletons and restores the settings. */
+    @Override
+    protected void clean()
+    {
+        for(Skeleton<Named> skeleton : skeletons)
+            skeleton.stop();
+
+        UnixSockets.setDirectory(directory);
+        UnixSockets.setEnabled(enabled);
+        LocalCalls.setEnabled(local);
+
+        if(temporary != null)
+            temporary.remove();
+    }
+
+    /** Performs the tests.
+
+        @throws TestFailed If any of the tests fail.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        if(!FileSystems.getDefault().supportedFileAttributeViews()
+                .contains("posix"))
+        {
+            return;
+        }
+
+        try
+        {
+            Skeleton<Named>     first = start("first", "127.0.0.1", 0);
+
+            testDirectory();
+            testAddresses(first);
+            testReplacement(first);
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks the permissions of the socket directory. */
+    private void testDirectory() throws Throwable
+    {
+        if(!Files.isDirectory(sockets))
+            throw new TestFailed("socket directory not created");
+
+        if(!PosixFilePermissions.fromString("rwx------").equals(
+                Files.getPosixFilePermissions(sockets)))
+        {
+            throw new TestFailed("socket directory open to other users");
+        }
+    }
+
+    /** Checks that skeletons on different addresses do not share a
+        socket. */
+    private void testAddresses(Skeleton<Named> first) throws Throwable
+    {
+        int                 port = first.getAddress().getPort();
+        Skeleton<Named>     second;
+
+        try
+        {
+            second = start("second", "127.0.0.2", port);
+        }
+        catch(RMIException e)
+        {
+            // Not every host answers on the whole loopback range.
+            return;
+        }
+
+        for(String host : new String[] {"127.0.0.1", "127.0.0.2"})
+        {
+            if(!Files.exists(sockets.resolve("rmi-" + host + "-" + port +
+                                             ".sock")))
+            {
+                throw new TestFailed("no socket for skeleton on " + host);
+            }
+        }
+
+        Named   toFirst = stub("127.0.0.1", port);
+        Named   toSecond = stub("127.0.0.2", port);
+
+        if(!"first".equals(toFirst.name()) ||
+           !"second".equals(toSecond.name()))
+        {
+            throw new TestFailed("stub reached the skeleton on another " +
+                                 "address");
+        }
+
+        second.stop();
+        skeletons.remove(second);
+
+        if(Files.exists(sockets.resolve("rmi-127.0.0.2-" + port + ".sock")))
+            throw new TestFailed("socket file left after skeleton stopped");
+
+        if(!Files.exists(sockets.resolve("rmi-127.0.0.1-" + port + ".sock")))
+            throw new TestFailed("stopping a skeleton removed the socket " +
+                                 "of another");
+    }
+
+    /** Checks that live sockets are kept and stale ones replaced. */
+    private void testReplacement(Skeleton<Named> first) throws Throwable
+    {
+        InetSocketAddress   live = first.getAddress();
+
+        if(UnixSockets.listen(live) != null)
+            throw new TestFailed("socket of a running skeleton replaced");
+
+        SocketChannel       channel = UnixSockets.connect(
+            new InetSocketAddress("127.0.0.1", live.getPort()));
+
+        if(channel == null)
+            throw new TestFailed("socket of a running skeleton lost");
+        channel.close();
+
+        // A socket whose channel was closed without its file being removed.
+        ServerSocket        free =
+            new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        InetSocketAddress   stale =
+            new InetSocketAddress("127.0.0.1", free.getLocalPort());
+
+        free.close();
+        UnixSockets.listen(stale).close();
+
+        ServerSocketChannel replaced = UnixSockets.listen(stale);
+
+        if(replaced == null)
+            throw new TestFailed("stale socket not replaced");
+
+        UnixSockets.unlisten(replaced);
+    }
+
+    /** Starts a skeleton on the given address. */
+    private Skeleton<Named> start(final String name, String host, int port)
+        throws Throwable
+    {
+        Skeleton<Named> skeleton = new Skeleton<Named>(Named.class,
+            new Named()
+            {
+                @Override
+                public String name()
+                {
+                    return name;
+                }
+            }, new InetSocketAddress(InetAddress.getByName(host), port));
+
+        skeleton.start();
+        skeletons.add(skeleton);
+        return skeleton;
+    }
+
+    /** Makes a stub for the given address. */
+    private static Named stub(String host, int port) throws Throwable
+    {
+        return Stub.create(Named.class, new InetSocketAddress(
+            InetAddress.getByName(host), port));
+    }
+}